@@ -25,6 +25,14 @@ public class Pose {
     private final Quaternion mOrientation;
     private final Vector3 mPosition;
 
+    /**
+     * Creates a pose at the origin, meant to be filled by the allocation free methods of
+     * {@link ScenePoseCalculator}.
+     */
+    public Pose() {
+        this(new Vector3(), new Quaternion());
+    }
+
     public Pose(Vector3 position, Quaternion orientation) {
         this.mOrientation = orientation;
         this.mPosition = position;
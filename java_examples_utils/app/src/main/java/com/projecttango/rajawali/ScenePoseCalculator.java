@@ -57,7 +57,7 @@ public final class ScenePoseCalculator {
     public static final Matrix4 ROTATION_270_T_DEFAULT = new Matrix4(new double[]{
              0, 1, 0, 0,
             -1, 0, 0, 0,
-             0, 0, 0, 0,
+             0, 0, 1, 0,
              0, 0, 0, 1
     });
 
@@ -113,15 +113,38 @@ public final class ScenePoseCalculator {
      * Converts from TangoPoseData to a Matrix4 for transformations.
      */
     public static Matrix4 tangoPoseToMatrix(TangoPoseData tangoPose) {
-        Vector3 v = new Vector3(tangoPose.translation[0],
-                tangoPose.translation[1], tangoPose.translation[2]);
-        Quaternion q = new Quaternion(tangoPose.rotation[3], tangoPose.rotation[0],
-                tangoPose.rotation[1], tangoPose.rotation[2]);
-        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
-        q.conjugate();
-        Matrix4 m = new Matrix4();
-        m.setAll(v, new Vector3(1, 1, 1), q);
-        return m;
+        double[] m = new double[16];
+        tangoPoseToMatrix(tangoPose, m);
+        return new Matrix4(m);
+    }
+
+    /**
+     * Converts from TangoPoseData to a column-major transformation matrix, without allocating.
+     */
+    public static void tangoPoseToMatrix(TangoPoseData tangoPose, double[] m) {
+        double x = tangoPose.rotation[TangoPoseData.INDEX_ROTATION_X];
+        double y = tangoPose.rotation[TangoPoseData.INDEX_ROTATION_Y];
+        double z = tangoPose.rotation[TangoPoseData.INDEX_ROTATION_Z];
+        double w = tangoPose.rotation[TangoPoseData.INDEX_ROTATION_W];
+
+        m[Matrix4.M00] = 1 - 2 * (y * y + z * z);
+        m[Matrix4.M01] = 2 * (x * y - z * w);
+        m[Matrix4.M02] = 2 * (x * z + y * w);
+        m[Matrix4.M10] = 2 * (x * y + z * w);
+        m[Matrix4.M11] = 1 - 2 * (x * x + z * z);
+        m[Matrix4.M12] = 2 * (y * z - x * w);
+        m[Matrix4.M20] = 2 * (x * z - y * w);
+        m[Matrix4.M21] = 2 * (y * z + x * w);
+        m[Matrix4.M22] = 1 - 2 * (x * x + y * y);
+
+        m[Matrix4.M03] = tangoPose.translation[0];
+        m[Matrix4.M13] = tangoPose.translation[1];
+        m[Matrix4.M23] = tangoPose.translation[2];
+
+        m[Matrix4.M30] = 0;
+        m[Matrix4.M31] = 0;
+        m[Matrix4.M32] = 0;
+        m[Matrix4.M33] = 1;
     }
 
     /**
@@ -152,15 +175,51 @@ public final class ScenePoseCalculator {
      * Rajawali conventions.
      */
     public static Pose matrixToPose(Matrix4 m) {
-        // Get translation and rotation components from the transformation matrix.
-        Vector3 p = m.getTranslation();
-        Quaternion q = new Quaternion();
-        q.fromMatrix(m);
-
-        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
-        q.conjugate();
+        Pose pose = new Pose();
+        matrixToPose(m.getDoubleValues(), pose);
+        return pose;
+    }
 
-        return new Pose(p, q);
+    /**
+     * Extracts the position and orientation of a column-major transformation matrix into an
+     * existing Pose object, taking into account Rajawali conventions, without allocating.
+     */
+    public static void matrixToPose(double[] m, Pose pose) {
+        pose.getPosition().setAll(m[Matrix4.M03], m[Matrix4.M13], m[Matrix4.M23]);
+
+        // This is the conjugate of the quaternion Rajawali extracts from the matrix, since
+        // Rajawali quaternions use a left-hand rotation around the axis convention.
+        double w;
+        double x;
+        double y;
+        double z;
+        double trace = m[Matrix4.M00] + m[Matrix4.M11] + m[Matrix4.M22];
+        if (trace > 0) {
+            double s = 2 * Math.sqrt(trace + 1);
+            w = 0.25 * s;
+            x = (m[Matrix4.M21] - m[Matrix4.M12]) / s;
+            y = (m[Matrix4.M02] - m[Matrix4.M20]) / s;
+            z = (m[Matrix4.M10] - m[Matrix4.M01]) / s;
+        } else if (m[Matrix4.M00] > m[Matrix4.M11] && m[Matrix4.M00] > m[Matrix4.M22]) {
+            double s = 2 * Math.sqrt(1 + m[Matrix4.M00] - m[Matrix4.M11] - m[Matrix4.M22]);
+            w = (m[Matrix4.M21] - m[Matrix4.M12]) / s;
+            x = 0.25 * s;
+            y = (m[Matrix4.M01] + m[Matrix4.M10]) / s;
+            z = (m[Matrix4.M02] + m[Matrix4.M20]) / s;
+        } else if (m[Matrix4.M11] > m[Matrix4.M22]) {
+            double s = 2 * Math.sqrt(1 + m[Matrix4.M11] - m[Matrix4.M00] - m[Matrix4.M22]);
+            w = (m[Matrix4.M02] - m[Matrix4.M20]) / s;
+            x = (m[Matrix4.M01] + m[Matrix4.M10]) / s;
+            y = 0.25 * s;
+            z = (m[Matrix4.M12] + m[Matrix4.M21]) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + m[Matrix4.M22] - m[Matrix4.M00] - m[Matrix4.M11]);
+            w = (m[Matrix4.M10] - m[Matrix4.M01]) / s;
+            x = (m[Matrix4.M02] + m[Matrix4.M20]) / s;
+            y = (m[Matrix4.M12] + m[Matrix4.M21]) / s;
+            z = 0.25 * s;
+        }
+        pose.getOrientation().setAll(w, x, y, z);
     }
 
     /**
@@ -168,12 +227,21 @@ public final class ScenePoseCalculator {
      * position and orientation for a 3D object in the Rajawali world.
      */
     public static Pose toOpenGLPose(TangoPoseData tangoPose) {
-        Matrix4 startServiceTDevice = tangoPoseToMatrix(tangoPose);
-
-        // Get device pose in OpenGL world frame.
-        Matrix4 openglWorldTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTDevice);
+        Pose pose = new Pose();
+        toOpenGLPose(tangoPose, new double[16], pose);
+        return pose;
+    }
 
-        return matrixToPose(openglWorldTDevice);
+    /**
+     * Allocation free version of {@link #toOpenGLPose(TangoPoseData)}.
+     *
+     * @param openglWorldTDevice Output device pose in OpenGL world frame, as a column-major matrix.
+     * @param pose               Output pose.
+     */
+    public static void toOpenGLPose(TangoPoseData tangoPose, double[] openglWorldTDevice,
+                                    Pose pose) {
+        toOpenGLMatrix(tangoPose, openglWorldTDevice);
+        matrixToPose(openglWorldTDevice, pose);
     }
 
     /**
@@ -186,30 +254,43 @@ public final class ScenePoseCalculator {
      *                      http://developer.android.com/reference/android/view/Surface.html#ROTATION_0 // NO_LINT
      */
     public static Pose toOpenGLPoseWithScreenRotation(TangoPoseData tangoPose, int rotationIndex) {
-        Matrix4 startServiceTDevice = tangoPoseToMatrix(tangoPose);
+        Pose pose = new Pose();
+        toOpenGLPoseWithScreenRotation(tangoPose, rotationIndex, new double[16], pose);
+        return pose;
+    }
 
-        // Get device pose in OpenGL world frame.
-        Matrix4 openglWorldTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTDevice);
+    /**
+     * Allocation free version of {@link #toOpenGLPoseWithScreenRotation(TangoPoseData, int)}.
+     *
+     * @param openglWorldTDevice Output rotated device pose in OpenGL world frame, as a column-major
+     *                           matrix.
+     * @param pose               Output pose.
+     */
+    public static void toOpenGLPoseWithScreenRotation(TangoPoseData tangoPose, int rotationIndex,
+                                                      double[] openglWorldTDevice, Pose pose) {
+        toOpenGLMatrix(tangoPose, openglWorldTDevice);
 
+        Matrix4 rotationTDefault;
         switch (rotationIndex) {
             case 0:
-                openglWorldTDevice.multiply(ROTATION_0_T_DEFAULT);
+                rotationTDefault = ROTATION_0_T_DEFAULT;
                 break;
             case 1:
-                openglWorldTDevice.multiply(ROTATION_90_T_DEFAULT);
+                rotationTDefault = ROTATION_90_T_DEFAULT;
                 break;
             case 2:
-                openglWorldTDevice.multiply(ROTATION_180_T_DEFAULT);
+                rotationTDefault = ROTATION_180_T_DEFAULT;
                 break;
             case 3:
-                openglWorldTDevice.multiply(ROTATION_270_T_DEFAULT);
+                rotationTDefault = ROTATION_270_T_DEFAULT;
                 break;
             default:
-                openglWorldTDevice.multiply(ROTATION_0_T_DEFAULT);
+                rotationTDefault = ROTATION_0_T_DEFAULT;
                 break;
         }
+        rightMultiply(openglWorldTDevice, rotationTDefault.getDoubleValues());
 
-        return matrixToPose(openglWorldTDevice);
+        matrixToPose(openglWorldTDevice, pose);
     }
 
     /**
@@ -244,17 +325,29 @@ public final class ScenePoseCalculator {
      * position and orientation for a OpenGL Scene Camera in the Rajawali world.
      */
     public static Pose toOpenGlCameraPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics) {
-        Matrix4 startServiceTdevice = tangoPoseToMatrix(devicePose);
+        Pose pose = new Pose();
+        toOpenGlCameraPose(devicePose, extrinsics, new double[16], pose);
+        return pose;
+    }
 
+    /**
+     * Allocation free version of {@link #toOpenGlCameraPose(TangoPoseData, DeviceExtrinsics)}.
+     *
+     * @param openglWorldTOpenglCamera Output OpenGL camera pose in OpenGL world frame, as a
+     *                                 column-major matrix.
+     * @param pose                     Output pose.
+     */
+    public static void toOpenGlCameraPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics,
+                                          double[] openglWorldTOpenglCamera, Pose pose) {
         // Get device pose in OpenGL world frame.
-        Matrix4 openglTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTdevice);
+        toOpenGLMatrix(devicePose, openglWorldTOpenglCamera);
 
         // Get OpenGL camera pose in OpenGL world frame.
-        Matrix4 openglWorldTOpenglCamera =
-                openglTDevice.multiply(extrinsics.getDeviceTColorCamera()).
-                        multiply(COLOR_CAMERA_T_OPENGL_CAMERA);
+        rightMultiply(openglWorldTOpenglCamera,
+                extrinsics.getDeviceTColorCamera().getDoubleValues());
+        rightMultiply(openglWorldTOpenglCamera, COLOR_CAMERA_T_OPENGL_CAMERA.getDoubleValues());
 
-        return matrixToPose(openglWorldTOpenglCamera);
+        matrixToPose(openglWorldTOpenglCamera, pose);
     }
 
     /**
@@ -263,16 +356,30 @@ public final class ScenePoseCalculator {
      */
     public static Pose toDepthCameraOpenGlPose(TangoPoseData devicePose,
                                                DeviceExtrinsics extrinsics) {
-        Matrix4 startServiceTdevice = tangoPoseToMatrix(devicePose);
+        Pose pose = new Pose();
+        toDepthCameraOpenGlPose(devicePose, extrinsics, new double[16], pose);
+        return pose;
+    }
 
+    /**
+     * Allocation free version of
+     * {@link #toDepthCameraOpenGlPose(TangoPoseData, DeviceExtrinsics)}.
+     *
+     * @param openglWorldTDepthCamera Output depth camera pose in OpenGL world frame, as a
+     *                                column-major matrix.
+     * @param pose                    Output pose.
+     */
+    public static void toDepthCameraOpenGlPose(TangoPoseData devicePose,
+                                               DeviceExtrinsics extrinsics,
+                                               double[] openglWorldTDepthCamera, Pose pose) {
         // Get device pose in OpenGL world frame.
-        Matrix4 openglTDevice = OPENGL_T_TANGO_WORLD.clone().multiply(startServiceTdevice);
+        toOpenGLMatrix(devicePose, openglWorldTDepthCamera);
 
-        // Get OpenGL camera pose in OpenGL world frame.
-        Matrix4 openglWorldTOpenglCamera =
-                openglTDevice.multiply(extrinsics.getDeviceTDepthCamera());
+        // Get depth camera pose in OpenGL world frame.
+        rightMultiply(openglWorldTDepthCamera,
+                extrinsics.getDeviceTDepthCamera().getDoubleValues());
 
-        return matrixToPose(openglWorldTOpenglCamera);
+        matrixToPose(openglWorldTDepthCamera, pose);
     }
 
     /**
@@ -350,19 +457,87 @@ public final class ScenePoseCalculator {
             Vector3 inPoint,
             TangoPoseData deviceTPointFramePose,
             TangoPoseData startServiceTDevicePose) {
-        Matrix4 startServiceTDeviceMatrix = tangoPoseToMatrix(startServiceTDevicePose);
-        Matrix4 deviceTPointFrameMatrix = tangoPoseToMatrix(deviceTPointFramePose);
-        Matrix4 startServiceTDepthMatrix 
-                = startServiceTDeviceMatrix.multiply(deviceTPointFrameMatrix);
+        Vector3 outPoint = new Vector3();
+        getPointInEngineFrame(inPoint, deviceTPointFramePose, startServiceTDevicePose, outPoint);
+        return outPoint;
+    }
 
-        // Convert the depth point to a Matrix. 
-        Matrix4 inPointMatrix = new Matrix4();
-        inPointMatrix.setToTranslation(inPoint);
+    /**
+     * Allocation free version of
+     * {@link #getPointInEngineFrame(Vector3, TangoPoseData, TangoPoseData)}, writing the point in
+     * the OpenGl world reference frame into outPoint, which may be the same object as inPoint.
+     */
+    public static void getPointInEngineFrame(
+            Vector3 inPoint,
+            TangoPoseData deviceTPointFramePose,
+            TangoPoseData startServiceTDevicePose,
+            Vector3 outPoint) {
+        outPoint.setAll(inPoint);
 
         // Transform Point from depth frame to start of service frame to OpenGl world frame.
-        Matrix4 startServicePointMatrix = startServiceTDepthMatrix.multiply(inPointMatrix);
-        Matrix4 openGlWorldPointMatrix 
-                = OPENGL_T_TANGO_WORLD.clone().multiply(startServicePointMatrix);
-        return matrixToPose(openGlWorldPointMatrix).getPosition();
+        transformPoint(deviceTPointFramePose, outPoint);
+        transformPoint(startServiceTDevicePose, outPoint);
+        outPoint.setAll(outPoint.x, outPoint.z, -outPoint.y);
+    }
+
+    /**
+     * Calculates the device pose in OpenGL world frame as a column-major matrix.
+     */
+    private static void toOpenGLMatrix(TangoPoseData tangoPose, double[] openglWorldTDevice) {
+        tangoPoseToMatrix(tangoPose, openglWorldTDevice);
+        leftMultiply(OPENGL_T_TANGO_WORLD.getDoubleValues(), openglWorldTDevice);
+    }
+
+    /**
+     * Applies a Tango pose to a point, in place.
+     */
+    private static void transformPoint(TangoPoseData pose, Vector3 point) {
+        double qx = pose.rotation[TangoPoseData.INDEX_ROTATION_X];
+        double qy = pose.rotation[TangoPoseData.INDEX_ROTATION_Y];
+        double qz = pose.rotation[TangoPoseData.INDEX_ROTATION_Z];
+        double qw = pose.rotation[TangoPoseData.INDEX_ROTATION_W];
+
+        // v' = v + w * t + q x t, where t = 2 * (q x v).
+        double tx = 2 * (qy * point.z - qz * point.y);
+        double ty = 2 * (qz * point.x - qx * point.z);
+        double tz = 2 * (qx * point.y - qy * point.x);
+        point.setAll(
+                point.x + qw * tx + (qy * tz - qz * ty) + pose.translation[0],
+                point.y + qw * ty + (qz * tx - qx * tz) + pose.translation[1],
+                point.z + qw * tz + (qx * ty - qy * tx) + pose.translation[2]);
+    }
+
+    /**
+     * Computes m = lhs * m for column-major matrices, column by column so that the result can be
+     * written over m.
+     */
+    private static void leftMultiply(double[] lhs, double[] m) {
+        for (int column = 0; column < 16; column += 4) {
+            double m0 = m[column];
+            double m1 = m[column + 1];
+            double m2 = m[column + 2];
+            double m3 = m[column + 3];
+            for (int row = 0; row < 4; row++) {
+                m[column + row] = lhs[row] * m0 + lhs[4 + row] * m1 + lhs[8 + row] * m2
+                        + lhs[12 + row] * m3;
+            }
+        }
+    }
+
+    /**
+     * Computes m = m * rhs for column-major matrices, row by row so that the result can be
+     * written over m.
+     */
+    private static void rightMultiply(double[] m, double[] rhs) {
+        for (int row = 0; row < 4; row++) {
+            double m0 = m[row];
+            double m1 = m[4 + row];
+            double m2 = m[8 + row];
+            double m3 = m[12 + row];
+            for (int column = 0; column < 16; column += 4) {
+                m[column + row] = m0 * rhs[column] + m1 * rhs[column + 1] + m2 * rhs[column + 2]
+                        + m3 * rhs[column + 3];
+            }
+        }
     }
 }
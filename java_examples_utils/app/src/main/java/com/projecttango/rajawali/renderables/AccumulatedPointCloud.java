@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Geometry3D;
+import org.rajawali3d.materials.Material;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.projecttango.rajawali.renderables.primitives.Points;
+import com.projecttango.tangoutils.VoxelGrid;
+
+/**
+ * Renders the point clouds accumulated over time in a {@link VoxelGrid}, one point per voxel.
+ * Point clouds are inserted in the world frame, so this object is not moved.
+ * <p/>
+ * The vertex buffer starts small and doubles when the grid outgrows it, up to the maximum number
+ * of voxels of the grid. Only the range of voxels changed since the last update is uploaded.
+ */
+public class AccumulatedPointCloud extends Points {
+    private static final int INITIAL_NUMBER_OF_POINTS = 1 << 14;
+
+    private VoxelGrid mVoxelGrid;
+    private FloatBuffer mVertexBuffer;
+
+    public AccumulatedPointCloud(VoxelGrid voxelGrid, int color) {
+        super(Math.min(INITIAL_NUMBER_OF_POINTS, voxelGrid.getMaxNumberOfVoxels()), false);
+        mVoxelGrid = voxelGrid;
+        mVertexBuffer = ByteBuffer
+                .allocateDirect(getMaxNumberOfPoints() * 3 * Geometry3D.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        Material m = new Material();
+        m.setColor(color);
+        setMaterial(m);
+    }
+
+    /**
+     * Transform a point cloud with the given column major matrix and add it to the grid.
+     * The rendered points are not changed until the next call to {@link #updateCloud()}.
+     */
+    public void addCloud(FloatBuffer pointCloudBuffer, int pointCount, float[] worldTdepth) {
+        mVoxelGrid.insert(pointCloudBuffer, pointCount, worldTdepth);
+    }
+
+    /**
+     * Upload the voxels changed since the last update.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     */
+    public void updateCloud() {
+        int numberOfVoxels = mVoxelGrid.getNumberOfVoxels();
+        if (numberOfVoxels > getMaxNumberOfPoints()) {
+            int numberOfPoints = getMaxNumberOfPoints();
+            while (numberOfPoints < numberOfVoxels) {
+                numberOfPoints *= 2;
+            }
+            numberOfPoints = Math.min(numberOfPoints, mVoxelGrid.getMaxNumberOfVoxels());
+            mVertexBuffer = ByteBuffer
+                    .allocateDirect(numberOfPoints * 3 * Geometry3D.FLOAT_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mVertexBuffer.put(mVoxelGrid.getPoints(), 0, numberOfVoxels * 3);
+            // Resizing uploads the whole buffer, so there is nothing left to upload.
+            resize(numberOfPoints, mVertexBuffer);
+        } else if (mVoxelGrid.hasChanges()) {
+            int begin = mVoxelGrid.getChangedBegin() * 3;
+            int length = mVoxelGrid.getChangedEnd() * 3 - begin;
+            mVertexBuffer.position(begin);
+            mVertexBuffer.put(mVoxelGrid.getPoints(), begin, length);
+            // Upload only the changed range, which Geometry3D can't do from an offset in the
+            // source buffer.
+            mVertexBuffer.position(begin);
+            BufferInfo vertexBufferInfo = mGeometry.getVertexBufferInfo();
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferInfo.bufferHandle);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, begin * Geometry3D.FLOAT_SIZE_BYTES,
+                    length * Geometry3D.FLOAT_SIZE_BYTES, mVertexBuffer);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+        mVertexBuffer.position(0);
+        mVoxelGrid.clearChanges();
+        mGeometry.setNumIndices(numberOfVoxels);
+    }
+
+    /**
+     * Remove all the accumulated points.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     */
+    public void clear() {
+        mVoxelGrid.clear();
+        mGeometry.setNumIndices(0);
+    }
+
+    public VoxelGrid getVoxelGrid() {
+        return mVoxelGrid;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.materials.Material.PluginInsertLocation;
+import org.rajawali3d.materials.plugins.IMaterialPlugin;
+import org.rajawali3d.materials.shaders.AShader;
+import org.rajawali3d.materials.shaders.IShaderFragment;
+
+/**
+ * Material plugin that colors each vertex in the vertex shader based on its depth, using the same
+ * palette as the CPU coloring in {@link PointCloud}: the hue goes from {@code hueBegin} at depth 0
+ * to {@code hueEnd} at {@code maxZ}, quantized in {@code paletteSize} steps.
+ * The depth is the Z coordinate of the vertex in object space, so the geometry is expected to be
+ * in the depth camera frame.
+ */
+public class DepthColorMaterialPlugin implements IMaterialPlugin {
+    private DepthColorVertexShaderFragment mVertexShader;
+
+    public DepthColorMaterialPlugin(float maxZ, int paletteSize, float hueBegin, float hueEnd) {
+        mVertexShader = new DepthColorVertexShaderFragment(maxZ, paletteSize, hueBegin, hueEnd);
+    }
+
+    @Override
+    public PluginInsertLocation getInsertLocation() {
+        return PluginInsertLocation.PRE_TRANSFORM;
+    }
+
+    @Override
+    public IShaderFragment getVertexShaderFragment() {
+        return mVertexShader;
+    }
+
+    @Override
+    public IShaderFragment getFragmentShaderFragment() {
+        return null;
+    }
+
+    @Override
+    public void bindTextures(int nextIndex) {
+    }
+
+    @Override
+    public void unbindTextures() {
+    }
+
+    private static final class DepthColorVertexShaderFragment extends AShader
+            implements IShaderFragment {
+        private static final String SHADER_ID = "DEPTH_COLOR_VERTEX";
+        private static final String U_MAX_Z = "uDepthColorMaxZ";
+        private static final String U_PALETTE_SIZE = "uDepthColorPaletteSize";
+        private static final String U_HUE_BEGIN = "uDepthColorHueBegin";
+        private static final String U_HUE_END = "uDepthColorHueEnd";
+
+        private final float mMaxZ;
+        private final float mPaletteSize;
+        private final float mHueBegin;
+        private final float mHueEnd;
+
+        private RFloat muMaxZ;
+        private RFloat muPaletteSize;
+        private RFloat muHueBegin;
+        private RFloat muHueEnd;
+        private int muMaxZHandle;
+        private int muPaletteSizeHandle;
+        private int muHueBeginHandle;
+        private int muHueEndHandle;
+
+        public DepthColorVertexShaderFragment(float maxZ, int paletteSize, float hueBegin,
+                                              float hueEnd) {
+            super(ShaderType.VERTEX_SHADER_FRAGMENT);
+            mMaxZ = maxZ;
+            mPaletteSize = paletteSize;
+            mHueBegin = hueBegin;
+            mHueEnd = hueEnd;
+            initialize();
+        }
+
+        @Override
+        public void initialize() {
+            super.initialize();
+            muMaxZ = (RFloat) addUniform(U_MAX_Z, DataType.FLOAT);
+            muPaletteSize = (RFloat) addUniform(U_PALETTE_SIZE, DataType.FLOAT);
+            muHueBegin = (RFloat) addUniform(U_HUE_BEGIN, DataType.FLOAT);
+            muHueEnd = (RFloat) addUniform(U_HUE_END, DataType.FLOAT);
+        }
+
+        @Override
+        public void main() {
+            RVec4 gPosition = (RVec4) getGlobal(DefaultShaderVar.G_POSITION);
+            RVec4 gColor = (RVec4) getGlobal(DefaultShaderVar.G_COLOR);
+            String paletteSize = muPaletteSize.getName();
+            // Same quantization as the palette lookup done on the CPU.
+            String paletteIndex = "clamp(floor(" + gPosition.getName() + ".z / "
+                    + muMaxZ.getName() + " * " + paletteSize + "), 0.0, " + paletteSize
+                    + " - 1.0)";
+            String hue = "((" + muHueEnd.getName() + " - " + muHueBegin.getName() + ") * "
+                    + paletteIndex + " / " + paletteSize + " + " + muHueBegin.getName() + ")";
+            // HSV to RGB with full saturation and value.
+            gColor.assign("vec4(clamp(abs(mod(" + hue + " / 60.0 + vec3(0.0, 4.0, 2.0), 6.0)"
+                    + " - 3.0) - 1.0, 0.0, 1.0), 1.0)");
+        }
+
+        @Override
+        public void setLocations(int programHandle) {
+            muMaxZHandle = getUniformLocation(programHandle, U_MAX_Z);
+            muPaletteSizeHandle = getUniformLocation(programHandle, U_PALETTE_SIZE);
+            muHueBeginHandle = getUniformLocation(programHandle, U_HUE_BEGIN);
+            muHueEndHandle = getUniformLocation(programHandle, U_HUE_END);
+        }
+
+        @Override
+        public void applyParams() {
+            super.applyParams();
+            GLES20.glUniform1f(muMaxZHandle, mMaxZ);
+            GLES20.glUniform1f(muPaletteSizeHandle, mPaletteSize);
+            GLES20.glUniform1f(muHueBeginHandle, mHueBegin);
+            GLES20.glUniform1f(muHueEndHandle, mHueEnd);
+        }
+
+        @Override
+        public String getShaderId() {
+            return SHADER_ID;
+        }
+
+        @Override
+        public PluginInsertLocation getInsertLocation() {
+            return PluginInsertLocation.PRE_TRANSFORM;
+        }
+
+        @Override
+        public void bindTextures(int nextIndex) {
+        }
+
+        @Override
+        public void unbindTextures() {
+        }
+    }
+}
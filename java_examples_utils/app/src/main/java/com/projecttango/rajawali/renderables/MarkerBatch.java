@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import android.graphics.Color;
+import android.opengl.GLES20;
+
+import org.rajawali3d.Geometry3D;
+import org.rajawali3d.Object3D;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Renders up to a fixed number of colored sphere markers as a single object, drawn in one call
+ * whatever the number of markers, instead of one Rajawali object per marker.
+ * <p/>
+ * Rajawali only uses OpenGL ES 2.0, which has no instanced drawing, so the sphere is replicated
+ * once per marker in the buffers. They start small and double when more markers are set, up to
+ * the maximum. The normals and indices never change; when a marker is moved or recolored only its
+ * own vertices are written and uploaded, in the OpenGL thread before the next draw. The buffers
+ * written are the ones of the geometry, so they are uploaded again as they are if the context is
+ * recreated.
+ * <p/>
+ * The indices are 32 bit, like the ones of every Rajawali object. Past 65536 vertices, for
+ * example 1024 markers of 10 segments, they go beyond the 16 bit range, which needs OpenGL ES 3.0
+ * or the OES_element_index_uint extension. Growing the buffers that far checks for them and fails
+ * if neither is available, rather than drawing wrong triangles.
+ * NOTE: This needs to be created and updated in the OpenGL rendering thread.
+ */
+public class MarkerBatch extends Object3D {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_SHORT_INDEX_VERTICES = 0x10000;
+
+    private final int mMaxNumberOfMarkers;
+    private final int mVerticesPerMarker;
+    private final int mIndicesPerMarker;
+    // Vertices, normals and indices of a marker centered on the origin, packed x, y, z.
+    private final float[] mTemplatePositions;
+    private final float[] mTemplateNormals;
+    private final int[] mTemplateIndices;
+    // Number of markers the buffers can hold.
+    private int mCapacity;
+    private FloatBuffer mPositions;
+    private FloatBuffer mColors;
+    // Center and color of each marker, to skip the updates that change nothing.
+    private float[] mCenters = new float[0];
+    private int[] mMarkerColors = new int[0];
+    private int mNumberOfMarkers;
+    // Range of markers changed since the last upload.
+    private int mFirstChangedMarker = Integer.MAX_VALUE;
+    private int mLastChangedMarker = -1;
+    private boolean mHasCheckedIntIndices = false;
+
+    /**
+     * @param segments Number of rings and of sectors of the spheres.
+     */
+    public MarkerBatch(int maxNumberOfMarkers, float radius, int segments) {
+        super();
+        mMaxNumberOfMarkers = maxNumberOfMarkers;
+        int columns = segments + 1;
+        mVerticesPerMarker = columns * columns;
+        mIndicesPerMarker = segments * segments * 6;
+
+        mTemplatePositions = new float[mVerticesPerMarker * 3];
+        mTemplateNormals = new float[mVerticesPerMarker * 3];
+        for (int ring = 0; ring <= segments; ring++) {
+            double polar = Math.PI * ring / segments;
+            for (int sector = 0; sector <= segments; sector++) {
+                double azimuth = 2 * Math.PI * sector / segments;
+                int offset = (ring * columns + sector) * 3;
+                mTemplateNormals[offset] = (float) (Math.sin(polar) * Math.cos(azimuth));
+                mTemplateNormals[offset + 1] = (float) Math.cos(polar);
+                mTemplateNormals[offset + 2] = (float) (Math.sin(polar) * Math.sin(azimuth));
+                for (int i = 0; i < 3; i++) {
+                    mTemplatePositions[offset + i] = mTemplateNormals[offset + i] * radius;
+                }
+            }
+        }
+        mTemplateIndices = new int[mIndicesPerMarker];
+        int index = 0;
+        for (int ring = 0; ring < segments; ring++) {
+            for (int sector = 0; sector < segments; sector++) {
+                // Counter clockwise as seen from outside.
+                int vertex = ring * columns + sector;
+                int below = vertex + columns;
+                mTemplateIndices[index++] = vertex;
+                mTemplateIndices[index++] = vertex + 1;
+                mTemplateIndices[index++] = below;
+                mTemplateIndices[index++] = vertex + 1;
+                mTemplateIndices[index++] = below + 1;
+                mTemplateIndices[index++] = below;
+            }
+        }
+
+        // Create the buffers with a placeholder triangle, then replace their data with the
+        // markers.
+        setData(new float[9], GLES20.GL_DYNAMIC_DRAW,
+                new float[9], GLES20.GL_STATIC_DRAW,
+                null, GLES20.GL_STATIC_DRAW,
+                new float[12], GLES20.GL_DYNAMIC_DRAW,
+                new int[]{0, 1, 2}, GLES20.GL_STATIC_DRAW,
+                true);
+        ensureCapacity(Math.min(INITIAL_CAPACITY, maxNumberOfMarkers));
+        setNumberOfMarkers(0);
+    }
+
+    public int getMaxNumberOfMarkers() {
+        return mMaxNumberOfMarkers;
+    }
+
+    /**
+     * Set the number of markers drawn, the first ones.
+     */
+    public void setNumberOfMarkers(int numberOfMarkers) {
+        checkMarker(numberOfMarkers - 1);
+        ensureCapacity(numberOfMarkers);
+        mNumberOfMarkers = numberOfMarkers;
+        mGeometry.setNumIndices(numberOfMarkers * mIndicesPerMarker);
+        setVisible(numberOfMarkers > 0);
+    }
+
+    public int getNumberOfMarkers() {
+        return mNumberOfMarkers;
+    }
+
+    /**
+     * Move and color a marker. Nothing is uploaded if neither changed.
+     */
+    public void setMarker(int marker, float x, float y, float z, int color) {
+        checkMarker(marker);
+        ensureCapacity(marker + 1);
+        int center = marker * 3;
+        boolean isMoved = x != mCenters[center] || y != mCenters[center + 1]
+                || z != mCenters[center + 2];
+        boolean isRecolored = color != mMarkerColors[marker];
+        if (!isMoved && !isRecolored) {
+            return;
+        }
+        int firstVertex = marker * mVerticesPerMarker;
+        if (isMoved) {
+            mCenters[center] = x;
+            mCenters[center + 1] = y;
+            mCenters[center + 2] = z;
+            for (int v = 0; v < mVerticesPerMarker; v++) {
+                int offset = v * 3;
+                int position = (firstVertex + v) * 3;
+                mPositions.put(position, mTemplatePositions[offset] + x);
+                mPositions.put(position + 1, mTemplatePositions[offset + 1] + y);
+                mPositions.put(position + 2, mTemplatePositions[offset + 2] + z);
+            }
+        }
+        if (isRecolored) {
+            mMarkerColors[marker] = color;
+            float red = Color.red(color) / 255f;
+            float green = Color.green(color) / 255f;
+            float blue = Color.blue(color) / 255f;
+            float alpha = Color.alpha(color) / 255f;
+            for (int v = 0; v < mVerticesPerMarker; v++) {
+                int offset = (firstVertex + v) * 4;
+                mColors.put(offset, red);
+                mColors.put(offset + 1, green);
+                mColors.put(offset + 2, blue);
+                mColors.put(offset + 3, alpha);
+            }
+        }
+        mFirstChangedMarker = Math.min(mFirstChangedMarker, marker);
+        mLastChangedMarker = Math.max(mLastChangedMarker, marker);
+    }
+
+    @Override
+    public void preRender() {
+        super.preRender();
+        if (mLastChangedMarker < mFirstChangedMarker) {
+            return;
+        }
+        // Upload the vertices of the changed markers only.
+        int firstVertex = mFirstChangedMarker * mVerticesPerMarker;
+        int numberOfVertices = (mLastChangedMarker - mFirstChangedMarker + 1) * mVerticesPerMarker;
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(),
+                slice(mPositions, firstVertex * 3, numberOfVertices * 3), firstVertex * 3,
+                numberOfVertices * 3);
+        mGeometry.changeBufferData(mGeometry.getColorBufferInfo(),
+                slice(mColors, firstVertex * 4, numberOfVertices * 4), firstVertex * 4,
+                numberOfVertices * 4);
+        mFirstChangedMarker = Integer.MAX_VALUE;
+        mLastChangedMarker = -1;
+    }
+
+    /**
+     * Grow the buffers to hold at least the given number of markers, doubling their capacity so
+     * that adding markers one at a time reallocates them only a few times.
+     */
+    private void ensureCapacity(int numberOfMarkers) {
+        if (numberOfMarkers <= mCapacity) {
+            return;
+        }
+        int capacity = Math.max(mCapacity, 1);
+        while (capacity < numberOfMarkers) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, mMaxNumberOfMarkers);
+        int numberOfVertices = capacity * mVerticesPerMarker;
+        if (numberOfVertices > MAX_SHORT_INDEX_VERTICES) {
+            checkIntIndices(numberOfVertices);
+        }
+
+        FloatBuffer positions = allocateFloats(numberOfVertices * 3);
+        FloatBuffer normals = allocateFloats(numberOfVertices * 3);
+        FloatBuffer colors = allocateFloats(numberOfVertices * 4);
+        IntBuffer indices = ByteBuffer.allocateDirect(
+                capacity * mIndicesPerMarker * Geometry3D.INT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        if (mPositions != null) {
+            positions.put(slice(mPositions, 0, mPositions.capacity()));
+            colors.put(slice(mColors, 0, mColors.capacity()));
+        }
+        for (int marker = 0; marker < capacity; marker++) {
+            normals.put(mTemplateNormals);
+            int firstVertex = marker * mVerticesPerMarker;
+            for (int i = 0; i < mIndicesPerMarker; i++) {
+                indices.put(firstVertex + mTemplateIndices[i]);
+            }
+        }
+
+        // The new buffers become the ones of the geometry, with all of their data uploaded.
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), positions, 0,
+                numberOfVertices * 3, true);
+        mGeometry.changeBufferData(mGeometry.getNormalBufferInfo(), normals, 0,
+                numberOfVertices * 3, true);
+        mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), colors, 0,
+                numberOfVertices * 4, true);
+        mGeometry.changeBufferData(mGeometry.getIndexBufferInfo(), indices, 0,
+                capacity * mIndicesPerMarker, true);
+        mPositions = positions;
+        mColors = colors;
+        mFirstChangedMarker = Integer.MAX_VALUE;
+        mLastChangedMarker = -1;
+
+        float[] centers = Arrays.copyOf(mCenters, capacity * 3);
+        // The new markers were not written yet.
+        Arrays.fill(centers, mCenters.length, centers.length, Float.NaN);
+        mCenters = centers;
+        mMarkerColors = Arrays.copyOf(mMarkerColors, capacity);
+        mCapacity = capacity;
+    }
+
+    /**
+     * Check that the context can draw indices above the 16 bit range.
+     */
+    private void checkIntIndices(int numberOfVertices) {
+        if (mHasCheckedIntIndices) {
+            return;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        boolean isGles3 = version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+        if (!isGles3) {
+            String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            if (extensions == null || !extensions.contains("GL_OES_element_index_uint")) {
+                throw new RuntimeException(String.format(
+                        "%d vertices need 32 bit indices, which are not supported by %s",
+                        numberOfVertices, version));
+            }
+        }
+        mHasCheckedIntIndices = true;
+    }
+
+    private void checkMarker(int marker) {
+        if (marker >= mMaxNumberOfMarkers) {
+            throw new RuntimeException(
+                    String.format("marker = %d exceeds maximum number of markers = %d",
+                            marker, mMaxNumberOfMarkers));
+        }
+    }
+
+    private static FloatBuffer allocateFloats(int size) {
+        return ByteBuffer.allocateDirect(size * Geometry3D.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    // Rajawali uploads from the start of the buffer, so changed ranges are uploaded from views
+    // starting at them.
+    private static FloatBuffer slice(FloatBuffer buffer, int offset, int size) {
+        FloatBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + size);
+        return slice.slice();
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import android.util.Log;
+
+import org.rajawali3d.cameras.Camera;
+import org.rajawali3d.materials.Material;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.projecttango.tangoutils.VoxelGrid;
+
+/**
+ * Renders large accumulated point clouds with a level of detail chosen on each frame.
+ * <p/>
+ * The points of the {@link VoxelGrid} are indexed in an octree as they are added. The points of
+ * each leaf are kept in random order, so any prefix of a leaf is an even subsample of it. On each
+ * frame the leaves outside of the camera frustum are culled, and every visible leaf gets a number
+ * of points proportional to its projected area on screen. If the total exceeds the vertex budget
+ * all the leaves are scaled down to fit, so the cost of drawing stays bounded however large the
+ * cloud grows; this matters most in the third person and top down views, which see the whole
+ * cloud at once. Only the indices of the selected points are uploaded, and only when the
+ * selection changes.
+ * <p/>
+ * The points are expected in the world frame, so this object must not be moved.
+ */
+public class OctreePointCloud extends AccumulatedPointCloud {
+    private static final String TAG = OctreePointCloud.class.getSimpleName();
+
+    // Maximum number of points in a leaf before it is split.
+    private static final int LEAF_CAPACITY = 2048;
+    private static final int MAX_DEPTH = 16;
+    private static final int INITIAL_NUMBER_OF_NODES = 64;
+    // Six planes of four coefficients each.
+    private static final int NUMBER_OF_PLANE_COEFFICIENTS = 24;
+
+    private final int mVertexBudget;
+    private final float mRootHalfSize;
+    // Points move inside their voxel as samples are averaged, so nodes are padded by this margin.
+    private final float mMargin;
+
+    // Octree nodes. Children of a node are consecutive, starting at its first child; leaves have
+    // no first child and keep their point indices.
+    private int mNumberOfNodes;
+    private float[] mNodeCenters;
+    private float[] mNodeHalfSizes;
+    private int[] mNodeFirstChild;
+    private int[] mNodeDepths;
+    private int[][] mLeafPoints;
+    private int[] mLeafPointCounts;
+    private int mNumberOfIndexedPoints;
+    private boolean mIsOutOfBoundsLogged;
+    private Random mRandom = new Random(0);
+
+    // Per frame level of detail selection, reused between frames.
+    private double[] mFrustumPlanes = new double[NUMBER_OF_PLANE_COEFFICIENTS];
+    private int[] mTraversalStack = new int[MAX_DEPTH * 7 + 1];
+    private int mNumberOfSelectedLeaves;
+    private int[] mSelectedLeaves;
+    private int[] mSelectedCounts;
+    private int mNumberOfPreviousLeaves;
+    private int[] mPreviousLeaves;
+    private int[] mPreviousCounts;
+    private IntBuffer mIndexBuffer;
+    private int mNumberOfIndices;
+    private boolean mIsSelectionDirty = true;
+
+    /**
+     * @param voxelGrid Grid holding the accumulated points, in the world frame.
+     * @param color Color of the points.
+     * @param vertexBudget Maximum number of points drawn on each frame.
+     * @param worldHalfSize Half size of the cube centered on the world origin which is indexed;
+     *                      points outside of it are not drawn.
+     */
+    public OctreePointCloud(VoxelGrid voxelGrid, int color, int vertexBudget,
+                            float worldHalfSize) {
+        super(voxelGrid, color);
+        mVertexBudget = vertexBudget;
+        mRootHalfSize = worldHalfSize;
+        mMargin = voxelGrid.getLeafSize();
+        mIndexBuffer = ByteBuffer.allocateDirect(vertexBudget * 4)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        allocateNodes(INITIAL_NUMBER_OF_NODES);
+        resetOctree();
+    }
+
+    /**
+     * Upload the voxels changed since the last update and index the new ones in the octree.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     */
+    @Override
+    public void updateCloud() {
+        super.updateCloud();
+        VoxelGrid voxelGrid = getVoxelGrid();
+        int numberOfVoxels = voxelGrid.getNumberOfVoxels();
+        float[] points = voxelGrid.getPoints();
+        for (int i = mNumberOfIndexedPoints; i < numberOfVoxels; i++) {
+            insert(i, points[i * 3], points[i * 3 + 1], points[i * 3 + 2]);
+        }
+        if (numberOfVoxels != mNumberOfIndexedPoints) {
+            mNumberOfIndexedPoints = numberOfVoxels;
+            mIsSelectionDirty = true;
+        }
+    }
+
+    /**
+     * Remove all the accumulated points.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        resetOctree();
+    }
+
+    @Override
+    public void render(Camera camera, final Matrix4 vpMatrix, final Matrix4 projMatrix,
+                       final Matrix4 vMatrix, final Matrix4 parentMatrix,
+                       Material sceneMaterial) {
+        if (isVisible()) {
+            selectLevelOfDetail(camera, vpMatrix, projMatrix);
+        }
+        super.render(camera, vpMatrix, projMatrix, vMatrix, parentMatrix, sceneMaterial);
+    }
+
+    public int getVertexBudget() {
+        return mVertexBudget;
+    }
+
+    private void resetOctree() {
+        mNumberOfNodes = 1;
+        mNodeCenters[0] = 0;
+        mNodeCenters[1] = 0;
+        mNodeCenters[2] = 0;
+        mNodeHalfSizes[0] = mRootHalfSize;
+        mNodeDepths[0] = 0;
+        mNodeFirstChild[0] = -1;
+        Arrays.fill(mLeafPoints, null);
+        mLeafPoints[0] = new int[LEAF_CAPACITY];
+        mLeafPointCounts[0] = 0;
+        mNumberOfIndexedPoints = 0;
+        mNumberOfSelectedLeaves = 0;
+        mNumberOfPreviousLeaves = 0;
+        mNumberOfIndices = 0;
+        mIsOutOfBoundsLogged = false;
+        mIsSelectionDirty = true;
+    }
+
+    private void allocateNodes(int numberOfNodes) {
+        mNodeCenters = new float[numberOfNodes * 3];
+        mNodeHalfSizes = new float[numberOfNodes];
+        mNodeFirstChild = new int[numberOfNodes];
+        mNodeDepths = new int[numberOfNodes];
+        mLeafPoints = new int[numberOfNodes][];
+        mLeafPointCounts = new int[numberOfNodes];
+        mSelectedLeaves = new int[numberOfNodes];
+        mSelectedCounts = new int[numberOfNodes];
+        mPreviousLeaves = new int[numberOfNodes];
+        mPreviousCounts = new int[numberOfNodes];
+    }
+
+    private void growNodes() {
+        int numberOfNodes = mNodeHalfSizes.length * 2;
+        mNodeCenters = Arrays.copyOf(mNodeCenters, numberOfNodes * 3);
+        mNodeHalfSizes = Arrays.copyOf(mNodeHalfSizes, numberOfNodes);
+        mNodeFirstChild = Arrays.copyOf(mNodeFirstChild, numberOfNodes);
+        mNodeDepths = Arrays.copyOf(mNodeDepths, numberOfNodes);
+        mLeafPoints = Arrays.copyOf(mLeafPoints, numberOfNodes);
+        mLeafPointCounts = Arrays.copyOf(mLeafPointCounts, numberOfNodes);
+        mSelectedLeaves = Arrays.copyOf(mSelectedLeaves, numberOfNodes);
+        mSelectedCounts = Arrays.copyOf(mSelectedCounts, numberOfNodes);
+        mPreviousLeaves = Arrays.copyOf(mPreviousLeaves, numberOfNodes);
+        mPreviousCounts = Arrays.copyOf(mPreviousCounts, numberOfNodes);
+    }
+
+    private void insert(int point, float x, float y, float z) {
+        if (Math.abs(x) >= mRootHalfSize || Math.abs(y) >= mRootHalfSize
+                || Math.abs(z) >= mRootHalfSize) {
+            if (!mIsOutOfBoundsLogged) {
+                Log.w(TAG, "Points further than " + mRootHalfSize + "m from the origin are not "
+                        + "drawn");
+                mIsOutOfBoundsLogged = true;
+            }
+            return;
+        }
+        int node = 0;
+        while (mNodeFirstChild[node] >= 0) {
+            node = mNodeFirstChild[node] + childIndex(node, x, y, z);
+        }
+        appendShuffled(node, point);
+        if (mLeafPointCounts[node] > LEAF_CAPACITY && mNodeDepths[node] < MAX_DEPTH) {
+            split(node);
+        }
+    }
+
+    // Append a point at a random position of the leaf, so its points stay in random order.
+    private void appendShuffled(int leaf, int point) {
+        int count = mLeafPointCounts[leaf];
+        int[] leafPoints = mLeafPoints[leaf];
+        if (count == leafPoints.length) {
+            leafPoints = Arrays.copyOf(leafPoints, count * 2);
+            mLeafPoints[leaf] = leafPoints;
+        }
+        int swap = mRandom.nextInt(count + 1);
+        leafPoints[count] = leafPoints[swap];
+        leafPoints[swap] = point;
+        mLeafPointCounts[leaf] = count + 1;
+    }
+
+    // Turn a leaf into an internal node with eight leaves.
+    private void split(int node) {
+        while (mNumberOfNodes + 8 > mNodeHalfSizes.length) {
+            growNodes();
+        }
+        int firstChild = mNumberOfNodes;
+        mNumberOfNodes += 8;
+        float childHalfSize = mNodeHalfSizes[node] / 2;
+        for (int i = 0; i < 8; i++) {
+            int child = firstChild + i;
+            mNodeCenters[child * 3] = mNodeCenters[node * 3]
+                    + ((i & 1) != 0 ? childHalfSize : -childHalfSize);
+            mNodeCenters[child * 3 + 1] = mNodeCenters[node * 3 + 1]
+                    + ((i & 2) != 0 ? childHalfSize : -childHalfSize);
+            mNodeCenters[child * 3 + 2] = mNodeCenters[node * 3 + 2]
+                    + ((i & 4) != 0 ? childHalfSize : -childHalfSize);
+            mNodeHalfSizes[child] = childHalfSize;
+            mNodeDepths[child] = mNodeDepths[node] + 1;
+            mNodeFirstChild[child] = -1;
+            mLeafPoints[child] = new int[LEAF_CAPACITY];
+            mLeafPointCounts[child] = 0;
+        }
+
+        // Keeping the order of the points keeps each child in random order.
+        int[] leafPoints = mLeafPoints[node];
+        int count = mLeafPointCounts[node];
+        float[] points = getVoxelGrid().getPoints();
+        mNodeFirstChild[node] = firstChild;
+        mLeafPoints[node] = null;
+        mLeafPointCounts[node] = 0;
+        for (int i = 0; i < count; i++) {
+            int point = leafPoints[i];
+            int child = firstChild + childIndex(node, points[point * 3], points[point * 3 + 1],
+                    points[point * 3 + 2]);
+            int childCount = mLeafPointCounts[child];
+            if (childCount == mLeafPoints[child].length) {
+                mLeafPoints[child] = Arrays.copyOf(mLeafPoints[child], childCount * 2);
+            }
+            mLeafPoints[child][childCount] = point;
+            mLeafPointCounts[child] = childCount + 1;
+        }
+        for (int i = 0; i < 8; i++) {
+            int child = firstChild + i;
+            if (mLeafPointCounts[child] > LEAF_CAPACITY && mNodeDepths[child] < MAX_DEPTH) {
+                split(child);
+            }
+        }
+    }
+
+    private int childIndex(int node, float x, float y, float z) {
+        return (x >= mNodeCenters[node * 3] ? 1 : 0)
+                | (y >= mNodeCenters[node * 3 + 1] ? 2 : 0)
+                | (z >= mNodeCenters[node * 3 + 2] ? 4 : 0);
+    }
+
+    // Choose the points to draw for the current camera and upload their indices if the selection
+    // changed since the last frame.
+    private void selectLevelOfDetail(Camera camera, Matrix4 vpMatrix, Matrix4 projMatrix) {
+        extractFrustumPlanes(vpMatrix.getDoubleValues(), mFrustumPlanes);
+        // Scale from the size of a node over its distance to its size in normalized device
+        // coordinates, where the screen is 2 units high.
+        double projectionScale = projMatrix.getDoubleValues()[Matrix4.M11] / 2;
+        Vector3 cameraPosition = camera.getPosition();
+
+        mNumberOfSelectedLeaves = 0;
+        long totalCount = 0;
+        int stackSize = 0;
+        mTraversalStack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = mTraversalStack[--stackSize];
+            if (!isNodeInFrustum(node)) {
+                continue;
+            }
+            int firstChild = mNodeFirstChild[node];
+            if (firstChild >= 0) {
+                for (int i = 0; i < 8; i++) {
+                    mTraversalStack[stackSize++] = firstChild + i;
+                }
+                continue;
+            }
+            int count = mLeafPointCounts[node];
+            if (count == 0) {
+                continue;
+            }
+            double radius = (mNodeHalfSizes[node] + mMargin) * Math.sqrt(3);
+            double dx = mNodeCenters[node * 3] - cameraPosition.x;
+            double dy = mNodeCenters[node * 3 + 1] - cameraPosition.y;
+            double dz = mNodeCenters[node * 3 + 2] - cameraPosition.z;
+            double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            if (distance > radius) {
+                // Number of points proportional to the fraction of the screen covered.
+                double screenFraction = 2 * radius * projectionScale / distance;
+                count = (int) Math.min(count,
+                        Math.ceil(mVertexBudget * screenFraction * screenFraction));
+            }
+            mSelectedLeaves[mNumberOfSelectedLeaves] = node;
+            mSelectedCounts[mNumberOfSelectedLeaves] = count;
+            mNumberOfSelectedLeaves++;
+            totalCount += count;
+        }
+
+        if (totalCount > mVertexBudget) {
+            double scale = (double) mVertexBudget / totalCount;
+            for (int i = 0; i < mNumberOfSelectedLeaves; i++) {
+                mSelectedCounts[i] = (int) (mSelectedCounts[i] * scale);
+            }
+        }
+
+        if (mIsSelectionDirty || !isSameSelection()) {
+            uploadSelection();
+        }
+        mGeometry.setNumIndices(mNumberOfIndices);
+    }
+
+    private boolean isSameSelection() {
+        if (mNumberOfSelectedLeaves != mNumberOfPreviousLeaves) {
+            return false;
+        }
+        for (int i = 0; i < mNumberOfSelectedLeaves; i++) {
+            if (mSelectedLeaves[i] != mPreviousLeaves[i]
+                    || mSelectedCounts[i] != mPreviousCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void uploadSelection() {
+        mIndexBuffer.clear();
+        for (int i = 0; i < mNumberOfSelectedLeaves; i++) {
+            mIndexBuffer.put(mLeafPoints[mSelectedLeaves[i]], 0, mSelectedCounts[i]);
+        }
+        mNumberOfIndices = mIndexBuffer.position();
+        mIndexBuffer.position(0);
+        if (mNumberOfIndices > 0) {
+            mGeometry.changeBufferData(mGeometry.getIndexBufferInfo(), mIndexBuffer, 0,
+                    mNumberOfIndices);
+        }
+
+        System.arraycopy(mSelectedLeaves, 0, mPreviousLeaves, 0, mNumberOfSelectedLeaves);
+        System.arraycopy(mSelectedCounts, 0, mPreviousCounts, 0, mNumberOfSelectedLeaves);
+        mNumberOfPreviousLeaves = mNumberOfSelectedLeaves;
+        mIsSelectionDirty = false;
+    }
+
+    // Test the padded bounding box of a node against the frustum planes, using the corner of the
+    // box furthest along the normal of each plane.
+    private boolean isNodeInFrustum(int node) {
+        double halfSize = mNodeHalfSizes[node] + mMargin;
+        double x = mNodeCenters[node * 3];
+        double y = mNodeCenters[node * 3 + 1];
+        double z = mNodeCenters[node * 3 + 2];
+        for (int i = 0; i < NUMBER_OF_PLANE_COEFFICIENTS; i += 4) {
+            double a = mFrustumPlanes[i];
+            double b = mFrustumPlanes[i + 1];
+            double c = mFrustumPlanes[i + 2];
+            double d = mFrustumPlanes[i + 3];
+            double px = a > 0 ? x + halfSize : x - halfSize;
+            double py = b > 0 ? y + halfSize : y - halfSize;
+            double pz = c > 0 ? z + halfSize : z - halfSize;
+            if (a * px + b * py + c * pz + d < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Extract the left, right, bottom, top, near and far planes from a column major
+    // view projection matrix. Points inside of the frustum are on the positive side of all planes.
+    private static void extractFrustumPlanes(double[] m, double[] planes) {
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 4; j++) {
+                double w = m[j * 4 + 3];
+                double v = m[j * 4 + i];
+                planes[i * 8 + j] = w + v;
+                planes[i * 8 + 4 + j] = w - v;
+            }
+        }
+    }
+}
@@ -17,32 +17,83 @@ package com.projecttango.rajawali.renderables;
 
 import android.graphics.Color;
 
+import org.rajawali3d.Geometry3D;
 import org.rajawali3d.materials.Material;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
+import com.projecttango.rajawali.renderables.primitives.PackedColorMaterialPlugin;
 import com.projecttango.rajawali.renderables.primitives.Points;
 
 /**
  * Renders a point cloud using colors to indicate distance to the depth sensor.
  * Coloring is based on the light spectrum: closest points are in red, farthest in violet.
+ * <p/>
+ * The coloring can be calculated on the CPU and uploaded with the points, or calculated on the
+ * GPU from the depth of each point, in which case only the points are uploaded. See
+ * {@link ColorMode}.
  */
 public class PointCloud extends Points {
+    /**
+     * How the per-point colors are stored and uploaded to the GPU.
+     */
+    public enum ColorMode {
+        // Four floats per point, 16 bytes of color uploaded per point.
+        VERTEX_FLOAT,
+        // Four normalized unsigned bytes per point, 4 bytes of color uploaded per point.
+        VERTEX_PACKED,
+        // Colors calculated from depth in the vertex shader, no color uploaded at all.
+        SHADER
+    }
+
     // Maximum depth range used to calculate coloring (min = 0)
     public static final float CLOUD_MAX_Z = 5;
 
-    private float[] mColorArray;
-    private final int[] mPalette;
     public static final int PALETTE_SIZE = 360;
     public static final float HUE_BEGIN = 0;
     public static final float HUE_END = 320;
+    // Factor to go from depth in meters straight to a palette index.
+    private static final float DEPTH_TO_PALETTE_INDEX = PALETTE_SIZE / CLOUD_MAX_Z;
+
+    private final ColorMode mColorMode;
+
+    // Palette unpacked into normalized RGBA floats, four consecutive entries per color.
+    private float[] mColorLut;
+    // Reused every frame to upload the per-point colors, so no garbage is generated.
+    private FloatBuffer mColorBuffer;
+
+    // Palette packed as RGBA bytes in memory order, one int per color.
+    private int[] mPackedColorLut;
+    // Reused every frame to upload the packed per-point colors, viewed as ints for writing.
+    private ByteBuffer mPackedColorBuffer;
+    private IntBuffer mPackedColorIntBuffer;
 
     public PointCloud(int maxPoints) {
-        super(maxPoints, true);
-        mPalette = createPalette();
-        mColorArray = new float[maxPoints * 4];
+        this(maxPoints, ColorMode.VERTEX_FLOAT);
+    }
+
+    public PointCloud(int maxPoints, ColorMode colorMode) {
+        super(maxPoints, colorMode != ColorMode.SHADER, colorMode == ColorMode.VERTEX_PACKED);
+        mColorMode = colorMode;
         Material m = new Material();
-        m.useVertexColors(true);
+        if (colorMode == ColorMode.SHADER) {
+            m.addPlugin(new DepthColorMaterialPlugin(CLOUD_MAX_Z, PALETTE_SIZE, HUE_BEGIN,
+                    HUE_END));
+        } else if (colorMode == ColorMode.VERTEX_PACKED) {
+            mPackedColorLut = createPackedColorLut(createPalette());
+            mPackedColorBuffer = ByteBuffer.allocateDirect(maxPoints * 4)
+                    .order(ByteOrder.nativeOrder());
+            mPackedColorIntBuffer = mPackedColorBuffer.asIntBuffer();
+            m.addPlugin(new PackedColorMaterialPlugin(getPackedColorBufferInfo()));
+        } else {
+            mColorLut = createColorLut(createPalette());
+            mColorBuffer = ByteBuffer.allocateDirect(maxPoints * 4 * Geometry3D.FLOAT_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            m.useVertexColors(true);
+        }
         setMaterial(m);
     }
 
@@ -60,35 +111,96 @@ public class PointCloud extends Points {
         return palette;
     }
 
+    /**
+     * Unpack the palette into normalized RGBA floats once, so that coloring a point is a plain
+     * array copy instead of four {@code Color} calls and divisions.
+     */
+    private static float[] createColorLut(int[] palette) {
+        float[] lut = new float[palette.length * 4];
+        for (int i = 0; i < palette.length; i++) {
+            lut[i * 4] = Color.red(palette[i]) / 255f;
+            lut[i * 4 + 1] = Color.green(palette[i]) / 255f;
+            lut[i * 4 + 2] = Color.blue(palette[i]) / 255f;
+            lut[i * 4 + 3] = Color.alpha(palette[i]) / 255f;
+        }
+        return lut;
+    }
+
+    /**
+     * Pack the palette as RGBA bytes. Each color is stored as the int that has the bytes in the
+     * right order when written to a native order buffer, so coloring a point is a single put.
+     */
+    private static int[] createPackedColorLut(int[] palette) {
+        ByteBuffer rgba = ByteBuffer.allocate(palette.length * 4).order(ByteOrder.nativeOrder());
+        for (int color : palette) {
+            rgba.put((byte) Color.red(color));
+            rgba.put((byte) Color.green(color));
+            rgba.put((byte) Color.blue(color));
+            rgba.put((byte) Color.alpha(color));
+        }
+        rgba.rewind();
+        int[] lut = new int[palette.length];
+        rgba.asIntBuffer().get(lut);
+        return lut;
+    }
+
+    /**
+     * Get the palette index corresponding to a depth value, clamped to the palette range.
+     */
+    private static int paletteIndex(float z) {
+        int colorIndex = (int) (z * DEPTH_TO_PALETTE_INDEX);
+        if (colorIndex >= PALETTE_SIZE) {
+            return PALETTE_SIZE - 1;
+        }
+        return colorIndex < 0 ? 0 : colorIndex;
+    }
+
     /**
      * Calculate the right color for each point in the point cloud.
+     * The point buffer is read in place and the colors are written to the reusable color buffer,
+     * so no memory is allocated per frame.
      */
     private void calculateColors(int pointCount, FloatBuffer pointCloudBuffer) {
-        float[] points = new float[pointCount * 3];
-        pointCloudBuffer.rewind();
-        pointCloudBuffer.get(points);
-        pointCloudBuffer.rewind();
-
-        int color;
-        int colorIndex;
-        float z;
+        // Absolute puts of each component are cheaper than a relative bulk put per point.
+        mColorBuffer.clear();
         for (int i = 0; i < pointCount; i++) {
-            z = points[i * 3 + 2];
-            colorIndex = (int) Math.min(z / CLOUD_MAX_Z * mPalette.length, mPalette.length - 1);
-            colorIndex = Math.max(colorIndex, 0);
-            color = mPalette[colorIndex];
-            mColorArray[i * 4] = Color.red(color) / 255f;
-            mColorArray[i * 4 + 1] = Color.green(color) / 255f;
-            mColorArray[i * 4 + 2] = Color.blue(color) / 255f;
-            mColorArray[i * 4 + 3] = Color.alpha(color) / 255f;
+            int lutIndex = paletteIndex(pointCloudBuffer.get(i * 3 + 2)) * 4;
+            int colorIndex = i * 4;
+            mColorBuffer.put(colorIndex, mColorLut[lutIndex]);
+            mColorBuffer.put(colorIndex + 1, mColorLut[lutIndex + 1]);
+            mColorBuffer.put(colorIndex + 2, mColorLut[lutIndex + 2]);
+            mColorBuffer.put(colorIndex + 3, mColorLut[lutIndex + 3]);
         }
+        mColorBuffer.limit(pointCount * 4);
+    }
+
+    /**
+     * Same as {@code calculateColors} but writing packed RGBA colors.
+     */
+    private void calculatePackedColors(int pointCount, FloatBuffer pointCloudBuffer) {
+        for (int i = 0; i < pointCount; i++) {
+            mPackedColorIntBuffer.put(i,
+                    mPackedColorLut[paletteIndex(pointCloudBuffer.get(i * 3 + 2))]);
+        }
+        mPackedColorBuffer.rewind();
     }
 
     /**
      * Update the points and colors in the point cloud.
      */
     public void updateCloud(int pointCount, FloatBuffer pointBuffer) {
-        calculateColors(pointCount, pointBuffer);
-        updatePoints(pointCount, pointBuffer, mColorArray);
+        if (mColorMode == ColorMode.SHADER) {
+            updatePoints(pointCount, pointBuffer);
+        } else if (mColorMode == ColorMode.VERTEX_PACKED) {
+            calculatePackedColors(pointCount, pointBuffer);
+            updatePoints(pointCount, pointBuffer, mPackedColorBuffer);
+        } else {
+            calculateColors(pointCount, pointBuffer);
+            updatePoints(pointCount, pointBuffer, mColorBuffer);
+        }
+    }
+
+    public ColorMode getColorMode() {
+        return mColorMode;
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import org.rajawali3d.Object3D;
+
+import com.projecttango.tangoutils.TriangleMesh;
+
+/**
+ * Renders a {@link TriangleMesh}. The direct buffers of the mesh, memory mapped when it comes
+ * from the cache, are uploaded to the GPU as they are, without copying them into Java arrays
+ * first, so models with millions of triangles can be shown.
+ * <p/>
+ * The indices are 32 bit, which needs the OES_element_index_uint extension available on Tango
+ * devices.
+ * NOTE: This needs to be created in the OpenGL rendering thread.
+ */
+public class TriangleMeshObject extends Object3D {
+    private final TriangleMesh mMesh;
+
+    public TriangleMeshObject(TriangleMesh mesh) {
+        super();
+        mMesh = mesh;
+        // Create the buffers with a placeholder triangle, then replace their data with the mesh.
+        setData(new float[9], new float[9], null, null, new int[]{0, 1, 2}, true);
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mesh.getPositions(), 0,
+                mesh.getNumberOfVertices() * 3, true);
+        mGeometry.changeBufferData(mGeometry.getNormalBufferInfo(), mesh.getNormals(), 0,
+                mesh.getNumberOfVertices() * 3, true);
+        mGeometry.changeBufferData(mGeometry.getIndexBufferInfo(), mesh.getIndices(), 0,
+                mesh.getNumberOfTriangles() * 3, true);
+        mGeometry.setNumIndices(mesh.getNumberOfTriangles() * 3);
+    }
+
+    public TriangleMesh getMesh() {
+        return mMesh;
+    }
+}
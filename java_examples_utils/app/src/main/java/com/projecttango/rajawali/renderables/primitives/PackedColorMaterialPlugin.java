@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables.primitives;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.materials.Material.PluginInsertLocation;
+import org.rajawali3d.materials.plugins.IMaterialPlugin;
+import org.rajawali3d.materials.shaders.AShader;
+import org.rajawali3d.materials.shaders.IShaderFragment;
+
+/**
+ * Material plugin that takes the vertex color from a normalized {@code GL_UNSIGNED_BYTE} RGBA
+ * attribute instead of the float vertex colors used by Rajawali, so each color takes 4 bytes
+ * instead of 16.
+ * Intended to be used with {@link Points} created with packed colors.
+ */
+public class PackedColorMaterialPlugin implements IMaterialPlugin {
+    private PackedColorVertexShaderFragment mVertexShader;
+
+    public PackedColorMaterialPlugin(BufferInfo packedColorBufferInfo) {
+        mVertexShader = new PackedColorVertexShaderFragment(packedColorBufferInfo);
+    }
+
+    @Override
+    public PluginInsertLocation getInsertLocation() {
+        return PluginInsertLocation.PRE_TRANSFORM;
+    }
+
+    @Override
+    public IShaderFragment getVertexShaderFragment() {
+        return mVertexShader;
+    }
+
+    @Override
+    public IShaderFragment getFragmentShaderFragment() {
+        return null;
+    }
+
+    @Override
+    public void bindTextures(int nextIndex) {
+    }
+
+    @Override
+    public void unbindTextures() {
+    }
+
+    private static final class PackedColorVertexShaderFragment extends AShader
+            implements IShaderFragment {
+        private static final String SHADER_ID = "PACKED_COLOR_VERTEX";
+        private static final String A_PACKED_COLOR = "aPackedColor";
+
+        private final BufferInfo mPackedColorBufferInfo;
+        private RVec4 maPackedColor;
+        private int maPackedColorHandle;
+
+        public PackedColorVertexShaderFragment(BufferInfo packedColorBufferInfo) {
+            super(ShaderType.VERTEX_SHADER_FRAGMENT);
+            mPackedColorBufferInfo = packedColorBufferInfo;
+            initialize();
+        }
+
+        @Override
+        public void initialize() {
+            super.initialize();
+            maPackedColor = (RVec4) addAttribute(A_PACKED_COLOR, DataType.VEC4);
+        }
+
+        @Override
+        public void main() {
+            // The attribute is already normalized to [0, 1] by OpenGL, so it can replace the
+            // material color as it is.
+            RVec4 gColor = (RVec4) getGlobal(DefaultShaderVar.G_COLOR);
+            gColor.assign(maPackedColor);
+        }
+
+        @Override
+        public void setLocations(int programHandle) {
+            maPackedColorHandle = getAttribLocation(programHandle, A_PACKED_COLOR);
+        }
+
+        @Override
+        public void applyParams() {
+            super.applyParams();
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mPackedColorBufferInfo.bufferHandle);
+            GLES20.glEnableVertexAttribArray(maPackedColorHandle);
+            GLES20.glVertexAttribPointer(maPackedColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true,
+                    0, 0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+
+        @Override
+        public String getShaderId() {
+            return SHADER_ID;
+        }
+
+        @Override
+        public PluginInsertLocation getInsertLocation() {
+            return PluginInsertLocation.PRE_TRANSFORM;
+        }
+
+        @Override
+        public void bindTextures(int nextIndex) {
+        }
+
+        @Override
+        public void unbindTextures() {
+        }
+    }
+}
@@ -18,21 +18,38 @@ package com.projecttango.rajawali.renderables.primitives;
 import android.opengl.GLES10;
 import android.opengl.GLES20;
 
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Geometry3D;
 import org.rajawali3d.Object3D;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 /**
  * A Point primitive for Rajawali.
  * Intended to be contributed and PR'ed to Rajawali.
+ * <p/>
+ * Colors can either be stored as four floats per point, like any other Rajawali geometry, or
+ * packed as four normalized unsigned bytes per point. Packed colors take a quarter of the upload
+ * bandwidth and must be rendered with a {@link PackedColorMaterialPlugin}.
  */
 public class Points extends Object3D {
     private int mMaxNumberOfVertices;
+    private BufferInfo mPackedColorBufferInfo;
 
     public Points(int numberOfPoints, boolean isCreateColors) {
+        this(numberOfPoints, isCreateColors, false);
+    }
+
+    public Points(int numberOfPoints, boolean isCreateColors, boolean isPackedColors) {
         super();
         mMaxNumberOfVertices = numberOfPoints;
-        init(true, isCreateColors);
+        init(true, isCreateColors && !isPackedColors);
+        if (isCreateColors && isPackedColors) {
+            initPackedColors();
+        }
     }
 
     // Initialize the buffers for Points primitive.
@@ -51,22 +68,68 @@ public class Points extends Object3D {
         setData(vertices, null, null, colors, indices, true);
     }
 
+    // Initialize the buffer for packed RGBA colors. Rajawali only knows about float colors, so
+    // this buffer is added to the geometry as an extra buffer, which Rajawali creates again with
+    // the others when the context is lost, and bound by the PackedColorMaterialPlugin.
+    private void initPackedColors() {
+        ByteBuffer colors = ByteBuffer.allocateDirect(mMaxNumberOfVertices * 4)
+                .order(ByteOrder.nativeOrder());
+        mPackedColorBufferInfo = new BufferInfo();
+        mPackedColorBufferInfo.buffer = colors;
+        mGeometry.addBuffer(mPackedColorBufferInfo, Geometry3D.BufferType.BYTE_BUFFER,
+                GLES20.GL_ARRAY_BUFFER, GLES20.GL_DYNAMIC_DRAW);
+    }
+
+    // Reallocate the buffers so they can hold up to the given number of points. The provided
+    // buffer becomes the vertex data and must hold numberOfPoints * 3 floats. Colors are cleared
+    // and no points are drawn until the next update.
+    // NOTE: This needs to be called from the OpenGL rendering thread.
+    public void resize(int numberOfPoints, FloatBuffer points) {
+        mMaxNumberOfVertices = numberOfPoints;
+        mGeometry.setNumIndices(0);
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), points, 0,
+                numberOfPoints * 3, true);
+
+        IntBuffer indices = ByteBuffer.allocateDirect(numberOfPoints * 4)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        for (int i = 0; i < numberOfPoints; ++i) {
+            indices.put(i, i);
+        }
+        mGeometry.changeBufferData(mGeometry.getIndexBufferInfo(), indices, 0, numberOfPoints,
+                true);
+
+        if (mGeometry.getColors() != null) {
+            FloatBuffer colors = ByteBuffer.allocateDirect(numberOfPoints * 4 * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), colors, 0,
+                    numberOfPoints * 4, true);
+        }
+        if (mPackedColorBufferInfo != null) {
+            ByteBuffer packedColors = ByteBuffer.allocateDirect(numberOfPoints * 4)
+                    .order(ByteOrder.nativeOrder());
+            mGeometry.changeBufferData(mPackedColorBufferInfo, packedColors, 0,
+                    numberOfPoints * 4, true);
+        }
+    }
+
+    // Get the maximum number of points the buffers can hold.
+    public int getMaxNumberOfPoints() {
+        return mMaxNumberOfVertices;
+    }
+
     // Update the geometry of the points based on the provided points float buffer.
+    // The buffer is uploaded as it is, without copying it into the geometry first.
     public void updatePoints(int pointCount, FloatBuffer pointCloudBuffer) {
+        checkPointCount(pointCount);
         mGeometry.setNumIndices(pointCount);
-        mGeometry.setVertices(pointCloudBuffer);
-        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mGeometry.getVertices(), 0,
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), pointCloudBuffer, 0,
                 pointCount * 3);
     }
 
     // Update the geometry of the points based on the provided points float buffer and corresponding
     // colors based on the provided float array.
     public void updatePoints(int pointCount, FloatBuffer points, float[] colors) {
-        if (pointCount > mMaxNumberOfVertices) {
-            throw new RuntimeException(
-                    String.format("pointClount = %d exceeds maximum number of points = %d",
-                            pointCount, mMaxNumberOfVertices));
-        }
+        checkPointCount(pointCount);
         mGeometry.setNumIndices(pointCount);
         mGeometry.setVertices(points);
         mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mGeometry.getVertices(), 0,
@@ -76,6 +139,38 @@ public class Points extends Object3D {
                 pointCount * 4);
     }
 
+    // Update the geometry of the points based on the provided points float buffer and corresponding
+    // colors based on the provided float buffer. Both buffers are uploaded as they are, without
+    // copying them into the geometry first, so callers can reuse them between updates.
+    public void updatePoints(int pointCount, FloatBuffer points, FloatBuffer colors) {
+        checkPointCount(pointCount);
+        mGeometry.setNumIndices(pointCount);
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), points, 0, pointCount * 3);
+        mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), colors, 0, pointCount * 4);
+    }
+
+    // Update the geometry of the points based on the provided points float buffer and corresponding
+    // packed RGBA colors, four bytes per point. Only valid for points created with packed colors.
+    public void updatePoints(int pointCount, FloatBuffer points, ByteBuffer packedColors) {
+        checkPointCount(pointCount);
+        mGeometry.setNumIndices(pointCount);
+        mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), points, 0, pointCount * 3);
+        mGeometry.changeBufferData(mPackedColorBufferInfo, packedColors, 0, pointCount * 4);
+    }
+
+    // Get the buffer holding the packed colors, or null if the points don't use packed colors.
+    public BufferInfo getPackedColorBufferInfo() {
+        return mPackedColorBufferInfo;
+    }
+
+    protected void checkPointCount(int pointCount) {
+        if (pointCount > mMaxNumberOfVertices) {
+            throw new RuntimeException(
+                    String.format("pointClount = %d exceeds maximum number of points = %d",
+                            pointCount, mMaxNumberOfVertices));
+        }
+    }
+
     public void preRender() {
         super.preRender();
         setDrawingMode(GLES20.GL_POINTS);
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Dense depth map aligned with a camera image, usually the color camera, computed from the
+ * sparse points of a point cloud.
+ * <p/>
+ * The points are projected into a depth image at a fraction of the camera resolution, keeping
+ * the nearest point of each pixel, and the holes are filled with push-pull interpolation: the
+ * image is averaged down into a pyramid of half resolution images weighted by how much of each
+ * pixel is known, and the coarse levels are then interpolated back up into the unknown pixels of
+ * the finer ones. Each level is split in bands of rows processed in parallel by a fixed pool of
+ * threads, and all the images are allocated once, so the memory used doesn't depend on the
+ * clouds.
+ * <p/>
+ * Push-pull fills every hole, however large, so the distance of each pixel to the nearest
+ * projected point is also computed with a chamfer distance transform, and pixels further than a
+ * maximum fill distance are left without depth rather than extrapolated from far away points.
+ * <p/>
+ * Depths are distances along the Z axis of the camera. This class is not thread safe, except
+ * that the work of {@link #update} is spread on the threads of the map. Use a
+ * {@link DenseDepthMapFiller} to fill maps in the background and read them from another thread.
+ */
+public class DenseDepthMap {
+    // Work done on each band of rows of a pyramid level.
+    private static final int STAGE_CLEAR = 0;
+    private static final int STAGE_PULL = 1;
+    private static final int STAGE_PUSH = 2;
+    // Levels smaller than this number of pixels are processed on the calling thread.
+    private static final int MIN_PARALLEL_PIXELS = 64 * 64;
+    // Number of lookups refining the depth along a ray seen from another pose.
+    private static final int RAY_ITERATIONS = 3;
+    // Chamfer distances to the side and diagonal neighbors, approximating 1 and sqrt(2) pixels.
+    private static final int CHAMFER_SIDE = 3;
+    private static final int CHAMFER_DIAGONAL = 4;
+
+    private final int mDownsampling;
+    private final int mNumberOfLevels;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final float[][] mDepths;
+    private final float[][] mWeights;
+    // Distance of each pixel of the full resolution map to the nearest point, in thirds of pixels.
+    private final int[] mFillDistances;
+    private final int mMaxFillDistance;
+    private boolean mIsEmpty = true;
+    private double mTimestamp = Double.NaN;
+
+    // Camera model of the full resolution image.
+    private final float mFx;
+    private final float mFy;
+    private final float mCx;
+    private final float mCy;
+
+    private final ExecutorService mExecutor;
+    private final List<Callable<Void>> mBandTasks;
+    // Stage and level processed by the band tasks, published to them by invokeAll.
+    private int mStage;
+    private int mLevel;
+
+    /**
+     * @param intrinsics      Intrinsics of the camera the map is aligned with.
+     * @param downsampling    Ratio between the camera resolution and the map resolution.
+     * @param maxFillDistance Maximum distance in pixels of the map between a filled pixel and the
+     *                        nearest point. Pixels further away have no depth.
+     * @param numberOfThreads Number of threads filling the map.
+     */
+    public DenseDepthMap(TangoCameraIntrinsics intrinsics, int downsampling, int maxFillDistance,
+                         int numberOfThreads) {
+        this(intrinsics, downsampling, maxFillDistance,
+                Executors.newFixedThreadPool(numberOfThreads), numberOfThreads);
+    }
+
+    /**
+     * Map filled by the threads of an executor shared with other maps, which must not be updated
+     * at the same time. {@link #release} shuts the executor down.
+     */
+    DenseDepthMap(TangoCameraIntrinsics intrinsics, int downsampling, int maxFillDistance,
+                  ExecutorService executor, int numberOfThreads) {
+        mDownsampling = downsampling;
+        mMaxFillDistance = maxFillDistance * CHAMFER_SIDE;
+        mFx = (float) intrinsics.fx;
+        mFy = (float) intrinsics.fy;
+        mCx = (float) intrinsics.cx;
+        mCy = (float) intrinsics.cy;
+
+        int width = (intrinsics.width + downsampling - 1) / downsampling;
+        int height = (intrinsics.height + downsampling - 1) / downsampling;
+        int numberOfLevels = 1;
+        while ((width >> (numberOfLevels - 1)) > 1 || (height >> (numberOfLevels - 1)) > 1) {
+            numberOfLevels++;
+        }
+        mNumberOfLevels = numberOfLevels;
+        mWidths = new int[numberOfLevels];
+        mHeights = new int[numberOfLevels];
+        mDepths = new float[numberOfLevels][];
+        mWeights = new float[numberOfLevels][];
+        for (int level = 0; level < numberOfLevels; level++) {
+            mWidths[level] = width;
+            mHeights[level] = height;
+            mDepths[level] = new float[width * height];
+            mWeights[level] = new float[width * height];
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+        mFillDistances = new int[mWidths[0] * mHeights[0]];
+
+        mExecutor = executor;
+        int numberOfBands = numberOfThreads * 2;
+        mBandTasks = new ArrayList<Callable<Void>>(numberOfBands);
+        for (int band = 0; band < numberOfBands; band++) {
+            final int index = band;
+            final int count = numberOfBands;
+            mBandTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int rows = mHeights[mLevel];
+                    processRows(mStage, mLevel, rows * index / count, rows * (index + 1) / count);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the threads of the map. The map can't be updated anymore.
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Compute the map of a point cloud.
+     *
+     * @param cameraTDepth Transform from the depth camera frame to the camera frame, with the
+     *                     camera looking along Z like in the Tango engine.
+     * @return False if the thread was interrupted, in which case the map is only partially
+     *         updated and must not be read, and the interrupt flag is still set.
+     */
+    public boolean update(TangoXyzIjData xyzIj, float[] cameraTDepth) {
+        if (!runStage(STAGE_CLEAR, 0)) {
+            return false;
+        }
+
+        // Keep the nearest point of each pixel. This pass is cheap compared to the filling and
+        // would need atomic updates to be split.
+        int width = mWidths[0];
+        int height = mHeights[0];
+        float[] depths = mDepths[0];
+        float[] weights = mWeights[0];
+        float fx = mFx / mDownsampling;
+        float fy = mFy / mDownsampling;
+        float cx = mCx / mDownsampling;
+        float cy = mCy / mDownsampling;
+        float[] m = cameraTDepth;
+        FloatBuffer xyz = xyzIj.xyz;
+        for (int i = 0; i < xyzIj.xyzCount; i++) {
+            float x = xyz.get(i * 3);
+            float y = xyz.get(i * 3 + 1);
+            float z = xyz.get(i * 3 + 2);
+            float cameraZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (cameraZ <= 0) {
+                continue;
+            }
+            float pixelX = fx * (m[0] * x + m[4] * y + m[8] * z + m[12]) / cameraZ + cx;
+            float pixelY = fy * (m[1] * x + m[5] * y + m[9] * z + m[13]) / cameraZ + cy;
+            if (!(pixelX >= 0 && pixelY >= 0 && pixelX < width && pixelY < height)) {
+                continue;
+            }
+            int pixel = (int) pixelY * width + (int) pixelX;
+            if (weights[pixel] == 0 || cameraZ < depths[pixel]) {
+                depths[pixel] = cameraZ;
+                weights[pixel] = 1;
+            }
+        }
+
+        computeFillDistances();
+        for (int level = 1; level < mNumberOfLevels; level++) {
+            if (!runStage(STAGE_PULL, level)) {
+                return false;
+            }
+        }
+        mIsEmpty = mWeights[mNumberOfLevels - 1][0] == 0;
+        if (!mIsEmpty) {
+            for (int level = mNumberOfLevels - 2; level >= 0; level--) {
+                if (!runStage(STAGE_PUSH, level)) {
+                    return false;
+                }
+            }
+        }
+        mTimestamp = xyzIj.timestamp;
+        return true;
+    }
+
+    /**
+     * Timestamp of the cloud of the map, or NaN if the map was never updated.
+     */
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getWidth() {
+        return mWidths[0];
+    }
+
+    public int getHeight() {
+        return mHeights[0];
+    }
+
+    /**
+     * Depth at a position of the camera image.
+     *
+     * @param u Horizontal coordinate of the pixel, between 0 and 1.
+     * @param v Vertical coordinate of the pixel, between 0 and 1.
+     * @return The depth, or NaN if the position is outside of the image, too far from the points
+     *         of the cloud, or if the cloud was empty.
+     */
+    public float getDepth(float u, float v) {
+        return getDepthAtPixel(u * mWidths[0], v * mHeights[0]);
+    }
+
+    /**
+     * Copy the depths of the map, row by row, for instance to test the occlusion of virtual
+     * objects. Pixels are NaN if they are too far from the points of the cloud, or if the cloud
+     * was empty.
+     *
+     * @param depths Output array of {@code getWidth() * getHeight()} depths.
+     */
+    public void copyDepths(float[] depths) {
+        if (mIsEmpty) {
+            for (int i = 0; i < depths.length; i++) {
+                depths[i] = Float.NaN;
+            }
+        } else {
+            float[] mapDepths = mDepths[0];
+            int[] fillDistances = mFillDistances;
+            for (int i = 0; i < depths.length; i++) {
+                depths[i] = fillDistances[i] <= mMaxFillDistance ? mapDepths[i] : Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * Find the point of the map seen through a pixel of the same camera at another pose, for
+     * instance the color camera at the time of a touch while the map is computed at the time of
+     * the cloud. The depth is read where the ray through the pixel projects at the current
+     * estimate of the depth, starting from an infinite depth, a few times.
+     *
+     * @param pixelX    Horizontal coordinate of the pixel in the camera image.
+     * @param pixelY    Vertical coordinate of the pixel in the camera image.
+     * @param mapTQuery Transform from the camera frame of the query to the one of the map.
+     * @param point     Output coordinates of the point in the camera frame of the map.
+     * @return false if there is no depth along the ray, or if it is too far from the points of the
+     *         cloud.
+     */
+    public boolean getPoint(float pixelX, float pixelY, float[] mapTQuery, float[] point) {
+        float rayX = (pixelX - mCx) / mFx;
+        float rayY = (pixelY - mCy) / mFy;
+        float[] m = mapTQuery;
+        float directionX = m[0] * rayX + m[4] * rayY + m[8];
+        float directionY = m[1] * rayX + m[5] * rayY + m[9];
+        float directionZ = m[2] * rayX + m[6] * rayY + m[10];
+        if (directionZ <= 0) {
+            return false;
+        }
+
+        // The first projection, with an infinite depth, ignores the translation.
+        float projectionX = directionX / directionZ;
+        float projectionY = directionY / directionZ;
+        float distance = Float.NaN;
+        for (int i = 0; i < RAY_ITERATIONS; i++) {
+            float depth = getDepthAtPixel((mFx * projectionX + mCx) / mDownsampling,
+                    (mFy * projectionY + mCy) / mDownsampling);
+            if (Float.isNaN(depth)) {
+                break;
+            }
+            // Move along the ray to the depth read.
+            distance = (depth - m[14]) / directionZ;
+            if (distance <= 0) {
+                return false;
+            }
+            projectionX = (m[12] + distance * directionX) / depth;
+            projectionY = (m[13] + distance * directionY) / depth;
+        }
+        if (Float.isNaN(distance)) {
+            return false;
+        }
+        point[0] = m[12] + distance * directionX;
+        point[1] = m[13] + distance * directionY;
+        point[2] = m[14] + distance * directionZ;
+        return true;
+    }
+
+    private float getDepthAtPixel(float pixelX, float pixelY) {
+        if (mIsEmpty || !(pixelX >= 0 && pixelY >= 0 && pixelX < mWidths[0]
+                && pixelY < mHeights[0])) {
+            return Float.NaN;
+        }
+        int pixel = (int) pixelY * mWidths[0] + (int) pixelX;
+        return mFillDistances[pixel] <= mMaxFillDistance ? mDepths[0][pixel] : Float.NaN;
+    }
+
+    /**
+     * Compute the distance of each pixel to the nearest pixel with a point, with a forward and a
+     * backward pass of a 3-4 chamfer distance transform. The passes depend on the previous rows,
+     * so they are not split in bands, but they are cheap compared to the filling.
+     */
+    private void computeFillDistances() {
+        int width = mWidths[0];
+        int height = mHeights[0];
+        float[] weights = mWeights[0];
+        int[] distances = mFillDistances;
+        int infinity = Integer.MAX_VALUE / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = y * width + x;
+                int distance = weights[pixel] > 0 ? 0 : infinity;
+                if (distance > 0) {
+                    if (x > 0) {
+                        distance = Math.min(distance, distances[pixel - 1] + CHAMFER_SIDE);
+                    }
+                    if (y > 0) {
+                        int above = pixel - width;
+                        distance = Math.min(distance, distances[above] + CHAMFER_SIDE);
+                        if (x > 0) {
+                            distance = Math.min(distance,
+                                    distances[above - 1] + CHAMFER_DIAGONAL);
+                        }
+                        if (x + 1 < width) {
+                            distance = Math.min(distance,
+                                    distances[above + 1] + CHAMFER_DIAGONAL);
+                        }
+                    }
+                }
+                distances[pixel] = distance;
+            }
+        }
+        for (int y = height - 1; y >= 0; y--) {
+            for (int x = width - 1; x >= 0; x--) {
+                int pixel = y * width + x;
+                int distance = distances[pixel];
+                if (distance == 0) {
+                    continue;
+                }
+                if (x + 1 < width) {
+                    distance = Math.min(distance, distances[pixel + 1] + CHAMFER_SIDE);
+                }
+                if (y + 1 < height) {
+                    int below = pixel + width;
+                    distance = Math.min(distance, distances[below] + CHAMFER_SIDE);
+                    if (x + 1 < width) {
+                        distance = Math.min(distance, distances[below + 1] + CHAMFER_DIAGONAL);
+                    }
+                    if (x > 0) {
+                        distance = Math.min(distance, distances[below - 1] + CHAMFER_DIAGONAL);
+                    }
+                }
+                distances[pixel] = distance;
+            }
+        }
+    }
+
+    /**
+     * @return False if the thread was interrupted, leaving the interrupt flag set.
+     */
+    private boolean runStage(int stage, int level) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (mWidths[level] * mHeights[level] < MIN_PARALLEL_PIXELS) {
+            processRows(stage, level, 0, mHeights[level]);
+            return true;
+        }
+        mStage = stage;
+        mLevel = level;
+        try {
+            // Getting the results also makes the rows written by the threads visible here.
+            for (Future<Void> result : mExecutor.invokeAll(mBandTasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return true;
+    }
+
+    private void processRows(int stage, int level, int firstRow, int endRow) {
+        switch (stage) {
+            case STAGE_CLEAR:
+                int width = mWidths[level];
+                for (int i = firstRow * width, end = endRow * width; i < end; i++) {
+                    mWeights[level][i] = 0;
+                }
+                break;
+            case STAGE_PULL:
+                pullRows(level, firstRow, endRow);
+                break;
+            case STAGE_PUSH:
+                pushRows(level, firstRow, endRow);
+                break;
+        }
+    }
+
+    /**
+     * Average the 2x2 children of each pixel of a level, weighted by how much of them is known.
+     */
+    private void pullRows(int level, int firstRow, int endRow) {
+        int width = mWidths[level];
+        int childWidth = mWidths[level - 1];
+        int childHeight = mHeights[level - 1];
+        float[] depths = mDepths[level];
+        float[] weights = mWeights[level];
+        float[] childDepths = mDepths[level - 1];
+        float[] childWeights = mWeights[level - 1];
+        for (int y = firstRow; y < endRow; y++) {
+            int lastChildY = Math.min(2 * y + 1, childHeight - 1);
+            for (int x = 0; x < width; x++) {
+                int lastChildX = Math.min(2 * x + 1, childWidth - 1);
+                float weight = 0;
+                float depth = 0;
+                for (int childY = 2 * y; childY <= lastChildY; childY++) {
+                    for (int childX = 2 * x; childX <= lastChildX; childX++) {
+                        int child = childY * childWidth + childX;
+                        float childWeight = childWeights[child];
+                        if (childWeight > 0) {
+                            weight += childWeight;
+                            depth += childWeight * childDepths[child];
+                        }
+                    }
+                }
+                int pixel = y * width + x;
+                if (weight > 0) {
+                    depths[pixel] = depth / weight;
+                    weights[pixel] = Math.min(1, weight);
+                } else {
+                    weights[pixel] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Blend the unknown part of each pixel of a level with the bilinear interpolation of the
+     * level above, which is completely known at this point.
+     */
+    private void pushRows(int level, int firstRow, int endRow) {
+        int width = mWidths[level];
+        int parentWidth = mWidths[level + 1];
+        int parentHeight = mHeights[level + 1];
+        float[] depths = mDepths[level];
+        float[] weights = mWeights[level];
+        float[] parentDepths = mDepths[level + 1];
+        for (int y = firstRow; y < endRow; y++) {
+            float parentY = Math.max(0, Math.min(parentHeight - 1, (y - 0.5f) * 0.5f));
+            int top = (int) parentY;
+            int bottom = Math.min(top + 1, parentHeight - 1);
+            float fy = parentY - top;
+            for (int x = 0; x < width; x++) {
+                int pixel = y * width + x;
+                float weight = weights[pixel];
+                if (weight >= 1) {
+                    continue;
+                }
+                float parentX = Math.max(0, Math.min(parentWidth - 1, (x - 0.5f) * 0.5f));
+                int left = (int) parentX;
+                int right = Math.min(left + 1, parentWidth - 1);
+                float fx = parentX - left;
+                float topDepth = parentDepths[top * parentWidth + left] * (1 - fx)
+                        + parentDepths[top * parentWidth + right] * fx;
+                float bottomDepth = parentDepths[bottom * parentWidth + left] * (1 - fx)
+                        + parentDepths[bottom * parentWidth + right] * fx;
+                float parentDepth = topDepth * (1 - fy) + bottomDepth * fy;
+                depths[pixel] = weight > 0
+                        ? weight * depths[pixel] + (1 - weight) * parentDepth : parentDepth;
+                weights[pixel] = 1;
+            }
+        }
+    }
+}
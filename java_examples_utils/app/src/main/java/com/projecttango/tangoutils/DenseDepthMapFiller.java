@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills {@link DenseDepthMap}s of the point clouds in a dedicated thread, so that neither the
+ * Tango callback thread nor the threads reading the maps wait for the filling.
+ * <p/>
+ * Only one cloud waits to be processed: a new cloud replaces the waiting one rather than being
+ * queued, so when the filler falls behind the depth camera it skips clouds instead of lagging.
+ * Finished maps are exchanged with a single consumer thread, usually the UI or OpenGL thread,
+ * like the clouds of {@link PointCloudTripleBuffer}: three maps are rotated between the filler,
+ * the consumer and a shared slot, so the consumer always gets the latest finished map and never
+ * sees one being filled. The three maps share the threads of the filler.
+ */
+public class DenseDepthMapFiller {
+    private static final String TAG = DenseDepthMapFiller.class.getSimpleName();
+    private static final int MATRIX_SIZE = RigidTransforms.MATRIX_SIZE;
+
+    private static final int INDEX_MASK = 0x3;
+    // Set in the shared state when the shared slot holds a map the consumer has not seen yet.
+    private static final int FRESH_BIT = 0x4;
+
+    private final int mMaxNumberOfPoints;
+    private final ExecutorService mExecutor;
+    private final DenseDepthMap[] mMaps = new DenseDepthMap[3];
+    // Index of the shared map, plus the FRESH_BIT.
+    private final AtomicInteger mSharedState = new AtomicInteger(0);
+    // Only touched by the filler thread.
+    private int mWriteIndex = 1;
+    // Only touched by the consumer thread.
+    private int mReadIndex = 2;
+    private boolean mHasMap = false;
+
+    // The cloud waiting to be processed, written by the producer thread under mLock.
+    private final Object mLock = new Object();
+    private TangoXyzIjData mPendingCloud;
+    private float[] mPendingCameraTDepth = new float[MATRIX_SIZE];
+    private boolean mHasPendingCloud = false;
+    private boolean mIsRunning = false;
+    private int mNumberOfSkippedClouds = 0;
+    private Thread mThread;
+
+    // The cloud being processed, swapped with the pending one. Only used by the filler thread.
+    private TangoXyzIjData mCloud;
+    private float[] mCameraTDepth = new float[MATRIX_SIZE];
+    private int mNumberOfFilledMaps = 0;
+
+    /**
+     * @param intrinsics        Intrinsics of the camera the maps are aligned with.
+     * @param downsampling      Ratio between the camera resolution and the map resolution.
+     * @param maxFillDistance   Maximum distance in pixels of the map between a filled pixel and
+     *                          the nearest point. Pixels further away have no depth.
+     * @param numberOfThreads   Number of threads filling each map.
+     * @param maxNumberOfPoints Maximum number of points of a cloud; larger clouds are truncated.
+     */
+    public DenseDepthMapFiller(TangoCameraIntrinsics intrinsics, int downsampling,
+                               int maxFillDistance, int numberOfThreads, int maxNumberOfPoints) {
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        mExecutor = Executors.newFixedThreadPool(numberOfThreads);
+        for (int i = 0; i < mMaps.length; i++) {
+            mMaps[i] = new DenseDepthMap(intrinsics, downsampling, maxFillDistance, mExecutor,
+                    numberOfThreads);
+        }
+        mPendingCloud = createCloud(maxNumberOfPoints);
+        mCloud = createCloud(maxNumberOfPoints);
+    }
+
+    /**
+     * Start the filler thread.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mIsRunning) {
+                return;
+            }
+            mIsRunning = true;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFilling();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop the filler thread, waiting for the map being filled to be done, and the threads of the
+     * maps. The maps already published can still be read, but no new map is filled.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mExecutor.shutdown();
+        Log.d(TAG, "Filled " + mNumberOfFilledMaps + " maps, skipped " + mNumberOfSkippedClouds
+                + " clouds");
+    }
+
+    /**
+     * Copy a new point cloud to be processed, replacing the one waiting if the filler is busy.
+     *
+     * @param cameraTDepth Transform from the depth camera frame to the camera frame of the maps
+     *                     at the time of the cloud.
+     */
+    public void onXyzIjAvailable(TangoXyzIjData xyzIj, float[] cameraTDepth) {
+        int pointCount = Math.min(xyzIj.xyzCount, mMaxNumberOfPoints);
+        synchronized (mLock) {
+            if (!mIsRunning) {
+                return;
+            }
+            if (mHasPendingCloud) {
+                mNumberOfSkippedClouds++;
+            }
+            // Bulk copy between direct buffers, restoring the source so other users are not
+            // affected.
+            FloatBuffer source = xyzIj.xyz;
+            int sourcePosition = source.position();
+            int sourceLimit = source.limit();
+            source.position(0);
+            source.limit(pointCount * 3);
+            mPendingCloud.xyz.clear();
+            mPendingCloud.xyz.put(source);
+            mPendingCloud.xyz.flip();
+            source.limit(sourceLimit);
+            source.position(sourcePosition);
+            mPendingCloud.xyzCount = pointCount;
+            mPendingCloud.timestamp = xyzIj.timestamp;
+            System.arraycopy(cameraTDepth, 0, mPendingCameraTDepth, 0, MATRIX_SIZE);
+            mHasPendingCloud = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Get the latest finished map, or null if none has been filled yet.
+     * NOTE: This must only be called from the consumer thread. The returned map must not be
+     * updated and must not be used after the next call to this method.
+     */
+    public DenseDepthMap getLatestMap() {
+        if ((mSharedState.get() & FRESH_BIT) != 0) {
+            mReadIndex = mSharedState.getAndSet(mReadIndex) & INDEX_MASK;
+            mHasMap = true;
+        }
+        return mHasMap ? mMaps[mReadIndex] : null;
+    }
+
+    private void runFilling() {
+        while (true) {
+            synchronized (mLock) {
+                while (mIsRunning && !mHasPendingCloud) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mIsRunning) {
+                    return;
+                }
+                // Take the pending cloud, handing the processed one back to the producer.
+                TangoXyzIjData cloud = mCloud;
+                mCloud = mPendingCloud;
+                mPendingCloud = cloud;
+                float[] cameraTDepth = mCameraTDepth;
+                mCameraTDepth = mPendingCameraTDepth;
+                mPendingCameraTDepth = cameraTDepth;
+                mHasPendingCloud = false;
+            }
+            if (!mMaps[mWriteIndex].update(mCloud, mCameraTDepth)) {
+                // Interrupted: the map is only partially filled, so keep it unpublished.
+                return;
+            }
+            // Publish the filled map and take ownership of the previously shared one.
+            mWriteIndex = mSharedState.getAndSet(mWriteIndex | FRESH_BIT) & INDEX_MASK;
+            mNumberOfFilledMaps++;
+        }
+    }
+
+    private static TangoXyzIjData createCloud(int maxNumberOfPoints) {
+        TangoXyzIjData cloud = new TangoXyzIjData();
+        cloud.xyz = ByteBuffer.allocateDirect(maxNumberOfPoints * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        return cloud;
+    }
+}
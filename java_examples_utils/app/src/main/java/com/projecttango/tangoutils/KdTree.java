@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+/**
+ * Static k-d tree over 3D points, to find the nearest point of a fixed set like the sampled
+ * surface of a model.
+ * <p/>
+ * The tree is built once and stored implicitly in an array of point indices: the median point of
+ * a range splits it along the axis where the range is the widest, and its two halves are the
+ * subtrees. Queries don't allocate. This class is not thread safe.
+ */
+public class KdTree {
+    private final float[] mPoints;
+    private final int[] mIndices;
+    // Split axis of the node stored at each position of the index array.
+    private final byte[] mAxes;
+    // Best squared distance and point found so far by a query.
+    private float mBestSquaredDistance;
+    private int mBestIndex;
+
+    /**
+     * Build the tree. The points are copied.
+     *
+     * @param points         Packed x, y, z coordinates.
+     * @param numberOfPoints Number of points to use from the start of the array.
+     */
+    public KdTree(float[] points, int numberOfPoints) {
+        mPoints = new float[numberOfPoints * 3];
+        System.arraycopy(points, 0, mPoints, 0, numberOfPoints * 3);
+        mIndices = new int[numberOfPoints];
+        mAxes = new byte[numberOfPoints];
+        for (int i = 0; i < numberOfPoints; i++) {
+            mIndices[i] = i;
+        }
+        build(0, numberOfPoints);
+    }
+
+    public int getNumberOfPoints() {
+        return mIndices.length;
+    }
+
+    /**
+     * Find the point nearest to a position.
+     *
+     * @param maxDistance Maximum distance to the position.
+     * @return The index of the point in the array given to the constructor, or -1 if there is no
+     * point closer than the maximum distance.
+     */
+    public int findNearest(float x, float y, float z, float maxDistance) {
+        if (mIndices.length == 0) {
+            return -1;
+        }
+        mBestSquaredDistance = maxDistance * maxDistance;
+        mBestIndex = -1;
+        search(0, mIndices.length, x, y, z);
+        return mBestIndex;
+    }
+
+    /**
+     * Squared distance from a position to a point of the tree.
+     */
+    public float getSquaredDistance(int index, float x, float y, float z) {
+        float dx = mPoints[index * 3] - x;
+        float dy = mPoints[index * 3 + 1] - y;
+        float dz = mPoints[index * 3 + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void build(int start, int end) {
+        if (end - start <= 1) {
+            return;
+        }
+        // Split along the widest axis of the range.
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            int point = mIndices[i] * 3;
+            minX = Math.min(minX, mPoints[point]);
+            maxX = Math.max(maxX, mPoints[point]);
+            minY = Math.min(minY, mPoints[point + 1]);
+            maxY = Math.max(maxY, mPoints[point + 1]);
+            minZ = Math.min(minZ, mPoints[point + 2]);
+            maxZ = Math.max(maxZ, mPoints[point + 2]);
+        }
+        int axis = 0;
+        if (maxY - minY > maxX - minX) {
+            axis = 1;
+        }
+        if (maxZ - minZ > Math.max(maxX - minX, maxY - minY)) {
+            axis = 2;
+        }
+        int middle = (start + end) >>> 1;
+        select(start, end, middle, axis);
+        mAxes[middle] = (byte) axis;
+        build(start, middle);
+        build(middle + 1, end);
+    }
+
+    /**
+     * Partially sort a range of indices so that the point at a position is the one that would be
+     * there if the range was sorted along an axis, with smaller points before it and larger ones
+     * after it.
+     */
+    private void select(int start, int end, int position, int axis) {
+        int low = start;
+        int high = end - 1;
+        while (low < high) {
+            float pivot = mPoints[mIndices[(low + high) >>> 1] * 3 + axis];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (mPoints[mIndices[i] * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (mPoints[mIndices[j] * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = mIndices[i];
+                    mIndices[i] = mIndices[j];
+                    mIndices[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (position <= j) {
+                high = j;
+            } else if (position >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void search(int start, int end, float x, float y, float z) {
+        int middle = (start + end) >>> 1;
+        int point = mIndices[middle];
+        float squaredDistance = getSquaredDistance(point, x, y, z);
+        if (squaredDistance < mBestSquaredDistance) {
+            mBestSquaredDistance = squaredDistance;
+            mBestIndex = point;
+        }
+        int axis = mAxes[middle];
+        float offset = (axis == 0 ? x : axis == 1 ? y : z) - mPoints[point * 3 + axis];
+        // Search the side of the position first, then the other side if it can be closer.
+        int nearStart = offset < 0 ? start : middle + 1;
+        int nearEnd = offset < 0 ? middle : end;
+        int farStart = offset < 0 ? middle + 1 : start;
+        int farEnd = offset < 0 ? end : middle;
+        if (nearStart < nearEnd) {
+            search(nearStart, nearEnd, x, y, z);
+        }
+        if (farStart < farEnd && offset * offset < mBestSquaredDistance) {
+            search(farStart, farEnd, x, y, z);
+        }
+    }
+}
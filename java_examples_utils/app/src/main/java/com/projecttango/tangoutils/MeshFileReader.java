@@ -0,0 +1,594 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser of triangle meshes in Wavefront OBJ and PLY formats, used by
+ * {@link TriangleMesh}.
+ * <p/>
+ * The file is read through a fixed buffer and the numbers are parsed from its bytes, so no object
+ * is created per vertex or face. Vertex positions and triangle indices are written to direct
+ * buffers that grow as needed. Polygons are split into triangle fans; everything else than
+ * positions and faces is skipped. Malformed files, including headers with invalid counts, are
+ * reported with an {@link IOException}. This class is not thread safe.
+ */
+final class MeshFileReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    // Largest number of vertices or triangles allocated before reading them, which keeps the
+    // buffers within the limits of direct buffers.
+    private static final int MAX_INITIAL_CAPACITY = Integer.MAX_VALUE / 12;
+
+    // PLY property types.
+    private static final int TYPE_INT8 = 0;
+    private static final int TYPE_UINT8 = 1;
+    private static final int TYPE_INT16 = 2;
+    private static final int TYPE_UINT16 = 3;
+    private static final int TYPE_INT32 = 4;
+    private static final int TYPE_UINT32 = 5;
+    private static final int TYPE_FLOAT32 = 6;
+    private static final int TYPE_FLOAT64 = 7;
+    private static final String[][] TYPE_NAMES = {
+            {"char", "int8"}, {"uchar", "uint8"}, {"short", "int16"}, {"ushort", "uint16"},
+            {"int", "int32"}, {"uint", "uint32"}, {"float", "float32"}, {"double", "float64"}};
+    private static final int[] TYPE_SIZES = {1, 1, 2, 2, 4, 4, 4, 8};
+
+    // PLY body formats.
+    private static final int FORMAT_ASCII = 0;
+    private static final int FORMAT_BINARY_LITTLE_ENDIAN = 1;
+    private static final int FORMAT_BINARY_BIG_ENDIAN = 2;
+
+    // Exact powers of ten in double precision.
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] mBytes = mBuffer.array();
+    // Range of the buffer not parsed yet.
+    private int mPosition = 0;
+    private int mLimit = 0;
+    private boolean mIsEndOfFile = false;
+
+    private ByteBuffer mPositions;
+    private int mNumberOfVertices = 0;
+    private ByteBuffer mIndices;
+    private int mNumberOfTriangles = 0;
+
+    MeshFileReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    int getNumberOfVertices() {
+        return mNumberOfVertices;
+    }
+
+    int getNumberOfTriangles() {
+        return mNumberOfTriangles;
+    }
+
+    /**
+     * Packed x, y, z positions of the vertices, in little endian order.
+     */
+    ByteBuffer getPositions() {
+        return mPositions;
+    }
+
+    /**
+     * Packed vertex indices of the triangles, in little endian order.
+     */
+    ByteBuffer getIndices() {
+        return mIndices;
+    }
+
+    /**
+     * Parse a Wavefront OBJ file. Only the 'v' and 'f' statements are used; negative (relative)
+     * vertex references are supported.
+     */
+    void readObj() throws IOException {
+        allocate(INITIAL_CAPACITY, INITIAL_CAPACITY);
+        int[] polygon = new int[16];
+        while (true) {
+            skipSpaces();
+            if (!ensure(2)) {
+                break;
+            }
+            byte first = mBytes[mPosition];
+            boolean isStatement = mBytes[mPosition + 1] == ' ' || mBytes[mPosition + 1] == '\t';
+            if (first == 'v' && isStatement) {
+                mPosition++;
+                float x = readFloat();
+                float y = readFloat();
+                float z = readFloat();
+                addVertex(x, y, z);
+            } else if (first == 'f' && isStatement) {
+                mPosition++;
+                int size = 0;
+                while (skipSpaces() && !isEndOfLine()) {
+                    int reference = readInt();
+                    if (reference == 0) {
+                        throw new IOException("Invalid vertex reference 0 in face "
+                                + mNumberOfTriangles);
+                    }
+                    // Relative references count back from the last vertex.
+                    int vertex = reference > 0 ? reference - 1 : mNumberOfVertices + reference;
+                    // Skip the texture coordinates and normal references.
+                    while (ensure(1) && mBytes[mPosition] > ' ') {
+                        mPosition++;
+                    }
+                    if (size == polygon.length) {
+                        int[] larger = new int[size * 2];
+                        System.arraycopy(polygon, 0, larger, 0, size);
+                        polygon = larger;
+                    }
+                    polygon[size++] = vertex;
+                }
+                addPolygon(polygon, size);
+            }
+            skipLine();
+        }
+        checkIndices();
+    }
+
+    /**
+     * Parse a PLY file in ASCII or binary format. The x, y, z properties of the 'vertex' element
+     * and the 'vertex_indices' list of the 'face' element are used.
+     */
+    void readPly() throws IOException {
+        if (!"ply".equals(readHeaderLine())) {
+            throw new IOException("Not a PLY file");
+        }
+        int format = -1;
+        List<PlyElement> elements = new ArrayList<PlyElement>();
+        while (true) {
+            String line = readHeaderLine();
+            if (line == null) {
+                throw new IOException("Truncated PLY header");
+            }
+            String[] words = line.trim().split("\\s+");
+            if (words[0].equals("end_header")) {
+                break;
+            } else if (words[0].equals("format") && words.length >= 2) {
+                if (words[1].equals("ascii")) {
+                    format = FORMAT_ASCII;
+                } else if (words[1].equals("binary_little_endian")) {
+                    format = FORMAT_BINARY_LITTLE_ENDIAN;
+                } else if (words[1].equals("binary_big_endian")) {
+                    format = FORMAT_BINARY_BIG_ENDIAN;
+                } else {
+                    throw new IOException("Unsupported PLY format " + words[1]);
+                }
+            } else if (words[0].equals("element")) {
+                if (words.length != 3) {
+                    throw new IOException("Invalid PLY element: " + line);
+                }
+                elements.add(new PlyElement(words[1], parseCount(words[2])));
+            } else if (words[0].equals("property")) {
+                if (elements.isEmpty() || words.length < 3) {
+                    throw new IOException("Invalid PLY property: " + line);
+                }
+                PlyElement element = elements.get(elements.size() - 1);
+                if (words[1].equals("list") && words.length == 5) {
+                    element.addProperty(words[4], parseType(words[3]), parseType(words[2]));
+                } else if (words.length == 3) {
+                    element.addProperty(words[2], parseType(words[1]), -1);
+                } else {
+                    throw new IOException("Invalid PLY property: " + line);
+                }
+            }
+        }
+        if (format < 0) {
+            throw new IOException("Missing PLY format");
+        }
+        ByteOrder order = format == FORMAT_BINARY_BIG_ENDIAN
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        int numberOfVertices = 0;
+        int numberOfFaces = 0;
+        for (PlyElement element : elements) {
+            if (element.mName.equals("vertex")) {
+                numberOfVertices = element.mCount;
+            } else if (element.mName.equals("face")) {
+                numberOfFaces = element.mCount;
+            }
+        }
+        // Most faces are triangles, the buffers grow if they are not. Vertices and triangles take
+        // at least three bytes of the file, so the counts of a malformed header don't allocate
+        // more than the file can fill.
+        long maxCount = mChannel.size() / 3;
+        allocate((int) Math.min(numberOfVertices, maxCount),
+                (int) Math.min(numberOfFaces, maxCount));
+        float[] position = new float[3];
+        int[] polygon = new int[16];
+        for (PlyElement element : elements) {
+            boolean isVertex = element.mName.equals("vertex");
+            boolean isFace = element.mName.equals("face");
+            int numberOfProperties = element.mNames.size();
+            int[] axes = new int[numberOfProperties];
+            // Bit of each coordinate, and bit 3 for the vertex indices.
+            int usedAxes = 0;
+            for (int p = 0; p < numberOfProperties; p++) {
+                String name = element.mNames.get(p);
+                boolean isList = element.mCountTypes[p] >= 0;
+                axes[p] = !isVertex || isList ? -1 : name.equals("x") ? 0 : name.equals("y") ? 1
+                        : name.equals("z") ? 2 : -1;
+                if (isFace && isList
+                        && (name.equals("vertex_indices") || name.equals("vertex_index"))) {
+                    axes[p] = 3;
+                }
+                if (axes[p] >= 0) {
+                    usedAxes |= 1 << axes[p];
+                }
+            }
+            if (isVertex && element.mCount > 0 && usedAxes != 0x7) {
+                throw new IOException("PLY vertices without x, y and z properties");
+            }
+            if (isFace && element.mCount > 0 && usedAxes != 0x8) {
+                throw new IOException("PLY faces without vertex indices");
+            }
+            for (int item = 0; item < element.mCount; item++) {
+                for (int p = 0; p < numberOfProperties; p++) {
+                    int type = element.mTypes[p];
+                    if (element.mCountTypes[p] < 0) {
+                        double value = readPlyValue(format, type, order);
+                        if (axes[p] >= 0 && axes[p] < 3) {
+                            position[axes[p]] = (float) value;
+                        }
+                        continue;
+                    }
+                    double size = readPlyValue(format, element.mCountTypes[p], order);
+                    if (size < 0) {
+                        throw new IOException("Negative PLY list size " + size);
+                    }
+                    for (int i = 0; i < size; i++) {
+                        double value = readPlyValue(format, type, order);
+                        if (axes[p] == 3) {
+                            // Grown while reading, so a wrong size ends with the file rather
+                            // than with a huge allocation.
+                            if (i == polygon.length) {
+                                int[] larger = new int[polygon.length * 2];
+                                System.arraycopy(polygon, 0, larger, 0, i);
+                                polygon = larger;
+                            }
+                            polygon[i] = (int) value;
+                        }
+                    }
+                    if (axes[p] == 3) {
+                        addPolygon(polygon, (int) size);
+                    }
+                }
+                if (isVertex) {
+                    addVertex(position[0], position[1], position[2]);
+                }
+                if (format == FORMAT_ASCII) {
+                    skipLine();
+                }
+            }
+        }
+        checkIndices();
+    }
+
+    private double readPlyValue(int format, int type, ByteOrder order) throws IOException {
+        if (format == FORMAT_ASCII) {
+            skipSpaces();
+            if (isEndOfLine()) {
+                throw new IOException("Truncated PLY element");
+            }
+            return type == TYPE_FLOAT32 || type == TYPE_FLOAT64 ? readFloat() : readLong();
+        }
+        int size = TYPE_SIZES[type];
+        if (!ensure(size)) {
+            throw new IOException("Truncated PLY body");
+        }
+        long bits = 0;
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            for (int i = size - 1; i >= 0; i--) {
+                bits = (bits << 8) | (mBytes[mPosition + i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                bits = (bits << 8) | (mBytes[mPosition + i] & 0xff);
+            }
+        }
+        mPosition += size;
+        switch (type) {
+            case TYPE_INT8:
+                return (byte) bits;
+            case TYPE_INT16:
+                return (short) bits;
+            case TYPE_INT32:
+                return (int) bits;
+            case TYPE_FLOAT32:
+                return Float.intBitsToFloat((int) bits);
+            case TYPE_FLOAT64:
+                return Double.longBitsToDouble(bits);
+            default:
+                // Unsigned types.
+                return bits;
+        }
+    }
+
+    private static int parseCount(String count) throws IOException {
+        int value;
+        try {
+            value = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid PLY element count " + count);
+        }
+        if (value < 0) {
+            throw new IOException("Negative PLY element count " + count);
+        }
+        return value;
+    }
+
+    private static int parseType(String name) throws IOException {
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            if (TYPE_NAMES[type][0].equals(name) || TYPE_NAMES[type][1].equals(name)) {
+                return type;
+            }
+        }
+        throw new IOException("Unsupported PLY type " + name);
+    }
+
+    /**
+     * Read a line of an ASCII header, or null at the end of the file.
+     */
+    private String readHeaderLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (ensure(1)) {
+            byte b = mBytes[mPosition++];
+            if (b == '\n') {
+                return line.toString().trim();
+            }
+            line.append((char) (b & 0xff));
+        }
+        return line.length() > 0 ? line.toString().trim() : null;
+    }
+
+    private void addVertex(float x, float y, float z) throws IOException {
+        if ((mNumberOfVertices + 1) * 12L > mPositions.capacity()) {
+            mPositions = grow(mPositions);
+        }
+        int offset = mNumberOfVertices * 12;
+        mPositions.putFloat(offset, x);
+        mPositions.putFloat(offset + 4, y);
+        mPositions.putFloat(offset + 8, z);
+        mNumberOfVertices++;
+    }
+
+    private void addPolygon(int[] polygon, int size) throws IOException {
+        for (int i = 2; i < size; i++) {
+            if ((mNumberOfTriangles + 1) * 12L > mIndices.capacity()) {
+                mIndices = grow(mIndices);
+            }
+            int offset = mNumberOfTriangles * 12;
+            mIndices.putInt(offset, polygon[0]);
+            mIndices.putInt(offset + 4, polygon[i - 1]);
+            mIndices.putInt(offset + 8, polygon[i]);
+            mNumberOfTriangles++;
+        }
+    }
+
+    private void checkIndices() throws IOException {
+        for (int i = 0; i < mNumberOfTriangles * 3; i++) {
+            int vertex = mIndices.getInt(i * 4);
+            if (vertex < 0 || vertex >= mNumberOfVertices) {
+                throw new IOException("Triangle " + i / 3 + " references missing vertex " + vertex);
+            }
+        }
+    }
+
+    private void allocate(int numberOfVertices, int numberOfTriangles) {
+        mPositions = ByteBuffer.allocateDirect(Math.max(Math.min(numberOfVertices,
+                MAX_INITIAL_CAPACITY), 1) * 12).order(ByteOrder.LITTLE_ENDIAN);
+        mIndices = ByteBuffer.allocateDirect(Math.max(Math.min(numberOfTriangles,
+                MAX_INITIAL_CAPACITY), 1) * 12).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() > Integer.MAX_VALUE / 2) {
+            throw new IOException("Mesh too large");
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.clear();
+        larger.put(buffer);
+        larger.clear();
+        return larger;
+    }
+
+    /**
+     * Make sure the given number of bytes can be read from the buffer, reading more of the file
+     * if needed.
+     *
+     * @return False if the file ends before.
+     */
+    private boolean ensure(int size) throws IOException {
+        while (mLimit - mPosition < size) {
+            if (mIsEndOfFile) {
+                return false;
+            }
+            System.arraycopy(mBytes, mPosition, mBytes, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+            mBuffer.clear();
+            mBuffer.position(mLimit);
+            if (mChannel.read(mBuffer) < 0) {
+                mIsEndOfFile = true;
+            }
+            mLimit = mBuffer.position();
+        }
+        return true;
+    }
+
+    /**
+     * Skip spaces and tabs.
+     *
+     * @return False at the end of the file.
+     */
+    private boolean skipSpaces() throws IOException {
+        while (ensure(1)) {
+            byte b = mBytes[mPosition];
+            if (b != ' ' && b != '\t') {
+                return true;
+            }
+            mPosition++;
+        }
+        return false;
+    }
+
+    private boolean isEndOfLine() {
+        byte b = mBytes[mPosition];
+        return b == '\n' || b == '\r' || b == '#';
+    }
+
+    private void skipLine() throws IOException {
+        while (ensure(1)) {
+            if (mBytes[mPosition++] == '\n') {
+                return;
+            }
+        }
+    }
+
+    private int readInt() throws IOException {
+        long value = readLong();
+        if (value != (int) value) {
+            throw new IOException("Integer out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private long readLong() throws IOException {
+        skipSpaces();
+        boolean isNegative = false;
+        if (ensure(1) && (mBytes[mPosition] == '-' || mBytes[mPosition] == '+')) {
+            isNegative = mBytes[mPosition] == '-';
+            mPosition++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (ensure(1) && mBytes[mPosition] >= '0' && mBytes[mPosition] <= '9') {
+            value = value * 10 + mBytes[mPosition++] - '0';
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IOException("Expected an integer");
+        }
+        return isNegative ? -value : value;
+    }
+
+    /**
+     * Parse a decimal number, with optional sign, fraction and exponent.
+     *
+     * @throws IOException If there is no digit, for instance at the end of a line missing a
+     *                     coordinate.
+     */
+    private float readFloat() throws IOException {
+        skipSpaces();
+        boolean isNegative = false;
+        if (ensure(1) && (mBytes[mPosition] == '-' || mBytes[mPosition] == '+')) {
+            isNegative = mBytes[mPosition] == '-';
+            mPosition++;
+        }
+        // Up to 18 significant digits are kept in the mantissa, more don't matter for a float.
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean hasDigits = false;
+        boolean isFraction = false;
+        while (ensure(1)) {
+            byte b = mBytes[mPosition];
+            if (b >= '0' && b <= '9') {
+                hasDigits = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + b - '0';
+                    if (mantissa > 0) {
+                        digits++;
+                    }
+                    if (isFraction) {
+                        exponent--;
+                    }
+                } else if (!isFraction) {
+                    exponent++;
+                }
+            } else if (b == '.' && !isFraction) {
+                isFraction = true;
+            } else {
+                break;
+            }
+            mPosition++;
+        }
+        if (!hasDigits) {
+            throw new IOException("Expected a number");
+        }
+        if (ensure(1) && (mBytes[mPosition] == 'e' || mBytes[mPosition] == 'E')) {
+            mPosition++;
+            exponent += readInt();
+        }
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent]
+                    : value * Math.pow(10, exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent]
+                    : value * Math.pow(10, exponent);
+        }
+        return (float) (isNegative ? -value : value);
+    }
+
+    /**
+     * An element declared in a PLY header, with its properties.
+     */
+    private static class PlyElement {
+        final String mName;
+        final int mCount;
+        final List<String> mNames = new ArrayList<String>();
+        int[] mTypes = new int[0];
+        // Type of the size of each list property, or -1 for the scalar properties.
+        int[] mCountTypes = new int[0];
+
+        PlyElement(String name, int count) {
+            mName = name;
+            mCount = count;
+        }
+
+        void addProperty(String name, int type, int countType) {
+            int size = mNames.size();
+            mNames.add(name);
+            int[] types = new int[size + 1];
+            int[] countTypes = new int[size + 1];
+            System.arraycopy(mTypes, 0, types, 0, size);
+            System.arraycopy(mCountTypes, 0, countTypes, 0, size);
+            types[size] = type;
+            countTypes[size] = countType;
+            mTypes = types;
+            mCountTypes = countTypes;
+        }
+    }
+}
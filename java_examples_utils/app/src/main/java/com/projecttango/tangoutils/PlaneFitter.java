@@ -0,0 +1,545 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Plane fitting in pure Java, as an alternative to {@code TangoSupport.fitPlaneModelNearClick}
+ * that can be profiled and tuned, and for point clouds where a plane has to be found among
+ * outliers, like the points of the depth camera around a click.
+ * <p/>
+ * Three methods are available:
+ * <ul>
+ * <li>{@link #METHOD_LEAST_SQUARES} fits all the points, which is the fastest but is pulled away
+ * by any outlier.</li>
+ * <li>{@link #METHOD_RANSAC} draws random triples of points and keeps the plane with the most
+ * points closer than the inlier threshold.</li>
+ * <li>{@link #METHOD_MSAC} draws the same samples but keeps the plane with the lowest sum of
+ * squared distances, capped at the threshold, so that among planes with as many inliers the one
+ * fitting them best wins.</li>
+ * </ul>
+ * For both sampling methods the number of iterations adapts to the ratio of inliers found so far,
+ * scoring a candidate stops as soon as it can't beat the best one, and the best plane is refined
+ * with a least squares fit of its inliers. The points are packed x, y, z floats in any frame; the
+ * fitted plane is expressed in the same frame.
+ * <p/>
+ * {@link #fitNearClick} selects the points of a point cloud which project close to a pixel of the
+ * color camera, fits them and intersects the plane with the ray through that pixel. The points are
+ * gathered into a scratch buffer owned by the fitter and reused by every fit.
+ * <p/>
+ * The random generator is seeded, so fitting the same points always gives the same plane. Fitting
+ * doesn't allocate, except to grow the scratch buffer. This class is not thread safe.
+ */
+public class PlaneFitter {
+    public static final int METHOD_LEAST_SQUARES = 0;
+    public static final int METHOD_RANSAC = 1;
+    public static final int METHOD_MSAC = 2;
+
+    /**
+     * Probability of drawing at least one sample made only of inliers before stopping.
+     */
+    private static final double SUCCESS_PROBABILITY = 0.99;
+    private static final float MIN_NORMAL_LENGTH = 1e-6f;
+    private static final float MIN_RAY_COSINE = 1e-3f;
+
+    private final float mInlierThreshold;
+    private final int mMaxIterations;
+    private final Random mRandom;
+
+    // The fitted plane, as a unit normal and a distance: n . p + d = 0.
+    private float mNormalX;
+    private float mNormalY;
+    private float mNormalZ;
+    private float mDistance;
+    private int mNumberOfPoints;
+    private int mNumberOfInliers;
+    private float mRmsError;
+    // Intersection of the plane with the ray through the clicked pixel, for fitNearClick.
+    private float mIntersectionX;
+    private float mIntersectionY;
+    private float mIntersectionZ;
+
+    // Scratch storage for fitNearClick.
+    private float[] mNeighborhoodPoints = new float[0];
+    private final float[] mColorTDepth = new float[RigidTransforms.MATRIX_SIZE];
+    private final float[] mDepthTColor = new float[RigidTransforms.MATRIX_SIZE];
+
+    /**
+     * @param inlierThreshold Maximum distance of an inlier to the plane, in the units of the
+     *                        points.
+     * @param maxIterations   Maximum number of random samples drawn per fit.
+     * @param seed            Seed of the random generator.
+     */
+    public PlaneFitter(float inlierThreshold, int maxIterations, long seed) {
+        mInlierThreshold = inlierThreshold;
+        mMaxIterations = maxIterations;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Fit a plane with one of the methods.
+     *
+     * @param method         One of {@link #METHOD_LEAST_SQUARES}, {@link #METHOD_RANSAC} or
+     *                       {@link #METHOD_MSAC}.
+     * @param points         Packed x, y, z coordinates.
+     * @param numberOfPoints Number of points to use from the start of the array.
+     * @return True if a plane was found, false if there are less than three points or they are
+     * degenerate.
+     */
+    public boolean fit(int method, float[] points, int numberOfPoints) {
+        switch (method) {
+            case METHOD_LEAST_SQUARES:
+                return fitLeastSquares(points, numberOfPoints);
+            case METHOD_RANSAC:
+                return fitRansac(points, numberOfPoints);
+            case METHOD_MSAC:
+                return fitMsac(points, numberOfPoints);
+            default:
+                throw new IllegalArgumentException("Unknown plane fitting method " + method);
+        }
+    }
+
+    /**
+     * Fit a plane to all the points with least squares.
+     *
+     * @see #fit
+     */
+    public boolean fitLeastSquares(float[] points, int numberOfPoints) {
+        mNumberOfPoints = numberOfPoints;
+        mNumberOfInliers = 0;
+        mRmsError = 0;
+        if (numberOfPoints < 3 || !fitLeastSquares(points, numberOfPoints, false)) {
+            return false;
+        }
+        countInliers(points, numberOfPoints, 0);
+        return true;
+    }
+
+    /**
+     * Fit a plane with RANSAC followed by a least squares refinement on its inliers.
+     *
+     * @see #fit
+     */
+    public boolean fitRansac(float[] points, int numberOfPoints) {
+        return fitSamples(points, numberOfPoints, false);
+    }
+
+    /**
+     * Fit a plane with MSAC followed by a least squares refinement on its inliers.
+     *
+     * @see #fit
+     */
+    public boolean fitMsac(float[] points, int numberOfPoints) {
+        return fitSamples(points, numberOfPoints, true);
+    }
+
+    /**
+     * Fit a plane to the points of a point cloud which project close to a pixel of the color
+     * camera, and intersect it with the ray from the color camera through that pixel. The plane
+     * and the intersection are in depth camera frame, with the normal facing the color camera.
+     *
+     * @param colorTDepthPose Pose of the depth camera in color camera frame.
+     * @param u               Horizontal coordinate of the pixel, between 0 and 1.
+     * @param v               Vertical coordinate of the pixel, between 0 and 1.
+     * @param radius          Maximum distance to the pixel in pixels, measured along each axis.
+     * @param method          One of the fitting methods.
+     * @return True if a plane was found and the ray intersects it in front of the camera.
+     */
+    public boolean fitNearClick(TangoXyzIjData xyzIj, TangoCameraIntrinsics intrinsics,
+                                TangoPoseData colorTDepthPose, float u, float v, float radius,
+                                int method) {
+        RigidTransforms.setFromTranslationRotation(mColorTDepth, 0, colorTDepthPose.translation,
+                colorTDepthPose.rotation);
+        RigidTransforms.invertRigid(mDepthTColor, 0, mColorTDepth, 0);
+        if (mNeighborhoodPoints.length < xyzIj.xyzCount * 3) {
+            mNeighborhoodPoints = new float[xyzIj.xyzCount * 3];
+        }
+
+        // Select the points projecting around the pixel.
+        float fx = (float) intrinsics.fx;
+        float fy = (float) intrinsics.fy;
+        float cx = (float) intrinsics.cx;
+        float cy = (float) intrinsics.cy;
+        float pixelX = u * intrinsics.width;
+        float pixelY = v * intrinsics.height;
+        float[] m = mColorTDepth;
+        float[] points = mNeighborhoodPoints;
+        FloatBuffer xyz = xyzIj.xyz;
+        int count = 0;
+        for (int i = 0, end = xyzIj.xyzCount * 3; i < end; i += 3) {
+            float x = xyz.get(i);
+            float y = xyz.get(i + 1);
+            float z = xyz.get(i + 2);
+            float colorZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (colorZ <= 0) {
+                continue;
+            }
+            float colorX = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float distanceX = fx * colorX / colorZ + cx - pixelX;
+            if (distanceX > radius || distanceX < -radius) {
+                continue;
+            }
+            float colorY = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float distanceY = fy * colorY / colorZ + cy - pixelY;
+            if (distanceY > radius || distanceY < -radius) {
+                continue;
+            }
+            points[count * 3] = x;
+            points[count * 3 + 1] = y;
+            points[count * 3 + 2] = z;
+            count++;
+        }
+        if (!fit(method, points, count)) {
+            return false;
+        }
+
+        // Intersect the plane with the ray through the pixel, in depth frame.
+        float[] d = mDepthTColor;
+        float originX = d[12];
+        float originY = d[13];
+        float originZ = d[14];
+        orientTowards(originX, originY, originZ);
+        float rayX = (pixelX - cx) / fx;
+        float rayY = (pixelY - cy) / fy;
+        float directionX = d[0] * rayX + d[4] * rayY + d[8];
+        float directionY = d[1] * rayX + d[5] * rayY + d[9];
+        float directionZ = d[2] * rayX + d[6] * rayY + d[10];
+        float cosine = mNormalX * directionX + mNormalY * directionY + mNormalZ * directionZ;
+        if (cosine > -MIN_RAY_COSINE) {
+            return false;
+        }
+        float distance = -getSignedDistance(originX, originY, originZ) / cosine;
+        mIntersectionX = originX + distance * directionX;
+        mIntersectionY = originY + distance * directionY;
+        mIntersectionZ = originZ + distance * directionZ;
+        return true;
+    }
+
+    /**
+     * Flip the normal of the fitted plane if needed so that it faces a point, usually the camera.
+     */
+    public void orientTowards(float x, float y, float z) {
+        if (getSignedDistance(x, y, z) < 0) {
+            setPlane(-mNormalX, -mNormalY, -mNormalZ, -mDistance);
+        }
+    }
+
+    /**
+     * Signed distance of a point to the fitted plane, positive on the side the normal faces.
+     */
+    public float getSignedDistance(float x, float y, float z) {
+        return mNormalX * x + mNormalY * y + mNormalZ * z + mDistance;
+    }
+
+    public float getNormalX() {
+        return mNormalX;
+    }
+
+    public float getNormalY() {
+        return mNormalY;
+    }
+
+    public float getNormalZ() {
+        return mNormalZ;
+    }
+
+    /**
+     * The distance d of the plane in its equation n . p + d = 0.
+     */
+    public float getDistance() {
+        return mDistance;
+    }
+
+    public int getNumberOfInliers() {
+        return mNumberOfInliers;
+    }
+
+    /**
+     * Root mean square distance of the inliers to the fitted plane.
+     */
+    public float getRmsError() {
+        return mRmsError;
+    }
+
+    /**
+     * Confidence in the fitted plane between 0 and 1: the ratio of the points which are inliers.
+     */
+    public float getConfidence() {
+        return mNumberOfPoints == 0 ? 0 : (float) mNumberOfInliers / mNumberOfPoints;
+    }
+
+    /**
+     * Copy the fitted plane as the coefficients a, b, c, d of its equation ax + by + cz + d = 0,
+     * like the plane model of {@code TangoSupport}.
+     */
+    public void getPlaneModel(double[] planeModel) {
+        planeModel[0] = mNormalX;
+        planeModel[1] = mNormalY;
+        planeModel[2] = mNormalZ;
+        planeModel[3] = mDistance;
+    }
+
+    /**
+     * Copy the intersection of the plane with the ray through the pixel of the last
+     * {@link #fitNearClick}.
+     */
+    public void getIntersectionPoint(double[] point) {
+        point[0] = mIntersectionX;
+        point[1] = mIntersectionY;
+        point[2] = mIntersectionZ;
+    }
+
+    /**
+     * Fit a plane to random samples of three points, scoring each candidate plane either with
+     * its number of inliers or with the MSAC cost, and refine the best one.
+     */
+    private boolean fitSamples(float[] points, int numberOfPoints, boolean isMsac) {
+        mNumberOfPoints = numberOfPoints;
+        mNumberOfInliers = 0;
+        mRmsError = 0;
+        if (numberOfPoints < 3) {
+            return false;
+        }
+
+        float threshold = mInlierThreshold;
+        float squaredThreshold = threshold * threshold;
+        int end = numberOfPoints * 3;
+        int bestInliers = 0;
+        // With RANSAC the cost of a plane is its number of outliers.
+        float bestCost = Float.MAX_VALUE;
+        float bestX = 0;
+        float bestY = 0;
+        float bestZ = 0;
+        float bestD = 0;
+        int iterations = mMaxIterations;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int a = mRandom.nextInt(numberOfPoints) * 3;
+            int b = mRandom.nextInt(numberOfPoints) * 3;
+            int c = mRandom.nextInt(numberOfPoints) * 3;
+            if (a == b || a == c || b == c) {
+                continue;
+            }
+            float abX = points[b] - points[a];
+            float abY = points[b + 1] - points[a + 1];
+            float abZ = points[b + 2] - points[a + 2];
+            float acX = points[c] - points[a];
+            float acY = points[c + 1] - points[a + 1];
+            float acZ = points[c + 2] - points[a + 2];
+            float nX = abY * acZ - abZ * acY;
+            float nY = abZ * acX - abX * acZ;
+            float nZ = abX * acY - abY * acX;
+            float length = (float) Math.sqrt(nX * nX + nY * nY + nZ * nZ);
+            if (length < MIN_NORMAL_LENGTH) {
+                continue;
+            }
+            nX /= length;
+            nY /= length;
+            nZ /= length;
+            float d = -(nX * points[a] + nY * points[a + 1] + nZ * points[a + 2]);
+
+            // Score the plane, giving up as soon as it costs more than the best plane.
+            int inliers = 0;
+            float cost = 0;
+            int i = 0;
+            for (; i < end && cost < bestCost; i += 3) {
+                float distance = nX * points[i] + nY * points[i + 1] + nZ * points[i + 2] + d;
+                float squaredDistance = distance * distance;
+                if (squaredDistance <= squaredThreshold) {
+                    inliers++;
+                    if (isMsac) {
+                        cost += squaredDistance;
+                    }
+                } else {
+                    cost += isMsac ? squaredThreshold : 1;
+                }
+            }
+            if (i >= end && cost < bestCost) {
+                bestCost = cost;
+                bestInliers = inliers;
+                bestX = nX;
+                bestY = nY;
+                bestZ = nZ;
+                bestD = d;
+                iterations = Math.min(iterations,
+                        requiredIterations((double) inliers / numberOfPoints));
+            }
+        }
+        if (bestInliers == 0) {
+            return false;
+        }
+
+        setPlane(bestX, bestY, bestZ, bestD);
+        refine(points, numberOfPoints, bestInliers);
+        return true;
+    }
+
+    /**
+     * Number of samples needed to draw one made only of inliers with {@code SUCCESS_PROBABILITY}.
+     */
+    private int requiredIterations(double inlierRatio) {
+        double allInliersProbability = inlierRatio * inlierRatio * inlierRatio;
+        if (allInliersProbability >= 1) {
+            return 0;
+        }
+        double iterations = Math.log(1 - SUCCESS_PROBABILITY)
+                / Math.log(1 - allInliersProbability);
+        return iterations < mMaxIterations ? (int) Math.ceil(iterations) : mMaxIterations;
+    }
+
+    /**
+     * Refit the plane to its inliers with least squares, then count the inliers of the refined
+     * plane. The refined plane is kept only if it doesn't lose inliers.
+     */
+    private void refine(float[] points, int numberOfPoints, int inliers) {
+        float oldX = mNormalX;
+        float oldY = mNormalY;
+        float oldZ = mNormalZ;
+        float oldD = mDistance;
+        if (!fitLeastSquares(points, numberOfPoints, true)
+                || !countInliers(points, numberOfPoints, inliers)) {
+            setPlane(oldX, oldY, oldZ, oldD);
+            countInliers(points, numberOfPoints, 0);
+        }
+    }
+
+    /**
+     * Fit a plane with least squares, to all the points or only to the inliers of the current
+     * plane, keeping the orientation of the current plane.
+     *
+     * @return False if the points are degenerate, in which case the plane is not changed.
+     */
+    private boolean fitLeastSquares(float[] points, int numberOfPoints, boolean isInliersOnly) {
+        float threshold = mInlierThreshold;
+        int end = numberOfPoints * 3;
+        // Centroid of the points.
+        double sumX = 0;
+        double sumY = 0;
+        double sumZ = 0;
+        int count = 0;
+        for (int i = 0; i < end; i += 3) {
+            if (isInliersOnly) {
+                float distance = getSignedDistance(points[i], points[i + 1], points[i + 2]);
+                if (distance > threshold || distance < -threshold) {
+                    continue;
+                }
+            }
+            sumX += points[i];
+            sumY += points[i + 1];
+            sumZ += points[i + 2];
+            count++;
+        }
+        if (count < 3) {
+            return false;
+        }
+        double centerX = sumX / count;
+        double centerY = sumY / count;
+        double centerZ = sumZ / count;
+        // Covariance of the points.
+        double xx = 0;
+        double xy = 0;
+        double xz = 0;
+        double yy = 0;
+        double yz = 0;
+        double zz = 0;
+        for (int i = 0; i < end; i += 3) {
+            if (isInliersOnly) {
+                float distance = getSignedDistance(points[i], points[i + 1], points[i + 2]);
+                if (distance > threshold || distance < -threshold) {
+                    continue;
+                }
+            }
+            double x = points[i] - centerX;
+            double y = points[i + 1] - centerY;
+            double z = points[i + 2] - centerZ;
+            xx += x * x;
+            xy += x * y;
+            xz += x * z;
+            yy += y * y;
+            yz += y * z;
+            zz += z * z;
+        }
+        // The normal is the direction of least variance. Solve for it fixing the coordinate
+        // along the axis that gives the best conditioned system.
+        double determinantX = yy * zz - yz * yz;
+        double determinantY = xx * zz - xz * xz;
+        double determinantZ = xx * yy - xy * xy;
+        double nX;
+        double nY;
+        double nZ;
+        if (determinantX >= determinantY && determinantX >= determinantZ) {
+            nX = determinantX;
+            nY = xz * yz - xy * zz;
+            nZ = xy * yz - xz * yy;
+        } else if (determinantY >= determinantZ) {
+            nX = xz * yz - xy * zz;
+            nY = determinantY;
+            nZ = xy * xz - yz * xx;
+        } else {
+            nX = xy * yz - xz * yy;
+            nY = xy * xz - yz * xx;
+            nZ = determinantZ;
+        }
+        double length = Math.sqrt(nX * nX + nY * nY + nZ * nZ);
+        if (!(length > MIN_NORMAL_LENGTH)) {
+            return false;
+        }
+        if (nX * mNormalX + nY * mNormalY + nZ * mNormalZ < 0) {
+            length = -length;
+        }
+        nX /= length;
+        nY /= length;
+        nZ /= length;
+        setPlane((float) nX, (float) nY, (float) nZ,
+                (float) -(nX * centerX + nY * centerY + nZ * centerZ));
+        return true;
+    }
+
+    /**
+     * Count the inliers of the current plane and their error, keeping them only if there are at
+     * least a given number of inliers.
+     */
+    private boolean countInliers(float[] points, int numberOfPoints, int minInliers) {
+        float threshold = mInlierThreshold;
+        int inliers = 0;
+        double squaredError = 0;
+        for (int i = 0, end = numberOfPoints * 3; i < end; i += 3) {
+            float distance = getSignedDistance(points[i], points[i + 1], points[i + 2]);
+            if (distance <= threshold && distance >= -threshold) {
+                squaredError += distance * distance;
+                inliers++;
+            }
+        }
+        if (inliers < minInliers) {
+            return false;
+        }
+        mNumberOfInliers = inliers;
+        mRmsError = (float) Math.sqrt(squaredError / inliers);
+        return true;
+    }
+
+    private void setPlane(float normalX, float normalY, float normalZ, float distance) {
+        mNormalX = normalX;
+        mNormalY = normalY;
+        mNormalZ = normalZ;
+        mDistance = distance;
+    }
+}
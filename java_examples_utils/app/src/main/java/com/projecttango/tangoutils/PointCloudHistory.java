@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Ring buffer of the latest point clouds together with the pose of the depth camera when each of
+ * them was acquired, so that a measurement can use the points of several clouds at once.
+ * <p/>
+ * The clouds are copied into preallocated arrays, so adding clouds doesn't allocate once the
+ * buffer is full. All methods are synchronized, since clouds are added from the Tango callback
+ * thread and usually read from a worker thread, except {@link #copyPointsNearPixel}: it only
+ * holds the lock to pin the arrays of the current clouds, and scans them without it, so that
+ * adding a cloud never waits for a scan. A cloud added meanwhile goes to an array that isn't
+ * pinned, and there are twice as many arrays as clouds, allocated when first needed, so there is
+ * always one.
+ */
+public class PointCloudHistory {
+    private static final String TAG = PointCloudHistory.class.getSimpleName();
+    private static final int MATRIX_SIZE = RigidTransforms.MATRIX_SIZE;
+
+    private final int mCapacity;
+    private final int mMaxNumberOfPoints;
+    // The clouds are stored in slots, twice as many as the clouds kept.
+    private final float[][] mPoints;
+    private final int[] mNumberOfPoints;
+    private final double[] mTimestamps;
+    private final float[] mOpenGlTDepthTransforms;
+    // Slots being scanned, which are not written, and slots of the clouds kept.
+    private final boolean[] mIsPinned;
+    private final boolean[] mIsKept;
+    // Slot of each cloud kept, in a ring: index of the newest cloud and number of clouds.
+    private final int[] mSlots;
+    private int mNewest = -1;
+    private int mCount;
+
+    // Only used by the thread copying points: the slots it scans, the newest cloud it copied and
+    // a scratch matrix for projections.
+    private final int[] mScannedSlots;
+    private double mCopiedTimestamp;
+    private final float[] mCopiedOpenGlTDepth = new float[MATRIX_SIZE];
+    private final float[] mCameraTDepth = new float[MATRIX_SIZE];
+
+    /**
+     * @param capacity          Number of clouds kept.
+     * @param maxNumberOfPoints Maximum number of points of a cloud; larger clouds are truncated.
+     */
+    public PointCloudHistory(int capacity, int maxNumberOfPoints) {
+        mCapacity = capacity;
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        int numberOfSlots = capacity * 2;
+        mPoints = new float[numberOfSlots][];
+        mNumberOfPoints = new int[numberOfSlots];
+        mTimestamps = new double[numberOfSlots];
+        mOpenGlTDepthTransforms = new float[numberOfSlots * MATRIX_SIZE];
+        mIsPinned = new boolean[numberOfSlots];
+        mIsKept = new boolean[numberOfSlots];
+        mSlots = new int[capacity];
+        mScannedSlots = new int[capacity];
+    }
+
+    /**
+     * Copy a new point cloud, replacing the oldest one if the buffer is full.
+     *
+     * @param openGlTDepth Pose of the depth camera in OpenGl world frame at the time of the cloud.
+     */
+    public synchronized void add(TangoXyzIjData xyzIj, float[] openGlTDepth) {
+        int pointCount = xyzIj.xyzCount;
+        if (pointCount > mMaxNumberOfPoints) {
+            Log.w(TAG, "Point cloud with " + pointCount + " points truncated to "
+                    + mMaxNumberOfPoints);
+            pointCount = mMaxNumberOfPoints;
+        }
+        int newest = (mNewest + 1) % mCapacity;
+        if (mCount == mCapacity) {
+            mIsKept[mSlots[newest]] = false;
+        }
+        int slot = findFreeSlot(mCount > 0 ? mSlots[newest] : 0);
+        if (mPoints[slot] == null) {
+            mPoints[slot] = new float[mMaxNumberOfPoints * 3];
+        }
+
+        // Bulk copy, restoring the source so other users are not affected.
+        FloatBuffer source = xyzIj.xyz;
+        int sourcePosition = source.position();
+        source.position(0);
+        source.get(mPoints[slot], 0, pointCount * 3);
+        source.position(sourcePosition);
+
+        mNumberOfPoints[slot] = pointCount;
+        mTimestamps[slot] = xyzIj.timestamp;
+        System.arraycopy(openGlTDepth, 0, mOpenGlTDepthTransforms, slot * MATRIX_SIZE,
+                MATRIX_SIZE);
+        mIsKept[slot] = true;
+        mSlots[newest] = slot;
+        mNewest = newest;
+        mCount = Math.min(mCount + 1, mCapacity);
+    }
+
+    /**
+     * Remove all the clouds, for instance when the poses of the buffered clouds are no longer
+     * consistent with the new ones.
+     */
+    public synchronized void clear() {
+        mCount = 0;
+        Arrays.fill(mIsKept, false);
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Timestamp of a cloud.
+     *
+     * @param age 0 for the newest cloud, up to {@code size() - 1} for the oldest one.
+     */
+    public synchronized double getTimestamp(int age) {
+        return mTimestamps[slot(age)];
+    }
+
+    /**
+     * Copy the pose of the depth camera in OpenGl world frame at the time of a cloud.
+     *
+     * @param age 0 for the newest cloud, up to {@code size() - 1} for the oldest one.
+     */
+    public synchronized void getOpenGlTDepth(int age, float[] openGlTDepth) {
+        System.arraycopy(mOpenGlTDepthTransforms, slot(age) * MATRIX_SIZE, openGlTDepth, 0,
+                MATRIX_SIZE);
+    }
+
+    /**
+     * Copy the points of the clouds that project close to a pixel of a camera, transformed to
+     * the OpenGl world frame, newest cloud first. When there are more such points than fit in the
+     * output, they are evenly subsampled across all the clouds, so that a single dense cloud
+     * doesn't take the whole output.
+     * NOTE: This must only be called from one thread at a time, which gets the newest of the
+     * clouds copied with {@link #getCopiedTimestamp} and {@link #getCopiedOpenGlTDepth}.
+     *
+     * @param cameraTOpenGl     Transform from the OpenGl world frame to the camera frame, with the
+     *                          camera looking along Z like in the Tango engine.
+     * @param u                 Horizontal coordinate of the pixel, between 0 and 1.
+     * @param v                 Vertical coordinate of the pixel, between 0 and 1.
+     * @param radius            Maximum distance to the pixel in pixels, measured along each axis.
+     * @param points            Output packed x, y, z coordinates.
+     * @param maxNumberOfPoints Maximum number of points copied.
+     * @return The number of points copied, 0 if there is no cloud.
+     */
+    public int copyPointsNearPixel(float[] cameraTOpenGl, TangoCameraIntrinsics intrinsics,
+                                   float u, float v, float radius, float[] points,
+                                   int maxNumberOfPoints) {
+        // Pin the slots of the current clouds. The clouds added meanwhile go to other slots, and
+        // the pinned ones are not written until they are released.
+        int numberOfClouds;
+        synchronized (this) {
+            numberOfClouds = mCount;
+            for (int age = 0; age < numberOfClouds; age++) {
+                int slot = slot(age);
+                mScannedSlots[age] = slot;
+                mIsPinned[slot] = true;
+            }
+            if (numberOfClouds > 0) {
+                mCopiedTimestamp = mTimestamps[mScannedSlots[0]];
+                System.arraycopy(mOpenGlTDepthTransforms, mScannedSlots[0] * MATRIX_SIZE,
+                        mCopiedOpenGlTDepth, 0, MATRIX_SIZE);
+            }
+        }
+        try {
+            return copyPointsNearPixel(numberOfClouds, cameraTOpenGl, intrinsics, u, v, radius,
+                    points, maxNumberOfPoints);
+        } finally {
+            synchronized (this) {
+                for (int age = 0; age < numberOfClouds; age++) {
+                    mIsPinned[mScannedSlots[age]] = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Timestamp of the newest cloud of the last call to {@link #copyPointsNearPixel}.
+     */
+    public double getCopiedTimestamp() {
+        return mCopiedTimestamp;
+    }
+
+    /**
+     * Copy the pose of the depth camera in OpenGl world frame at the time of the newest cloud of
+     * the last call to {@link #copyPointsNearPixel}.
+     */
+    public void getCopiedOpenGlTDepth(float[] openGlTDepth) {
+        System.arraycopy(mCopiedOpenGlTDepth, 0, openGlTDepth, 0, MATRIX_SIZE);
+    }
+
+    /**
+     * Copy the points near a pixel from the pinned slots, without the lock. The slots and their
+     * transforms are not written while pinned.
+     */
+    private int copyPointsNearPixel(int numberOfClouds, float[] cameraTOpenGl,
+                                    TangoCameraIntrinsics intrinsics, float u, float v,
+                                    float radius, float[] points, int maxNumberOfPoints) {
+        float pixelX = u * intrinsics.width;
+        float pixelY = v * intrinsics.height;
+        float[] m = mCameraTDepth;
+        float[] w = mOpenGlTDepthTransforms;
+
+        // Count the points near the pixel first to know how many of them to skip.
+        long numberOfNearPoints = 0;
+        for (int age = 0; age < numberOfClouds; age++) {
+            int slot = mScannedSlots[age];
+            RigidTransforms.multiply(m, 0, cameraTOpenGl, 0, w, slot * MATRIX_SIZE);
+            float[] cloud = mPoints[slot];
+            for (int i = 0, end = mNumberOfPoints[slot] * 3; i < end; i += 3) {
+                if (isNearPixel(cloud, i, intrinsics, pixelX, pixelY, radius)) {
+                    numberOfNearPoints++;
+                }
+            }
+        }
+
+        // Keep the near point number k when floor(k * max / total) increases, which keeps
+        // exactly min(max, total) points evenly spread over all the clouds.
+        long numberOfKeptPoints = Math.min(numberOfNearPoints, maxNumberOfPoints);
+        long nearPoint = 0;
+        int count = 0;
+        for (int age = 0; age < numberOfClouds && count < numberOfKeptPoints; age++) {
+            int slot = mScannedSlots[age];
+            int offset = slot * MATRIX_SIZE;
+            RigidTransforms.multiply(m, 0, cameraTOpenGl, 0, w, offset);
+            float[] cloud = mPoints[slot];
+            for (int i = 0, end = mNumberOfPoints[slot] * 3;
+                 i < end && count < numberOfKeptPoints; i += 3) {
+                if (!isNearPixel(cloud, i, intrinsics, pixelX, pixelY, radius)) {
+                    continue;
+                }
+                long keptBefore = nearPoint * numberOfKeptPoints / numberOfNearPoints;
+                nearPoint++;
+                if (nearPoint * numberOfKeptPoints / numberOfNearPoints == keptBefore) {
+                    continue;
+                }
+                float x = cloud[i];
+                float y = cloud[i + 1];
+                float z = cloud[i + 2];
+                int out = count * 3;
+                points[out] = w[offset] * x + w[offset + 4] * y + w[offset + 8] * z
+                        + w[offset + 12];
+                points[out + 1] = w[offset + 1] * x + w[offset + 5] * y + w[offset + 9] * z
+                        + w[offset + 13];
+                points[out + 2] = w[offset + 2] * x + w[offset + 6] * y + w[offset + 10] * z
+                        + w[offset + 14];
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find a slot that holds neither a kept cloud nor a pinned one, preferring the given one and
+     * then the ones already allocated. There is always one, since the other clouds kept take at
+     * most one slot less than the number of clouds kept, and at most that number are pinned.
+     */
+    private int findFreeSlot(int preferredSlot) {
+        if (!mIsKept[preferredSlot] && !mIsPinned[preferredSlot]) {
+            return preferredSlot;
+        }
+        int freeSlot = -1;
+        for (int slot = 0; slot < mPoints.length; slot++) {
+            if (!mIsKept[slot] && !mIsPinned[slot]) {
+                if (mPoints[slot] != null) {
+                    return slot;
+                }
+                if (freeSlot < 0) {
+                    freeSlot = slot;
+                }
+            }
+        }
+        return freeSlot;
+    }
+
+    /**
+     * Check whether a point of a cloud projects close to a pixel with the camera from depth
+     * transform in {@code mCameraTDepth}.
+     */
+    private boolean isNearPixel(float[] cloud, int i, TangoCameraIntrinsics intrinsics,
+                                float pixelX, float pixelY, float radius) {
+        float[] m = mCameraTDepth;
+        float x = cloud[i];
+        float y = cloud[i + 1];
+        float z = cloud[i + 2];
+        float cameraZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+        if (cameraZ <= 0) {
+            return false;
+        }
+        float cameraX = m[0] * x + m[4] * y + m[8] * z + m[12];
+        float distanceX = (float) intrinsics.fx * cameraX / cameraZ + (float) intrinsics.cx
+                - pixelX;
+        if (distanceX > radius || distanceX < -radius) {
+            return false;
+        }
+        float cameraY = m[1] * x + m[5] * y + m[9] * z + m[13];
+        float distanceY = (float) intrinsics.fy * cameraY / cameraZ + (float) intrinsics.cy
+                - pixelY;
+        return distanceY <= radius && distanceY >= -radius;
+    }
+
+    private int slot(int age) {
+        return mSlots[(mNewest - age + mCapacity) % mCapacity];
+    }
+}
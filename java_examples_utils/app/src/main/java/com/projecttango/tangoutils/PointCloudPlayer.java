@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+/**
+ * Replays a {@link PointCloudRecording} through the same {@link OnTangoUpdateListener} callbacks
+ * the Tango service uses, so the sample pipelines can run and be profiled without a device.
+ * <p/>
+ * For each recorded point cloud with a valid transform,
+ * {@link OnTangoUpdateListener#onPoseAvailable} is called first with the pose of the device in the
+ * start of service frame at the time of the point cloud, followed by
+ * {@link OnTangoUpdateListener#onXyzIjAvailable} with the point cloud. This is the frame pair the
+ * examples connect their listeners to, so their pose handling needs no change. The device pose is
+ * computed from the recorded depth camera pose and the recorded device to depth camera transform;
+ * recordings without that transform replay the point clouds only.
+ * <p/>
+ * Point clouds are delivered with their original inter-arrival times scaled by the playback speed,
+ * or as fast as the listener consumes them with {@link #MAX_SPEED}. Frame and Tango event
+ * callbacks are never called since they are not recorded.
+ * <p/>
+ * Like the Tango service, the callbacks are made from a dedicated thread, started by
+ * {@link #start()}; {@link #run()} can also be called directly to replay on the current thread.
+ */
+public class PointCloudPlayer implements Runnable {
+    public static final double REAL_TIME = 1.0;
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final double NANOS_PER_SECOND = 1e9;
+    // The OpenGL world frame has its Y axis along the Z axis of the Tango world frame, and its Z
+    // axis opposite to the Tango Y axis.
+    private static final float[] TANGO_WORLD_T_OPENGL = new float[] {
+            1, 0, 0, 0, 0, 0, 1, 0, 0, -1, 0, 0, 0, 0, 0, 1};
+
+    private final PointCloudRecording mRecording;
+    private final OnTangoUpdateListener mListener;
+    private final double mSpeed;
+
+    private final TangoXyzIjData mXyzIj = new TangoXyzIjData();
+    private final TangoPoseData mPose = new TangoPoseData();
+    private final float[] mOpenGlTdepth = new float[16];
+    private final boolean mHasDeviceTDepth;
+    private final float[] mDepthTDevice = new float[16];
+    private final float[] mTangoWorldTDevice = new float[16];
+
+    private volatile boolean mIsStopped = false;
+    private Thread mThread;
+
+    /**
+     * @param speed Playback speed relative to the recording, {@link #REAL_TIME} or
+     *              {@link #MAX_SPEED} for instance.
+     */
+    public PointCloudPlayer(PointCloudRecording recording, OnTangoUpdateListener listener,
+                            double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        mRecording = recording;
+        mListener = listener;
+        mSpeed = speed;
+        mHasDeviceTDepth = recording.getDeviceTDepth(mDepthTDevice);
+        RigidTransforms.invertRigid(mDepthTDevice, 0, mDepthTDevice, 0);
+        mPose.baseFrame = TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE;
+        mPose.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        mPose.translation = new double[3];
+        mPose.rotation = new double[4];
+    }
+
+    /**
+     * Start replaying on a new thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mThread = new Thread(this, PointCloudPlayer.class.getSimpleName());
+        mThread.start();
+    }
+
+    /**
+     * Stop replaying and wait for the current callback to return.
+     */
+    public void stop() throws InterruptedException {
+        mIsStopped = true;
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    /**
+     * Wait until the whole recording has been replayed.
+     */
+    public void join() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Replay the recording on the calling thread.
+     */
+    @Override
+    public void run() {
+        int numberOfRecords = mRecording.getNumberOfRecords();
+        if (numberOfRecords == 0) {
+            return;
+        }
+        double firstTimestamp = mRecording.getTimestamp(0);
+        long startTime = System.nanoTime();
+        for (int record = 0; record < numberOfRecords && !mIsStopped; record++) {
+            double timestamp = mRecording.getTimestamp(record);
+            if (mSpeed != MAX_SPEED) {
+                long dueTime = startTime
+                        + (long) ((timestamp - firstTimestamp) / mSpeed * NANOS_PER_SECOND);
+                if (!sleepUntil(dueTime)) {
+                    return;
+                }
+            }
+
+            if (mHasDeviceTDepth && mRecording.getTransform(record, mOpenGlTdepth)) {
+                updatePose(timestamp, mOpenGlTdepth);
+                mListener.onPoseAvailable(mPose);
+            }
+            mRecording.readPointCloud(record, mXyzIj);
+            mListener.onXyzIjAvailable(mXyzIj);
+        }
+    }
+
+    // Returns false if interrupted.
+    private boolean sleepUntil(long dueTime) {
+        long delay = dueTime - System.nanoTime();
+        while (delay > 0) {
+            try {
+                Thread.sleep(delay / NANOS_PER_MILLI, (int) (delay % NANOS_PER_MILLI));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            delay = dueTime - System.nanoTime();
+        }
+        return true;
+    }
+
+    // Convert the recorded transform, from the depth camera to the start of service frame in
+    // OpenGL convention, into the pose of the device in Tango convention:
+    // tangoWorldTdevice = tangoWorldTopenGl * openGlTdepth * depthTdevice.
+    private void updatePose(double timestamp, float[] openGlTdepth) {
+        float[] m = mTangoWorldTDevice;
+        RigidTransforms.multiply(m, 0, openGlTdepth, 0, mDepthTDevice, 0);
+        RigidTransforms.multiply(m, 0, TANGO_WORLD_T_OPENGL, 0, m, 0);
+        double m00 = m[0];
+        double m01 = m[4];
+        double m02 = m[8];
+        double m10 = m[1];
+        double m11 = m[5];
+        double m12 = m[9];
+        double m20 = m[2];
+        double m21 = m[6];
+        double m22 = m[10];
+
+        mPose.timestamp = timestamp;
+        mPose.statusCode = TangoPoseData.POSE_VALID;
+        mPose.translation[0] = m[12];
+        mPose.translation[1] = m[13];
+        mPose.translation[2] = m[14];
+
+        double x;
+        double y;
+        double z;
+        double w;
+        double trace = m00 + m11 + m22;
+        if (trace > 0) {
+            double s = Math.sqrt(trace + 1.0) * 2;
+            w = 0.25 * s;
+            x = (m21 - m12) / s;
+            y = (m02 - m20) / s;
+            z = (m10 - m01) / s;
+        } else if (m00 > m11 && m00 > m22) {
+            double s = Math.sqrt(1.0 + m00 - m11 - m22) * 2;
+            w = (m21 - m12) / s;
+            x = 0.25 * s;
+            y = (m01 + m10) / s;
+            z = (m02 + m20) / s;
+        } else if (m11 > m22) {
+            double s = Math.sqrt(1.0 + m11 - m00 - m22) * 2;
+            w = (m02 - m20) / s;
+            x = (m01 + m10) / s;
+            y = 0.25 * s;
+            z = (m12 + m21) / s;
+        } else {
+            double s = Math.sqrt(1.0 + m22 - m00 - m11) * 2;
+            w = (m10 - m01) / s;
+            x = (m02 + m20) / s;
+            y = (m12 + m21) / s;
+            z = 0.25 * s;
+        }
+        mPose.rotation[TangoPoseData.INDEX_ROTATION_X] = x;
+        mPose.rotation[TangoPoseData.INDEX_ROTATION_Y] = y;
+        mPose.rotation[TangoPoseData.INDEX_ROTATION_Z] = z;
+        mPose.rotation[TangoPoseData.INDEX_ROTATION_W] = w;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records point clouds to a sequence of memory mapped segment files.
+ * <p/>
+ * Each segment starts with a header of {@link #FILE_HEADER_SIZE} bytes: the {@link #MAGIC}
+ * number, the format {@link #VERSION}, the index of the segment, an int set to 1 if the device to
+ * depth camera transform is known, 0 otherwise, and the 16 floats of that deviceTdepth transform
+ * in column major order. The transform lets the recording be replayed as the device poses the
+ * examples listen to. The header is followed by one record per point cloud:
+ * <ul>
+ * <li>double timestamp of the point cloud</li>
+ * <li>int number of points</li>
+ * <li>int 1 if the transform is valid, 0 otherwise</li>
+ * <li>16 floats, the column major openGlTdepth transform</li>
+ * <li>3 floats per point, as provided by the Tango service</li>
+ * </ul>
+ * All values are little endian. A record with a negative number of points marks the end of the
+ * segment, so a segment left at its full size by a crash can still be read.
+ * <p/>
+ * Points are copied with a single bulk put into the mapped segment, so recording costs about one
+ * memory copy per point cloud and the kernel writes the pages back in the background. Everything
+ * else that touches the files runs in a writer thread of the recorder: the next segment is mapped
+ * while the current one fills, and when a point cloud doesn't fit in the current segment the
+ * recording switches to the next one, while the full one is written back, truncated to its used
+ * size and closed in the writer thread. Errors of the writer thread are reported by the next call
+ * to {@link #record} or by {@link #close}.
+ * This class is not thread safe.
+ */
+public class PointCloudRecorder {
+    private static final String TAG = PointCloudRecorder.class.getSimpleName();
+
+    public static final int MAGIC = 0x54504331;
+    public static final int VERSION = 2;
+    public static final int FILE_HEADER_SIZE = 16 + 16 * 4;
+    // Header size of the first version, which had no deviceTdepth transform.
+    public static final int VERSION_1_FILE_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 8 + 4 + 4 + 16 * 4;
+    public static final int END_OF_SEGMENT = -1;
+
+    private final File mDirectory;
+    private final long mSegmentSize;
+    private final float[] mDeviceTDepth;
+
+    // Maps the next segment and finishes the full ones, in order.
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    // First error of the writer thread, reported by the recording thread.
+    private volatile IOException mWriterException;
+
+    private int mSegmentIndex = -1;
+    private Segment mSegment;
+    // Float view of the whole segment, so points are copied without creating a view per record.
+    private FloatBuffer mSegmentFloats;
+    private int mPosition;
+    private Future<Segment> mNextSegment;
+
+    private int mNumberOfRecords;
+    private long mNumberOfBytes;
+
+    /**
+     * @param directory Directory where the segments are written, created if needed.
+     * @param segmentSize Maximum size of a segment in bytes. It must hold at least the largest
+     *                    expected point cloud.
+     * @param deviceTDepth Column major transform from the depth camera to the device frame, from
+     *                     the device extrinsics, or null if it is not available.
+     */
+    public PointCloudRecorder(File directory, long segmentSize, float[] deviceTDepth)
+            throws IOException {
+        if (segmentSize > Integer.MAX_VALUE || segmentSize % 4 != 0) {
+            throw new IllegalArgumentException(
+                    "segmentSize must be a multiple of 4 and fit in an int");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mDeviceTDepth = deviceTDepth != null ? deviceTDepth.clone() : null;
+        Segment segment;
+        try {
+            segment = mapSegment(0);
+        } catch (IOException e) {
+            mWriter.shutdown();
+            throw e;
+        }
+        startSegment(segment);
+    }
+
+    /**
+     * Name of the file of a segment.
+     */
+    public static String getSegmentName(int segmentIndex) {
+        return String.format(Locale.US, "depth_%05d.bin", segmentIndex);
+    }
+
+    /**
+     * Append a point cloud.
+     * NOTE: This is intended to be called from the Tango callback thread, so no point cloud is
+     * skipped.
+     *
+     * @param xyzIj The point cloud.
+     * @param openGlTdepth Column major transform of the point cloud into the OpenGL world frame,
+     *                     or null if it is not available.
+     */
+    public void record(TangoXyzIjData xyzIj, float[] openGlTdepth) throws IOException {
+        if (mWriterException != null) {
+            throw mWriterException;
+        }
+        if (mSegment == null) {
+            throw new IOException("The recording is closed or lost its segment");
+        }
+        int pointCount = xyzIj.xyzCount;
+        long recordSize = RECORD_HEADER_SIZE + pointCount * 3L * 4;
+        // Keep room for the end of segment marker.
+        if (FILE_HEADER_SIZE + recordSize + 4 + 4 + 4 > mSegmentSize) {
+            Log.w(TAG, "Point cloud with " + pointCount + " points does not fit in a segment");
+            return;
+        }
+        if (mPosition + recordSize + 4 + 4 + 4 > mSegmentSize) {
+            finishSegment();
+            startSegment(takeNextSegment());
+        }
+
+        MappedByteBuffer buffer = mSegment.mBuffer;
+        buffer.putDouble(mPosition, xyzIj.timestamp);
+        buffer.putInt(mPosition + 8, pointCount);
+        buffer.putInt(mPosition + 12, openGlTdepth != null ? 1 : 0);
+        int floatPosition = (mPosition + 16) / 4;
+        for (int i = 0; i < 16; i++) {
+            mSegmentFloats.put(floatPosition + i, openGlTdepth != null ? openGlTdepth[i] : 0);
+        }
+
+        // Bulk copy, restoring the source so other users are not affected.
+        FloatBuffer source = xyzIj.xyz;
+        int sourcePosition = source.position();
+        int sourceLimit = source.limit();
+        source.position(0);
+        source.limit(pointCount * 3);
+        mSegmentFloats.position(floatPosition + 16);
+        mSegmentFloats.put(source);
+        source.limit(sourceLimit);
+        source.position(sourcePosition);
+
+        mPosition += (int) recordSize;
+        writeEndOfSegment();
+        mNumberOfRecords++;
+        mNumberOfBytes += recordSize;
+    }
+
+    /**
+     * Finish the recording, waiting for the writer thread to write back and close the segments.
+     * The recorder can't be used anymore after this call.
+     * NOTE: Writing back the last segment takes a while, so this should not be called from the UI
+     * thread nor from the Tango callback thread.
+     */
+    public void close() throws IOException {
+        if (mWriter.isShutdown()) {
+            return;
+        }
+        // The segment is missing if switching to the next one failed.
+        if (mSegment != null) {
+            finishSegment();
+        }
+        // Discard the segment mapped for the next point clouds. It is ready by the time this task
+        // runs, since the writer runs its tasks in order.
+        final Future<Segment> nextSegment = mNextSegment;
+        mNextSegment = null;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Segment segment = nextSegment.get();
+                    segment.mFile.close();
+                    if (!segment.mPath.delete()) {
+                        Log.w(TAG, "Could not delete unused segment " + segment.mPath);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // Already failed, nothing to discard.
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close unused segment", e);
+                }
+            }
+        });
+        mWriter.shutdown();
+        try {
+            while (!mWriter.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.d(TAG, "Waiting for the segments to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing the recording");
+        }
+        if (mWriterException != null) {
+            throw mWriterException;
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public int getNumberOfRecords() {
+        return mNumberOfRecords;
+    }
+
+    public int getNumberOfSegments() {
+        return mSegmentIndex + 1;
+    }
+
+    /**
+     * Number of bytes recorded, not counting the file headers.
+     */
+    public long getNumberOfBytes() {
+        return mNumberOfBytes;
+    }
+
+    /**
+     * Create and map a segment, with its header and an end of segment marker.
+     */
+    private Segment mapSegment(int segmentIndex) throws IOException {
+        File path = new File(mDirectory, getSegmentName(segmentIndex));
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, segmentIndex);
+        buffer.putInt(12, mDeviceTDepth != null ? 1 : 0);
+        for (int i = 0; i < 16; i++) {
+            buffer.putFloat(16 + i * 4, mDeviceTDepth != null ? mDeviceTDepth[i] : 0);
+        }
+        buffer.putDouble(FILE_HEADER_SIZE, 0);
+        buffer.putInt(FILE_HEADER_SIZE + 8, END_OF_SEGMENT);
+        return new Segment(path, file, buffer);
+    }
+
+    /**
+     * Record into a mapped segment, and have the writer thread map the one after it.
+     */
+    private void startSegment(Segment segment) {
+        mSegmentIndex++;
+        mSegment = segment;
+        mSegmentFloats = segment.mBuffer.asFloatBuffer();
+        mPosition = FILE_HEADER_SIZE;
+        final int nextSegmentIndex = mSegmentIndex + 1;
+        mNextSegment = mWriter.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return mapSegment(nextSegmentIndex);
+            }
+        });
+    }
+
+    /**
+     * Get the segment mapped by the writer thread, waiting for it if the writer is behind.
+     */
+    private Segment takeNextSegment() throws IOException {
+        try {
+            return mNextSegment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the next segment");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not map the next segment", e.getCause());
+        }
+    }
+
+    // Mark the end of the records with an empty record header, without moving the position.
+    private void writeEndOfSegment() {
+        mSegment.mBuffer.putDouble(mPosition, 0);
+        mSegment.mBuffer.putInt(mPosition + 8, END_OF_SEGMENT);
+    }
+
+    /**
+     * Hand the current segment to the writer thread, to write it back, truncate it to its used
+     * size and close it.
+     */
+    private void finishSegment() {
+        final Segment segment = mSegment;
+        final int length = mPosition + 12;
+        mSegment = null;
+        mSegmentFloats = null;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    segment.mBuffer.force();
+                    // The mapping stays valid until it is garbage collected, but it is not
+                    // accessed anymore.
+                    try {
+                        segment.mFile.setLength(length);
+                    } finally {
+                        segment.mFile.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not finish segment " + segment.mPath, e);
+                    if (mWriterException == null) {
+                        mWriterException = e;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A segment file and its mapping.
+     */
+    private static class Segment {
+        final File mPath;
+        final RandomAccessFile mFile;
+        final MappedByteBuffer mBuffer;
+
+        Segment(File path, RandomAccessFile file, MappedByteBuffer buffer) {
+            mPath = path;
+            mFile = file;
+            mBuffer = buffer;
+        }
+    }
+}
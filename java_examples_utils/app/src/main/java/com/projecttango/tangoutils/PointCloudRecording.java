@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read access to the point clouds recorded by {@link PointCloudRecorder}.
+ * <p/>
+ * All the segments of the recording are memory mapped and indexed when it is opened, so point
+ * clouds can be read in any order without copying them, and the recorded transforms can stand in
+ * for {@code TangoSupport.getMatrixTransformAtTime} when the Tango service is not available.
+ * Only the Tango data classes are used, so recordings can be processed on a plain JVM.
+ */
+public class PointCloudRecording {
+    // Maximum difference between a requested timestamp and a recorded one, in seconds.
+    public static final double DEFAULT_TIMESTAMP_TOLERANCE = 0.001;
+
+    private final File mDirectory;
+    private final List<FloatBuffer> mSegmentFloats = new ArrayList<FloatBuffer>();
+
+    private int mNumberOfRecords;
+    private int[] mRecordSegments;
+    private int[] mRecordOffsets;
+    private int[] mPointCounts;
+    private double[] mTimestamps;
+    private boolean[] mIsTransformValid;
+    private float[] mTransforms;
+    private int mMaxPointCount;
+    private boolean mIsDeviceTDepthValid;
+    private final float[] mDeviceTDepth = new float[16];
+    private double mTimestampTolerance = DEFAULT_TIMESTAMP_TOLERANCE;
+
+    /**
+     * Open and index the recording in the given directory.
+     *
+     * @throws IOException If a segment can't be read or is not a valid recording segment.
+     */
+    public PointCloudRecording(File directory) throws IOException {
+        mDirectory = directory;
+        int capacity = 1024;
+        mRecordSegments = new int[capacity];
+        mRecordOffsets = new int[capacity];
+        mPointCounts = new int[capacity];
+        mTimestamps = new double[capacity];
+        mIsTransformValid = new boolean[capacity];
+        mTransforms = new float[capacity * 16];
+
+        File file = new File(directory, PointCloudRecorder.getSegmentName(0));
+        if (!file.isFile()) {
+            throw new IOException("No recording in " + directory);
+        }
+        for (int segmentIndex = 0; file.isFile(); segmentIndex++) {
+            indexSegment(segmentIndex, mapSegment(file));
+            file = new File(directory, PointCloudRecorder.getSegmentName(segmentIndex + 1));
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public int getNumberOfRecords() {
+        return mNumberOfRecords;
+    }
+
+    /**
+     * Largest number of points of a recorded point cloud.
+     */
+    public int getMaxPointCount() {
+        return mMaxPointCount;
+    }
+
+    public double getTimestamp(int record) {
+        return mTimestamps[record];
+    }
+
+    public int getPointCount(int record) {
+        return mPointCounts[record];
+    }
+
+    /**
+     * Get the recorded openGlTdepth transform of a point cloud.
+     *
+     * @return True if the transform was valid when recorded; the matrix is not modified otherwise.
+     */
+    public boolean getTransform(int record, float[] openGlTdepth) {
+        if (!mIsTransformValid[record]) {
+            return false;
+        }
+        System.arraycopy(mTransforms, record * 16, openGlTdepth, 0, 16);
+        return true;
+    }
+
+    /**
+     * Get the recorded transform from the depth camera to the device frame.
+     *
+     * @return True if it was recorded; the matrix is not modified otherwise.
+     */
+    public boolean getDeviceTDepth(float[] deviceTDepth) {
+        if (!mIsDeviceTDepthValid) {
+            return false;
+        }
+        System.arraycopy(mDeviceTDepth, 0, deviceTDepth, 0, 16);
+        return true;
+    }
+
+    /**
+     * Fill a point cloud with a recorded one. The points are not copied: the xyz buffer is set to
+     * a read only view of the recording, with a capacity of exactly three floats per point like
+     * the buffers provided by the Tango service.
+     */
+    public void readPointCloud(int record, TangoXyzIjData xyzIj) {
+        FloatBuffer segmentFloats = mSegmentFloats.get(mRecordSegments[record]).duplicate();
+        int floatOffset = (mRecordOffsets[record] + PointCloudRecorder.RECORD_HEADER_SIZE) / 4;
+        segmentFloats.position(floatOffset);
+        segmentFloats.limit(floatOffset + mPointCounts[record] * 3);
+        xyzIj.xyz = segmentFloats.slice();
+        xyzIj.xyzCount = mPointCounts[record];
+        xyzIj.timestamp = mTimestamps[record];
+        xyzIj.ijRows = 0;
+        xyzIj.ijCols = 0;
+    }
+
+    /**
+     * Find the record with the given timestamp, within the timestamp tolerance.
+     *
+     * @return The index of the record, or -1 if there is none.
+     */
+    public int findRecord(double timestamp) {
+        int index = Arrays.binarySearch(mTimestamps, 0, mNumberOfRecords, timestamp);
+        if (index >= 0) {
+            return index;
+        }
+        int after = -index - 1;
+        int closest = -1;
+        double closestDelta = mTimestampTolerance;
+        if (after < mNumberOfRecords && mTimestamps[after] - timestamp <= closestDelta) {
+            closest = after;
+            closestDelta = mTimestamps[after] - timestamp;
+        }
+        if (after > 0 && timestamp - mTimestamps[after - 1] <= closestDelta) {
+            closest = after - 1;
+        }
+        return closest;
+    }
+
+    /**
+     * Stand-in for {@code TangoSupport.getMatrixTransformAtTime} from the start of service frame
+     * in OpenGL convention to the depth camera frame in Tango convention, backed by the recorded
+     * transforms. Only timestamps of recorded point clouds can be resolved.
+     *
+     * @param timestamp Timestamp of a recorded point cloud.
+     * @param openGlTdepth Output column major matrix, set only if the transform is valid.
+     * @return {@link TangoPoseData#POSE_VALID} if the transform was found and valid,
+     * {@link TangoPoseData#POSE_INVALID} otherwise.
+     */
+    public int getMatrixTransformAtTime(double timestamp, float[] openGlTdepth) {
+        int record = findRecord(timestamp);
+        if (record < 0 || !getTransform(record, openGlTdepth)) {
+            return TangoPoseData.POSE_INVALID;
+        }
+        return TangoPoseData.POSE_VALID;
+    }
+
+    public void setTimestampTolerance(double timestampTolerance) {
+        mTimestampTolerance = timestampTolerance;
+    }
+
+    private MappedByteBuffer mapSegment(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed.
+            MappedByteBuffer segment = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            return segment;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void indexSegment(int segmentIndex, MappedByteBuffer segment) throws IOException {
+        if (segment.capacity() < PointCloudRecorder.VERSION_1_FILE_HEADER_SIZE
+                || segment.getInt(0) != PointCloudRecorder.MAGIC) {
+            throw new IOException("Segment " + segmentIndex + " is not a point cloud recording");
+        }
+        int offset;
+        int version = segment.getInt(4);
+        if (version == 1) {
+            offset = PointCloudRecorder.VERSION_1_FILE_HEADER_SIZE;
+        } else if (version == PointCloudRecorder.VERSION
+                && segment.capacity() >= PointCloudRecorder.FILE_HEADER_SIZE) {
+            offset = PointCloudRecorder.FILE_HEADER_SIZE;
+            // All the segments have the same transform, read it from the first one.
+            if (segmentIndex == 0 && segment.getInt(12) != 0) {
+                mIsDeviceTDepthValid = true;
+                for (int i = 0; i < 16; i++) {
+                    mDeviceTDepth[i] = segment.getFloat(16 + i * 4);
+                }
+            }
+        } else {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        mSegmentFloats.add(segment.asFloatBuffer());
+
+        while (offset + PointCloudRecorder.RECORD_HEADER_SIZE <= segment.capacity()) {
+            int pointCount = segment.getInt(offset + 8);
+            if (pointCount == PointCloudRecorder.END_OF_SEGMENT) {
+                break;
+            }
+            // The recorder switches segments before a record would not fit, so a record going
+            // past the end of its segment is corrupt. Its size may not fit in an int.
+            long recordSize = PointCloudRecorder.RECORD_HEADER_SIZE + pointCount * 3 * 4L;
+            if (pointCount < 0 || offset + recordSize > segment.capacity()) {
+                throw new IOException("Invalid number of points " + pointCount + " at offset "
+                        + offset + " of segment " + segmentIndex);
+            }
+            double timestamp = segment.getDouble(offset);
+            if (mNumberOfRecords > 0 && timestamp < mTimestamps[mNumberOfRecords - 1]) {
+                throw new IOException("Records are not sorted by timestamp at segment "
+                        + segmentIndex);
+            }
+            if (mNumberOfRecords == mTimestamps.length) {
+                grow();
+            }
+            int record = mNumberOfRecords++;
+            mRecordSegments[record] = segmentIndex;
+            mRecordOffsets[record] = offset;
+            mPointCounts[record] = pointCount;
+            mTimestamps[record] = timestamp;
+            mIsTransformValid[record] = segment.getInt(offset + 12) != 0;
+            for (int i = 0; i < 16; i++) {
+                mTransforms[record * 16 + i] = segment.getFloat(offset + 16 + i * 4);
+            }
+            mMaxPointCount = Math.max(mMaxPointCount, pointCount);
+            offset += (int) recordSize;
+        }
+    }
+
+    private void grow() {
+        int capacity = mTimestamps.length * 2;
+        mRecordSegments = Arrays.copyOf(mRecordSegments, capacity);
+        mRecordOffsets = Arrays.copyOf(mRecordOffsets, capacity);
+        mPointCounts = Arrays.copyOf(mPointCounts, capacity);
+        mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+        mIsTransformValid = Arrays.copyOf(mIsTransformValid, capacity);
+        mTransforms = Arrays.copyOf(mTransforms, capacity * 16);
+    }
+}
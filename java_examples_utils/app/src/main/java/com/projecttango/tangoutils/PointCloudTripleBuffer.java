@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free exchange of point clouds between the Tango callback thread and a consumer thread,
+ * usually the OpenGL or UI thread.
+ * <p/>
+ * Three point clouds with preallocated direct buffers are rotated between the producer, the
+ * consumer and a shared slot, swapping indices with an atomic. The producer copies each new cloud
+ * into the slot it owns and publishes it; the consumer always gets the latest complete cloud and
+ * the producer never writes to it, so it is never torn. Neither side locks or allocates.
+ * <p/>
+ * This is a drop-in replacement for {@code TangoPointCloudManager}. It supports a single
+ * producer thread calling {@link #updateXyzIj} and a single consumer thread calling
+ * {@link #getLatestXyzIj}. The cloud returned to the consumer stays valid until its next call to
+ * {@link #getLatestXyzIj}.
+ */
+public class PointCloudTripleBuffer {
+    private static final String TAG = PointCloudTripleBuffer.class.getSimpleName();
+
+    private static final int INDEX_MASK = 0x3;
+    // Set in the shared state when the shared slot holds a cloud the consumer has not seen yet.
+    private static final int FRESH_BIT = 0x4;
+
+    private final int mMaxNumberOfPoints;
+    private final TangoXyzIjData[] mClouds = new TangoXyzIjData[3];
+    // Index of the shared slot, plus the FRESH_BIT.
+    private final AtomicInteger mSharedState = new AtomicInteger(0);
+    // Only touched by the producer thread.
+    private int mWriteIndex = 1;
+    // Only touched by the consumer thread.
+    private int mReadIndex = 2;
+    private boolean mHasCloud = false;
+
+    public PointCloudTripleBuffer(int maxNumberOfPoints) {
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        for (int i = 0; i < mClouds.length; i++) {
+            TangoXyzIjData cloud = new TangoXyzIjData();
+            cloud.xyz = ByteBuffer.allocateDirect(maxNumberOfPoints * 3 * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mClouds[i] = cloud;
+        }
+    }
+
+    /**
+     * Copy a new point cloud and make it available to the consumer.
+     * NOTE: This must only be called from the producer thread, usually the Tango callback thread.
+     */
+    public void updateXyzIj(TangoXyzIjData xyzIj) {
+        TangoXyzIjData cloud = mClouds[mWriteIndex];
+        int pointCount = xyzIj.xyzCount;
+        if (pointCount > mMaxNumberOfPoints) {
+            Log.w(TAG, "Point cloud with " + pointCount + " points truncated to "
+                    + mMaxNumberOfPoints);
+            pointCount = mMaxNumberOfPoints;
+        }
+
+        // Bulk copy between direct buffers, restoring the source so other users are not affected.
+        FloatBuffer source = xyzIj.xyz;
+        int sourcePosition = source.position();
+        int sourceLimit = source.limit();
+        source.position(0);
+        source.limit(pointCount * 3);
+        cloud.xyz.clear();
+        cloud.xyz.put(source);
+        cloud.xyz.flip();
+        source.limit(sourceLimit);
+        source.position(sourcePosition);
+
+        cloud.xyzCount = pointCount;
+        cloud.timestamp = xyzIj.timestamp;
+        cloud.ijRows = xyzIj.ijRows;
+        cloud.ijCols = xyzIj.ijCols;
+
+        // Publish the written cloud and take ownership of the previously shared one.
+        mWriteIndex = mSharedState.getAndSet(mWriteIndex | FRESH_BIT) & INDEX_MASK;
+    }
+
+    /**
+     * Get the latest available point cloud, or null if none has been received yet.
+     * NOTE: This must only be called from the consumer thread. The returned cloud must not be
+     * modified and must not be used after the next call to this method.
+     */
+    public TangoXyzIjData getLatestXyzIj() {
+        if ((mSharedState.get() & FRESH_BIT) != 0) {
+            mReadIndex = mSharedState.getAndSet(mReadIndex) & INDEX_MASK;
+            mHasCloud = true;
+        }
+        return mHasCloud ? mClouds[mReadIndex] : null;
+    }
+}
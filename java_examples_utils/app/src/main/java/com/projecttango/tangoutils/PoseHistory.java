@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+/**
+ * Ring buffer of the latest poses of a single coordinate frame pair, answering pose queries at a
+ * given time without calling the Tango service.
+ * <p/>
+ * It is meant to be fed with every pose received in {@code onPoseAvailable}. Queries binary search
+ * the two poses around the requested time and interpolate between them, linearly for the
+ * translation and spherically for the rotation. A query misses, returning false, if the time is
+ * outside of the buffered range or if the poses around it are too far apart; the caller should then
+ * fall back to the Tango service.
+ * <p/>
+ * The poses are stored in preallocated primitive arrays, so neither adding poses nor querying
+ * allocates. All methods are synchronized, since poses are added from the Tango callback thread and
+ * usually queried from the OpenGL thread.
+ * <p/>
+ * The buffered poses are not updated when the Tango service corrects its past estimates, for
+ * instance after an area description is optimized. Such poses need to be queried from the service.
+ */
+public class PoseHistory {
+    private final int mCapacity;
+    private final double mMaxGap;
+
+    private final double[] mTimestamps;
+    private final double[] mTranslations;
+    private final double[] mRotations;
+    // Index of the oldest pose and number of poses in the buffer.
+    private int mBegin;
+    private int mCount;
+
+    // Scratch storage for interpolated poses and matrix products.
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private final float[] mMatrix = new float[16];
+    private final float[] mProduct = new float[16];
+
+    /**
+     * @param capacity Number of poses kept.
+     * @param maxGap Maximum time between two poses to interpolate between them, in seconds.
+     */
+    public PoseHistory(int capacity, double maxGap) {
+        mCapacity = capacity;
+        mMaxGap = maxGap;
+        mTimestamps = new double[capacity];
+        mTranslations = new double[capacity * 3];
+        mRotations = new double[capacity * 4];
+    }
+
+    /**
+     * Add a new pose. Poses which are not valid clear the history, since the following poses may
+     * not be consistent with the previous ones. Poses older than the latest one are ignored.
+     */
+    public synchronized void addPose(TangoPoseData pose) {
+        if (pose.statusCode != TangoPoseData.POSE_VALID) {
+            mCount = 0;
+            return;
+        }
+        if (mCount > 0 && pose.timestamp <= mTimestamps[index(mCount - 1)]) {
+            return;
+        }
+
+        int i;
+        if (mCount < mCapacity) {
+            i = index(mCount);
+            mCount++;
+        } else {
+            i = mBegin;
+            mBegin = index(1);
+        }
+        mTimestamps[i] = pose.timestamp;
+        System.arraycopy(pose.translation, 0, mTranslations, i * 3, 3);
+        System.arraycopy(pose.rotation, 0, mRotations, i * 4, 4);
+    }
+
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Get the pose at a given time.
+     *
+     * @param timestamp Time of the pose, or 0 for the latest pose, like in
+     *                  {@code Tango.getPoseAtTime}.
+     * @param translation Output translation.
+     * @param rotation Output rotation quaternion, in the x, y, z, w order used by
+     *                 {@link TangoPoseData}.
+     * @return False if the pose is not available; the outputs are not modified then.
+     */
+    public synchronized boolean getPoseAtTime(double timestamp, double[] translation,
+                                              double[] rotation) {
+        if (mCount == 0) {
+            return false;
+        }
+        int last = mCount - 1;
+        if (timestamp == 0) {
+            timestamp = mTimestamps[index(last)];
+        }
+        if (timestamp < mTimestamps[mBegin] || timestamp > mTimestamps[index(last)]) {
+            return false;
+        }
+
+        // Find the last pose at or before the timestamp.
+        int low = 0;
+        int high = last;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mTimestamps[index(middle)] <= timestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int before = index(low);
+        if (mTimestamps[before] == timestamp) {
+            System.arraycopy(mTranslations, before * 3, translation, 0, 3);
+            System.arraycopy(mRotations, before * 4, rotation, 0, 4);
+            return true;
+        }
+        int after = index(low + 1);
+        double gap = mTimestamps[after] - mTimestamps[before];
+        if (gap > mMaxGap) {
+            return false;
+        }
+        double t = (timestamp - mTimestamps[before]) / gap;
+        for (int i = 0; i < 3; i++) {
+            double a = mTranslations[before * 3 + i];
+            translation[i] = a + (mTranslations[after * 3 + i] - a) * t;
+        }
+        slerp(mRotations, before * 4, mRotations, after * 4, t, rotation);
+        return true;
+    }
+
+    /**
+     * Get the pose at a given time as a column major 4x4 matrix, like
+     * {@code TangoSupport.getMatrixTransformAtTime} with the Tango engine convention.
+     *
+     * @return False if the pose is not available; the matrix is not modified then.
+     */
+    public synchronized boolean getMatrixTransformAtTime(double timestamp, float[] matrix) {
+        if (!getPoseAtTime(timestamp, mTranslation, mRotation)) {
+            return false;
+        }
+        toMatrix(mTranslation, mRotation, matrix);
+        return true;
+    }
+
+    /**
+     * Get the pose at a given time as a column major 4x4 matrix, composed with fixed transforms on
+     * both sides: {@code result = left * pose * right}. This is how the pose of the device in the
+     * start of service frame becomes the pose of a camera in the OpenGL world frame, for instance.
+     *
+     * @return False if the pose is not available; the result is not modified then.
+     */
+    public synchronized boolean getMatrixTransformAtTime(double timestamp, float[] left,
+                                                         float[] right, float[] result) {
+        if (!getMatrixTransformAtTime(timestamp, mMatrix)) {
+            return false;
+        }
+        multiply(left, mMatrix, mProduct);
+        multiply(mProduct, right, result);
+        return true;
+    }
+
+    /**
+     * Timestamp of the latest pose, or 0 if there is none.
+     */
+    public synchronized double getLatestTimestamp() {
+        return mCount > 0 ? mTimestamps[index(mCount - 1)] : 0;
+    }
+
+    private int index(int i) {
+        int index = mBegin + i;
+        return index < mCapacity ? index : index - mCapacity;
+    }
+
+    // Spherical linear interpolation between two unit quaternions, along the shortest path.
+    private static void slerp(double[] a, int aOffset, double[] b, int bOffset, double t,
+                              double[] result) {
+        double dot = 0;
+        for (int i = 0; i < 4; i++) {
+            dot += a[aOffset + i] * b[bOffset + i];
+        }
+        double sign = 1;
+        if (dot < 0) {
+            dot = -dot;
+            sign = -1;
+        }
+        double weightA;
+        double weightB;
+        if (dot > 0.9995) {
+            // The quaternions are almost the same, linear interpolation is accurate enough.
+            weightA = 1 - t;
+            weightB = t;
+        } else {
+            double angle = Math.acos(dot);
+            double sinAngle = Math.sin(angle);
+            weightA = Math.sin((1 - t) * angle) / sinAngle;
+            weightB = Math.sin(t * angle) / sinAngle;
+        }
+        weightB *= sign;
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            result[i] = weightA * a[aOffset + i] + weightB * b[bOffset + i];
+            norm += result[i] * result[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            result[i] /= norm;
+        }
+    }
+
+    private static void toMatrix(double[] translation, double[] rotation, float[] m) {
+        double x = rotation[TangoPoseData.INDEX_ROTATION_X];
+        double y = rotation[TangoPoseData.INDEX_ROTATION_Y];
+        double z = rotation[TangoPoseData.INDEX_ROTATION_Z];
+        double w = rotation[TangoPoseData.INDEX_ROTATION_W];
+        m[0] = (float) (1 - 2 * (y * y + z * z));
+        m[1] = (float) (2 * (x * y + z * w));
+        m[2] = (float) (2 * (x * z - y * w));
+        m[3] = 0;
+        m[4] = (float) (2 * (x * y - z * w));
+        m[5] = (float) (1 - 2 * (x * x + z * z));
+        m[6] = (float) (2 * (y * z + x * w));
+        m[7] = 0;
+        m[8] = (float) (2 * (x * z + y * w));
+        m[9] = (float) (2 * (y * z - x * w));
+        m[10] = (float) (1 - 2 * (x * x + y * y));
+        m[11] = 0;
+        m[12] = (float) translation[0];
+        m[13] = (float) translation[1];
+        m[14] = (float) translation[2];
+        m[15] = 1;
+    }
+
+    // Column major 4x4 matrix product. The result must not be one of the operands.
+    private static void multiply(float[] a, float[] b, float[] result) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                result[column * 4 + row] = a[row] * b[column * 4]
+                        + a[4 + row] * b[column * 4 + 1]
+                        + a[8 + row] * b[column * 4 + 2]
+                        + a[12 + row] * b[column * 4 + 3];
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Index of the points of a point cloud by their projection in a camera image, usually the color
+ * camera, to find the points around a pixel without scanning the whole cloud.
+ * <p/>
+ * The image is divided in square cells and the points are sorted by cell with a counting sort,
+ * into int arrays preallocated for the largest cloud, so building the index is two linear passes
+ * that don't allocate. Queries only visit the cells around the pixel: their cost depends on the
+ * density of the points, not on the size of the cloud.
+ * <p/>
+ * Pixel coordinates and distances are in pixels of the camera image, and the points are returned
+ * as indices whose coordinates, in depth camera frame, are given by {@link #getX}, {@link #getY}
+ * and {@link #getZ}. This class is not thread safe.
+ */
+public class ProjectedPointIndex {
+    private final int mCellSize;
+    private final int mMaxNumberOfPoints;
+
+    // The points in depth frame and their projection, in the order of the cloud.
+    private final float[] mPoints;
+    private final float[] mPixels;
+    private final int[] mPointCells;
+    // Indices of the points sorted by cell, and start of each cell in this array.
+    private final int[] mSortedPoints;
+    private int[] mCellStarts = new int[1];
+    private int mGridWidth;
+    private int mGridHeight;
+    private int mNumberOfPoints;
+    private double mTimestamp = Double.NaN;
+
+    // Camera model of the index.
+    private float mFx;
+    private float mFy;
+    private float mCx;
+    private float mCy;
+    private final float[] mCameraTDepth = new float[RigidTransforms.MATRIX_SIZE];
+
+    // Distances of the k nearest points found so far, and scratch result of a single query.
+    private float[] mNearestDistances = new float[0];
+    private final int[] mNearest = new int[1];
+
+    /**
+     * @param maxNumberOfPoints Maximum number of points of a cloud; larger clouds are truncated.
+     * @param cellSize          Size of the cells of the grid in pixels.
+     */
+    public ProjectedPointIndex(int maxNumberOfPoints, int cellSize) {
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        mCellSize = cellSize;
+        mPoints = new float[maxNumberOfPoints * 3];
+        mPixels = new float[maxNumberOfPoints * 2];
+        mPointCells = new int[maxNumberOfPoints];
+        mSortedPoints = new int[maxNumberOfPoints];
+    }
+
+    /**
+     * Index the points of a cloud which are in front of a camera and project into its image.
+     *
+     * @param cameraTDepth Transform from the depth camera frame to the camera frame, with the
+     *                     camera looking along Z like in the Tango engine.
+     */
+    public void build(TangoXyzIjData xyzIj, TangoCameraIntrinsics intrinsics,
+                      float[] cameraTDepth) {
+        mFx = (float) intrinsics.fx;
+        mFy = (float) intrinsics.fy;
+        mCx = (float) intrinsics.cx;
+        mCy = (float) intrinsics.cy;
+        System.arraycopy(cameraTDepth, 0, mCameraTDepth, 0, RigidTransforms.MATRIX_SIZE);
+        mGridWidth = (intrinsics.width + mCellSize - 1) / mCellSize;
+        mGridHeight = (intrinsics.height + mCellSize - 1) / mCellSize;
+        int numberOfCells = mGridWidth * mGridHeight;
+        if (mCellStarts.length < numberOfCells + 1) {
+            mCellStarts = new int[numberOfCells + 1];
+        }
+        int[] cellStarts = mCellStarts;
+        for (int cell = 0; cell <= numberOfCells; cell++) {
+            cellStarts[cell] = 0;
+        }
+
+        // Project the points and count them per cell.
+        float[] m = cameraTDepth;
+        FloatBuffer xyz = xyzIj.xyz;
+        int pointCount = Math.min(xyzIj.xyzCount, mMaxNumberOfPoints);
+        float inverseCellSize = 1f / mCellSize;
+        int count = 0;
+        for (int i = 0; i < pointCount; i++) {
+            float x = xyz.get(i * 3);
+            float y = xyz.get(i * 3 + 1);
+            float z = xyz.get(i * 3 + 2);
+            float cameraZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (cameraZ <= 0) {
+                continue;
+            }
+            float pixelX = mFx * (m[0] * x + m[4] * y + m[8] * z + m[12]) / cameraZ + mCx;
+            float pixelY = mFy * (m[1] * x + m[5] * y + m[9] * z + m[13]) / cameraZ + mCy;
+            if (!(pixelX >= 0 && pixelY >= 0)) {
+                continue;
+            }
+            int column = (int) (pixelX * inverseCellSize);
+            int row = (int) (pixelY * inverseCellSize);
+            if (column >= mGridWidth || row >= mGridHeight) {
+                continue;
+            }
+            int cell = row * mGridWidth + column;
+            mPoints[count * 3] = x;
+            mPoints[count * 3 + 1] = y;
+            mPoints[count * 3 + 2] = z;
+            mPixels[count * 2] = pixelX;
+            mPixels[count * 2 + 1] = pixelY;
+            mPointCells[count] = cell;
+            cellStarts[cell + 1]++;
+            count++;
+        }
+        mNumberOfPoints = count;
+
+        // Sort the points by cell, using the starts of the next cells as insertion positions.
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        for (int i = 0; i < count; i++) {
+            int cell = mPointCells[i];
+            mSortedPoints[cellStarts[cell]++] = i;
+        }
+        // Each start is now the start of the next cell: shift them back.
+        for (int cell = numberOfCells; cell > 0; cell--) {
+            cellStarts[cell] = cellStarts[cell - 1];
+        }
+        cellStarts[0] = 0;
+        mTimestamp = xyzIj.timestamp;
+    }
+
+    /**
+     * Timestamp of the indexed cloud, or NaN if nothing was indexed yet.
+     */
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getNumberOfPoints() {
+        return mNumberOfPoints;
+    }
+
+    /**
+     * Find the point projecting nearest to a pixel.
+     *
+     * @param maxDistance Maximum distance to the pixel.
+     * @return The index of the point, or -1 if there is no point closer than the maximum distance.
+     */
+    public int findNearest(float pixelX, float pixelY, float maxDistance) {
+        return findNearest(pixelX, pixelY, maxDistance, mNearest) == 1 ? mNearest[0] : -1;
+    }
+
+    /**
+     * Find the k points projecting nearest to a pixel, k being the size of the result array.
+     *
+     * @param maxDistance Maximum distance to the pixel.
+     * @param result      Output indices of the points, from the nearest.
+     * @return The number of points found, less than k if there are not enough points closer than
+     * the maximum distance.
+     */
+    public int findNearest(float pixelX, float pixelY, float maxDistance, int[] result) {
+        int k = result.length;
+        if (mNearestDistances.length < k) {
+            mNearestDistances = new float[k];
+        }
+        float[] distances = mNearestDistances;
+        int found = 0;
+        float maxSquaredDistance = maxDistance * maxDistance;
+
+        int centerColumn = (int) Math.floor(pixelX / mCellSize);
+        int centerRow = (int) Math.floor(pixelY / mCellSize);
+        // Distance from the pixel to the nearest border of its cell.
+        float borderDistance = Math.min(
+                Math.min(pixelX - centerColumn * mCellSize,
+                        (centerColumn + 1) * mCellSize - pixelX),
+                Math.min(pixelY - centerRow * mCellSize, (centerRow + 1) * mCellSize - pixelY));
+        int maxRing = Math.max(mGridWidth, mGridHeight)
+                + Math.max(Math.abs(centerColumn), Math.abs(centerRow));
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // No point of this ring of cells is closer than this.
+            float ringDistance = ring == 0 ? 0 : Math.max(0, (ring - 1) * mCellSize
+                    + borderDistance);
+            float ringSquaredDistance = ringDistance * ringDistance;
+            if (ringSquaredDistance > maxSquaredDistance
+                    || (found == k && ringSquaredDistance > distances[k - 1])) {
+                break;
+            }
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                if (row < 0 || row >= mGridHeight) {
+                    continue;
+                }
+                boolean isRingRow = row == centerRow - ring || row == centerRow + ring;
+                int step = isRingRow ? 1 : 2 * ring;
+                for (int column = centerColumn - ring; column <= centerColumn + ring;
+                     column += step) {
+                    if (column < 0 || column >= mGridWidth) {
+                        continue;
+                    }
+                    int cell = row * mGridWidth + column;
+                    for (int j = mCellStarts[cell], end = mCellStarts[cell + 1]; j < end; j++) {
+                        int point = mSortedPoints[j];
+                        float dx = mPixels[point * 2] - pixelX;
+                        float dy = mPixels[point * 2 + 1] - pixelY;
+                        float squaredDistance = dx * dx + dy * dy;
+                        if (squaredDistance > maxSquaredDistance
+                                || (found == k && squaredDistance >= distances[k - 1])) {
+                            continue;
+                        }
+                        // Insert the point in the sorted nearest points.
+                        int position = found < k ? found++ : k - 1;
+                        while (position > 0 && distances[position - 1] > squaredDistance) {
+                            distances[position] = distances[position - 1];
+                            result[position] = result[position - 1];
+                            position--;
+                        }
+                        distances[position] = squaredDistance;
+                        result[position] = point;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the points projecting within a distance of a pixel, in no particular order.
+     *
+     * @param result Output indices of the points. Only as many points as it can hold are returned.
+     * @return The number of points returned.
+     */
+    public int findInRadius(float pixelX, float pixelY, float radius, int[] result) {
+        float squaredRadius = radius * radius;
+        int firstColumn = Math.max(0, (int) Math.floor((pixelX - radius) / mCellSize));
+        int lastColumn = Math.min(mGridWidth - 1, (int) Math.floor((pixelX + radius) / mCellSize));
+        int firstRow = Math.max(0, (int) Math.floor((pixelY - radius) / mCellSize));
+        int lastRow = Math.min(mGridHeight - 1, (int) Math.floor((pixelY + radius) / mCellSize));
+        int found = 0;
+        if (firstColumn > lastColumn) {
+            return found;
+        }
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int j = mCellStarts[row * mGridWidth + firstColumn],
+                 end = mCellStarts[row * mGridWidth + lastColumn + 1]; j < end; j++) {
+                int point = mSortedPoints[j];
+                float dx = mPixels[point * 2] - pixelX;
+                float dy = mPixels[point * 2 + 1] - pixelY;
+                if (dx * dx + dy * dy <= squaredRadius) {
+                    if (found == result.length) {
+                        return found;
+                    }
+                    result[found++] = point;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the point nearest to a pixel of the same camera at another pose, for instance the
+     * color camera at the time of a touch while the index is built at the time of the cloud.
+     * <p/>
+     * The ray through the pixel is first mapped ignoring the translation between the poses, which
+     * gives a first nearest point, then the point of the ray at the distance of that point is
+     * projected to find the final nearest point. Both steps are nearest point queries.
+     *
+     * @param indexTQuery Transform from the camera frame of the query to the one of the index.
+     * @return The index of the point, or -1 if there is no point closer than the maximum distance.
+     */
+    public int findNearest(float pixelX, float pixelY, float[] indexTQuery, float maxDistance) {
+        float rayX = (pixelX - mCx) / mFx;
+        float rayY = (pixelY - mCy) / mFy;
+        float[] m = indexTQuery;
+        float directionX = m[0] * rayX + m[4] * rayY + m[8];
+        float directionY = m[1] * rayX + m[5] * rayY + m[9];
+        float directionZ = m[2] * rayX + m[6] * rayY + m[10];
+        if (directionZ <= 0) {
+            return -1;
+        }
+        int nearest = findNearest(mFx * directionX / directionZ + mCx,
+                mFy * directionY / directionZ + mCy, maxDistance);
+        if (nearest < 0) {
+            return -1;
+        }
+
+        // Move along the ray to the closest approach of the point found, in the index frame.
+        float[] c = mCameraTDepth;
+        float x = mPoints[nearest * 3];
+        float y = mPoints[nearest * 3 + 1];
+        float z = mPoints[nearest * 3 + 2];
+        float toPointX = c[0] * x + c[4] * y + c[8] * z + c[12] - m[12];
+        float toPointY = c[1] * x + c[5] * y + c[9] * z + c[13] - m[13];
+        float toPointZ = c[2] * x + c[6] * y + c[10] * z + c[14] - m[14];
+        float distance = (toPointX * directionX + toPointY * directionY
+                + toPointZ * directionZ) / (directionX * directionX + directionY * directionY
+                + directionZ * directionZ);
+        float pointZ = m[14] + distance * directionZ;
+        if (pointZ <= 0) {
+            return nearest;
+        }
+        return findNearest(mFx * (m[12] + distance * directionX) / pointZ + mCx,
+                mFy * (m[13] + distance * directionY) / pointZ + mCy, maxDistance);
+    }
+
+    /**
+     * X coordinate of a point in depth camera frame.
+     */
+    public float getX(int point) {
+        return mPoints[point * 3];
+    }
+
+    /**
+     * Y coordinate of a point in depth camera frame.
+     */
+    public float getY(int point) {
+        return mPoints[point * 3 + 1];
+    }
+
+    /**
+     * Z coordinate of a point in depth camera frame.
+     */
+    public float getZ(int point) {
+        return mPoints[point * 3 + 2];
+    }
+
+    /**
+     * Horizontal pixel coordinate of the projection of a point.
+     */
+    public float getPixelX(int point) {
+        return mPixels[point * 2];
+    }
+
+    /**
+     * Vertical pixel coordinate of the projection of a point.
+     */
+    public float getPixelY(int point) {
+        return mPixels[point * 2 + 1];
+    }
+}
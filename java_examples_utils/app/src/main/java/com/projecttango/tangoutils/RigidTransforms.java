@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+/**
+ * Allocation free kernels on column major 4x4 float matrices stored at an offset of a float array,
+ * like the ones used by {@code android.opengl.Matrix}, so that many transforms can be packed in a
+ * single array.
+ * <p/>
+ * The inverse and the plane intersection assume rigid transforms, a rotation and a translation
+ * only, which is the case of all the poses provided by the Tango service. Unlike
+ * {@code android.opengl.Matrix}, the results can be written over some of the operands, as noted
+ * on each method, and everything runs on a plain JVM.
+ */
+public final class RigidTransforms {
+    public static final int MATRIX_SIZE = 16;
+
+    private RigidTransforms() {
+    }
+
+    /**
+     * Set a matrix to identity.
+     */
+    public static void setIdentity(float[] m, int offset) {
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            m[offset + i] = i % 5 == 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Set a rigid transform from a translation and a rotation quaternion stored x, y, z, w, like
+     * the ones of {@code TangoPoseData}.
+     */
+    public static void setFromTranslationRotation(float[] m, int offset, double[] translation,
+                                                  double[] rotation) {
+        double x = rotation[0];
+        double y = rotation[1];
+        double z = rotation[2];
+        double w = rotation[3];
+        m[offset] = (float) (1 - 2 * (y * y + z * z));
+        m[offset + 1] = (float) (2 * (x * y + z * w));
+        m[offset + 2] = (float) (2 * (x * z - y * w));
+        m[offset + 3] = 0;
+        m[offset + 4] = (float) (2 * (x * y - z * w));
+        m[offset + 5] = (float) (1 - 2 * (x * x + z * z));
+        m[offset + 6] = (float) (2 * (y * z + x * w));
+        m[offset + 7] = 0;
+        m[offset + 8] = (float) (2 * (x * z + y * w));
+        m[offset + 9] = (float) (2 * (y * z - x * w));
+        m[offset + 10] = (float) (1 - 2 * (x * x + y * y));
+        m[offset + 11] = 0;
+        m[offset + 12] = (float) translation[0];
+        m[offset + 13] = (float) translation[1];
+        m[offset + 14] = (float) translation[2];
+        m[offset + 15] = 1;
+    }
+
+    /**
+     * Set a rigid transform from a position, the direction of its Z axis and an up vector, the
+     * X axis being perpendicular to both and the Y axis as close as possible to the up vector. The
+     * resulting frame is Z forward, X left, Y up. The directions don't need to be normalized.
+     */
+    public static void setFromPointNormalUp(float[] m, int offset, float pointX, float pointY,
+                                            float pointZ, float normalX, float normalY,
+                                            float normalZ, float upX, float upY, float upZ) {
+        double norm = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+        float zX = (float) (normalX / norm);
+        float zY = (float) (normalY / norm);
+        float zZ = (float) (normalZ / norm);
+        // X axis, cross product of the Z axis and the up vector following the right hand rule.
+        float xX = zY * upZ - upY * zZ;
+        float xY = zZ * upX - upZ * zX;
+        float xZ = zX * upY - upX * zY;
+        norm = Math.sqrt(xX * xX + xY * xY + xZ * xZ);
+        xX /= norm;
+        xY /= norm;
+        xZ /= norm;
+        // Y axis, cross product of the Z and X axes.
+        float yX = zY * xZ - xY * zZ;
+        float yY = zZ * xX - xZ * zX;
+        float yZ = zX * xY - xX * zY;
+        norm = Math.sqrt(yX * yX + yY * yY + yZ * yZ);
+        yX /= norm;
+        yY /= norm;
+        yZ /= norm;
+
+        setIdentity(m, offset);
+        m[offset] = xX;
+        m[offset + 1] = xY;
+        m[offset + 2] = xZ;
+        m[offset + 4] = yX;
+        m[offset + 5] = yY;
+        m[offset + 6] = yZ;
+        m[offset + 8] = zX;
+        m[offset + 9] = zY;
+        m[offset + 10] = zZ;
+        m[offset + 12] = pointX;
+        m[offset + 13] = pointY;
+        m[offset + 14] = pointZ;
+    }
+
+    /**
+     * Compute {@code result = lhs * rhs}. The result can be written over rhs, with the same offset,
+     * but not over lhs.
+     */
+    public static void multiply(float[] result, int resultOffset, float[] lhs, int lhsOffset,
+                                float[] rhs, int rhsOffset) {
+        float l00 = lhs[lhsOffset];
+        float l10 = lhs[lhsOffset + 1];
+        float l20 = lhs[lhsOffset + 2];
+        float l30 = lhs[lhsOffset + 3];
+        float l01 = lhs[lhsOffset + 4];
+        float l11 = lhs[lhsOffset + 5];
+        float l21 = lhs[lhsOffset + 6];
+        float l31 = lhs[lhsOffset + 7];
+        float l02 = lhs[lhsOffset + 8];
+        float l12 = lhs[lhsOffset + 9];
+        float l22 = lhs[lhsOffset + 10];
+        float l32 = lhs[lhsOffset + 11];
+        float l03 = lhs[lhsOffset + 12];
+        float l13 = lhs[lhsOffset + 13];
+        float l23 = lhs[lhsOffset + 14];
+        float l33 = lhs[lhsOffset + 15];
+        for (int column = 0; column < MATRIX_SIZE; column += 4) {
+            float r0 = rhs[rhsOffset + column];
+            float r1 = rhs[rhsOffset + column + 1];
+            float r2 = rhs[rhsOffset + column + 2];
+            float r3 = rhs[rhsOffset + column + 3];
+            result[resultOffset + column] = l00 * r0 + l01 * r1 + l02 * r2 + l03 * r3;
+            result[resultOffset + column + 1] = l10 * r0 + l11 * r1 + l12 * r2 + l13 * r3;
+            result[resultOffset + column + 2] = l20 * r0 + l21 * r1 + l22 * r2 + l23 * r3;
+            result[resultOffset + column + 3] = l30 * r0 + l31 * r1 + l32 * r2 + l33 * r3;
+        }
+    }
+
+    /**
+     * Invert a rigid transform: the rotation is transposed and the translation rotated back and
+     * negated. The result can be written over the input.
+     */
+    public static void invertRigid(float[] result, int resultOffset, float[] m, int offset) {
+        float r00 = m[offset];
+        float r10 = m[offset + 1];
+        float r20 = m[offset + 2];
+        float r01 = m[offset + 4];
+        float r11 = m[offset + 5];
+        float r21 = m[offset + 6];
+        float r02 = m[offset + 8];
+        float r12 = m[offset + 9];
+        float r22 = m[offset + 10];
+        float tx = m[offset + 12];
+        float ty = m[offset + 13];
+        float tz = m[offset + 14];
+
+        result[resultOffset] = r00;
+        result[resultOffset + 1] = r01;
+        result[resultOffset + 2] = r02;
+        result[resultOffset + 3] = 0;
+        result[resultOffset + 4] = r10;
+        result[resultOffset + 5] = r11;
+        result[resultOffset + 6] = r12;
+        result[resultOffset + 7] = 0;
+        result[resultOffset + 8] = r20;
+        result[resultOffset + 9] = r21;
+        result[resultOffset + 10] = r22;
+        result[resultOffset + 11] = 0;
+        result[resultOffset + 12] = -(r00 * tx + r10 * ty + r20 * tz);
+        result[resultOffset + 13] = -(r01 * tx + r11 * ty + r21 * tz);
+        result[resultOffset + 14] = -(r02 * tx + r12 * ty + r22 * tz);
+        result[resultOffset + 15] = 1;
+    }
+
+    /**
+     * Intersect two vertical planes, each given by a rigid transform with the plane normal along
+     * its Z axis and its X axis horizontal. The intersection is the point of the X axis of the
+     * first plane which lies on the second plane.
+     *
+     * @param result Output x, y and z coordinates of the intersection, in the frame in which the
+     *               plane transforms are expressed.
+     */
+    public static void intersectPlanes(float[] result, int resultOffset, float[] first,
+                                       int firstOffset, float[] second, int secondOffset) {
+        // Translation and X axis of the second plane in the frame of the first one, only along the
+        // X and Z axes of the first plane, which is all the intersection depends on.
+        float dx = second[secondOffset + 12] - first[firstOffset + 12];
+        float dy = second[secondOffset + 13] - first[firstOffset + 13];
+        float dz = second[secondOffset + 14] - first[firstOffset + 14];
+        float px = first[firstOffset] * dx + first[firstOffset + 1] * dy
+                + first[firstOffset + 2] * dz;
+        float pz = first[firstOffset + 8] * dx + first[firstOffset + 9] * dy
+                + first[firstOffset + 10] * dz;
+        float xx = first[firstOffset] * second[secondOffset]
+                + first[firstOffset + 1] * second[secondOffset + 1]
+                + first[firstOffset + 2] * second[secondOffset + 2];
+        float xz = first[firstOffset + 8] * second[secondOffset]
+                + first[firstOffset + 9] * second[secondOffset + 1]
+                + first[firstOffset + 10] * second[secondOffset + 2];
+
+        // Move from the second plane origin along its X axis to the X axis of the first plane.
+        float x = px - xx / xz * pz;
+        result[resultOffset] = first[firstOffset + 12] + first[firstOffset] * x;
+        result[resultOffset + 1] = first[firstOffset + 13] + first[firstOffset + 1] * x;
+        result[resultOffset + 2] = first[firstOffset + 14] + first[firstOffset + 2] * x;
+    }
+}
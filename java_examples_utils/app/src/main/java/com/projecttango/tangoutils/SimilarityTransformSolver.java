@@ -0,0 +1,539 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import java.util.Random;
+
+/**
+ * Similarity transform between two sets of corresponding points in pure Java, as an alternative
+ * to {@code TangoSupport.findCorrespondenceSimilarityTransform} that accepts any number of
+ * correspondences and tolerates wrong ones.
+ * <p/>
+ * {@link #solve} finds the rotation, scale and translation mapping the source points on the
+ * destination points with the least squared error, in closed form: the rotation is the unit
+ * quaternion maximizing Horn's 4x4 symmetric matrix built from the cross covariance of the
+ * points, found with Jacobi eigenvalue iterations, and the scale is Umeyama's, from the
+ * corresponding eigenvalue and the variance of the source points.
+ * <p/>
+ * {@link #solveRansac} solves triples of correspondences, all of them when there are few or
+ * random ones otherwise, keeps the transform with the lowest MSAC cost and refines it on its
+ * inliers, so that a few wrong correspondences are ignored instead of pulling the result away.
+ * <p/>
+ * The points are packed x, y, z floats. Solving doesn't allocate, except to grow the scratch
+ * buffers with the number of points. This class is not thread safe.
+ */
+public class SimilarityTransformSolver {
+    /**
+     * Probability of drawing at least one sample made only of inliers before stopping.
+     */
+    private static final double SUCCESS_PROBABILITY = 0.99;
+    private static final int MAX_JACOBI_SWEEPS = 16;
+    private static final double MIN_VARIANCE = 1e-12;
+    // Minimum squared sine of the angle of a sampled triangle, to skip degenerate samples.
+    private static final double MIN_SQUARED_SINE = 1e-6;
+
+    private final float mInlierThreshold;
+    private final int mMaxIterations;
+    private final Random mRandom;
+
+    // The transform: destination = scale * rotation * source + translation. The rotation is
+    // row-major.
+    private final double[] mRotation = new double[9];
+    private double mScale = 1;
+    private final double[] mTranslation = new double[3];
+    private int mNumberOfInliers;
+    private float mRmsError;
+
+    // Scratch storage.
+    private final double[] mHornMatrix = new double[16];
+    private final double[] mEigenvectors = new double[16];
+    private final double[] mBestRotation = new double[9];
+    private final double[] mBestTranslation = new double[3];
+    private final int[] mSample = new int[3];
+    private int[] mInlierIndices = new int[0];
+    private boolean[] mIsInlier = new boolean[0];
+
+    /**
+     * @param inlierThreshold Maximum distance between a transformed source point and its
+     *                        destination point for the correspondence to be an inlier, in the
+     *                        units of the destination points.
+     * @param maxIterations   Maximum number of samples solved by {@link #solveRansac}.
+     * @param seed            Seed of the random generator.
+     */
+    public SimilarityTransformSolver(float inlierThreshold, int maxIterations, long seed) {
+        mInlierThreshold = inlierThreshold;
+        mMaxIterations = maxIterations;
+        mRandom = new Random(seed);
+        setIdentity();
+    }
+
+    /**
+     * Find the similarity transform fitting all the correspondences with least squares.
+     *
+     * @param source         Packed x, y, z coordinates of the source points.
+     * @param destination    Packed x, y, z coordinates of the destination points.
+     * @param numberOfPoints Number of correspondences to use from the start of the arrays.
+     * @return True if a transform was found, false if there are less than three
+     * correspondences or the source points are degenerate.
+     */
+    public boolean solve(float[] source, float[] destination, int numberOfPoints) {
+        reset(numberOfPoints);
+        for (int i = 0; i < numberOfPoints; i++) {
+            mInlierIndices[i] = i;
+        }
+        if (!solve(source, destination, mInlierIndices, numberOfPoints)) {
+            setIdentity();
+            return false;
+        }
+        countInliers(source, destination, numberOfPoints, 0);
+        return true;
+    }
+
+    /**
+     * Find the similarity transform of triples of correspondences with the lowest MSAC cost, and
+     * refine it with least squares on its inliers.
+     *
+     * @see #solve
+     */
+    public boolean solveRansac(float[] source, float[] destination, int numberOfPoints) {
+        reset(numberOfPoints);
+        if (numberOfPoints < 3) {
+            setIdentity();
+            return false;
+        }
+
+        float squaredThreshold = mInlierThreshold * mInlierThreshold;
+        double bestCost = Double.MAX_VALUE;
+        double bestScale = 0;
+        int bestInliers = 0;
+        // Few correspondences are sampled exhaustively, which is also deterministic.
+        long numberOfTriples = (long) numberOfPoints * (numberOfPoints - 1)
+                * (numberOfPoints - 2) / 6;
+        boolean isExhaustive = numberOfTriples <= mMaxIterations;
+        int iterations = isExhaustive ? (int) numberOfTriples : mMaxIterations;
+        int[] sample = mSample;
+        sample[0] = 0;
+        sample[1] = 1;
+        sample[2] = 1;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            if (isExhaustive) {
+                nextTriple(sample, numberOfPoints);
+            } else {
+                sample[0] = mRandom.nextInt(numberOfPoints);
+                sample[1] = mRandom.nextInt(numberOfPoints);
+                sample[2] = mRandom.nextInt(numberOfPoints);
+                if (sample[0] == sample[1] || sample[0] == sample[2]
+                        || sample[1] == sample[2]) {
+                    continue;
+                }
+            }
+            if (isDegenerate(source, sample) || !solve(source, destination, sample, 3)) {
+                continue;
+            }
+
+            // Score the transform, giving up as soon as it costs more than the best one.
+            double cost = 0;
+            int inliers = 0;
+            int i = 0;
+            for (; i < numberOfPoints && cost < bestCost; i++) {
+                double squaredError = getSquaredError(source, destination, i);
+                if (squaredError <= squaredThreshold) {
+                    cost += squaredError;
+                    inliers++;
+                } else {
+                    cost += squaredThreshold;
+                }
+            }
+            if (i == numberOfPoints && cost < bestCost) {
+                bestCost = cost;
+                bestInliers = inliers;
+                bestScale = mScale;
+                System.arraycopy(mRotation, 0, mBestRotation, 0, 9);
+                System.arraycopy(mTranslation, 0, mBestTranslation, 0, 3);
+                if (!isExhaustive) {
+                    iterations = Math.min(iterations,
+                            requiredIterations((double) inliers / numberOfPoints));
+                }
+            }
+        }
+        if (bestInliers < 3) {
+            setIdentity();
+            return false;
+        }
+
+        // Refine on the inliers, keeping the refined transform only if it doesn't lose inliers.
+        mScale = bestScale;
+        System.arraycopy(mBestRotation, 0, mRotation, 0, 9);
+        System.arraycopy(mBestTranslation, 0, mTranslation, 0, 3);
+        countInliers(source, destination, numberOfPoints, 0);
+        int count = 0;
+        for (int i = 0; i < numberOfPoints; i++) {
+            if (mIsInlier[i]) {
+                mInlierIndices[count++] = i;
+            }
+        }
+        if (!solve(source, destination, mInlierIndices, count)
+                || !countInliers(source, destination, numberOfPoints, count)) {
+            mScale = bestScale;
+            System.arraycopy(mBestRotation, 0, mRotation, 0, 9);
+            System.arraycopy(mBestTranslation, 0, mTranslation, 0, 3);
+            countInliers(source, destination, numberOfPoints, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Copy the transform as a column-major 4x4 matrix, like the output of
+     * {@code TangoSupport.findCorrespondenceSimilarityTransform}.
+     */
+    public void getTransform(float[] m) {
+        double[] r = mRotation;
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                m[column * 4 + row] = (float) (mScale * r[row * 3 + column]);
+            }
+            m[row + 12] = (float) mTranslation[row];
+        }
+        m[3] = 0;
+        m[7] = 0;
+        m[11] = 0;
+        m[15] = 1;
+    }
+
+    public float getScale() {
+        return (float) mScale;
+    }
+
+    public int getNumberOfInliers() {
+        return mNumberOfInliers;
+    }
+
+    /**
+     * Whether a correspondence of the last solve is an inlier of the transform.
+     */
+    public boolean isInlier(int index) {
+        return mIsInlier[index];
+    }
+
+    /**
+     * Root mean square distance between the transformed source points and their destination
+     * points, for the inliers.
+     */
+    public float getRmsError() {
+        return mRmsError;
+    }
+
+    private void reset(int numberOfPoints) {
+        mNumberOfInliers = 0;
+        mRmsError = 0;
+        if (mInlierIndices.length < numberOfPoints) {
+            mInlierIndices = new int[numberOfPoints];
+            mIsInlier = new boolean[numberOfPoints];
+        }
+        for (int i = 0; i < numberOfPoints; i++) {
+            mIsInlier[i] = false;
+        }
+    }
+
+    private void setIdentity() {
+        for (int i = 0; i < 9; i++) {
+            mRotation[i] = i % 4 == 0 ? 1 : 0;
+        }
+        mScale = 1;
+        mTranslation[0] = 0;
+        mTranslation[1] = 0;
+        mTranslation[2] = 0;
+    }
+
+    /**
+     * Advance to the next triple of indices in lexicographic order, starting from {0, 1, 1}.
+     */
+    private static void nextTriple(int[] sample, int numberOfPoints) {
+        if (++sample[2] < numberOfPoints) {
+            return;
+        }
+        if (++sample[1] < numberOfPoints - 1) {
+            sample[2] = sample[1] + 1;
+            return;
+        }
+        sample[0]++;
+        sample[1] = sample[0] + 1;
+        sample[2] = sample[1] + 1;
+    }
+
+    /**
+     * Whether the source points of a sample are too close to a line to define a rotation.
+     */
+    private static boolean isDegenerate(float[] source, int[] sample) {
+        int a = sample[0] * 3;
+        int b = sample[1] * 3;
+        int c = sample[2] * 3;
+        double abX = source[b] - source[a];
+        double abY = source[b + 1] - source[a + 1];
+        double abZ = source[b + 2] - source[a + 2];
+        double acX = source[c] - source[a];
+        double acY = source[c + 1] - source[a + 1];
+        double acZ = source[c + 2] - source[a + 2];
+        double crossX = abY * acZ - abZ * acY;
+        double crossY = abZ * acX - abX * acZ;
+        double crossZ = abX * acY - abY * acX;
+        double squaredCross = crossX * crossX + crossY * crossY + crossZ * crossZ;
+        double squaredLengths = (abX * abX + abY * abY + abZ * abZ)
+                * (acX * acX + acY * acY + acZ * acZ);
+        return !(squaredCross > MIN_SQUARED_SINE * squaredLengths);
+    }
+
+    /**
+     * Number of samples needed to draw one made only of inliers with {@code SUCCESS_PROBABILITY}.
+     */
+    private int requiredIterations(double inlierRatio) {
+        double allInliersProbability = inlierRatio * inlierRatio * inlierRatio;
+        if (allInliersProbability >= 1) {
+            return 0;
+        }
+        // Unlike for a plane, the points of a sample are not exactly fitted, so a sample with an
+        // outlier can have no inliers at all.
+        if (allInliersProbability <= 0) {
+            return mMaxIterations;
+        }
+        double iterations = Math.log(1 - SUCCESS_PROBABILITY)
+                / Math.log(1 - allInliersProbability);
+        return iterations < mMaxIterations ? (int) Math.ceil(iterations) : mMaxIterations;
+    }
+
+    /**
+     * Solve the transform of some of the correspondences in closed form.
+     *
+     * @return False if the source points are degenerate, in which case the transform is not
+     * changed.
+     */
+    private boolean solve(float[] source, float[] destination, int[] indices, int count) {
+        if (count < 3) {
+            return false;
+        }
+        // Centroids of the points.
+        double sourceX = 0;
+        double sourceY = 0;
+        double sourceZ = 0;
+        double destinationX = 0;
+        double destinationY = 0;
+        double destinationZ = 0;
+        for (int j = 0; j < count; j++) {
+            int i = indices[j] * 3;
+            sourceX += source[i];
+            sourceY += source[i + 1];
+            sourceZ += source[i + 2];
+            destinationX += destination[i];
+            destinationY += destination[i + 1];
+            destinationZ += destination[i + 2];
+        }
+        sourceX /= count;
+        sourceY /= count;
+        sourceZ /= count;
+        destinationX /= count;
+        destinationY /= count;
+        destinationZ /= count;
+
+        // Cross covariance of the centered points and variance of the source points.
+        double xx = 0;
+        double xy = 0;
+        double xz = 0;
+        double yx = 0;
+        double yy = 0;
+        double yz = 0;
+        double zx = 0;
+        double zy = 0;
+        double zz = 0;
+        double variance = 0;
+        for (int j = 0; j < count; j++) {
+            int i = indices[j] * 3;
+            double sX = source[i] - sourceX;
+            double sY = source[i + 1] - sourceY;
+            double sZ = source[i + 2] - sourceZ;
+            double dX = destination[i] - destinationX;
+            double dY = destination[i + 1] - destinationY;
+            double dZ = destination[i + 2] - destinationZ;
+            xx += sX * dX;
+            xy += sX * dY;
+            xz += sX * dZ;
+            yx += sY * dX;
+            yy += sY * dY;
+            yz += sY * dZ;
+            zx += sZ * dX;
+            zy += sZ * dY;
+            zz += sZ * dZ;
+            variance += sX * sX + sY * sY + sZ * sZ;
+        }
+        if (!(variance > MIN_VARIANCE * count)) {
+            return false;
+        }
+
+        // Horn's matrix, whose eigenvector of largest eigenvalue is the rotation quaternion
+        // (w, x, y, z) and the eigenvalue the correlation of the rotated points.
+        double[] n = mHornMatrix;
+        n[0] = xx + yy + zz;
+        n[1] = yz - zy;
+        n[2] = zx - xz;
+        n[3] = xy - yx;
+        n[5] = xx - yy - zz;
+        n[6] = xy + yx;
+        n[7] = zx + xz;
+        n[10] = -xx + yy - zz;
+        n[11] = yz + zy;
+        n[15] = -xx - yy + zz;
+        n[4] = n[1];
+        n[8] = n[2];
+        n[9] = n[6];
+        n[12] = n[3];
+        n[13] = n[7];
+        n[14] = n[11];
+        jacobiEigen(n, mEigenvectors);
+        int largest = 0;
+        for (int k = 1; k < 4; k++) {
+            if (n[k * 5] > n[largest * 5]) {
+                largest = k;
+            }
+        }
+        double scale = n[largest * 5] / variance;
+        if (!(scale > 0)) {
+            return false;
+        }
+        double[] v = mEigenvectors;
+        double qw = v[largest];
+        double qx = v[4 + largest];
+        double qy = v[8 + largest];
+        double qz = v[12 + largest];
+
+        double[] r = mRotation;
+        r[0] = qw * qw + qx * qx - qy * qy - qz * qz;
+        r[1] = 2 * (qx * qy - qw * qz);
+        r[2] = 2 * (qx * qz + qw * qy);
+        r[3] = 2 * (qx * qy + qw * qz);
+        r[4] = qw * qw - qx * qx + qy * qy - qz * qz;
+        r[5] = 2 * (qy * qz - qw * qx);
+        r[6] = 2 * (qx * qz - qw * qy);
+        r[7] = 2 * (qy * qz + qw * qx);
+        r[8] = qw * qw - qx * qx - qy * qy + qz * qz;
+        mScale = scale;
+        mTranslation[0] = destinationX - scale * (r[0] * sourceX + r[1] * sourceY
+                + r[2] * sourceZ);
+        mTranslation[1] = destinationY - scale * (r[3] * sourceX + r[4] * sourceY
+                + r[5] * sourceZ);
+        mTranslation[2] = destinationZ - scale * (r[6] * sourceX + r[7] * sourceY
+                + r[8] * sourceZ);
+        return true;
+    }
+
+    /**
+     * Diagonalize a symmetric row-major 4x4 matrix in place with cyclic Jacobi rotations. The
+     * eigenvalues are left on the diagonal and the eigenvectors are the columns of the output.
+     */
+    private static void jacobiEigen(double[] a, double[] vectors) {
+        for (int i = 0; i < 16; i++) {
+            vectors[i] = i % 5 == 0 ? 1 : 0;
+        }
+        for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++) {
+            double offDiagonal = 0;
+            double diagonal = 0;
+            for (int p = 0; p < 4; p++) {
+                diagonal += a[p * 5] * a[p * 5];
+                for (int q = p + 1; q < 4; q++) {
+                    offDiagonal += a[p * 4 + q] * a[p * 4 + q];
+                }
+            }
+            if (offDiagonal <= 1e-24 * diagonal) {
+                return;
+            }
+            for (int p = 0; p < 3; p++) {
+                for (int q = p + 1; q < 4; q++) {
+                    double apq = a[p * 4 + q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    // Rotation angle zeroing a[p][q].
+                    double theta = (a[q * 5] - a[p * 5]) / (2 * apq);
+                    double t = Math.signum(theta) / (Math.abs(theta)
+                            + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < 4; k++) {
+                        double akp = a[k * 4 + p];
+                        double akq = a[k * 4 + q];
+                        a[k * 4 + p] = c * akp - s * akq;
+                        a[k * 4 + q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 4; k++) {
+                        double apk = a[p * 4 + k];
+                        double aqk = a[q * 4 + k];
+                        a[p * 4 + k] = c * apk - s * aqk;
+                        a[q * 4 + k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 4; k++) {
+                        double vkp = vectors[k * 4 + p];
+                        double vkq = vectors[k * 4 + q];
+                        vectors[k * 4 + p] = c * vkp - s * vkq;
+                        vectors[k * 4 + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+    }
+
+    private double getSquaredError(float[] source, float[] destination, int index) {
+        int i = index * 3;
+        double[] r = mRotation;
+        double x = source[i];
+        double y = source[i + 1];
+        double z = source[i + 2];
+        double errorX = mScale * (r[0] * x + r[1] * y + r[2] * z) + mTranslation[0]
+                - destination[i];
+        double errorY = mScale * (r[3] * x + r[4] * y + r[5] * z) + mTranslation[1]
+                - destination[i + 1];
+        double errorZ = mScale * (r[6] * x + r[7] * y + r[8] * z) + mTranslation[2]
+                - destination[i + 2];
+        return errorX * errorX + errorY * errorY + errorZ * errorZ;
+    }
+
+    /**
+     * Mark the inliers of the current transform and compute their error, keeping them only if
+     * there are at least a given number of inliers.
+     */
+    private boolean countInliers(float[] source, float[] destination, int numberOfPoints,
+                                 int minInliers) {
+        float squaredThreshold = mInlierThreshold * mInlierThreshold;
+        int inliers = 0;
+        double squaredError = 0;
+        for (int i = 0; i < numberOfPoints; i++) {
+            double error = getSquaredError(source, destination, i);
+            if (error <= squaredThreshold) {
+                squaredError += error;
+                inliers++;
+            }
+        }
+        if (inliers < minInliers) {
+            return false;
+        }
+        for (int i = 0; i < numberOfPoints; i++) {
+            mIsInlier[i] = getSquaredError(source, destination, i) <= squaredThreshold;
+        }
+        mNumberOfInliers = inliers;
+        mRmsError = inliers == 0 ? 0 : (float) Math.sqrt(squaredError / inliers);
+        return true;
+    }
+}
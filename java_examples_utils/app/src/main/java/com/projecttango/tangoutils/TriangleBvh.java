@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+/**
+ * Static bounding volume hierarchy over the triangles of a {@link TriangleMesh}, to pick the
+ * vertex under a ray without testing every triangle, as {@link TriangleMesh#pickVertex} does.
+ * <p/>
+ * The tree is built once, which takes a while on large meshes, so it should be built in a
+ * background thread like the mesh is loaded. As in {@link KdTree}, the triangles are ordered in
+ * an array so that each node covers a range of it: the median triangle by center along the axis
+ * where the centers of a range are the most spread splits it in two. Nodes are stored depth first
+ * with their bounding boxes, the left child right after its parent. Queries don't allocate. This
+ * class is not thread safe.
+ */
+public class TriangleBvh {
+    private static final int MAX_LEAF_SIZE = 8;
+    // Relative padding of the boxes of the leaves.
+    private static final float BOUNDS_PADDING = 1e-5f;
+    // Deep enough for a tree of balanced halves of any int number of triangles.
+    private static final int MAX_DEPTH = 64;
+
+    private final TriangleMesh mMesh;
+    private final int[] mTriangles;
+    // Packed min x, y, z and max x, y, z of the triangles of each node.
+    private final float[] mBounds;
+    // Range of triangles of each node, and its right child, or 0 for leaves.
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final int[] mRightChildren;
+    private int mNumberOfNodes;
+    // Only used while building.
+    private float[] mCenters;
+
+    private final int[] mStack = new int[MAX_DEPTH];
+    private final float[] mVertices = new float[9];
+
+    public TriangleBvh(TriangleMesh mesh) {
+        mMesh = mesh;
+        int numberOfTriangles = mesh.getNumberOfTriangles();
+        mTriangles = new int[numberOfTriangles];
+        mCenters = new float[numberOfTriangles * 3];
+        for (int t = 0; t < numberOfTriangles; t++) {
+            mTriangles[t] = t;
+            mesh.getTriangle(t, mVertices);
+            for (int i = 0; i < 3; i++) {
+                mCenters[t * 3 + i] = (mVertices[i] + mVertices[3 + i] + mVertices[6 + i]) / 3;
+            }
+        }
+        int numberOfNodes = countNodes(numberOfTriangles);
+        mBounds = new float[numberOfNodes * 6];
+        mStarts = new int[numberOfNodes];
+        mEnds = new int[numberOfNodes];
+        mRightChildren = new int[numberOfNodes];
+        if (numberOfTriangles > 0) {
+            build(0, numberOfTriangles);
+        }
+        mCenters = null;
+    }
+
+    public TriangleMesh getMesh() {
+        return mMesh;
+    }
+
+    /**
+     * Pick the vertex under a ray, the same one as {@link TriangleMesh#pickVertex}.
+     *
+     * @param origin    Origin of the ray in model frame.
+     * @param direction Direction of the ray in model frame, not necessarily normalized.
+     * @return The index of the vertex, or -1 if the ray doesn't hit the mesh.
+     */
+    public int pickVertex(float[] origin, float[] direction) {
+        if (mNumberOfNodes == 0) {
+            return -1;
+        }
+        float inverseX = 1 / direction[0];
+        float inverseY = 1 / direction[1];
+        float inverseZ = 1 / direction[2];
+        float closestHit = Float.MAX_VALUE;
+        int closestTriangle = -1;
+        int stackSize = 0;
+        mStack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = mStack[--stackSize];
+            if (!intersectBounds(node, origin, inverseX, inverseY, inverseZ, closestHit)) {
+                continue;
+            }
+            int right = mRightChildren[node];
+            if (right != 0) {
+                mStack[stackSize++] = right;
+                mStack[stackSize++] = node + 1;
+                continue;
+            }
+            for (int i = mStarts[node]; i < mEnds[node]; i++) {
+                int triangle = mTriangles[i];
+                float distance = mMesh.intersectTriangle(triangle, origin, direction, mVertices);
+                // Ties go to the first triangle of the mesh, as with the exhaustive search.
+                if (distance < closestHit
+                        || (distance == closestHit && triangle < closestTriangle)) {
+                    closestHit = distance;
+                    closestTriangle = triangle;
+                }
+            }
+        }
+        if (closestTriangle < 0) {
+            return -1;
+        }
+        return mMesh.getClosestVertex(closestTriangle, origin, direction, closestHit, mVertices);
+    }
+
+    /**
+     * Number of nodes of the tree of a range of triangles.
+     */
+    private static int countNodes(int numberOfTriangles) {
+        if (numberOfTriangles <= MAX_LEAF_SIZE) {
+            return numberOfTriangles > 0 ? 1 : 0;
+        }
+        int half = numberOfTriangles >>> 1;
+        return 1 + countNodes(half) + countNodes(numberOfTriangles - half);
+    }
+
+    private void build(int start, int end) {
+        int node = mNumberOfNodes++;
+        mStarts[node] = start;
+        mEnds[node] = end;
+        if (end - start <= MAX_LEAF_SIZE) {
+            float[] bounds = mBounds;
+            int offset = node * 6;
+            for (int i = 0; i < 3; i++) {
+                bounds[offset + i] = Float.MAX_VALUE;
+                bounds[offset + 3 + i] = -Float.MAX_VALUE;
+            }
+            for (int i = start; i < end; i++) {
+                mMesh.getTriangle(mTriangles[i], mVertices);
+                for (int vertex = 0; vertex < 9; vertex += 3) {
+                    for (int axis = 0; axis < 3; axis++) {
+                        float value = mVertices[vertex + axis];
+                        bounds[offset + axis] = Math.min(bounds[offset + axis], value);
+                        bounds[offset + 3 + axis] = Math.max(bounds[offset + 3 + axis], value);
+                    }
+                }
+            }
+            // Pad the box so that rounding in the ray test doesn't miss hits on its faces, for
+            // example on flat parts of the mesh where it has no thickness.
+            for (int i = 0; i < 3; i++) {
+                float pad = BOUNDS_PADDING * Math.max(Math.max(Math.abs(bounds[offset + i]),
+                        Math.abs(bounds[offset + 3 + i])), 1);
+                bounds[offset + i] -= pad;
+                bounds[offset + 3 + i] += pad;
+            }
+            return;
+        }
+
+        // Split along the axis where the centers are the most spread.
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            int center = mTriangles[i] * 3;
+            minX = Math.min(minX, mCenters[center]);
+            maxX = Math.max(maxX, mCenters[center]);
+            minY = Math.min(minY, mCenters[center + 1]);
+            maxY = Math.max(maxY, mCenters[center + 1]);
+            minZ = Math.min(minZ, mCenters[center + 2]);
+            maxZ = Math.max(maxZ, mCenters[center + 2]);
+        }
+        int axis = 0;
+        if (maxY - minY > maxX - minX) {
+            axis = 1;
+        }
+        if (maxZ - minZ > Math.max(maxX - minX, maxY - minY)) {
+            axis = 2;
+        }
+        // Same halves as counted by countNodes.
+        int middle = start + ((end - start) >>> 1);
+        select(start, end, middle, axis);
+        build(start, middle);
+        int right = mNumberOfNodes;
+        build(middle, end);
+        mRightChildren[node] = right;
+        // The box of the node is the union of the ones of its children.
+        int offset = node * 6;
+        int leftOffset = (node + 1) * 6;
+        int rightOffset = right * 6;
+        for (int i = 0; i < 3; i++) {
+            mBounds[offset + i] = Math.min(mBounds[leftOffset + i], mBounds[rightOffset + i]);
+            mBounds[offset + 3 + i] =
+                    Math.max(mBounds[leftOffset + 3 + i], mBounds[rightOffset + 3 + i]);
+        }
+    }
+
+    /**
+     * Partially sort a range of triangles so that the triangle at a position is the one that
+     * would be there if the range was sorted by center along an axis, with smaller centers before
+     * it and larger ones after it.
+     */
+    private void select(int start, int end, int position, int axis) {
+        int low = start;
+        int high = end - 1;
+        while (low < high) {
+            float pivot = mCenters[mTriangles[(low + high) >>> 1] * 3 + axis];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (mCenters[mTriangles[i] * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (mCenters[mTriangles[j] * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = mTriangles[i];
+                    mTriangles[i] = mTriangles[j];
+                    mTriangles[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (position <= j) {
+                high = j;
+            } else if (position >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether a ray enters the box of a node before a distance along it, with the slab method.
+     * Comparisons with the NaN of a ray parallel to a face of the box are false, so those slabs
+     * don't clip the ray.
+     */
+    private boolean intersectBounds(int node, float[] origin, float inverseX, float inverseY,
+                                    float inverseZ, float maxDistance) {
+        int offset = node * 6;
+        float near = 0;
+        float far = maxDistance;
+        float t1 = (mBounds[offset] - origin[0]) * inverseX;
+        float t2 = (mBounds[offset + 3] - origin[0]) * inverseX;
+        if (t1 > t2) {
+            float swap = t1;
+            t1 = t2;
+            t2 = swap;
+        }
+        if (t1 > near) {
+            near = t1;
+        }
+        if (t2 < far) {
+            far = t2;
+        }
+        t1 = (mBounds[offset + 1] - origin[1]) * inverseY;
+        t2 = (mBounds[offset + 4] - origin[1]) * inverseY;
+        if (t1 > t2) {
+            float swap = t1;
+            t1 = t2;
+            t2 = swap;
+        }
+        if (t1 > near) {
+            near = t1;
+        }
+        if (t2 < far) {
+            far = t2;
+        }
+        t1 = (mBounds[offset + 2] - origin[2]) * inverseZ;
+        t2 = (mBounds[offset + 5] - origin[2]) * inverseZ;
+        if (t1 > t2) {
+            float swap = t1;
+            t1 = t2;
+            t2 = swap;
+        }
+        if (t1 > near) {
+            near = t1;
+        }
+        if (t2 < far) {
+            far = t2;
+        }
+        return near <= far;
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Indexed triangle mesh with vertex positions, vertex normals and 32 bit triangle indices, held
+ * in direct buffers ready to be uploaded to OpenGL.
+ * <p/>
+ * Meshes are loaded from Wavefront OBJ, PLY or binary STL files. Parsing a large model takes a
+ * while, so {@link #load} keeps a binary copy of the parsed buffers in a cache directory, keyed by
+ * the length and modification time of the source file, and later loads only memory map it.
+ * <p/>
+ * The cache and the buffers use little endian order, which is the native order of the Android
+ * devices. The mesh is not modified after it is loaded, so it can be read from any thread.
+ */
+public class TriangleMesh {
+    private static final String TAG = TriangleMesh.class.getSimpleName();
+
+    public static final int MAGIC = 0x544d5348;
+    public static final int VERSION = 1;
+    // Magic, version, source length and modification time, vertex and triangle counts.
+    public static final int FILE_HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+    private static final String CACHE_SUFFIX = ".mesh";
+    private static final int STL_HEADER_SIZE = 84;
+    private static final int STL_TRIANGLE_SIZE = 50;
+
+    private final int mNumberOfVertices;
+    private final int mNumberOfTriangles;
+    // Byte views of the buffers below, as stored in the cache.
+    private final ByteBuffer mPositionBytes;
+    private final ByteBuffer mNormalBytes;
+    private final ByteBuffer mIndexBytes;
+    private final FloatBuffer mPositions;
+    private final FloatBuffer mNormals;
+    private final IntBuffer mIndices;
+
+    private TriangleMesh(int numberOfVertices, int numberOfTriangles, ByteBuffer positions,
+                         ByteBuffer normals, ByteBuffer indices) {
+        mNumberOfVertices = numberOfVertices;
+        mNumberOfTriangles = numberOfTriangles;
+        mPositionBytes = slice(positions, 0, numberOfVertices * 12);
+        mNormalBytes = slice(normals, 0, numberOfVertices * 12);
+        mIndexBytes = slice(indices, 0, numberOfTriangles * 12);
+        mPositions = mPositionBytes.asFloatBuffer();
+        mNormals = mNormalBytes.asFloatBuffer();
+        mIndices = mIndexBytes.asIntBuffer();
+    }
+
+    /**
+     * Load a mesh in OBJ or PLY format, chosen from the file extension.
+     *
+     * @param cacheDirectory Directory where the parsed mesh is cached, or null to always parse the
+     *                       file.
+     */
+    public static TriangleMesh load(File file, File cacheDirectory) throws IOException {
+        File cacheFile = null;
+        if (cacheDirectory != null) {
+            // Models with the same name in different directories get different cache files.
+            cacheFile = new File(cacheDirectory, file.getName() + "-"
+                    + Integer.toHexString(file.getAbsolutePath().hashCode()) + CACHE_SUFFIX);
+            TriangleMesh mesh = readCache(cacheFile, file);
+            if (mesh != null) {
+                return mesh;
+            }
+        }
+
+        String name = file.getName().toLowerCase();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MeshFileReader reader;
+        try {
+            reader = new MeshFileReader(randomAccessFile.getChannel());
+            if (name.endsWith(".obj")) {
+                reader.readObj();
+            } else if (name.endsWith(".ply")) {
+                reader.readPly();
+            } else {
+                throw new IOException("Unsupported mesh format: " + file.getName());
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        int numberOfVertices = reader.getNumberOfVertices();
+        ByteBuffer normals = computeNormals(reader.getPositions(), numberOfVertices,
+                reader.getIndices(), reader.getNumberOfTriangles());
+        TriangleMesh mesh = new TriangleMesh(numberOfVertices, reader.getNumberOfTriangles(),
+                reader.getPositions(), normals, reader.getIndices());
+
+        if (cacheFile != null) {
+            try {
+                mesh.writeCache(cacheFile, file);
+            } catch (IOException e) {
+                // The mesh is still usable, it will be parsed again next time.
+                Log.w(TAG, "Could not cache " + file, e);
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * Read a mesh in binary STL format. Each triangle gets its own three vertices, with the normal
+     * of the triangle.
+     */
+    public static TriangleMesh readStl(InputStream stl) throws IOException {
+        byte[] bytes = new byte[Math.max(stl.available(), STL_HEADER_SIZE)];
+        int length = 0;
+        while (true) {
+            if (length == bytes.length) {
+                byte[] larger = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+            int read = stl.read(bytes, length, bytes.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        ByteBuffer data = ByteBuffer.wrap(bytes, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        if (length < STL_HEADER_SIZE) {
+            throw new IOException("Truncated STL mesh");
+        }
+        int numberOfTriangles = data.getInt(STL_HEADER_SIZE - 4);
+        if (numberOfTriangles < 0
+                || length < STL_HEADER_SIZE + (long) numberOfTriangles * STL_TRIANGLE_SIZE) {
+            throw new IOException("Truncated STL mesh");
+        }
+
+        int numberOfVertices = numberOfTriangles * 3;
+        ByteBuffer positions = ByteBuffer.allocateDirect(Math.max(numberOfVertices, 1) * 12)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer indices = ByteBuffer.allocateDirect(Math.max(numberOfVertices, 1) * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int t = 0; t < numberOfTriangles; t++) {
+            // Skip the stored normal, it is often wrong.
+            int offset = STL_HEADER_SIZE + t * STL_TRIANGLE_SIZE + 12;
+            for (int i = 0; i < 9; i++) {
+                positions.putFloat((t * 9 + i) * 4, data.getFloat(offset + i * 4));
+            }
+            for (int i = 0; i < 3; i++) {
+                indices.putInt((t * 3 + i) * 4, t * 3 + i);
+            }
+        }
+        ByteBuffer normals = computeNormals(positions, numberOfVertices, indices,
+                numberOfTriangles);
+        return new TriangleMesh(numberOfVertices, numberOfTriangles, positions, normals, indices);
+    }
+
+    public int getNumberOfVertices() {
+        return mNumberOfVertices;
+    }
+
+    public int getNumberOfTriangles() {
+        return mNumberOfTriangles;
+    }
+
+    /**
+     * Packed x, y, z positions of the vertices. The returned buffer shares the data of the mesh
+     * and must not be modified.
+     */
+    public FloatBuffer getPositions() {
+        return mPositions.duplicate();
+    }
+
+    /**
+     * Packed unit normals of the vertices, the area weighted average of the normals of their
+     * triangles. The returned buffer shares the data of the mesh and must not be modified.
+     */
+    public FloatBuffer getNormals() {
+        return mNormals.duplicate();
+    }
+
+    /**
+     * Vertex indices of the triangles, three per triangle in counter clockwise order. The returned
+     * buffer shares the data of the mesh and must not be modified.
+     */
+    public IntBuffer getIndices() {
+        return mIndices.duplicate();
+    }
+
+    public void getVertex(int vertex, float[] position) {
+        position[0] = mPositions.get(vertex * 3);
+        position[1] = mPositions.get(vertex * 3 + 1);
+        position[2] = mPositions.get(vertex * 3 + 2);
+    }
+
+    /**
+     * Get the positions of the three vertices of a triangle.
+     *
+     * @param vertices Packed x, y, z positions of the vertices, nine values.
+     * @return The area of the triangle.
+     */
+    public float getTriangle(int triangle, float[] vertices) {
+        for (int i = 0; i < 3; i++) {
+            int vertex = mIndices.get(triangle * 3 + i);
+            vertices[i * 3] = mPositions.get(vertex * 3);
+            vertices[i * 3 + 1] = mPositions.get(vertex * 3 + 1);
+            vertices[i * 3 + 2] = mPositions.get(vertex * 3 + 2);
+        }
+        float e1x = vertices[3] - vertices[0];
+        float e1y = vertices[4] - vertices[1];
+        float e1z = vertices[5] - vertices[2];
+        float e2x = vertices[6] - vertices[0];
+        float e2y = vertices[7] - vertices[1];
+        float e2z = vertices[8] - vertices[2];
+        float nx = e1y * e2z - e1z * e2y;
+        float ny = e1z * e2x - e1x * e2z;
+        float nz = e1x * e2y - e1y * e2x;
+        return (float) Math.sqrt(nx * nx + ny * ny + nz * nz) / 2;
+    }
+
+    public float getSurfaceArea() {
+        float[] vertices = new float[9];
+        double area = 0;
+        for (int t = 0; t < mNumberOfTriangles; t++) {
+            area += getTriangle(t, vertices);
+        }
+        return (float) area;
+    }
+
+    /**
+     * Largest distance from the origin of the model to one of its vertices.
+     */
+    public float getRadius() {
+        float squaredRadius = 0;
+        for (int i = 0; i < mNumberOfVertices * 3; i += 3) {
+            float x = mPositions.get(i);
+            float y = mPositions.get(i + 1);
+            float z = mPositions.get(i + 2);
+            squaredRadius = Math.max(squaredRadius, x * x + y * y + z * z);
+        }
+        return (float) Math.sqrt(squaredRadius);
+    }
+
+    /**
+     * Pick the vertex under a ray, for example the one through a touched pixel: the vertex of the
+     * first triangle hit by the ray that is the closest to the hit point. Both sides of the
+     * triangles are hit. This tests every triangle; {@link TriangleBvh} picks the same vertex
+     * without doing so, for repeated picking on large meshes.
+     *
+     * @param origin    Origin of the ray in model frame.
+     * @param direction Direction of the ray in model frame, not necessarily normalized.
+     * @return The index of the vertex, or -1 if the ray doesn't hit the mesh.
+     */
+    public int pickVertex(float[] origin, float[] direction) {
+        float[] vertices = new float[9];
+        float closestHit = Float.MAX_VALUE;
+        int closestTriangle = -1;
+        for (int t = 0; t < mNumberOfTriangles; t++) {
+            float distance = intersectTriangle(t, origin, direction, vertices);
+            if (distance < closestHit) {
+                closestHit = distance;
+                closestTriangle = t;
+            }
+        }
+        if (closestTriangle < 0) {
+            return -1;
+        }
+        return getClosestVertex(closestTriangle, origin, direction, closestHit, vertices);
+    }
+
+    /**
+     * Intersect a ray with a triangle, from both sides.
+     *
+     * @param vertices Scratch array of nine values.
+     * @return The distance along the ray to the hit point, in units of the direction, or
+     * Float.MAX_VALUE if the ray misses the triangle.
+     */
+    float intersectTriangle(int triangle, float[] origin, float[] direction, float[] vertices) {
+        getTriangle(triangle, vertices);
+        // Moller-Trumbore intersection.
+        float e1x = vertices[3] - vertices[0];
+        float e1y = vertices[4] - vertices[1];
+        float e1z = vertices[5] - vertices[2];
+        float e2x = vertices[6] - vertices[0];
+        float e2y = vertices[7] - vertices[1];
+        float e2z = vertices[8] - vertices[2];
+        float px = direction[1] * e2z - direction[2] * e2y;
+        float py = direction[2] * e2x - direction[0] * e2z;
+        float pz = direction[0] * e2y - direction[1] * e2x;
+        float determinant = e1x * px + e1y * py + e1z * pz;
+        if (determinant == 0) {
+            return Float.MAX_VALUE;
+        }
+        float inverse = 1 / determinant;
+        float sx = origin[0] - vertices[0];
+        float sy = origin[1] - vertices[1];
+        float sz = origin[2] - vertices[2];
+        float u = (sx * px + sy * py + sz * pz) * inverse;
+        if (u < 0 || u > 1) {
+            return Float.MAX_VALUE;
+        }
+        float qx = sy * e1z - sz * e1y;
+        float qy = sz * e1x - sx * e1z;
+        float qz = sx * e1y - sy * e1x;
+        float v = (direction[0] * qx + direction[1] * qy + direction[2] * qz) * inverse;
+        if (v < 0 || u + v > 1) {
+            return Float.MAX_VALUE;
+        }
+        float distance = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+        return distance > 0 ? distance : Float.MAX_VALUE;
+    }
+
+    /**
+     * Get the vertex of a triangle closest to the point at a distance along a ray.
+     *
+     * @param vertices Scratch array of nine values.
+     */
+    int getClosestVertex(int triangle, float[] origin, float[] direction, float distance,
+                         float[] vertices) {
+        getTriangle(triangle, vertices);
+        float hitX = origin[0] + direction[0] * distance;
+        float hitY = origin[1] + direction[1] * distance;
+        float hitZ = origin[2] + direction[2] * distance;
+        int closestVertex = -1;
+        float closestSquaredDistance = Float.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            float dx = vertices[i * 3] - hitX;
+            float dy = vertices[i * 3 + 1] - hitY;
+            float dz = vertices[i * 3 + 2] - hitZ;
+            float squaredDistance = dx * dx + dy * dy + dz * dz;
+            if (squaredDistance < closestSquaredDistance) {
+                closestSquaredDistance = squaredDistance;
+                closestVertex = mIndices.get(triangle * 3 + i);
+            }
+        }
+        return closestVertex;
+    }
+
+    private static ByteBuffer computeNormals(ByteBuffer positions, int numberOfVertices,
+                                             ByteBuffer indices, int numberOfTriangles) {
+        ByteBuffer normals = ByteBuffer.allocateDirect(Math.max(numberOfVertices, 1) * 12)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int t = 0; t < numberOfTriangles; t++) {
+            int a = indices.getInt(t * 12) * 12;
+            int b = indices.getInt(t * 12 + 4) * 12;
+            int c = indices.getInt(t * 12 + 8) * 12;
+            float e1x = positions.getFloat(b) - positions.getFloat(a);
+            float e1y = positions.getFloat(b + 4) - positions.getFloat(a + 4);
+            float e1z = positions.getFloat(b + 8) - positions.getFloat(a + 8);
+            float e2x = positions.getFloat(c) - positions.getFloat(a);
+            float e2y = positions.getFloat(c + 4) - positions.getFloat(a + 4);
+            float e2z = positions.getFloat(c + 8) - positions.getFloat(a + 8);
+            // The length of the cross product is twice the area, which weights the sum.
+            float nx = e1y * e2z - e1z * e2y;
+            float ny = e1z * e2x - e1x * e2z;
+            float nz = e1x * e2y - e1y * e2x;
+            addNormal(normals, a, nx, ny, nz);
+            addNormal(normals, b, nx, ny, nz);
+            addNormal(normals, c, nx, ny, nz);
+        }
+        for (int offset = 0; offset < numberOfVertices * 12; offset += 12) {
+            float nx = normals.getFloat(offset);
+            float ny = normals.getFloat(offset + 4);
+            float nz = normals.getFloat(offset + 8);
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0) {
+                normals.putFloat(offset, nx / length);
+                normals.putFloat(offset + 4, ny / length);
+                normals.putFloat(offset + 8, nz / length);
+            }
+        }
+        return normals;
+    }
+
+    private static void addNormal(ByteBuffer normals, int offset, float nx, float ny, float nz) {
+        normals.putFloat(offset, normals.getFloat(offset) + nx);
+        normals.putFloat(offset + 4, normals.getFloat(offset + 4) + ny);
+        normals.putFloat(offset + 8, normals.getFloat(offset + 8) + nz);
+    }
+
+    /**
+     * Map a cached mesh if it was parsed from the current version of the source file.
+     *
+     * @return The mesh, or null if the cache is missing or stale.
+     */
+    private static TriangleMesh readCache(File cacheFile, File source) throws IOException {
+        if (!cacheFile.isFile() || cacheFile.length() < FILE_HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r");
+        MappedByteBuffer cache;
+        try {
+            // The mapping stays valid after the file is closed.
+            cache = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+        cache.order(ByteOrder.LITTLE_ENDIAN);
+        if (cache.getInt(0) != MAGIC || cache.getInt(4) != VERSION
+                || cache.getLong(8) != source.length()
+                || cache.getLong(16) != source.lastModified()) {
+            return null;
+        }
+        int numberOfVertices = cache.getInt(24);
+        int numberOfTriangles = cache.getInt(28);
+        long size = FILE_HEADER_SIZE + numberOfVertices * 24L + numberOfTriangles * 12L;
+        if (numberOfVertices < 0 || numberOfTriangles < 0 || cache.capacity() != size) {
+            Log.w(TAG, "Ignoring corrupted cache " + cacheFile);
+            return null;
+        }
+        int normalsOffset = FILE_HEADER_SIZE + numberOfVertices * 12;
+        int indicesOffset = normalsOffset + numberOfVertices * 12;
+        return new TriangleMesh(numberOfVertices, numberOfTriangles,
+                slice(cache, FILE_HEADER_SIZE, numberOfVertices * 12),
+                slice(cache, normalsOffset, numberOfVertices * 12),
+                slice(cache, indicesOffset, numberOfTriangles * 12));
+    }
+
+    /**
+     * Write the buffers to the cache, through a temporary file so that an interrupted write never
+     * leaves a partial cache behind.
+     */
+    private void writeCache(File cacheFile, File source) throws IOException {
+        File temporaryFile = new File(cacheFile.getPath() + ".tmp");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(source.length())
+                    .putLong(source.lastModified()).putInt(mNumberOfVertices)
+                    .putInt(mNumberOfTriangles);
+            header.flip();
+            writeFully(channel, header);
+            writeFully(channel, mPositionBytes.duplicate());
+            writeFully(channel, mNormalBytes.duplicate());
+            writeFully(channel, mIndexBytes.duplicate());
+        } finally {
+            randomAccessFile.close();
+        }
+        if (!temporaryFile.renameTo(cacheFile)) {
+            temporaryFile.delete();
+            throw new IOException("Could not rename " + temporaryFile);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.clear();
+        slice.position(offset);
+        slice.limit(offset + size);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates point clouds into a sparse voxel grid, keeping one point per occupied voxel.
+ * <p/>
+ * Each point is transformed into the world frame and its voxel is looked up in an open addressing
+ * hash table with primitive long keys. The first points falling in a voxel are averaged into its
+ * representative point; after {@link #MAX_SAMPLES_PER_VOXEL} samples the voxel is considered
+ * stable and is not modified anymore. Voxels are stored in insertion order, so the points of the
+ * grid can be uploaded as they are, and the range changed since the last upload is tracked.
+ * <p/>
+ * Memory only grows with the number of occupied voxels, never with the number of clouds inserted,
+ * and is capped by the maximum number of voxels given on construction; points falling in new
+ * voxels once the grid is full are dropped.
+ * This class is not thread safe.
+ */
+public class VoxelGrid {
+    private static final String TAG = VoxelGrid.class.getSimpleName();
+
+    // Number of samples averaged into the point of a voxel before it is considered stable.
+    public static final int MAX_SAMPLES_PER_VOXEL = 8;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    // Each voxel coordinate is stored in 21 bits of the key, offset to make it positive.
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final int COORDINATE_OFFSET = 1 << (COORDINATE_BITS - 1);
+    // Keys are always positive, so a negative value marks an empty hash table entry.
+    private static final long EMPTY_KEY = -1L;
+
+    private final float mLeafSize;
+    private final float mInverseLeafSize;
+    private final int mMaxNumberOfVoxels;
+
+    // Hash table from voxel key to voxel index, kept at most half full.
+    private long[] mKeys;
+    private int[] mVoxelIndices;
+    private int mHashMask;
+
+    // Representative point and number of samples of each voxel, in insertion order.
+    private float[] mPoints;
+    private byte[] mSampleCounts;
+    private int mNumberOfVoxels;
+
+    // Range of voxels changed since the last call to clearChanges.
+    private int mChangedBegin;
+    private int mChangedEnd;
+
+    private boolean mIsFullLogged;
+
+    /**
+     * @param leafSize Size of the side of a voxel, in meters.
+     * @param maxNumberOfVoxels Maximum number of voxels kept by the grid.
+     */
+    public VoxelGrid(float leafSize, int maxNumberOfVoxels) {
+        if (leafSize <= 0) {
+            throw new IllegalArgumentException("leafSize must be positive");
+        }
+        mLeafSize = leafSize;
+        mInverseLeafSize = 1.0f / leafSize;
+        mMaxNumberOfVoxels = maxNumberOfVoxels;
+        allocate(Math.min(INITIAL_CAPACITY, maxNumberOfVoxels));
+        clear();
+    }
+
+    /**
+     * Remove all the voxels, keeping the allocated memory.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY_KEY);
+        mNumberOfVoxels = 0;
+        mChangedBegin = 0;
+        mChangedEnd = 0;
+        mIsFullLogged = false;
+    }
+
+    /**
+     * Insert a point cloud into the grid.
+     *
+     * @param pointCloudBuffer Points as consecutive x, y, z coordinates, read with absolute gets.
+     * @param pointCount Number of points to insert.
+     * @param worldTpoints Column major 4x4 matrix transforming the points into the world frame of
+     *                     the grid, as used by {@link android.opengl.Matrix}.
+     * @return Number of voxels created by this cloud.
+     */
+    public int insert(FloatBuffer pointCloudBuffer, int pointCount, float[] worldTpoints) {
+        int previousNumberOfVoxels = mNumberOfVoxels;
+        for (int i = 0; i < pointCount; i++) {
+            float x = pointCloudBuffer.get(i * 3);
+            float y = pointCloudBuffer.get(i * 3 + 1);
+            float z = pointCloudBuffer.get(i * 3 + 2);
+            insertPoint(
+                    worldTpoints[0] * x + worldTpoints[4] * y + worldTpoints[8] * z
+                            + worldTpoints[12],
+                    worldTpoints[1] * x + worldTpoints[5] * y + worldTpoints[9] * z
+                            + worldTpoints[13],
+                    worldTpoints[2] * x + worldTpoints[6] * y + worldTpoints[10] * z
+                            + worldTpoints[14]);
+        }
+        return mNumberOfVoxels - previousNumberOfVoxels;
+    }
+
+    /**
+     * Insert a single point, already in the world frame of the grid.
+     */
+    public void insertPoint(float x, float y, float z) {
+        int vx = (int) Math.floor(x * mInverseLeafSize);
+        int vy = (int) Math.floor(y * mInverseLeafSize);
+        int vz = (int) Math.floor(z * mInverseLeafSize);
+        if (!isInRange(vx) || !isInRange(vy) || !isInRange(vz)) {
+            return;
+        }
+        long key = ((vx + COORDINATE_OFFSET) & COORDINATE_MASK) << (2 * COORDINATE_BITS)
+                | ((vy + COORDINATE_OFFSET) & COORDINATE_MASK) << COORDINATE_BITS
+                | ((vz + COORDINATE_OFFSET) & COORDINATE_MASK);
+
+        int slot = hash(key) & mHashMask;
+        while (mKeys[slot] != EMPTY_KEY && mKeys[slot] != key) {
+            slot = (slot + 1) & mHashMask;
+        }
+
+        if (mKeys[slot] == key) {
+            int voxel = mVoxelIndices[slot];
+            int samples = mSampleCounts[voxel];
+            if (samples < MAX_SAMPLES_PER_VOXEL) {
+                // Incremental mean of the samples.
+                samples++;
+                float weight = 1.0f / samples;
+                mPoints[voxel * 3] += (x - mPoints[voxel * 3]) * weight;
+                mPoints[voxel * 3 + 1] += (y - mPoints[voxel * 3 + 1]) * weight;
+                mPoints[voxel * 3 + 2] += (z - mPoints[voxel * 3 + 2]) * weight;
+                mSampleCounts[voxel] = (byte) samples;
+                markChanged(voxel);
+            }
+            return;
+        }
+
+        if (mNumberOfVoxels == mMaxNumberOfVoxels) {
+            if (!mIsFullLogged) {
+                Log.w(TAG, "Voxel grid is full with " + mMaxNumberOfVoxels
+                        + " voxels, new voxels are dropped");
+                mIsFullLogged = true;
+            }
+            return;
+        }
+        if (mNumberOfVoxels == mPoints.length / 3) {
+            grow();
+            // The hash table was rebuilt, look for the free entry again.
+            slot = hash(key) & mHashMask;
+            while (mKeys[slot] != EMPTY_KEY) {
+                slot = (slot + 1) & mHashMask;
+            }
+        }
+
+        int voxel = mNumberOfVoxels++;
+        mKeys[slot] = key;
+        mVoxelIndices[slot] = voxel;
+        mPoints[voxel * 3] = x;
+        mPoints[voxel * 3 + 1] = y;
+        mPoints[voxel * 3 + 2] = z;
+        mSampleCounts[voxel] = 1;
+        markChanged(voxel);
+    }
+
+    public float getLeafSize() {
+        return mLeafSize;
+    }
+
+    public int getMaxNumberOfVoxels() {
+        return mMaxNumberOfVoxels;
+    }
+
+    public int getNumberOfVoxels() {
+        return mNumberOfVoxels;
+    }
+
+    /**
+     * Get the representative points of the voxels as consecutive x, y, z coordinates.
+     * Only the first {@link #getNumberOfVoxels()} points are valid. The array is owned by the grid
+     * and is replaced when the grid grows.
+     */
+    public float[] getPoints() {
+        return mPoints;
+    }
+
+    /**
+     * First voxel changed since the last call to {@link #clearChanges()}.
+     */
+    public int getChangedBegin() {
+        return mChangedBegin;
+    }
+
+    /**
+     * Voxel after the last one changed since the last call to {@link #clearChanges()}.
+     */
+    public int getChangedEnd() {
+        return mChangedEnd;
+    }
+
+    public boolean hasChanges() {
+        return mChangedBegin < mChangedEnd;
+    }
+
+    public void clearChanges() {
+        mChangedBegin = mNumberOfVoxels;
+        mChangedEnd = mNumberOfVoxels;
+    }
+
+    /**
+     * Approximate number of bytes used by the grid.
+     */
+    public long getMemoryFootprint() {
+        return mKeys.length * 8L + mVoxelIndices.length * 4L + mPoints.length * 4L
+                + mSampleCounts.length;
+    }
+
+    private void markChanged(int voxel) {
+        if (mChangedBegin == mChangedEnd) {
+            mChangedBegin = voxel;
+            mChangedEnd = voxel + 1;
+        } else {
+            mChangedBegin = Math.min(mChangedBegin, voxel);
+            mChangedEnd = Math.max(mChangedEnd, voxel + 1);
+        }
+    }
+
+    private void allocate(int voxelCapacity) {
+        int hashCapacity = Integer.highestOneBit(Math.max(voxelCapacity, 1) * 2 - 1) << 1;
+        mKeys = new long[hashCapacity];
+        mVoxelIndices = new int[hashCapacity];
+        mHashMask = hashCapacity - 1;
+        mPoints = new float[voxelCapacity * 3];
+        mSampleCounts = new byte[voxelCapacity];
+    }
+
+    // Double the capacity of the grid, up to the maximum number of voxels, and rehash the voxels.
+    private void grow() {
+        long[] oldKeys = mKeys;
+        int[] oldVoxelIndices = mVoxelIndices;
+        float[] oldPoints = mPoints;
+        byte[] oldSampleCounts = mSampleCounts;
+
+        allocate((int) Math.min((long) mMaxNumberOfVoxels, oldSampleCounts.length * 2L));
+        Arrays.fill(mKeys, EMPTY_KEY);
+        System.arraycopy(oldPoints, 0, mPoints, 0, mNumberOfVoxels * 3);
+        System.arraycopy(oldSampleCounts, 0, mSampleCounts, 0, mNumberOfVoxels);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY_KEY) {
+                int slot = hash(key) & mHashMask;
+                while (mKeys[slot] != EMPTY_KEY) {
+                    slot = (slot + 1) & mHashMask;
+                }
+                mKeys[slot] = key;
+                mVoxelIndices[slot] = oldVoxelIndices[i];
+            }
+        }
+    }
+
+    private static boolean isInRange(int voxelCoordinate) {
+        return voxelCoordinate >= -COORDINATE_OFFSET && voxelCoordinate < COORDINATE_OFFSET;
+    }
+
+    // Mix the bits of the key so neighbouring voxels spread over the hash table.
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
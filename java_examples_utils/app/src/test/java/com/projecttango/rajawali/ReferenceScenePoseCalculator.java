@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+/**
+ * The former {@link ScenePoseCalculator} conversions, computed with the Rajawali
+ * {@link Matrix4} and {@link Quaternion} classes of the Rajawali version the module depends on.
+ * They are the reference the allocation free conversions are tested and benchmarked against.
+ */
+final class ReferenceScenePoseCalculator {
+    private ReferenceScenePoseCalculator() {
+    }
+
+    static Matrix4 tangoPoseToMatrix(TangoPoseData tangoPose) {
+        Vector3 v = new Vector3(tangoPose.translation[0],
+                tangoPose.translation[1], tangoPose.translation[2]);
+        Quaternion q = new Quaternion(tangoPose.rotation[3], tangoPose.rotation[0],
+                tangoPose.rotation[1], tangoPose.rotation[2]);
+        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
+        q.conjugate();
+        Matrix4 m = new Matrix4();
+        m.setAll(v, new Vector3(1, 1, 1), q);
+        return m;
+    }
+
+    static Pose matrixToPose(Matrix4 m) {
+        Vector3 p = m.getTranslation();
+        Quaternion q = new Quaternion();
+        q.fromMatrix(m);
+        // NOTE: Rajawali quaternions use a left-hand rotation around the axis convention.
+        q.conjugate();
+        return new Pose(p, q);
+    }
+
+    static Matrix4 toOpenGLMatrix(TangoPoseData tangoPose) {
+        return ScenePoseCalculator.OPENGL_T_TANGO_WORLD.clone()
+                .multiply(tangoPoseToMatrix(tangoPose));
+    }
+
+    static Matrix4 toOpenGLMatrixWithScreenRotation(TangoPoseData tangoPose,
+                                                     int rotationIndex) {
+        Matrix4 openglWorldTDevice = toOpenGLMatrix(tangoPose);
+        switch (rotationIndex) {
+            case 1:
+                return openglWorldTDevice.multiply(ScenePoseCalculator.ROTATION_90_T_DEFAULT);
+            case 2:
+                return openglWorldTDevice.multiply(ScenePoseCalculator.ROTATION_180_T_DEFAULT);
+            case 3:
+                return openglWorldTDevice.multiply(ScenePoseCalculator.ROTATION_270_T_DEFAULT);
+            default:
+                return openglWorldTDevice.multiply(ScenePoseCalculator.ROTATION_0_T_DEFAULT);
+        }
+    }
+
+    static Matrix4 toOpenGlCameraMatrix(TangoPoseData devicePose, DeviceExtrinsics extrinsics) {
+        return toOpenGLMatrix(devicePose).multiply(extrinsics.getDeviceTColorCamera())
+                .multiply(ScenePoseCalculator.COLOR_CAMERA_T_OPENGL_CAMERA);
+    }
+
+    static Matrix4 toDepthCameraOpenGlMatrix(TangoPoseData devicePose,
+                                             DeviceExtrinsics extrinsics) {
+        return toOpenGLMatrix(devicePose).multiply(extrinsics.getDeviceTDepthCamera());
+    }
+
+    static Pose toOpenGLPose(TangoPoseData tangoPose) {
+        return matrixToPose(toOpenGLMatrix(tangoPose));
+    }
+
+    static Pose toOpenGlCameraPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics) {
+        return matrixToPose(toOpenGlCameraMatrix(devicePose, extrinsics));
+    }
+
+    static Pose toDepthCameraOpenGlPose(TangoPoseData devicePose, DeviceExtrinsics extrinsics) {
+        return matrixToPose(toDepthCameraOpenGlMatrix(devicePose, extrinsics));
+    }
+
+    static TangoPoseData planeFitToTangoWorldPose(double[] point, double[] normal,
+                                                  TangoPoseData tangoPose,
+                                                  DeviceExtrinsics extrinsics) {
+        Matrix4 startServiceTdevice = tangoPoseToMatrix(tangoPose);
+        Vector3 depthUp = ScenePoseCalculator.TANGO_WORLD_UP.clone();
+        startServiceTdevice.clone().multiply(extrinsics.getDeviceTDepthCamera())
+                .inverse().rotateVector(depthUp);
+        Matrix4 depthTplane = ScenePoseCalculator.matrixFromPointNormalUp(point, normal, depthUp);
+        Matrix4 tangoWorldTplane = startServiceTdevice.multiply(extrinsics.getDeviceTDepthCamera())
+                .multiply(depthTplane);
+        return ScenePoseCalculator.matrixToTangoPose(tangoWorldTplane);
+    }
+
+    static Vector3 getPointInEngineFrame(Vector3 inPoint, TangoPoseData deviceTPointFramePose,
+                                         TangoPoseData startServiceTDevicePose) {
+        Matrix4 startServiceTDepthMatrix = tangoPoseToMatrix(startServiceTDevicePose)
+                .multiply(tangoPoseToMatrix(deviceTPointFramePose));
+        Matrix4 inPointMatrix = new Matrix4();
+        inPointMatrix.setToTranslation(inPoint);
+        Matrix4 startServicePointMatrix = startServiceTDepthMatrix.multiply(inPointMatrix);
+        Matrix4 openGlWorldPointMatrix =
+                ScenePoseCalculator.OPENGL_T_TANGO_WORLD.clone().multiply(startServicePointMatrix);
+        return matrixToPose(openGlWorldPointMatrix).getPosition();
+    }
+}
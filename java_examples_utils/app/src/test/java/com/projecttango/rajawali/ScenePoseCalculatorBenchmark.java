@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of each {@link ScenePoseCalculator} conversion, returning new objects and writing into
+ * the given ones, and of the former conversion with the Rajawali math classes of the Rajawali
+ * version the module depends on, from {@link ReferenceScenePoseCalculator}. Run with
+ * {@code -prof gc} to see the allocation of each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScenePoseCalculatorBenchmark {
+    private TangoPoseData mDevicePose;
+    private TangoPoseData mDepthPose;
+    private DeviceExtrinsics mExtrinsics;
+    private final Vector3 mPoint = new Vector3(0.1, -0.2, 1.5);
+
+    private final double[] mMatrix = new double[16];
+    private final Pose mPose = new Pose();
+    private final Vector3 mOutPoint = new Vector3();
+
+    @Setup
+    public void setUp() {
+        mDevicePose = createPose(1, 2, 0.5, 0.1, 0.2, 0.3);
+        mDepthPose = createPose(0.01, 0.02, 0, 0.5, 0.5, 0.5);
+        mExtrinsics = new DeviceExtrinsics(createPose(0, 0, 0, 0, 0, 0),
+                createPose(0.01, 0, 0, 0, 0, 0), createPose(0.02, 0, 0, 0, 0, 0));
+    }
+
+    /**
+     * Create a pose from a translation and the vector part of a unit quaternion.
+     */
+    private static TangoPoseData createPose(double x, double y, double z, double qx, double qy,
+                                            double qz) {
+        TangoPoseData pose = new TangoPoseData();
+        pose.statusCode = TangoPoseData.POSE_VALID;
+        pose.translation = new double[] {x, y, z};
+        pose.rotation = new double[] {qx, qy, qz, Math.sqrt(1 - qx * qx - qy * qy - qz * qz)};
+        return pose;
+    }
+
+    @Benchmark
+    public Matrix4 tangoPoseToMatrixRajawali() {
+        return ReferenceScenePoseCalculator.tangoPoseToMatrix(mDevicePose);
+    }
+
+    @Benchmark
+    public Matrix4 tangoPoseToMatrix() {
+        return ScenePoseCalculator.tangoPoseToMatrix(mDevicePose);
+    }
+
+    @Benchmark
+    public double[] tangoPoseToMatrixInPlace() {
+        ScenePoseCalculator.tangoPoseToMatrix(mDevicePose, mMatrix);
+        return mMatrix;
+    }
+
+    @Benchmark
+    public Pose toOpenGLPoseRajawali() {
+        return ReferenceScenePoseCalculator.toOpenGLPose(mDevicePose);
+    }
+
+    @Benchmark
+    public Pose toOpenGLPose() {
+        return ScenePoseCalculator.toOpenGLPose(mDevicePose);
+    }
+
+    @Benchmark
+    public Pose toOpenGLPoseInPlace() {
+        ScenePoseCalculator.toOpenGLPose(mDevicePose, mMatrix, mPose);
+        return mPose;
+    }
+
+    @Benchmark
+    public Pose toOpenGlCameraPoseRajawali() {
+        return ReferenceScenePoseCalculator.toOpenGlCameraPose(mDevicePose, mExtrinsics);
+    }
+
+    @Benchmark
+    public Pose toOpenGlCameraPose() {
+        return ScenePoseCalculator.toOpenGlCameraPose(mDevicePose, mExtrinsics);
+    }
+
+    @Benchmark
+    public Pose toOpenGlCameraPoseInPlace() {
+        ScenePoseCalculator.toOpenGlCameraPose(mDevicePose, mExtrinsics, mMatrix, mPose);
+        return mPose;
+    }
+
+    @Benchmark
+    public Pose toDepthCameraOpenGlPoseRajawali() {
+        return ReferenceScenePoseCalculator.toDepthCameraOpenGlPose(mDevicePose, mExtrinsics);
+    }
+
+    @Benchmark
+    public Pose toDepthCameraOpenGlPose() {
+        return ScenePoseCalculator.toDepthCameraOpenGlPose(mDevicePose, mExtrinsics);
+    }
+
+    @Benchmark
+    public Pose toDepthCameraOpenGlPoseInPlace() {
+        ScenePoseCalculator.toDepthCameraOpenGlPose(mDevicePose, mExtrinsics, mMatrix, mPose);
+        return mPose;
+    }
+
+    @Benchmark
+    public Vector3 getPointInEngineFrameRajawali() {
+        return ReferenceScenePoseCalculator.getPointInEngineFrame(mPoint, mDepthPose,
+                mDevicePose);
+    }
+
+    @Benchmark
+    public Vector3 getPointInEngineFrame() {
+        return ScenePoseCalculator.getPointInEngineFrame(mPoint, mDepthPose, mDevicePose);
+    }
+
+    @Benchmark
+    public Vector3 getPointInEngineFrameInPlace() {
+        ScenePoseCalculator.getPointInEngineFrame(mPoint, mDepthPose, mDevicePose, mOutPoint);
+        return mOutPoint;
+    }
+}
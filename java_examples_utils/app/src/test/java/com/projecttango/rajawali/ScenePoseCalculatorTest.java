@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.junit.Test;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the allocation free {@link ScenePoseCalculator} conversions with the former ones
+ * computed with the Rajawali math classes, in {@link ReferenceScenePoseCalculator}, on random
+ * poses and on the rotations where extracting a quaternion from a matrix is the least stable:
+ * half turns, where w is 0, and rotations close to them.
+ */
+public class ScenePoseCalculatorTest {
+    private static final int NUMBER_OF_RANDOM_POSES = 200;
+    private static final double TOLERANCE = 1e-9;
+    private static final double[] W_NEAR_ZERO = new double[] {0, 1e-12, -1e-9, 1e-6, -1e-4};
+
+    @Test
+    public void tangoPoseToMatrixMatchesRajawali() {
+        double[] matrix = new double[16];
+        for (TangoPoseData pose : createPoses()) {
+            ScenePoseCalculator.tangoPoseToMatrix(pose, matrix);
+            assertMatrixEquals(ReferenceScenePoseCalculator.tangoPoseToMatrix(pose), matrix);
+            assertMatrixEquals(ReferenceScenePoseCalculator.tangoPoseToMatrix(pose),
+                    ScenePoseCalculator.tangoPoseToMatrix(pose).getDoubleValues());
+        }
+    }
+
+    @Test
+    public void matrixToPoseMatchesRajawali() {
+        Pose pose = new Pose();
+        for (TangoPoseData tangoPose : createPoses()) {
+            Matrix4 matrix = ReferenceScenePoseCalculator.tangoPoseToMatrix(tangoPose);
+            Pose expected = ReferenceScenePoseCalculator.matrixToPose(matrix);
+            ScenePoseCalculator.matrixToPose(matrix.getDoubleValues(), pose);
+            assertPoseEquals(expected, pose);
+            assertPoseEquals(expected, ScenePoseCalculator.matrixToPose(matrix));
+        }
+    }
+
+    @Test
+    public void toOpenGLPoseMatchesRajawali() {
+        double[] matrix = new double[16];
+        Pose pose = new Pose();
+        for (TangoPoseData tangoPose : createPoses()) {
+            ScenePoseCalculator.toOpenGLPose(tangoPose, matrix, pose);
+            assertMatrixEquals(ReferenceScenePoseCalculator.toOpenGLMatrix(tangoPose), matrix);
+            Pose expected = ReferenceScenePoseCalculator.toOpenGLPose(tangoPose);
+            assertPoseEquals(expected, pose);
+            assertPoseEquals(expected, ScenePoseCalculator.toOpenGLPose(tangoPose));
+        }
+    }
+
+    @Test
+    public void toOpenGLPoseWithScreenRotationMatchesRajawali() {
+        double[] matrix = new double[16];
+        Pose pose = new Pose();
+        for (TangoPoseData tangoPose : createPoses()) {
+            for (int rotationIndex = 0; rotationIndex < 4; rotationIndex++) {
+                ScenePoseCalculator.toOpenGLPoseWithScreenRotation(tangoPose, rotationIndex,
+                        matrix, pose);
+                Matrix4 expected = ReferenceScenePoseCalculator.toOpenGLMatrixWithScreenRotation(
+                        tangoPose, rotationIndex);
+                assertMatrixEquals(expected, matrix);
+                assertPoseEquals(ReferenceScenePoseCalculator.matrixToPose(expected), pose);
+                assertPoseEquals(ReferenceScenePoseCalculator.matrixToPose(expected),
+                        ScenePoseCalculator.toOpenGLPoseWithScreenRotation(tangoPose,
+                                rotationIndex));
+            }
+        }
+    }
+
+    @Test
+    public void toOpenGlCameraPoseMatchesRajawali() {
+        DeviceExtrinsics extrinsics = createExtrinsics();
+        double[] matrix = new double[16];
+        Pose pose = new Pose();
+        for (TangoPoseData devicePose : createPoses()) {
+            ScenePoseCalculator.toOpenGlCameraPose(devicePose, extrinsics, matrix, pose);
+            assertMatrixEquals(
+                    ReferenceScenePoseCalculator.toOpenGlCameraMatrix(devicePose, extrinsics),
+                    matrix);
+            Pose expected = ReferenceScenePoseCalculator.toOpenGlCameraPose(devicePose,
+                    extrinsics);
+            assertPoseEquals(expected, pose);
+            assertPoseEquals(expected,
+                    ScenePoseCalculator.toOpenGlCameraPose(devicePose, extrinsics));
+        }
+    }
+
+    @Test
+    public void toDepthCameraOpenGlPoseMatchesRajawali() {
+        DeviceExtrinsics extrinsics = createExtrinsics();
+        double[] matrix = new double[16];
+        Pose pose = new Pose();
+        for (TangoPoseData devicePose : createPoses()) {
+            ScenePoseCalculator.toDepthCameraOpenGlPose(devicePose, extrinsics, matrix, pose);
+            assertMatrixEquals(
+                    ReferenceScenePoseCalculator.toDepthCameraOpenGlMatrix(devicePose, extrinsics),
+                    matrix);
+            Pose expected = ReferenceScenePoseCalculator.toDepthCameraOpenGlPose(devicePose,
+                    extrinsics);
+            assertPoseEquals(expected, pose);
+            assertPoseEquals(expected,
+                    ScenePoseCalculator.toDepthCameraOpenGlPose(devicePose, extrinsics));
+        }
+    }
+
+    @Test
+    public void getPointInEngineFrameMatchesRajawali() {
+        Random random = new Random(1);
+        List<TangoPoseData> poses = createPoses();
+        Vector3 outPoint = new Vector3();
+        for (int i = 0; i < poses.size(); i++) {
+            TangoPoseData deviceTPoint = poses.get(i);
+            TangoPoseData startServiceTDevice = poses.get(poses.size() - 1 - i);
+            Vector3 point = new Vector3(random.nextGaussian(), random.nextGaussian(),
+                    random.nextGaussian());
+            Vector3 expected = ReferenceScenePoseCalculator.getPointInEngineFrame(point,
+                    deviceTPoint, startServiceTDevice);
+
+            ScenePoseCalculator.getPointInEngineFrame(point, deviceTPoint, startServiceTDevice,
+                    outPoint);
+            assertVectorEquals(expected, outPoint);
+            assertVectorEquals(expected, ScenePoseCalculator.getPointInEngineFrame(point,
+                    deviceTPoint, startServiceTDevice));
+            // In place.
+            ScenePoseCalculator.getPointInEngineFrame(point, deviceTPoint, startServiceTDevice,
+                    point);
+            assertVectorEquals(expected, point);
+        }
+    }
+
+    @Test
+    public void planeFitToTangoWorldPoseMatchesRajawali() {
+        DeviceExtrinsics extrinsics = createExtrinsics();
+        double[] point = new double[] {0.1, -0.2, 1.5};
+        double[] normal = new double[] {0.3, 0.1, -1};
+        for (TangoPoseData devicePose : createPoses()) {
+            TangoPoseData expected = ReferenceScenePoseCalculator.planeFitToTangoWorldPose(point,
+                    normal, devicePose, extrinsics);
+            TangoPoseData actual = ScenePoseCalculator.planeFitToTangoWorldPose(point, normal,
+                    devicePose, extrinsics);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected.translation[i], actual.translation[i], TOLERANCE);
+            }
+            assertRotationEquals(expected.rotation[3], expected.rotation[0],
+                    expected.rotation[1], expected.rotation[2], actual.rotation[3],
+                    actual.rotation[0], actual.rotation[1], actual.rotation[2]);
+        }
+    }
+
+    /**
+     * Identity, half turns around the axes and around random axes with w at or near 0, of both
+     * signs, and random poses.
+     */
+    private static List<TangoPoseData> createPoses() {
+        Random random = new Random(0);
+        List<TangoPoseData> poses = new ArrayList<TangoPoseData>();
+        poses.add(createPose(random, 0, 0, 0, 1));
+        poses.add(createPose(random, 1, 0, 0, 0));
+        poses.add(createPose(random, 0, 1, 0, 0));
+        poses.add(createPose(random, 0, 0, 1, 0));
+        poses.add(createPose(random, 0, 0, 0, -1));
+        for (double w : W_NEAR_ZERO) {
+            for (int i = 0; i < 10; i++) {
+                double x = random.nextGaussian();
+                double y = random.nextGaussian();
+                double z = random.nextGaussian();
+                double scale = Math.sqrt((1 - w * w) / (x * x + y * y + z * z));
+                poses.add(createPose(random, x * scale, y * scale, z * scale, w));
+            }
+        }
+        for (int i = 0; i < NUMBER_OF_RANDOM_POSES; i++) {
+            poses.add(createPose(random, random.nextGaussian(), random.nextGaussian(),
+                    random.nextGaussian(), random.nextGaussian()));
+        }
+        return poses;
+    }
+
+    /**
+     * Create a pose with a random translation and the given rotation, normalized.
+     */
+    private static TangoPoseData createPose(Random random, double x, double y, double z,
+                                            double w) {
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        TangoPoseData pose = new TangoPoseData();
+        pose.statusCode = TangoPoseData.POSE_VALID;
+        pose.translation = new double[] {
+                10 * random.nextDouble() - 5, 10 * random.nextDouble() - 5,
+                10 * random.nextDouble() - 5};
+        pose.rotation = new double[] {x / norm, y / norm, z / norm, w / norm};
+        return pose;
+    }
+
+    /**
+     * Extrinsics of the development kit, with the cameras looking out of the back of the device.
+     */
+    private static DeviceExtrinsics createExtrinsics() {
+        Random random = new Random(2);
+        TangoPoseData imuTDevice = createPose(random, 0, 0, 0.7071068, 0.7071068);
+        TangoPoseData imuTColorCamera = createPose(random, 0.7071068, -0.7071068, 0, 0);
+        TangoPoseData imuTDepthCamera = createPose(random, 0.7071068, -0.7071068, 0.001, 0.001);
+        return new DeviceExtrinsics(imuTDevice, imuTColorCamera, imuTDepthCamera);
+    }
+
+    private static void assertMatrixEquals(Matrix4 expected, double[] actual) {
+        double[] values = expected.getDoubleValues();
+        for (int i = 0; i < 16; i++) {
+            assertEquals("Element " + i, values[i], actual[i], TOLERANCE);
+        }
+    }
+
+    private static void assertPoseEquals(Pose expected, Pose actual) {
+        assertVectorEquals(expected.getPosition(), actual.getPosition());
+        Quaternion e = expected.getOrientation();
+        Quaternion a = actual.getOrientation();
+        assertRotationEquals(e.w, e.x, e.y, e.z, a.w, a.x, a.y, a.z);
+    }
+
+    private static void assertVectorEquals(Vector3 expected, Vector3 actual) {
+        assertEquals(expected.x, actual.x, TOLERANCE);
+        assertEquals(expected.y, actual.y, TOLERANCE);
+        assertEquals(expected.z, actual.z, TOLERANCE);
+    }
+
+    // Unit quaternions q and -q are the same rotation.
+    private static void assertRotationEquals(double expectedW, double expectedX, double expectedY,
+                                             double expectedZ, double actualW, double actualX,
+                                             double actualY, double actualZ) {
+        double sign = expectedW * actualW + expectedX * actualX + expectedY * actualY
+                + expectedZ * actualZ < 0 ? -1 : 1;
+        assertEquals(expectedW, sign * actualW, TOLERANCE);
+        assertEquals(expectedX, sign * actualX, TOLERANCE);
+        assertEquals(expectedY, sign * actualY, TOLERANCE);
+        assertEquals(expectedZ, sign * actualZ, TOLERANCE);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.rajawali.renderables;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per point of updating a {@link PointCloud} with a full depth frame in each color mode,
+ * against the former path which copied the cloud to a new array and unpacked the palette color by
+ * color. Run with {@code -prof gc} to see the allocation per point.
+ * <p/>
+ * The geometry uploads are no-ops on the JVM, so this measures the CPU side of the update only.
+ * The {@code Color} methods only return 0 there too, so the palette of the former path is built
+ * from literal colors and unpacked with shifts, as {@code Color} does on the device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(PointCloudBenchmark.NUMBER_OF_POINTS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointCloudBenchmark {
+    // Typical number of points of a depth frame.
+    static final int NUMBER_OF_POINTS = 60000;
+    // The hues of the palette are interpolated between these opaque ARGB colors, 60 degrees
+    // apart: red, yellow, green, cyan, blue, magenta and red again.
+    private static final int[] HUE_COLORS = new int[] {
+            0xFFFF0000, 0xFFFFFF00, 0xFF00FF00, 0xFF00FFFF, 0xFF0000FF, 0xFFFF00FF, 0xFFFF0000};
+    private static final float HUE_COLOR_STEP = 60;
+
+    private FloatBuffer mPoints;
+    private PointCloud mFloatCloud;
+    private PointCloud mPackedCloud;
+    private PointCloud mShaderCloud;
+    private int[] mPalette;
+    private float[] mColorArray;
+
+    @Setup
+    public void setUp() {
+        mPoints = ByteBuffer.allocateDirect(NUMBER_OF_POINTS * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        Random random = new Random(0);
+        for (int i = 0; i < NUMBER_OF_POINTS; i++) {
+            float z = 0.5f + random.nextFloat() * 5;
+            mPoints.put((random.nextFloat() - 0.5f) * z);
+            mPoints.put((random.nextFloat() - 0.5f) * z);
+            mPoints.put(z);
+        }
+        mPoints.rewind();
+        mFloatCloud = new PointCloud(NUMBER_OF_POINTS, PointCloud.ColorMode.VERTEX_FLOAT);
+        mPackedCloud = new PointCloud(NUMBER_OF_POINTS, PointCloud.ColorMode.VERTEX_PACKED);
+        mShaderCloud = new PointCloud(NUMBER_OF_POINTS, PointCloud.ColorMode.SHADER);
+
+        mPalette = new int[PointCloud.PALETTE_SIZE];
+        for (int i = 0; i < mPalette.length; i++) {
+            float hue = (PointCloud.HUE_END - PointCloud.HUE_BEGIN) * i / mPalette.length
+                    + PointCloud.HUE_BEGIN;
+            int step = (int) (hue / HUE_COLOR_STEP);
+            mPalette[i] = interpolate(HUE_COLORS[step], HUE_COLORS[step + 1],
+                    hue / HUE_COLOR_STEP - step);
+        }
+        mColorArray = new float[NUMBER_OF_POINTS * 4];
+    }
+
+    /**
+     * The colorization before the lookup tables, kept for comparison.
+     */
+    @Benchmark
+    public void updateCloudCopyAndUnpack() {
+        float[] points = new float[NUMBER_OF_POINTS * 3];
+        mPoints.rewind();
+        mPoints.get(points);
+        mPoints.rewind();
+        for (int i = 0; i < NUMBER_OF_POINTS; i++) {
+            float z = points[i * 3 + 2];
+            int colorIndex = (int) Math.min(z / PointCloud.CLOUD_MAX_Z * mPalette.length,
+                    mPalette.length - 1);
+            colorIndex = Math.max(colorIndex, 0);
+            int color = mPalette[colorIndex];
+            mColorArray[i * 4] = ((color >> 16) & 0xFF) / 255f;
+            mColorArray[i * 4 + 1] = ((color >> 8) & 0xFF) / 255f;
+            mColorArray[i * 4 + 2] = (color & 0xFF) / 255f;
+            mColorArray[i * 4 + 3] = (color >>> 24) / 255f;
+        }
+        mFloatCloud.updatePoints(NUMBER_OF_POINTS, mPoints, mColorArray);
+    }
+
+    @Benchmark
+    public void updateCloudFloatColors() {
+        mFloatCloud.updateCloud(NUMBER_OF_POINTS, mPoints);
+    }
+
+    @Benchmark
+    public void updateCloudPackedColors() {
+        mPackedCloud.updateCloud(NUMBER_OF_POINTS, mPoints);
+    }
+
+    @Benchmark
+    public void updateCloudShaderColors() {
+        mShaderCloud.updateCloud(NUMBER_OF_POINTS, mPoints);
+    }
+
+    /**
+     * Interpolate each channel of two ARGB colors.
+     */
+    private static int interpolate(int color, int otherColor, float ratio) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int channel = (color >>> shift) & 0xFF;
+            int otherChannel = (otherColor >>> shift) & 0xFF;
+            result |= Math.round(channel + (otherChannel - channel) * ratio) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to fill a {@link DenseDepthMap} of a cloud of {@link RecordedCloudFixture} in the image of
+ * a 1280x720 color camera, at a quarter and at half of its resolution, with several numbers of
+ * threads, and time to find the point under a touch in the filled map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DenseDepthMapBenchmark {
+    // Color camera with the same field of view as the depth camera of the fixture.
+    private static final int COLOR_WIDTH = 1280;
+    private static final int COLOR_HEIGHT = 720;
+    private static final float COLOR_FOCAL_LENGTH = RecordedCloudFixture.DEPTH_FOCAL_LENGTH
+            * COLOR_WIDTH / RecordedCloudFixture.DEPTH_WIDTH;
+    // Same as the point to point example.
+    private static final int MAX_FILL_DISTANCE = 8;
+    // The color camera is a few centimeters to the side of the depth camera.
+    private static final float[] COLOR_T_DEPTH = new float[] {
+            1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0.04f, 0, 0, 1};
+    private static final float[] IDENTITY = new float[] {
+            1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    @Param({"4", "2"})
+    public int mDownsampling;
+
+    @Param({"1", "2", "4"})
+    public int mNumberOfThreads;
+
+    private TangoXyzIjData mXyzIj;
+    private DenseDepthMap mDepthMap;
+    private final float[] mPoint = new float[3];
+    private int mNextTouch;
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory = File.createTempFile("dense_depth_map", "");
+        directory.delete();
+        try {
+            RecordedCloudFixture.write(directory);
+            mXyzIj = new TangoXyzIjData();
+            new PointCloudRecording(directory).readPointCloud(0, mXyzIj);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = COLOR_WIDTH;
+        intrinsics.height = COLOR_HEIGHT;
+        intrinsics.fx = COLOR_FOCAL_LENGTH;
+        intrinsics.fy = COLOR_FOCAL_LENGTH;
+        intrinsics.cx = COLOR_WIDTH / 2;
+        intrinsics.cy = COLOR_HEIGHT / 2;
+        mDepthMap = new DenseDepthMap(intrinsics, mDownsampling, MAX_FILL_DISTANCE,
+                mNumberOfThreads);
+        mDepthMap.update(mXyzIj, COLOR_T_DEPTH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDepthMap.release();
+    }
+
+    @Benchmark
+    public double update() {
+        mDepthMap.update(mXyzIj, COLOR_T_DEPTH);
+        return mDepthMap.getTimestamp();
+    }
+
+    /**
+     * Touches spread over the image, from the pose of the map.
+     */
+    @Benchmark
+    public boolean getPoint() {
+        int touch = mNextTouch;
+        mNextTouch = (touch + 1) % 97;
+        return mDepthMap.getPoint(COLOR_WIDTH * (touch % 10 + 0.5f) / 10,
+                COLOR_HEIGHT * (touch / 10 + 0.5f) / 10, IDENTITY, mPoint);
+    }
+}
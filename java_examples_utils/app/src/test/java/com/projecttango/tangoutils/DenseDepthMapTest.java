@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DenseDepthMap} fills the pixels around the points of a cloud, and that an
+ * interrupted update reports it instead of finishing with a partially filled map.
+ */
+public class DenseDepthMapTest {
+    // Large enough for the stages of the finest levels to run in the threads.
+    private static final int SIZE = 256;
+    private static final int MAX_FILL_DISTANCE = 8;
+    private static final int NUMBER_OF_THREADS = 2;
+    private static final float DEPTH = 2;
+    private static final float[] IDENTITY = new float[] {
+            1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    private DenseDepthMap mDepthMap;
+    private TangoXyzIjData mXyzIj;
+
+    @Before
+    public void setUp() {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = SIZE;
+        intrinsics.height = SIZE;
+        intrinsics.fx = SIZE;
+        intrinsics.fy = SIZE;
+        intrinsics.cx = SIZE / 2;
+        intrinsics.cy = SIZE / 2;
+        mDepthMap = new DenseDepthMap(intrinsics, 1, MAX_FILL_DISTANCE, NUMBER_OF_THREADS);
+
+        // A single point in the middle of the image.
+        mXyzIj = new TangoXyzIjData();
+        mXyzIj.xyz = ByteBuffer.allocateDirect(3 * 4).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mXyzIj.xyz.put(0, 0).put(1, 0).put(2, DEPTH);
+        mXyzIj.xyzCount = 1;
+        mXyzIj.timestamp = 1;
+    }
+
+    @After
+    public void tearDown() {
+        // Clear the flag in case an assertion failed before the test did.
+        Thread.interrupted();
+        mDepthMap.release();
+    }
+
+    @Test
+    public void fillsPixelsNearPoints() {
+        assertTrue(mDepthMap.update(mXyzIj, IDENTITY));
+        assertEquals(1, mDepthMap.getTimestamp(), 0);
+        assertEquals(DEPTH, mDepthMap.getDepth(0.5f, 0.5f), 1e-3f);
+        assertEquals(DEPTH, mDepthMap.getDepth(0.5f + 4f / SIZE, 0.5f), 1e-3f);
+        assertTrue(Float.isNaN(mDepthMap.getDepth(0.1f, 0.1f)));
+    }
+
+    @Test
+    public void interruptedUpdateIsNotFinished() {
+        Thread.currentThread().interrupt();
+        assertFalse(mDepthMap.update(mXyzIj, IDENTITY));
+        assertTrue(Thread.interrupted());
+        assertTrue(Double.isNaN(mDepthMap.getTimestamp()));
+
+        assertTrue(mDepthMap.update(mXyzIj, IDENTITY));
+        assertEquals(1, mDepthMap.getTimestamp(), 0);
+    }
+}
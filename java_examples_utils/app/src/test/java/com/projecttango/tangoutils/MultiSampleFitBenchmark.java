@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the steps of a multi-sample wall measurement like the one of the floor plan example:
+ * gathering the points around a click from the latest clouds of a {@link PointCloudHistory}, then
+ * fitting them with the RANSAC and MSAC kernels of the {@link PlaneFitter}.
+ * <p/>
+ * The clouds are full 320x180 depth images of a wall 2 m in front of the camera, with 1 cm of
+ * noise and a fifth of the points scattered in front of it, which gives about 2000 points near the
+ * click.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiSampleFitBenchmark {
+    // Same settings as the floor plan example.
+    private static final int NUMBER_OF_CLOUDS = 5;
+    private static final int MAX_NUMBER_OF_FIT_POINTS = 4096;
+    private static final float FIT_PIXEL_RADIUS = 40;
+    private static final float FIT_INLIER_THRESHOLD = 0.02f;
+    private static final int FIT_MAX_ITERATIONS = 200;
+
+    private static final int DEPTH_WIDTH = 320;
+    private static final int DEPTH_HEIGHT = 180;
+    private static final int NUMBER_OF_POINTS = DEPTH_WIDTH * DEPTH_HEIGHT;
+    private static final float WALL_DISTANCE = 2;
+    private static final float NOISE = 0.01f;
+    private static final float OUTLIER_RATIO = 0.2f;
+
+    private PointCloudHistory mPointCloudHistory;
+    private TangoCameraIntrinsics mIntrinsics;
+    private final float[] mCameraTOpenGl = new float[16];
+    private final float[] mFitPoints = new float[MAX_NUMBER_OF_FIT_POINTS * 3];
+    private int mNumberOfFitPoints;
+    private PlaneFitter mPlaneFitter;
+
+    @Setup
+    public void setUp() {
+        mIntrinsics = new TangoCameraIntrinsics();
+        mIntrinsics.width = 1280;
+        mIntrinsics.height = 720;
+        mIntrinsics.fx = 1040;
+        mIntrinsics.fy = 1040;
+        mIntrinsics.cx = 640;
+        mIntrinsics.cy = 360;
+
+        // The clouds are taken from slightly different positions, looking at the wall along Z. The
+        // small motion is ignored when generating them.
+        Random random = new Random(0);
+        mPointCloudHistory = new PointCloudHistory(NUMBER_OF_CLOUDS, NUMBER_OF_POINTS);
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        xyzIj.xyz = ByteBuffer.allocateDirect(NUMBER_OF_POINTS * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        xyzIj.xyzCount = NUMBER_OF_POINTS;
+        float[] openGlTDepth = new float[16];
+        for (int cloud = 0; cloud < NUMBER_OF_CLOUDS; cloud++) {
+            RigidTransforms.setIdentity(openGlTDepth, 0);
+            openGlTDepth[12] = 0.02f * cloud;
+            openGlTDepth[13] = -0.01f * cloud;
+            for (int i = 0; i < NUMBER_OF_POINTS; i++) {
+                float z = WALL_DISTANCE + NOISE * (float) random.nextGaussian();
+                if (random.nextFloat() < OUTLIER_RATIO) {
+                    z *= random.nextFloat();
+                }
+                float pixelX = (i % DEPTH_WIDTH + 0.5f) * mIntrinsics.width / DEPTH_WIDTH;
+                float pixelY = (i / DEPTH_WIDTH + 0.5f) * mIntrinsics.height / DEPTH_HEIGHT;
+                xyzIj.xyz.put(i * 3, (float) ((pixelX - mIntrinsics.cx) / mIntrinsics.fx) * z);
+                xyzIj.xyz.put(i * 3 + 1, (float) ((pixelY - mIntrinsics.cy) / mIntrinsics.fy) * z);
+                xyzIj.xyz.put(i * 3 + 2, z);
+            }
+            xyzIj.timestamp = cloud * 0.2;
+            mPointCloudHistory.add(xyzIj, openGlTDepth);
+        }
+        RigidTransforms.setIdentity(mCameraTOpenGl, 0);
+        mPlaneFitter = new PlaneFitter(FIT_INLIER_THRESHOLD, FIT_MAX_ITERATIONS, 0);
+        mNumberOfFitPoints = copyPointsNearClick();
+        System.out.println("Points near the click: " + mNumberOfFitPoints);
+    }
+
+    @Benchmark
+    public int copyPointsNearClick() {
+        return mPointCloudHistory.copyPointsNearPixel(mCameraTOpenGl, mIntrinsics, 0.5f, 0.5f,
+                FIT_PIXEL_RADIUS, mFitPoints, MAX_NUMBER_OF_FIT_POINTS);
+    }
+
+    @Benchmark
+    public boolean fitRansac() {
+        return mPlaneFitter.fitRansac(mFitPoints, mNumberOfFitPoints);
+    }
+
+    @Benchmark
+    public boolean fitMsac() {
+        return mPlaneFitter.fitMsac(mFitPoints, mNumberOfFitPoints);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and accuracy of the least squares, RANSAC and MSAC methods of {@link PlaneFitter} on
+ * recorded point clouds, fitting near a click at the center of the color image with the settings
+ * of the plane fitting example.
+ * <p/>
+ * The clouds are the ones of {@link RecordedCloudFixture} by default. Their accuracy is printed
+ * at the end of each trial: the error of the normal and of the intersection with the ray through
+ * the click, and the precision and recall of the inliers against the points of the wall. A
+ * recording made on a device can be used instead with {@code -p mRecording=<directory>}, in which
+ * case only the confidence and the RMS error are printed since the scene is unknown.
+ * <p/>
+ * The native {@code TangoSupport.fitPlaneModelNearClick} cannot run on a JVM, so it has to be
+ * compared on a device by selecting it in the examples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaneFitterBenchmark {
+    // Same settings as the plane fitting example.
+    private static final float FIT_PIXEL_RADIUS = 40;
+    private static final float FIT_INLIER_THRESHOLD = 0.02f;
+    private static final int FIT_MAX_ITERATIONS = 200;
+    private static final float CLICK_U = 0.5f;
+    private static final float CLICK_V = 0.5f;
+
+    @Param({"LEAST_SQUARES", "RANSAC", "MSAC"})
+    public String mMethod;
+
+    // Directory of a recording made on a device, or empty to use the fixture.
+    @Param({""})
+    public String mRecording;
+
+    private File mFixtureDirectory;
+    private TangoXyzIjData[] mClouds;
+    private TangoCameraIntrinsics mIntrinsics;
+    private TangoPoseData mColorTDepthPose;
+    private PlaneFitter mPlaneFitter;
+    private int mMethodValue;
+    private int mCloud;
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory;
+        if (mRecording.isEmpty()) {
+            mFixtureDirectory = File.createTempFile("plane_fitter", "");
+            mFixtureDirectory.delete();
+            RecordedCloudFixture.write(mFixtureDirectory);
+            directory = mFixtureDirectory;
+        } else {
+            directory = new File(mRecording);
+        }
+        PointCloudRecording recording = new PointCloudRecording(directory);
+        mClouds = new TangoXyzIjData[recording.getNumberOfRecords()];
+        for (int i = 0; i < mClouds.length; i++) {
+            mClouds[i] = new TangoXyzIjData();
+            recording.readPointCloud(i, mClouds[i]);
+        }
+
+        // Color camera of the development kit, at the same place as the depth camera.
+        mIntrinsics = new TangoCameraIntrinsics();
+        mIntrinsics.width = 1280;
+        mIntrinsics.height = 720;
+        mIntrinsics.fx = 1040;
+        mIntrinsics.fy = 1040;
+        mIntrinsics.cx = 640;
+        mIntrinsics.cy = 360;
+        mColorTDepthPose = new TangoPoseData();
+        mColorTDepthPose.translation = new double[] {0, 0, 0};
+        mColorTDepthPose.rotation = new double[] {0, 0, 0, 1};
+
+        mPlaneFitter = new PlaneFitter(FIT_INLIER_THRESHOLD, FIT_MAX_ITERATIONS, 0);
+        if ("LEAST_SQUARES".equals(mMethod)) {
+            mMethodValue = PlaneFitter.METHOD_LEAST_SQUARES;
+        } else if ("RANSAC".equals(mMethod)) {
+            mMethodValue = PlaneFitter.METHOD_RANSAC;
+        } else {
+            mMethodValue = PlaneFitter.METHOD_MSAC;
+        }
+    }
+
+    @Benchmark
+    public boolean fitNearClick() {
+        TangoXyzIjData xyzIj = mClouds[mCloud];
+        mCloud = (mCloud + 1) % mClouds.length;
+        return mPlaneFitter.fitNearClick(xyzIj, mIntrinsics, mColorTDepthPose, CLICK_U, CLICK_V,
+                FIT_PIXEL_RADIUS, mMethodValue);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mFixtureDirectory == null) {
+            printConfidence();
+        } else {
+            printAccuracy();
+            File[] files = mFixtureDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mFixtureDirectory.delete();
+        }
+    }
+
+    private void printConfidence() {
+        int numberOfFits = 0;
+        float confidence = 0;
+        float rmsError = 0;
+        for (TangoXyzIjData xyzIj : mClouds) {
+            if (mPlaneFitter.fitNearClick(xyzIj, mIntrinsics, mColorTDepthPose, CLICK_U, CLICK_V,
+                    FIT_PIXEL_RADIUS, mMethodValue)) {
+                numberOfFits++;
+                confidence += mPlaneFitter.getConfidence();
+                rmsError += mPlaneFitter.getRmsError();
+            }
+        }
+        System.out.printf("%n%s: %d/%d fits, confidence %.3f, RMS error %.2f mm%n", mMethod,
+                numberOfFits, mClouds.length, confidence / numberOfFits,
+                1000 * rmsError / numberOfFits);
+    }
+
+    private void printAccuracy() {
+        // The ray through the click is along the optical axis of both cameras.
+        float rayX = (float) ((CLICK_U * mIntrinsics.width - mIntrinsics.cx) / mIntrinsics.fx);
+        float rayY = (float) ((CLICK_V * mIntrinsics.height - mIntrinsics.cy) / mIntrinsics.fy);
+        float truthDepth = -RecordedCloudFixture.WALL_DISTANCE
+                / (RecordedCloudFixture.WALL_NORMAL_X * rayX
+                + RecordedCloudFixture.WALL_NORMAL_Y * rayY + RecordedCloudFixture.WALL_NORMAL_Z);
+        double[] intersection = new double[3];
+        int numberOfFits = 0;
+        double angleError = 0;
+        double intersectionError = 0;
+        int truePositives = 0;
+        int falsePositives = 0;
+        int falseNegatives = 0;
+        for (TangoXyzIjData xyzIj : mClouds) {
+            if (!mPlaneFitter.fitNearClick(xyzIj, mIntrinsics, mColorTDepthPose, CLICK_U, CLICK_V,
+                    FIT_PIXEL_RADIUS, mMethodValue)) {
+                continue;
+            }
+            numberOfFits++;
+            float cosine = mPlaneFitter.getNormalX() * RecordedCloudFixture.WALL_NORMAL_X
+                    + mPlaneFitter.getNormalY() * RecordedCloudFixture.WALL_NORMAL_Y
+                    + mPlaneFitter.getNormalZ() * RecordedCloudFixture.WALL_NORMAL_Z;
+            angleError += Math.toDegrees(Math.acos(Math.min(cosine, 1)));
+            mPlaneFitter.getIntersectionPoint(intersection);
+            double dx = intersection[0] - rayX * truthDepth;
+            double dy = intersection[1] - rayY * truthDepth;
+            double dz = intersection[2] - truthDepth;
+            intersectionError += Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            // Label the points near the click, with the identity transform between the cameras.
+            for (int i = 0; i < xyzIj.xyzCount; i++) {
+                float x = xyzIj.xyz.get(i * 3);
+                float y = xyzIj.xyz.get(i * 3 + 1);
+                float z = xyzIj.xyz.get(i * 3 + 2);
+                if (z <= 0 || !isNearClick(x / z, y / z)) {
+                    continue;
+                }
+                boolean isWall = Math.abs(RecordedCloudFixture.getWallDistance(x, y, z))
+                        <= FIT_INLIER_THRESHOLD;
+                boolean isInlier = Math.abs(mPlaneFitter.getSignedDistance(x, y, z))
+                        <= FIT_INLIER_THRESHOLD;
+                if (isInlier && isWall) {
+                    truePositives++;
+                } else if (isInlier) {
+                    falsePositives++;
+                } else if (isWall) {
+                    falseNegatives++;
+                }
+            }
+        }
+        System.out.printf("%n%s: %d/%d fits, normal error %.2f deg, intersection error %.1f mm, "
+                        + "inlier precision %.3f, recall %.3f%n", mMethod, numberOfFits,
+                mClouds.length, angleError / numberOfFits, 1000 * intersectionError / numberOfFits,
+                (float) truePositives / (truePositives + falsePositives),
+                (float) truePositives / (truePositives + falseNegatives));
+    }
+
+    private boolean isNearClick(float normalizedX, float normalizedY) {
+        double distanceX = mIntrinsics.fx * normalizedX + mIntrinsics.cx
+                - CLICK_U * mIntrinsics.width;
+        double distanceY = mIntrinsics.fy * normalizedY + mIntrinsics.cy
+                - CLICK_V * mIntrinsics.height;
+        return Math.abs(distanceX) <= FIT_PIXEL_RADIUS && Math.abs(distanceY) <= FIT_PIXEL_RADIUS;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PointCloudHistory} keeps the latest clouds and that the clouds copied by
+ * {@link PointCloudHistory#copyPointsNearPixel} are whole, newest first, while other clouds are
+ * added at the same time.
+ * <p/>
+ * Every point of a cloud is on the axis of the camera at a depth that identifies the cloud, so the
+ * copied points show which clouds they come from.
+ */
+public class PointCloudHistoryTest {
+    private static final int CAPACITY = 3;
+    private static final int NUMBER_OF_POINTS = 20000;
+    private static final float DEPTH_STEP = 0.001f;
+    private static final float[] IDENTITY = new float[] {
+            1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+    private static final float PIXEL_RADIUS = 2;
+    private static final long CONCURRENT_TEST_MS = 1000;
+    // The depths identify the clouds modulo this number, before they lose their precision.
+    private static final int NUMBER_OF_DEPTHS = 1000;
+
+    @Test
+    public void keepsLatestClouds() {
+        PointCloudHistory history = new PointCloudHistory(CAPACITY, NUMBER_OF_POINTS);
+        TangoXyzIjData xyzIj = createCloud();
+        for (int cloud = 0; cloud < 7; cloud++) {
+            history.add(setCloud(xyzIj, cloud), IDENTITY);
+        }
+        assertEquals(CAPACITY, history.size());
+        for (int age = 0; age < CAPACITY; age++) {
+            assertEquals(6 - age, history.getTimestamp(age), 0);
+        }
+        float[] points = new float[CAPACITY * NUMBER_OF_POINTS * 3];
+        int count = history.copyPointsNearPixel(IDENTITY, createIntrinsics(), 0.5f, 0.5f,
+                PIXEL_RADIUS, points, CAPACITY * NUMBER_OF_POINTS);
+        assertEquals(CAPACITY * NUMBER_OF_POINTS, count);
+        assertEquals(6, getNewestCopiedCloud(points, count));
+        assertEquals(6, history.getCopiedTimestamp(), 0);
+
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(0, history.copyPointsNearPixel(IDENTITY, createIntrinsics(), 0.5f, 0.5f,
+                PIXEL_RADIUS, points, CAPACITY * NUMBER_OF_POINTS));
+    }
+
+    @Test
+    public void copiesWholeCloudsWhileCloudsAreAdded() throws InterruptedException {
+        final PointCloudHistory history = new PointCloudHistory(CAPACITY, NUMBER_OF_POINTS);
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TangoXyzIjData xyzIj = createCloud();
+                for (int cloud = 0; isRunning.get(); cloud++) {
+                    history.add(setCloud(xyzIj, cloud), IDENTITY);
+                }
+            }
+        });
+        producer.start();
+        float[] points = new float[CAPACITY * NUMBER_OF_POINTS * 3];
+        TangoCameraIntrinsics intrinsics = createIntrinsics();
+        int numberOfCopies = 0;
+        int previousNewestCloud = -1;
+        try {
+            long end = System.currentTimeMillis() + CONCURRENT_TEST_MS;
+            while (System.currentTimeMillis() < end) {
+                int count = history.copyPointsNearPixel(IDENTITY, intrinsics, 0.5f, 0.5f,
+                        PIXEL_RADIUS, points, CAPACITY * NUMBER_OF_POINTS);
+                if (count == 0) {
+                    continue;
+                }
+                int newestCloud = (int) history.getCopiedTimestamp();
+                assertEquals(newestCloud % NUMBER_OF_DEPTHS, getNewestCopiedCloud(points, count));
+                assertTrue(newestCloud >= previousNewestCloud);
+                previousNewestCloud = newestCloud;
+                numberOfCopies++;
+            }
+        } finally {
+            isRunning.set(false);
+            producer.join();
+        }
+        assertTrue(numberOfCopies > 0);
+    }
+
+    /**
+     * Check that the copied points are whole clouds, consecutive and newest first.
+     *
+     * @return The newest copied cloud, modulo the number of depths.
+     */
+    private static int getNewestCopiedCloud(float[] points, int count) {
+        assertEquals(0, count % NUMBER_OF_POINTS);
+        int newestCloud = getCloud(points, 0);
+        for (int i = 0; i < count; i++) {
+            int cloud = (newestCloud - i / NUMBER_OF_POINTS + NUMBER_OF_DEPTHS) % NUMBER_OF_DEPTHS;
+            assertEquals("Point " + i, cloud, getCloud(points, i));
+        }
+        return newestCloud;
+    }
+
+    private static int getCloud(float[] points, int point) {
+        return Math.round((points[point * 3 + 2] - 1) / DEPTH_STEP);
+    }
+
+    private static TangoXyzIjData createCloud() {
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        xyzIj.xyz = ByteBuffer.allocateDirect(NUMBER_OF_POINTS * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        xyzIj.xyzCount = NUMBER_OF_POINTS;
+        return xyzIj;
+    }
+
+    private static TangoXyzIjData setCloud(TangoXyzIjData xyzIj, int cloud) {
+        float depth = 1 + (cloud % NUMBER_OF_DEPTHS) * DEPTH_STEP;
+        for (int i = 0; i < NUMBER_OF_POINTS; i++) {
+            xyzIj.xyz.put(i * 3, 0);
+            xyzIj.xyz.put(i * 3 + 1, 0);
+            xyzIj.xyz.put(i * 3 + 2, depth);
+        }
+        xyzIj.timestamp = cloud;
+        return xyzIj;
+    }
+
+    private static TangoCameraIntrinsics createIntrinsics() {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = 100;
+        intrinsics.height = 100;
+        intrinsics.fx = 100;
+        intrinsics.fy = 100;
+        intrinsics.cx = 50;
+        intrinsics.cy = 50;
+        return intrinsics;
+    }
+}
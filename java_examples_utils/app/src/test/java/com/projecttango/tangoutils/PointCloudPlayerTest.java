@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
+import com.google.atap.tangoservice.TangoEvent;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records a moving device with {@link PointCloudRecorder}, reads it back with
+ * {@link PointCloudRecording} and replays it with {@link PointCloudPlayer} into a listener which
+ * handles the poses like the point cloud example, checking that the depth camera transforms it
+ * computes are the recorded ones.
+ */
+public class PointCloudPlayerTest {
+    private static final int NUMBER_OF_CLOUDS = 40;
+    private static final int MAX_POINT_COUNT = 2000;
+    private static final double FIRST_TIMESTAMP = 100;
+    private static final double CLOUD_PERIOD = 0.2;
+    // Small enough for the recording to span several segments.
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private static final float TRANSFORM_TOLERANCE = 1e-5f;
+    // Same as ScenePoseCalculator.OPENGL_T_TANGO_WORLD.
+    private static final float[] OPENGL_T_TANGO_WORLD = new float[] {
+            1, 0, 0, 0, 0, 0, -1, 0, 0, 1, 0, 0, 0, 0, 0, 1};
+
+    private File mDirectory;
+    private float[][] mPoints;
+    private float[][] mRecordedOpenGlTDepth;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("point_cloud_player", "");
+        mDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void recordingReadsBackRecordedClouds() throws IOException {
+        int numberOfSegments = record(RecordedCloudFixture.DEVICE_T_DEPTH);
+        assertTrue(numberOfSegments > 1);
+        // The segment mapped ahead for the next clouds is discarded, the others are truncated.
+        File[] files = mDirectory.listFiles();
+        assertEquals(numberOfSegments, files.length);
+        for (File file : files) {
+            assertTrue(file.getName(), file.length() < SEGMENT_SIZE);
+        }
+
+        PointCloudRecording recording = new PointCloudRecording(mDirectory);
+        assertEquals(NUMBER_OF_CLOUDS, recording.getNumberOfRecords());
+        float[] deviceTDepth = new float[16];
+        assertTrue(recording.getDeviceTDepth(deviceTDepth));
+        assertArrayEquals(RecordedCloudFixture.DEVICE_T_DEPTH, deviceTDepth, 0);
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        float[] openGlTDepth = new float[16];
+        for (int record = 0; record < NUMBER_OF_CLOUDS; record++) {
+            assertEquals(FIRST_TIMESTAMP + record * CLOUD_PERIOD, recording.getTimestamp(record),
+                    0);
+            assertTrue(recording.getTransform(record, openGlTDepth));
+            assertArrayEquals(mRecordedOpenGlTDepth[record], openGlTDepth, 0);
+            recording.readPointCloud(record, xyzIj);
+            assertCloudEquals(mPoints[record], xyzIj);
+        }
+    }
+
+    @Test
+    public void recordingRejectsRecordsLargerThanTheirSegment() throws IOException {
+        record(RecordedCloudFixture.DEVICE_T_DEPTH);
+        // A count whose size overflows an int to 0, and one just past the end of the segment.
+        assertRejectsPointCount(0x40000000);
+        File segment = new File(mDirectory, PointCloudRecorder.getSegmentName(0));
+        assertRejectsPointCount((int) ((segment.length() - PointCloudRecorder.FILE_HEADER_SIZE
+                - PointCloudRecorder.RECORD_HEADER_SIZE) / 12 + 1));
+        assertRejectsPointCount(-2);
+    }
+
+    @Test
+    public void playerReplaysDevicePosesOfRecordedClouds() throws Exception {
+        record(RecordedCloudFixture.DEVICE_T_DEPTH);
+        ReplayListener listener = new ReplayListener(RecordedCloudFixture.DEVICE_T_DEPTH);
+        PointCloudPlayer player = new PointCloudPlayer(new PointCloudRecording(mDirectory),
+                listener, PointCloudPlayer.MAX_SPEED);
+        player.start();
+        player.join();
+
+        assertEquals(NUMBER_OF_CLOUDS, listener.mNumberOfPoses);
+        assertEquals(NUMBER_OF_CLOUDS, listener.mNumberOfClouds);
+        assertTrue("Largest transform error " + listener.mMaxTransformError,
+                listener.mMaxTransformError < TRANSFORM_TOLERANCE);
+        assertEquals(0, listener.mNumberOfMissingTransforms);
+    }
+
+    @Test
+    public void playerReplaysOnlyCloudsWithoutDeviceTransform() throws Exception {
+        record(null);
+        PointCloudRecording recording = new PointCloudRecording(mDirectory);
+        assertFalse(recording.getDeviceTDepth(new float[16]));
+        ReplayListener listener = new ReplayListener(RecordedCloudFixture.DEVICE_T_DEPTH);
+        new PointCloudPlayer(recording, listener, PointCloudPlayer.MAX_SPEED).run();
+
+        assertEquals(0, listener.mNumberOfPoses);
+        assertEquals(NUMBER_OF_CLOUDS, listener.mNumberOfClouds);
+    }
+
+    /**
+     * Check that the recording can't be opened once the number of points of its first record is
+     * replaced.
+     */
+    private void assertRejectsPointCount(int pointCount) throws IOException {
+        File segment = new File(mDirectory, PointCloudRecorder.getSegmentName(0));
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(PointCloudRecorder.FILE_HEADER_SIZE + 8);
+            // The recording is little endian.
+            file.writeInt(Integer.reverseBytes(pointCount));
+        } finally {
+            file.close();
+        }
+        try {
+            new PointCloudRecording(mDirectory);
+            fail("Opened a recording with " + pointCount + " points in its first record");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Record the clouds of a device turning and moving around, with rotations of all kinds,
+     * including half turns.
+     *
+     * @return The number of segments of the recording.
+     */
+    private int record(float[] deviceTDepth) throws IOException {
+        Random random = new Random(0);
+        mPoints = new float[NUMBER_OF_CLOUDS][];
+        mRecordedOpenGlTDepth = new float[NUMBER_OF_CLOUDS][16];
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        xyzIj.xyz = ByteBuffer.allocateDirect(MAX_POINT_COUNT * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        PointCloudRecorder recorder = new PointCloudRecorder(mDirectory, SEGMENT_SIZE,
+                deviceTDepth);
+        try {
+            for (int cloud = 0; cloud < NUMBER_OF_CLOUDS; cloud++) {
+                for (int i = 0; i < 3; i++) {
+                    translation[i] = 4 * random.nextDouble() - 2;
+                }
+                setRotation(cloud, random, rotation);
+                float[] openGlTDepth = mRecordedOpenGlTDepth[cloud];
+                RigidTransforms.setFromTranslationRotation(openGlTDepth, 0, translation,
+                        rotation);
+                RigidTransforms.multiply(openGlTDepth, 0, OPENGL_T_TANGO_WORLD, 0,
+                        openGlTDepth, 0);
+                if (deviceTDepth != null) {
+                    RigidTransforms.multiply(openGlTDepth, 0, openGlTDepth.clone(), 0,
+                            deviceTDepth, 0);
+                }
+
+                int pointCount = random.nextInt(MAX_POINT_COUNT + 1);
+                float[] points = new float[pointCount * 3];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = 8 * random.nextFloat() - 4;
+                }
+                mPoints[cloud] = points;
+                xyzIj.xyz.clear();
+                xyzIj.xyz.put(points);
+                xyzIj.xyzCount = pointCount;
+                xyzIj.timestamp = FIRST_TIMESTAMP + cloud * CLOUD_PERIOD;
+                recorder.record(xyzIj, openGlTDepth);
+            }
+        } finally {
+            recorder.close();
+        }
+        return recorder.getNumberOfSegments();
+    }
+
+    // Half turns around each axis first, where the rotation has w = 0, then random rotations.
+    private static void setRotation(int cloud, Random random, double[] rotation) {
+        if (cloud < 3) {
+            rotation[0] = cloud == 0 ? 1 : 0;
+            rotation[1] = cloud == 1 ? 1 : 0;
+            rotation[2] = cloud == 2 ? 1 : 0;
+            rotation[3] = 0;
+            return;
+        }
+        double norm = 0;
+        for (int i = 0; i < 4; i++) {
+            rotation[i] = random.nextGaussian();
+            norm += rotation[i] * rotation[i];
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < 4; i++) {
+            rotation[i] /= norm;
+        }
+    }
+
+    private static void assertCloudEquals(float[] points, TangoXyzIjData xyzIj) {
+        assertEquals(points.length / 3, xyzIj.xyzCount);
+        assertEquals(points.length, xyzIj.xyz.capacity());
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(points[i], xyzIj.xyz.get(i), 0);
+        }
+    }
+
+    /**
+     * Handles the poses like the point cloud example: they are added to a pose history, which
+     * gives the transform of each point cloud into the OpenGL world.
+     */
+    private class ReplayListener implements OnTangoUpdateListener {
+        private final PoseHistory mPoseHistory = new PoseHistory(16, 0.1);
+        private final float[] mDeviceTDepth;
+        private final float[] mOpenGlTDepth = new float[16];
+        private int mNumberOfPoses;
+        private int mNumberOfClouds;
+        private int mNumberOfMissingTransforms;
+        private float mMaxTransformError;
+
+        ReplayListener(float[] deviceTDepth) {
+            mDeviceTDepth = deviceTDepth;
+        }
+
+        @Override
+        public void onPoseAvailable(TangoPoseData pose) {
+            assertEquals(TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE, pose.baseFrame);
+            assertEquals(TangoPoseData.COORDINATE_FRAME_DEVICE, pose.targetFrame);
+            mPoseHistory.addPose(pose);
+            mNumberOfPoses++;
+        }
+
+        @Override
+        public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
+            int cloud = mNumberOfClouds++;
+            assertEquals(FIRST_TIMESTAMP + cloud * CLOUD_PERIOD, xyzIj.timestamp, 0);
+            assertCloudEquals(mPoints[cloud], xyzIj);
+            if (!mPoseHistory.getMatrixTransformAtTime(xyzIj.timestamp, OPENGL_T_TANGO_WORLD,
+                    mDeviceTDepth, mOpenGlTDepth)) {
+                mNumberOfMissingTransforms++;
+                return;
+            }
+            for (int i = 0; i < 16; i++) {
+                mMaxTransformError = Math.max(mMaxTransformError,
+                        Math.abs(mOpenGlTDepth[i] - mRecordedOpenGlTDepth[cloud][i]));
+            }
+        }
+
+        @Override
+        public void onFrameAvailable(int cameraId) {
+        }
+
+        @Override
+        public void onTangoEvent(TangoEvent event) {
+        }
+    }
+}
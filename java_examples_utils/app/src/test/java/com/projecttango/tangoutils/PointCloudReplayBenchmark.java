@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
+import com.google.atap.tangoservice.TangoEvent;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to replay a whole recording with {@link PointCloudPlayer} through the accumulation
+ * pipeline of the point cloud example: the device poses go to a {@link PoseHistory}, which gives
+ * the transform of each point cloud into the OpenGL world, and the point clouds are inserted into
+ * a {@link VoxelGrid} with that transform.
+ * <p/>
+ * The recording is the one of {@link RecordedCloudFixture} by default. A recording made on a
+ * device can be used instead with {@code -p mRecording=<directory>}. The number of point clouds
+ * accumulated and of voxels are printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointCloudReplayBenchmark {
+    // Same settings as the point cloud example.
+    private static final int POSE_HISTORY_CAPACITY = 256;
+    private static final double POSE_HISTORY_MAX_GAP = 0.1;
+    private static final float LEAF_SIZE = 0.05f;
+    private static final int MAX_NUMBER_OF_VOXELS = 1000000;
+    private static final float[] OPENGL_T_TANGO_WORLD = new float[] {
+            1, 0, 0, 0, 0, 0, -1, 0, 0, 1, 0, 0, 0, 0, 0, 1};
+
+    // Directory of a recording made on a device, or empty to use the fixture.
+    @Param({""})
+    public String mRecording;
+
+    private File mFixtureDirectory;
+    private PointCloudRecording mPointCloudRecording;
+    private AccumulatingListener mListener;
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory;
+        if (mRecording.isEmpty()) {
+            mFixtureDirectory = File.createTempFile("point_cloud_replay", "");
+            mFixtureDirectory.delete();
+            RecordedCloudFixture.write(mFixtureDirectory);
+            directory = mFixtureDirectory;
+        } else {
+            directory = new File(mRecording);
+        }
+        mPointCloudRecording = new PointCloudRecording(directory);
+        float[] deviceTDepth = new float[16];
+        if (!mPointCloudRecording.getDeviceTDepth(deviceTDepth)) {
+            throw new IOException("The recording has no device to depth camera transform");
+        }
+        mListener = new AccumulatingListener(deviceTDepth);
+    }
+
+    @Setup(Level.Invocation)
+    public void clear() {
+        mListener.clear();
+    }
+
+    @Benchmark
+    public int replay() {
+        new PointCloudPlayer(mPointCloudRecording, mListener, PointCloudPlayer.MAX_SPEED).run();
+        return mListener.mVoxelGrid.getNumberOfVoxels();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%d/%d point clouds accumulated in %d voxels%n",
+                mListener.mNumberOfAccumulatedClouds, mPointCloudRecording.getNumberOfRecords(),
+                mListener.mVoxelGrid.getNumberOfVoxels());
+        if (mFixtureDirectory != null) {
+            File[] files = mFixtureDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mFixtureDirectory.delete();
+        }
+    }
+
+    private static class AccumulatingListener implements OnTangoUpdateListener {
+        private final PoseHistory mPoseHistory =
+                new PoseHistory(POSE_HISTORY_CAPACITY, POSE_HISTORY_MAX_GAP);
+        private final VoxelGrid mVoxelGrid = new VoxelGrid(LEAF_SIZE, MAX_NUMBER_OF_VOXELS);
+        private final float[] mDeviceTDepth;
+        private final float[] mOpenGlTDepth = new float[16];
+        private int mNumberOfAccumulatedClouds;
+
+        AccumulatingListener(float[] deviceTDepth) {
+            mDeviceTDepth = deviceTDepth;
+        }
+
+        void clear() {
+            mPoseHistory.clear();
+            mVoxelGrid.clear();
+            mNumberOfAccumulatedClouds = 0;
+        }
+
+        @Override
+        public void onPoseAvailable(TangoPoseData pose) {
+            mPoseHistory.addPose(pose);
+        }
+
+        @Override
+        public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
+            if (mPoseHistory.getMatrixTransformAtTime(xyzIj.timestamp, OPENGL_T_TANGO_WORLD,
+                    mDeviceTDepth, mOpenGlTDepth)) {
+                mVoxelGrid.insert(xyzIj.xyz, xyzIj.xyzCount, mOpenGlTDepth);
+                mNumberOfAccumulatedClouds++;
+            }
+        }
+
+        @Override
+        public void onFrameAvailable(int cameraId) {
+        }
+
+        @Override
+        public void onTangoEvent(TangoEvent event) {
+        }
+    }
+}
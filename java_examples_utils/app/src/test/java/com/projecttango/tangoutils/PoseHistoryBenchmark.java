@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoPoseData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the {@link PoseHistory} lookups for random times within the buffered poses, for the
+ * lookup of the latest pose and for a lookup missing the buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoseHistoryBenchmark {
+    // Poses are received at 100 Hz.
+    private static final double POSE_PERIOD = 0.01;
+    private static final int NUMBER_OF_QUERIES = 1024;
+
+    @Param({"128", "1024"})
+    public int mCapacity;
+
+    private PoseHistory mPoseHistory;
+    private final double[] mQueryTimestamps = new double[NUMBER_OF_QUERIES];
+    private int mNextQuery;
+    private double mMissTimestamp;
+
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private final float[] mLeft = new float[16];
+    private final float[] mRight = new float[16];
+    private final float[] mMatrix = new float[16];
+
+    @Setup
+    public void setUp() {
+        mPoseHistory = new PoseHistory(mCapacity, 2 * POSE_PERIOD);
+        Random random = new Random(0);
+        TangoPoseData pose = new TangoPoseData();
+        pose.statusCode = TangoPoseData.POSE_VALID;
+        pose.translation = new double[3];
+        pose.rotation = new double[4];
+        for (int i = 0; i < mCapacity; i++) {
+            // A device walking and turning around the vertical axis.
+            pose.timestamp = 100 + i * POSE_PERIOD;
+            pose.translation[0] = 0.01 * i;
+            pose.translation[1] = 0.005 * i;
+            pose.translation[2] = 1.5 + 0.01 * random.nextGaussian();
+            double angle = 0.01 * i;
+            pose.rotation[2] = Math.sin(angle / 2);
+            pose.rotation[3] = Math.cos(angle / 2);
+            mPoseHistory.addPose(pose);
+        }
+        for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+            mQueryTimestamps[i] = 100 + random.nextDouble() * (mCapacity - 1) * POSE_PERIOD;
+        }
+        mMissTimestamp = 99;
+        for (int i = 0; i < 16; i += 5) {
+            mLeft[i] = 1;
+            mRight[i] = 1;
+        }
+    }
+
+    private double nextQuery() {
+        mNextQuery = (mNextQuery + 1) & (NUMBER_OF_QUERIES - 1);
+        return mQueryTimestamps[mNextQuery];
+    }
+
+    @Benchmark
+    public boolean getPoseAtTime() {
+        return mPoseHistory.getPoseAtTime(nextQuery(), mTranslation, mRotation);
+    }
+
+    @Benchmark
+    public boolean getLatestPose() {
+        return mPoseHistory.getPoseAtTime(0, mTranslation, mRotation);
+    }
+
+    @Benchmark
+    public boolean getMatrixTransformAtTime() {
+        return mPoseHistory.getMatrixTransformAtTime(nextQuery(), mLeft, mRight, mMatrix);
+    }
+
+    @Benchmark
+    public boolean getPoseAtTimeMiss() {
+        return mPoseHistory.getPoseAtTime(mMissTimestamp, mTranslation, mRotation);
+    }
+}
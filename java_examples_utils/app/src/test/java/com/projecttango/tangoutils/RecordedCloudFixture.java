@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * A recording of point clouds of a known scene, written with {@link PointCloudRecorder} and read
+ * back with {@link PointCloudRecording} like the recordings made on a device, so that the plane
+ * fitting methods can be compared against the ground truth.
+ * <p/>
+ * The depth camera looks at a wall 2.5 m away, slightly turned, with a box 1.6 m away covering
+ * the bottom left quarter of the region around the center of the image. Like on the depth camera
+ * of a device, the noise grows with the square of the depth, half of the pixels have no point, and
+ * some points on the edges of the box are mixed pixels between the box and the wall.
+ * <p/>
+ * Run {@link #main} to write the recording to a directory, for instance to replay it in the
+ * examples.
+ */
+public class RecordedCloudFixture {
+    public static final int NUMBER_OF_CLOUDS = 5;
+    // Intrinsics of the depth camera, about the ones of the development kit.
+    public static final int DEPTH_WIDTH = 320;
+    public static final int DEPTH_HEIGHT = 180;
+    public static final float DEPTH_FOCAL_LENGTH = 260;
+    // The wall, as n . p + d = 0 in depth camera frame with the normal facing the camera.
+    public static final float WALL_NORMAL_X;
+    public static final float WALL_NORMAL_Y;
+    public static final float WALL_NORMAL_Z;
+    public static final float WALL_DISTANCE;
+    // Depth camera to device transform, the depth camera looking out of the back of the device.
+    public static final float[] DEVICE_T_DEPTH = new float[] {
+            1, 0, 0, 0, 0, -1, 0, 0, 0, 0, -1, 0, 0.06f, 0.01f, 0, 1};
+
+    private static final float WALL_DEPTH = 2.5f;
+    private static final float BOX_DEPTH = 1.6f;
+    // Region of the box in pixels of the depth image, relative to the center of the image.
+    private static final int BOX_LEFT = -40;
+    private static final int BOX_RIGHT = 0;
+    private static final int BOX_TOP = 0;
+    private static final int BOX_BOTTOM = 40;
+    // Standard deviation of the noise of a point at 1 m.
+    private static final float NOISE_AT_ONE_METER = 0.001f;
+    private static final float MISSING_RATIO = 0.5f;
+    // Width in pixels of the band around the edges of the box where points are mixed pixels.
+    private static final int MIXED_PIXEL_BAND = 2;
+    private static final float CLOUD_PERIOD = 0.2f;
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    static {
+        float x = -0.3f;
+        float y = -0.05f;
+        float z = -1;
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        WALL_NORMAL_X = x / length;
+        WALL_NORMAL_Y = y / length;
+        WALL_NORMAL_Z = z / length;
+        WALL_DISTANCE = -WALL_NORMAL_Z * WALL_DEPTH;
+    }
+
+    /**
+     * Write the recording to a directory.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: RecordedCloudFixture <directory>");
+            System.exit(1);
+        }
+        write(new File(args[0]));
+    }
+
+    /**
+     * Intrinsics of the depth camera of the recording, with the center of the image as principal
+     * point.
+     */
+    public static TangoCameraIntrinsics createIntrinsics() {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = DEPTH_WIDTH;
+        intrinsics.height = DEPTH_HEIGHT;
+        intrinsics.fx = DEPTH_FOCAL_LENGTH;
+        intrinsics.fy = DEPTH_FOCAL_LENGTH;
+        intrinsics.cx = DEPTH_WIDTH / 2;
+        intrinsics.cy = DEPTH_HEIGHT / 2;
+        return intrinsics;
+    }
+
+    /**
+     * Write the recording to a directory, created if needed. The clouds are the same for a given
+     * directory content, since the noise is seeded.
+     */
+    public static void write(File directory) throws IOException {
+        Random random = new Random(0);
+        int maxNumberOfPoints = DEPTH_WIDTH * DEPTH_HEIGHT;
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        xyzIj.xyz = ByteBuffer.allocateDirect(maxNumberOfPoints * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        // The device is held still, so all the clouds are taken from the origin.
+        float[] openGlTDepth = new float[16];
+        RigidTransforms.setIdentity(openGlTDepth, 0);
+        PointCloudRecorder recorder = new PointCloudRecorder(directory, SEGMENT_SIZE,
+                DEVICE_T_DEPTH);
+        try {
+            for (int cloud = 0; cloud < NUMBER_OF_CLOUDS; cloud++) {
+                int count = 0;
+                for (int row = 0; row < DEPTH_HEIGHT; row++) {
+                    for (int column = 0; column < DEPTH_WIDTH; column++) {
+                        if (random.nextFloat() < MISSING_RATIO) {
+                            continue;
+                        }
+                        float rayX = (column + 0.5f - DEPTH_WIDTH / 2) / DEPTH_FOCAL_LENGTH;
+                        float rayY = (row + 0.5f - DEPTH_HEIGHT / 2) / DEPTH_FOCAL_LENGTH;
+                        float depth = getSceneDepth(column - DEPTH_WIDTH / 2,
+                                row - DEPTH_HEIGHT / 2, rayX, rayY, random);
+                        depth += NOISE_AT_ONE_METER * depth * depth * (float) random.nextGaussian();
+                        xyzIj.xyz.put(count * 3, rayX * depth);
+                        xyzIj.xyz.put(count * 3 + 1, rayY * depth);
+                        xyzIj.xyz.put(count * 3 + 2, depth);
+                        count++;
+                    }
+                }
+                xyzIj.xyzCount = count;
+                xyzIj.timestamp = cloud * CLOUD_PERIOD;
+                recorder.record(xyzIj, openGlTDepth);
+            }
+        } finally {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Depth of the scene without noise along the ray through a pixel.
+     *
+     * @param x Column of the pixel relative to the center of the image.
+     * @param y Row of the pixel relative to the center of the image.
+     */
+    private static float getSceneDepth(int x, int y, float rayX, float rayY, Random random) {
+        float wallDepth = -WALL_DISTANCE / (WALL_NORMAL_X * rayX + WALL_NORMAL_Y * rayY
+                + WALL_NORMAL_Z);
+        if (x < BOX_LEFT - MIXED_PIXEL_BAND || x >= BOX_RIGHT + MIXED_PIXEL_BAND
+                || y < BOX_TOP - MIXED_PIXEL_BAND || y >= BOX_BOTTOM + MIXED_PIXEL_BAND) {
+            return wallDepth;
+        }
+        if (x >= BOX_LEFT + MIXED_PIXEL_BAND && x < BOX_RIGHT - MIXED_PIXEL_BAND
+                && y >= BOX_TOP + MIXED_PIXEL_BAND && y < BOX_BOTTOM - MIXED_PIXEL_BAND) {
+            return BOX_DEPTH;
+        }
+        // Mixed pixels on the edges land anywhere between the box and the wall.
+        return BOX_DEPTH + random.nextFloat() * (wallDepth - BOX_DEPTH);
+    }
+
+    /**
+     * Signed distance of a point to the wall.
+     */
+    public static float getWallDistance(float x, float y, float z) {
+        return WALL_NORMAL_X * x + WALL_NORMAL_Y * y + WALL_NORMAL_Z * z + WALL_DISTANCE;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to pick the vertex under a touch on a model of a million triangles, testing every triangle
+ * and with a {@link TriangleBvh}, and time to build the hierarchy when the model is loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TriangleBvhBenchmark {
+    // 2 * 707 * 707 = 999698 triangles.
+    private static final int GRID_SIZE = 708;
+    private static final float GRID_SPACING = 0.01f;
+    private static final int NUMBER_OF_TOUCHES = 97;
+
+    private TriangleMesh mMesh;
+    private TriangleBvh mBvh;
+    // Rays from above the grid to points spread over it.
+    private final float[] mOrigin = new float[] {3.5f, 3.5f, 5};
+    private final float[][] mDirections = new float[NUMBER_OF_TOUCHES][3];
+    private int mNextTouch;
+
+    @Setup
+    public void setUp() throws IOException {
+        int numberOfTriangles = 2 * (GRID_SIZE - 1) * (GRID_SIZE - 1);
+        ByteBuffer stl = ByteBuffer.allocate(84 + numberOfTriangles * 50)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        stl.position(80);
+        stl.putInt(numberOfTriangles);
+        for (int row = 0; row < GRID_SIZE - 1; row++) {
+            for (int column = 0; column < GRID_SIZE - 1; column++) {
+                putTriangle(stl, row, column, row, column + 1, row + 1, column + 1);
+                putTriangle(stl, row, column, row + 1, column + 1, row + 1, column);
+            }
+        }
+        mMesh = TriangleMesh.readStl(new ByteArrayInputStream(stl.array()));
+        mBvh = new TriangleBvh(mMesh);
+        float size = (GRID_SIZE - 1) * GRID_SPACING;
+        for (int touch = 0; touch < NUMBER_OF_TOUCHES; touch++) {
+            mDirections[touch][0] = size * (touch % 10 + 0.5f) / 10 - mOrigin[0];
+            mDirections[touch][1] = size * (touch / 10 + 0.5f) / 10 - mOrigin[1];
+            mDirections[touch][2] = -mOrigin[2];
+        }
+    }
+
+    @Benchmark
+    public int pickExhaustive() {
+        return mMesh.pickVertex(mOrigin, nextDirection());
+    }
+
+    @Benchmark
+    public int pickBvh() {
+        return mBvh.pickVertex(mOrigin, nextDirection());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TriangleBvh build() {
+        return new TriangleBvh(mMesh);
+    }
+
+    private float[] nextDirection() {
+        int touch = mNextTouch;
+        mNextTouch = (touch + 1) % NUMBER_OF_TOUCHES;
+        return mDirections[touch];
+    }
+
+    private static void putTriangle(ByteBuffer stl, int row1, int column1, int row2,
+                                    int column2, int row3, int column3) {
+        // Normal, left to the reader.
+        stl.putFloat(0).putFloat(0).putFloat(0);
+        putVertex(stl, row1, column1);
+        putVertex(stl, row2, column2);
+        putVertex(stl, row3, column3);
+        stl.putShort((short) 0);
+    }
+
+    private static void putVertex(ByteBuffer stl, int row, int column) {
+        stl.putFloat(column * GRID_SPACING);
+        stl.putFloat(row * GRID_SPACING);
+        stl.putFloat((float) (0.1 * Math.sin(row * 0.05) * Math.cos(column * 0.07)));
+    }
+}
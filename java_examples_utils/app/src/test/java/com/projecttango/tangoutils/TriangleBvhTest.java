@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link TriangleBvh} picks the same vertices as the exhaustive
+ * {@link TriangleMesh#pickVertex}, on a bumpy grid with flat parts and on random triangles, from
+ * random rays and from rays along the axes.
+ */
+public class TriangleBvhTest {
+    private static final int GRID_SIZE = 40;
+    private static final int NUMBER_OF_RANDOM_TRIANGLES = 500;
+    private static final int NUMBER_OF_RAYS = 2000;
+
+    @Test
+    public void picksSameVertexAsExhaustiveSearchOnGrid() throws IOException {
+        int hits = assertSamePicks(createGrid(), new Random(0));
+        assertTrue("Only " + hits + " rays hit the grid", hits > NUMBER_OF_RAYS / 4);
+    }
+
+    @Test
+    public void picksSameVertexAsExhaustiveSearchOnRandomTriangles() throws IOException {
+        Random random = new Random(1);
+        float[][] triangles = new float[NUMBER_OF_RANDOM_TRIANGLES][9];
+        for (float[] triangle : triangles) {
+            float x = random.nextFloat() * 2 - 1;
+            float y = random.nextFloat() * 2 - 1;
+            float z = random.nextFloat() * 2 - 1;
+            for (int i = 0; i < 9; i += 3) {
+                triangle[i] = x + random.nextFloat() * 0.3f;
+                triangle[i + 1] = y + random.nextFloat() * 0.3f;
+                triangle[i + 2] = z + random.nextFloat() * 0.3f;
+            }
+        }
+        int hits = assertSamePicks(createStl(triangles), random);
+        assertTrue("Only " + hits + " rays hit the triangles", hits > NUMBER_OF_RAYS / 10);
+    }
+
+    @Test
+    public void emptyMeshIsNeverHit() throws IOException {
+        TriangleBvh bvh = new TriangleBvh(createStl(new float[0][]));
+        assertEquals(-1, bvh.pickVertex(new float[] {0, 0, 1}, new float[] {0, 0, -1}));
+    }
+
+    /**
+     * Compare the picks of random rays through the box of the mesh, a fifth of them along an
+     * axis.
+     *
+     * @return The number of rays that hit the mesh.
+     */
+    private static int assertSamePicks(TriangleMesh mesh, Random random) {
+        TriangleBvh bvh = new TriangleBvh(mesh);
+        float[] origin = new float[3];
+        float[] direction = new float[3];
+        int hits = 0;
+        for (int ray = 0; ray < NUMBER_OF_RAYS; ray++) {
+            float[] target = new float[3];
+            for (int i = 0; i < 3; i++) {
+                origin[i] = random.nextFloat() * 6 - 3;
+                target[i] = random.nextFloat() * 2 - 1;
+                direction[i] = target[i] - origin[i];
+            }
+            if (ray % 5 == 0) {
+                int axis = random.nextInt(3);
+                for (int i = 0; i < 3; i++) {
+                    origin[i] = i == axis ? 3 : target[i];
+                    direction[i] = i == axis ? -1 : 0;
+                }
+            }
+            int expected = mesh.pickVertex(origin, direction);
+            assertEquals("Ray " + ray, expected, bvh.pickVertex(origin, direction));
+            if (expected >= 0) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * A grid of two by two meters in the z = 0 plane with a bump in its middle.
+     */
+    private static TriangleMesh createGrid() throws IOException {
+        float[][] triangles = new float[2 * (GRID_SIZE - 1) * (GRID_SIZE - 1)][];
+        int triangle = 0;
+        for (int row = 0; row < GRID_SIZE - 1; row++) {
+            for (int column = 0; column < GRID_SIZE - 1; column++) {
+                float[] a = getGridPoint(row, column);
+                float[] b = getGridPoint(row, column + 1);
+                float[] c = getGridPoint(row + 1, column + 1);
+                float[] d = getGridPoint(row + 1, column);
+                triangles[triangle++] = new float[] {
+                        a[0], a[1], a[2], b[0], b[1], b[2], c[0], c[1], c[2]};
+                triangles[triangle++] = new float[] {
+                        a[0], a[1], a[2], c[0], c[1], c[2], d[0], d[1], d[2]};
+            }
+        }
+        return createStl(triangles);
+    }
+
+    private static float[] getGridPoint(int row, int column) {
+        float x = 2f * column / (GRID_SIZE - 1) - 1;
+        float y = 2f * row / (GRID_SIZE - 1) - 1;
+        float squaredRadius = x * x + y * y;
+        float z = squaredRadius < 0.25f ? 0.25f - squaredRadius : 0;
+        return new float[] {x, y, z};
+    }
+
+    private static TriangleMesh createStl(float[][] triangles) throws IOException {
+        ByteBuffer stl = ByteBuffer.allocate(84 + triangles.length * 50)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        stl.position(80);
+        stl.putInt(triangles.length);
+        for (float[] triangle : triangles) {
+            stl.putFloat(0).putFloat(0).putFloat(0);
+            for (float coordinate : triangle) {
+                stl.putFloat(coordinate);
+            }
+            stl.putShort((short) 0);
+        }
+        return TriangleMesh.readStl(new ByteArrayInputStream(stl.array()));
+    }
+}
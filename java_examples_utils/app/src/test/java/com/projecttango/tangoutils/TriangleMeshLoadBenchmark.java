@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load a model of a million triangles with {@link TriangleMesh#load}, parsed from an OBJ
+ * file and from a binary PLY file without a cache, and mapped from the cache written by a
+ * previous load.
+ * <p/>
+ * The model is a bumpy grid, so that the parsed numbers have as many digits as a scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TriangleMeshLoadBenchmark {
+    // 2 * 707 * 707 = 999698 triangles.
+    private static final int GRID_SIZE = 708;
+    private static final float GRID_SPACING = 0.01f;
+
+    @Param({"obj", "ply"})
+    public String mFormat;
+
+    private File mDirectory;
+    private File mCacheDirectory;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("triangle_mesh_load", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mCacheDirectory = new File(mDirectory, "cache");
+        mCacheDirectory.mkdirs();
+        mFile = new File(mDirectory, "grid." + mFormat);
+        if (mFormat.equals("obj")) {
+            writeObj(mFile);
+        } else {
+            writeBinaryPly(mFile);
+        }
+        // Write the cache once.
+        TriangleMesh.load(mFile, mCacheDirectory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = mCacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDirectory.delete();
+        mFile.delete();
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public float loadCold() throws IOException {
+        return TriangleMesh.load(mFile, null).getRadius();
+    }
+
+    @Benchmark
+    public float loadCached() throws IOException {
+        return TriangleMesh.load(mFile, mCacheDirectory).getRadius();
+    }
+
+    private static float getHeight(int row, int column) {
+        return (float) (0.1 * Math.sin(row * 0.05) * Math.cos(column * 0.07));
+    }
+
+    private static void writeObj(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(
+                new BufferedOutputStream(new FileOutputStream(file)), "US-ASCII");
+        try {
+            for (int row = 0; row < GRID_SIZE; row++) {
+                for (int column = 0; column < GRID_SIZE; column++) {
+                    writer.write("v " + column * GRID_SPACING + " " + row * GRID_SPACING + " "
+                            + getHeight(row, column) + "\n");
+                }
+            }
+            for (int row = 0; row < GRID_SIZE - 1; row++) {
+                for (int column = 0; column < GRID_SIZE - 1; column++) {
+                    // OBJ indices start at 1.
+                    int vertex = row * GRID_SIZE + column + 1;
+                    writer.write("f " + vertex + " " + (vertex + 1) + " " + (vertex + GRID_SIZE + 1)
+                            + " " + (vertex + GRID_SIZE) + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeBinaryPly(File file) throws IOException {
+        int numberOfFaces = 2 * (GRID_SIZE - 1) * (GRID_SIZE - 1);
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeBytes("ply\nformat binary_big_endian 1.0\n"
+                    + "element vertex " + GRID_SIZE * GRID_SIZE + "\n"
+                    + "property float x\nproperty float y\nproperty float z\n"
+                    + "element face " + numberOfFaces + "\n"
+                    + "property list uchar int vertex_indices\nend_header\n");
+            for (int row = 0; row < GRID_SIZE; row++) {
+                for (int column = 0; column < GRID_SIZE; column++) {
+                    output.writeFloat(column * GRID_SPACING);
+                    output.writeFloat(row * GRID_SPACING);
+                    output.writeFloat(getHeight(row, column));
+                }
+            }
+            for (int row = 0; row < GRID_SIZE - 1; row++) {
+                for (int column = 0; column < GRID_SIZE - 1; column++) {
+                    int vertex = row * GRID_SIZE + column;
+                    output.writeByte(3);
+                    output.writeInt(vertex);
+                    output.writeInt(vertex + 1);
+                    output.writeInt(vertex + GRID_SIZE + 1);
+                    output.writeByte(3);
+                    output.writeInt(vertex);
+                    output.writeInt(vertex + GRID_SIZE + 1);
+                    output.writeInt(vertex + GRID_SIZE);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+}
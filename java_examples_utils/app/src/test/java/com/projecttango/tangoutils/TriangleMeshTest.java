@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Loads golden files of the same square pyramid in the supported formats, with the statements,
+ * properties and elements the parser skips, checks that they all give the expected mesh and that
+ * the mesh reloaded from the cache is the parsed one. Malformed files must fail with an
+ * {@link IOException}.
+ */
+public class TriangleMeshTest {
+    private static final String GOLDEN_FILE_NAME = "golden_mesh";
+    private static final float[] PYRAMID_POSITIONS = new float[] {
+            -0.5f, -0.5f, 0, 0.5f, -0.5f, 0, 0.5f, 0.5f, 0, -0.5f, 0.5f, 0, 0, 0, 1.25f};
+    // The quad base is split into a fan.
+    private static final int[] PYRAMID_INDICES = new int[] {
+            0, 3, 2, 0, 2, 1, 0, 1, 4, 1, 2, 4, 2, 3, 4, 3, 0, 4};
+    private static final String PLY_HEADER = "ply\nformat ascii 1.0\n";
+    private static final String PLY_VERTEX_PROPERTIES =
+            "property float x\nproperty float y\nproperty float z\n";
+    private static final String PLY_FACE_PROPERTIES =
+            "property list uchar int vertex_indices\n";
+
+    private File mDirectory;
+    private File mCacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("triangle_mesh", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mCacheDirectory = new File(mDirectory, "cache");
+        mCacheDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDirectory);
+    }
+
+    @Test
+    public void loadObj() throws IOException {
+        assertPyramid(TriangleMesh.load(copyResource(GOLDEN_FILE_NAME + ".obj"), null));
+    }
+
+    @Test
+    public void loadAsciiPly() throws IOException {
+        assertPyramid(TriangleMesh.load(copyResource(GOLDEN_FILE_NAME + "_ascii.ply"), null));
+    }
+
+    @Test
+    public void loadBinaryLittleEndianPly() throws IOException {
+        assertPyramid(TriangleMesh.load(
+                copyResource(GOLDEN_FILE_NAME + "_binary_little_endian.ply"), null));
+    }
+
+    @Test
+    public void loadBinaryBigEndianPly() throws IOException {
+        assertPyramid(TriangleMesh.load(
+                copyResource(GOLDEN_FILE_NAME + "_binary_big_endian.ply"), null));
+    }
+
+    @Test
+    public void meshReloadedFromCacheEqualsParsedMesh() throws IOException {
+        File file = copyResource(GOLDEN_FILE_NAME + ".obj");
+        TriangleMesh parsed = TriangleMesh.load(file, mCacheDirectory);
+        File[] cacheFiles = mCacheDirectory.listFiles();
+        assertNotNull(cacheFiles);
+        assertEquals(1, cacheFiles.length);
+        // Replace the source with a file of the same length and time which holds no vertex, so
+        // that the pyramid can only come from the cache.
+        long lastModified = file.lastModified();
+        char[] blank = new char[(int) file.length()];
+        Arrays.fill(blank, '#');
+        writeFile(file, new String(blank));
+        file.setLastModified(lastModified);
+        TriangleMesh cached = TriangleMesh.load(file, mCacheDirectory);
+        assertMeshEquals(parsed, cached);
+        assertPyramid(cached);
+    }
+
+    @Test
+    public void staleCacheIsReplaced() throws IOException {
+        File file = copyResource(GOLDEN_FILE_NAME + ".obj");
+        TriangleMesh.load(file, mCacheDirectory);
+        writeFile(file, "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n");
+        file.setLastModified(file.lastModified() + 2000);
+        TriangleMesh mesh = TriangleMesh.load(file, mCacheDirectory);
+        assertEquals(3, mesh.getNumberOfVertices());
+        assertEquals(1, mesh.getNumberOfTriangles());
+    }
+
+    @Test
+    public void objWithMissingCoordinateFails() throws IOException {
+        assertLoadFails("missing_coordinate.obj", "v 0 0 0\nv 1 2\nv 0 1 0\nf 1 2 3\n");
+    }
+
+    @Test
+    public void objWithMissingVertexFails() throws IOException {
+        assertLoadFails("missing_vertex.obj", "v 0 0 0\nv 1 0 0\nf 1 2 3\n");
+    }
+
+    @Test
+    public void plyWithInvalidElementCountFails() throws IOException {
+        assertLoadFails("invalid_count.ply", PLY_HEADER + "element vertex three\n"
+                + PLY_VERTEX_PROPERTIES + "end_header\n");
+    }
+
+    @Test
+    public void plyWithNegativeElementCountFails() throws IOException {
+        assertLoadFails("negative_count.ply", PLY_HEADER + "element vertex -3\n"
+                + PLY_VERTEX_PROPERTIES + "end_header\n");
+    }
+
+    @Test
+    public void plyWithHugeElementCountFails() throws IOException {
+        assertLoadFails("huge_count.ply", PLY_HEADER + "element vertex 2147483647\n"
+                + PLY_VERTEX_PROPERTIES + "element face 2147483647\n" + PLY_FACE_PROPERTIES
+                + "end_header\n0 0 0\n");
+    }
+
+    @Test
+    public void plyWithIncompletePropertyFails() throws IOException {
+        assertLoadFails("incomplete_property.ply", PLY_HEADER + "element vertex 1\n"
+                + "property float\nend_header\n0\n");
+    }
+
+    @Test
+    public void plyWithoutCoordinatesFails() throws IOException {
+        assertLoadFails("no_coordinates.ply", PLY_HEADER + "element vertex 1\n"
+                + "property float x\nproperty float y\nend_header\n0 0\n");
+    }
+
+    @Test
+    public void plyWithTruncatedBodyFails() throws IOException {
+        assertLoadFails("truncated.ply", PLY_HEADER + "element vertex 3\n"
+                + PLY_VERTEX_PROPERTIES + "end_header\n0 0 0\n1 0 0\n");
+    }
+
+    @Test
+    public void plyWithNegativeListSizeFails() throws IOException {
+        assertLoadFails("negative_list.ply", PLY_HEADER + "element vertex 3\n"
+                + PLY_VERTEX_PROPERTIES + "element face 1\n"
+                + "property list int int vertex_indices\nend_header\n"
+                + "0 0 0\n1 0 0\n0 1 0\n-3 0 1 2\n");
+    }
+
+    private void assertLoadFails(String fileName, String contents) throws IOException {
+        File file = new File(mDirectory, fileName);
+        writeFile(file, contents);
+        try {
+            TriangleMesh.load(file, mCacheDirectory);
+            fail("Loaded malformed mesh " + fileName);
+        } catch (IOException e) {
+            // Expected, and nothing is cached.
+            File[] cacheFiles = mCacheDirectory.listFiles();
+            assertTrue(cacheFiles == null || cacheFiles.length == 0);
+        }
+    }
+
+    private static void assertPyramid(TriangleMesh mesh) {
+        assertEquals(PYRAMID_POSITIONS.length / 3, mesh.getNumberOfVertices());
+        assertEquals(PYRAMID_INDICES.length / 3, mesh.getNumberOfTriangles());
+        FloatBuffer positions = mesh.getPositions();
+        for (int i = 0; i < PYRAMID_POSITIONS.length; i++) {
+            assertEquals("Position " + i, PYRAMID_POSITIONS[i], positions.get(i), 0);
+        }
+        IntBuffer indices = mesh.getIndices();
+        for (int i = 0; i < PYRAMID_INDICES.length; i++) {
+            assertEquals("Index " + i, PYRAMID_INDICES[i], indices.get(i));
+        }
+        // The apex normal points up, the base corners have unit normals.
+        FloatBuffer normals = mesh.getNormals();
+        assertEquals(1, normals.get(14), 1e-6f);
+        for (int vertex = 0; vertex < mesh.getNumberOfVertices(); vertex++) {
+            float x = normals.get(vertex * 3);
+            float y = normals.get(vertex * 3 + 1);
+            float z = normals.get(vertex * 3 + 2);
+            assertEquals(1, x * x + y * y + z * z, 1e-5f);
+        }
+    }
+
+    private static void assertMeshEquals(TriangleMesh expected, TriangleMesh actual) {
+        assertEquals(expected.getNumberOfVertices(), actual.getNumberOfVertices());
+        assertEquals(expected.getNumberOfTriangles(), actual.getNumberOfTriangles());
+        assertEquals(expected.getPositions(), actual.getPositions());
+        assertEquals(expected.getNormals(), actual.getNormals());
+        assertEquals(expected.getIndices(), actual.getIndices());
+    }
+
+    private File copyResource(String fileName) throws IOException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(fileName);
+        assertNotNull("Missing golden file " + fileName, inputStream);
+        File file = new File(mDirectory, fileName);
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, length);
+            }
+        } finally {
+            outputStream.close();
+            inputStream.close();
+        }
+        return file;
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(contents.getBytes("US-ASCII"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert throughput of the {@link VoxelGrid}, in points per second, and its memory footprint
+ * once a million points fill a million voxels, which is printed at the end of the run.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoxelGridBenchmark {
+    private static final float LEAF_SIZE = 0.05f;
+    private static final int NUMBER_OF_POINTS = 60000;
+    private static final int NUMBER_OF_CLOUDS = 30;
+    private static final int MILLION = 1000000;
+    private static final float[] IDENTITY = new float[] {
+            1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    // Clouds of a 6x4x2.5 m room seen from a camera walking around its center.
+    private FloatBuffer mCloud;
+    private final float[][] mWorldTdepth = new float[NUMBER_OF_CLOUDS][16];
+    private int mNextCloud;
+    private VoxelGrid mSurveyGrid;
+
+    private FloatBuffer mMillionPoints;
+    private VoxelGrid mMillionGrid;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        mCloud = ByteBuffer.allocateDirect(NUMBER_OF_POINTS * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < NUMBER_OF_POINTS; i++) {
+            // Points on the walls, floor and ceiling, in the frame of a camera at the center.
+            float u = random.nextFloat();
+            float w = random.nextFloat();
+            switch (random.nextInt(4)) {
+                case 0:
+                    mCloud.put(-3 + 6 * u).put(-1.25f + 2.5f * w).put(2);
+                    break;
+                case 1:
+                    mCloud.put(-3 + 6 * u).put(-1.25f + 2.5f * w).put(-2);
+                    break;
+                case 2:
+                    mCloud.put(3).put(-1.25f + 2.5f * w).put(-2 + 4 * u);
+                    break;
+                default:
+                    mCloud.put(-3 + 6 * u).put(random.nextBoolean() ? -1.25f : 1.25f)
+                            .put(-2 + 4 * w);
+                    break;
+            }
+        }
+        mCloud.rewind();
+        for (int i = 0; i < NUMBER_OF_CLOUDS; i++) {
+            double angle = 2 * Math.PI * i / NUMBER_OF_CLOUDS;
+            float[] m = mWorldTdepth[i];
+            m[0] = (float) Math.cos(angle);
+            m[2] = (float) -Math.sin(angle);
+            m[5] = 1;
+            m[8] = (float) Math.sin(angle);
+            m[10] = (float) Math.cos(angle);
+            m[12] = 0.2f * random.nextFloat();
+            m[13] = 0.2f * random.nextFloat();
+            m[14] = 0.2f * random.nextFloat();
+            m[15] = 1;
+        }
+        mSurveyGrid = new VoxelGrid(LEAF_SIZE, 4 * MILLION);
+
+        // A million points in a million different voxels.
+        mMillionPoints = ByteBuffer.allocateDirect(MILLION * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < MILLION; i++) {
+            mMillionPoints.put((i % 100) * LEAF_SIZE + LEAF_SIZE / 2)
+                    .put((i / 100 % 100) * LEAF_SIZE + LEAF_SIZE / 2)
+                    .put((i / 10000) * LEAF_SIZE + LEAF_SIZE / 2);
+        }
+        mMillionPoints.rewind();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpMillionGrid() {
+        mMillionGrid = new VoxelGrid(LEAF_SIZE, MILLION);
+    }
+
+    /**
+     * Insert the clouds of the survey one after the other. Once the room has been seen, most
+     * points fall in existing voxels, like in a long session.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(NUMBER_OF_POINTS)
+    public int insertSurveyCloud() {
+        int cloud = mNextCloud;
+        mNextCloud = (cloud + 1) % NUMBER_OF_CLOUDS;
+        return mSurveyGrid.insert(mCloud, NUMBER_OF_POINTS, mWorldTdepth[cloud]);
+    }
+
+    /**
+     * Insert a million points which all create a new voxel in an empty grid, growing it.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(MILLION)
+    public int insertMillionNewPoints() {
+        return mMillionGrid.insert(mMillionPoints, MILLION, IDENTITY);
+    }
+
+    @TearDown
+    public void printMemory() {
+        if (mMillionGrid.getNumberOfVoxels() > 0) {
+            System.out.println(String.format("%d voxels in %d bytes",
+                    mMillionGrid.getNumberOfVoxels(), mMillionGrid.getMemoryFootprint()));
+        }
+        if (mSurveyGrid.getNumberOfVoxels() > 0) {
+            System.out.println(String.format("Survey of %d voxels in %d bytes",
+                    mSurveyGrid.getNumberOfVoxels(), mSurveyGrid.getMemoryFootprint()));
+        }
+    }
+}
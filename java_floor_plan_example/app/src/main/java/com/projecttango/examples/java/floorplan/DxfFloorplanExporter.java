@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Exports a {@link Floorplan} as an ASCII DXF drawing, made of LINE and TEXT entities only so
+ * that it can be read by any CAD application.
+ * <p/>
+ * Units are meters. The drawing is seen from above with the Y axis pointing away from the viewer
+ * of the plan view, so a point (x, y, z) of the OpenGl world frame is drawn at (x, -z), at the
+ * elevation of its floor. The walls of each floor are in the layer "FLOOR_N" and their labels in
+ * the layer "LABELS_N", N starting from 0 for the lowest floor.
+ */
+public class DxfFloorplanExporter extends FloorplanExporter {
+    private static final float TEXT_HEIGHT = 0.25f;
+
+    @Override
+    public void export(Floorplan floorplan, Writer writer) throws IOException {
+        writeGroup(writer, 0, "SECTION");
+        writeGroup(writer, 2, "ENTITIES");
+        List<Floor> floors = floorplan.getFloors();
+        for (int floorIndex = 0; floorIndex < floors.size(); floorIndex++) {
+            Floor floor = floors.get(floorIndex);
+            for (Room room : floor.getRooms()) {
+                writeRoom(writer, room, floorIndex, floor.getHeight());
+            }
+        }
+        writeGroup(writer, 0, "ENDSEC");
+        writeGroup(writer, 0, "EOF");
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "dxf";
+    }
+
+    private void writeRoom(Writer writer, Room room, int floorIndex, float elevation)
+            throws IOException {
+        for (int wall = 0; wall < room.getNumberOfWalls(); wall++) {
+            int next = (wall + 1) % room.getNumberOfPoints();
+            writeGroup(writer, 0, "LINE");
+            writeLayer(writer, "FLOOR_", floorIndex);
+            writePoint(writer, 10, room.getX(wall), -room.getZ(wall), elevation);
+            writePoint(writer, 11, room.getX(next), -room.getZ(next), elevation);
+        }
+        for (int wall = 0; wall < room.getNumberOfWalls(); wall++) {
+            int next = (wall + 1) % room.getNumberOfPoints();
+            writeGroup(writer, 0, "TEXT");
+            writeLayer(writer, "LABELS_", floorIndex);
+            writePoint(writer, 10, (room.getX(wall) + room.getX(next)) / 2,
+                    -(room.getZ(wall) + room.getZ(next)) / 2, elevation);
+            writeCode(writer, 40);
+            writeCoordinate(writer, TEXT_HEIGHT);
+            writer.write('\n');
+            writeCode(writer, 1);
+            writeNumber(writer, room.getWallLength(wall), LENGTH_DECIMALS);
+            writer.write("m\n");
+        }
+    }
+
+    private void writeLayer(Writer writer, String prefix, int floorIndex) throws IOException {
+        writeCode(writer, 8);
+        writer.write(prefix);
+        writeInteger(writer, floorIndex);
+        writer.write('\n');
+    }
+
+    // Write a point, with the group codes of its X, Y and Z coordinates starting at a given code.
+    private void writePoint(Writer writer, int code, float x, float y, float z)
+            throws IOException {
+        writeCode(writer, code);
+        writeCoordinate(writer, x);
+        writer.write('\n');
+        writeCode(writer, code + 10);
+        writeCoordinate(writer, y);
+        writer.write('\n');
+        writeCode(writer, code + 20);
+        writeCoordinate(writer, z);
+        writer.write('\n');
+    }
+
+    private void writeGroup(Writer writer, int code, String value) throws IOException {
+        writeCode(writer, code);
+        writer.write(value);
+        writer.write('\n');
+    }
+
+    private void writeCode(Writer writer, int code) throws IOException {
+        writeInteger(writer, code);
+        writer.write('\n');
+    }
+}
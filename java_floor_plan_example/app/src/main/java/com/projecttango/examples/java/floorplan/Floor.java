@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rooms of a floor plan measured at about the same height, indexed in a {@link RoomTree}.
+ * Floors are immutable and their bounds are calculated once when they are created.
+ */
+public class Floor {
+    private final List<Room> mRooms;
+    private final RoomTree mRoomTree;
+
+    private final float mHeight;
+    private final float mMinX;
+    private final float mMaxX;
+    private final float mMinZ;
+    private final float mMaxZ;
+
+    public Floor(List<Room> rooms) {
+        mRooms = Collections.unmodifiableList(new ArrayList<Room>(rooms));
+        mRoomTree = new RoomTree(mRooms);
+
+        float minX = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        float height = 0;
+        for (Room room : mRooms) {
+            minX = Math.min(minX, room.getMinX());
+            maxX = Math.max(maxX, room.getMaxX());
+            minZ = Math.min(minZ, room.getMinZ());
+            maxZ = Math.max(maxZ, room.getMaxZ());
+            height += room.getHeight();
+        }
+        if (mRooms.isEmpty()) {
+            minX = maxX = minZ = maxZ = 0;
+        } else {
+            height /= mRooms.size();
+        }
+        mMinX = minX;
+        mMaxX = maxX;
+        mMinZ = minZ;
+        mMaxZ = maxZ;
+        mHeight = height;
+    }
+
+    public List<Room> getRooms() {
+        return mRooms;
+    }
+
+    /**
+     * The average height of the rooms.
+     */
+    public float getHeight() {
+        return mHeight;
+    }
+
+    public float getMinX() {
+        return mMinX;
+    }
+
+    public float getMaxX() {
+        return mMaxX;
+    }
+
+    public float getMinZ() {
+        return mMinZ;
+    }
+
+    public float getMaxZ() {
+        return mMaxZ;
+    }
+
+    /**
+     * Find the smallest room containing a point of the horizontal plane.
+     *
+     * @return The room, or null if no room contains the point.
+     */
+    public Room pickRoom(float x, float z) {
+        return mRoomTree.pick(x, z);
+    }
+}
@@ -19,191 +19,243 @@ package com.projecttango.examples.java.floorplan;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 
-import org.rajawali3d.math.vector.Vector3;
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
- * Domain class that represents a floor plan.
- * It is represented as a set of points that are joined consecutively by straight lines.
+ * Domain class that represents the floor plan of a building.
+ * It is represented as a set of rooms, each a polygon of points joined consecutively by straight
+ * lines, grouped into floors by the height at which they were measured. The rooms of each floor
+ * are indexed in an R-tree so that they can be picked and queried by area without scanning the
+ * whole plan.
+ * <p/>
+ * Instances are immutable snapshots, and the bounds of the plan and of its floors are calculated
+ * once when they are created.
  */
 public class Floorplan {
 
+    /**
+     * Minimum difference of height between two floors, in meters.
+     */
+    public static final float FLOOR_SEPARATION = 1.5f;
+
     /**
      * Padding factor only used for the representation in 2D in a canvas.
      */
     private static final float RENDER_PADDING_SCALE_FACTOR = 0.8f;
 
+    private final List<Room> mRooms;
     /**
-     * The list of points of the plan. Each point is a float[3] with x, y and z coordinates.
+     * The floors of the plan, from the lowest one.
      */
-    private List<float[]> mPlanPoints = new ArrayList<float[]>();
+    private final List<Floor> mFloors;
+
+    private final float mMinX;
+    private final float mMaxX;
+    private final float mMinZ;
+    private final float mMaxZ;
 
-    public Floorplan(List<float[]> planPoints) {
-        mPlanPoints.addAll(planPoints);
+    public Floorplan(Room room) {
+        this(Collections.singletonList(room));
+    }
+
+    public Floorplan(List<Room> rooms) {
+        mRooms = Collections.unmodifiableList(new ArrayList<Room>(rooms));
+
+        // Group the rooms into floors, starting a new floor whenever a room is higher than the
+        // lowest room of the current floor by more than the floor separation.
+        List<Room> sortedRooms = new ArrayList<Room>(mRooms);
+        Collections.sort(sortedRooms, new Comparator<Room>() {
+            @Override
+            public int compare(Room a, Room b) {
+                return Float.compare(a.getHeight(), b.getHeight());
+            }
+        });
+        List<Floor> floors = new ArrayList<Floor>();
+        int floorStart = 0;
+        for (int i = 1; i <= sortedRooms.size(); i++) {
+            if (i == sortedRooms.size() || sortedRooms.get(i).getHeight()
+                    - sortedRooms.get(floorStart).getHeight() > FLOOR_SEPARATION) {
+                floors.add(new Floor(sortedRooms.subList(floorStart, i)));
+                floorStart = i;
+            }
+        }
+        mFloors = Collections.unmodifiableList(floors);
+
+        float minX = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (Floor floor : mFloors) {
+            minX = Math.min(minX, floor.getMinX());
+            maxX = Math.max(maxX, floor.getMaxX());
+            minZ = Math.min(minZ, floor.getMinZ());
+            maxZ = Math.max(maxZ, floor.getMaxZ());
+        }
+        if (mFloors.isEmpty()) {
+            minX = maxX = minZ = maxZ = 0;
+        }
+        mMinX = minX;
+        mMaxX = maxX;
+        mMinZ = minZ;
+        mMaxZ = maxZ;
     }
 
     /**
-     * Draw a 2D representation of the plan with text labels for the length of each wall.
+     * Draw a 2D representation of the lowest floor with text labels for the length of each wall.
      *
      * @param canvas The Canvas to draw the plan on.
      * @param paint  The Paint object describing the colors and styles for the plan.
      */
     public void drawOnCanvas(Canvas canvas, Paint paint) {
-        draw2dlines(canvas, paint);
-        drawTexts(canvas, paint);
+        drawOnCanvas(canvas, paint, null, null);
     }
 
     /**
-     * Draws a 2D representation of the floor plan on a canvas. The plan is scaled to fill
-     * the whole canvas. The {@code RENDER_PADDING_SCALE_FACTOR} is used to leave some blank
-     * space around the borders of the canvas.
+     * Draw a 2D representation of the lowest floor with text labels for the length of each wall,
+     * and a room of it highlighted with its area.
+     *
+     * @param selectedRoom  The room to highlight, or null.
+     * @param selectedPaint The Paint object for the highlighted room.
      */
-    private void draw2dlines(Canvas canvas, Paint paint) {
-        // Get center of the canvas.
-        int centerX = canvas.getWidth() / 2;
-        int centerY = canvas.getHeight() / 2;
-        float[] lines = new float[4 * mPlanPoints.size()];
-        int i = 0;
-        if (!mPlanPoints.isEmpty()) {
-            float[] lastPoint = null;
-            Floorplan scaledFloorplan = translateAndScalePlan(canvas);
-            // For every point add a line to the last point. Start from the center of the canvas.
-            for (float[] nextPoint : scaledFloorplan.mPlanPoints) {
-                if (lastPoint != null) {
-                    lines[i++] = centerX + lastPoint[0];
-                    lines[i++] = centerY + lastPoint[2];
-                    lines[i++] = centerX + nextPoint[0];
-                    lines[i++] = centerY + nextPoint[2];
-                }
-                lastPoint = nextPoint;
-            }
-            lines[i++] = centerX + lastPoint[0];
-            lines[i++] = centerY + lastPoint[2];
-            lines[i++] = centerX + scaledFloorplan.mPlanPoints.get(0)[0];
-            lines[i++] = centerY + scaledFloorplan.mPlanPoints.get(0)[2];
+    public void drawOnCanvas(Canvas canvas, Paint paint, Room selectedRoom,
+                             Paint selectedPaint) {
+        if (!mFloors.isEmpty()) {
+            drawOnCanvas(canvas, paint, mFloors.get(0), selectedRoom, selectedPaint);
         }
-        canvas.drawLines(lines, paint);
     }
 
     /**
-     * Draw text labels for the length of each wall.
+     * Draw a 2D representation of a floor with text labels for the length of each wall. The floor
+     * is scaled to fill the whole canvas. The {@code RENDER_PADDING_SCALE_FACTOR} is used to leave
+     * some blank space around the borders of the canvas.
+     * Rooms which are not closed yet are drawn closed, with the segment from their last point to
+     * the first one.
+     *
+     * @param canvas        The Canvas to draw the plan on.
+     * @param paint         The Paint object describing the colors and styles for the plan.
+     * @param floor         The floor to draw.
+     * @param selectedRoom  The room to highlight, or null.
+     * @param selectedPaint The Paint object for the highlighted room.
      */
-    private void drawTexts(Canvas canvas, Paint paint) {
-        int centerX = canvas.getWidth() / 2;
-        int centerY = canvas.getHeight() / 2;
-        if (!mPlanPoints.isEmpty()) {
-            float[] lastPoint = null;
-            float[] nextPoint;
-            float[] lastScaledPoint = null;
-            float[] nextScaledPoint;
-            Floorplan scaledFloorplan = translateAndScalePlan(canvas);
-            for (int i = 0; i < mPlanPoints.size(); i++) {
-                nextPoint = mPlanPoints.get(i);
-                nextScaledPoint = scaledFloorplan.mPlanPoints.get(i);
-                if (lastPoint != null) {
-                    // Get the length of the original unscaled plan.
-                    double length = Math.sqrt(
-                            (lastPoint[0] - nextPoint[0]) * (lastPoint[0] - nextPoint[0]) +
-                                    (lastPoint[2] - nextPoint[2]) * (lastPoint[2] - nextPoint[2]));
-                    // Draw the label in the middle of each wall.
-                    double posX = centerX + (lastScaledPoint[0] + nextScaledPoint[0]) / 2;
-                    double posY = centerY + (lastScaledPoint[2] + nextScaledPoint[2]) / 2;
-                    canvas.drawText(String.format("%.2f", length) + "m", (float) posX, (float)
-                            posY, paint);
-                }
-                lastPoint = nextPoint;
-                lastScaledPoint = nextScaledPoint;
+    public void drawOnCanvas(Canvas canvas, Paint paint, Floor floor, Room selectedRoom,
+                             Paint selectedPaint) {
+        float[] transform = getCanvasTransform(floor, canvas.getWidth(), canvas.getHeight());
+        float scale = transform[0];
+        float offsetX = transform[1];
+        float offsetY = transform[2];
+
+        for (Room room : floor.getRooms()) {
+            Paint roomPaint = room == selectedRoom ? selectedPaint : paint;
+            int numberOfPoints = room.getNumberOfPoints();
+            int numberOfWalls = room.getNumberOfWalls();
+            int numberOfLines = numberOfPoints < 2 ? 0 : numberOfPoints;
+            float[] lines = new float[4 * numberOfLines];
+            for (int line = 0; line < numberOfLines; line++) {
+                int next = (line + 1) % numberOfPoints;
+                float startX = offsetX + room.getX(line) * scale;
+                float startY = offsetY + room.getZ(line) * scale;
+                float endX = offsetX + room.getX(next) * scale;
+                float endY = offsetY + room.getZ(next) * scale;
+                lines[line * 4] = startX;
+                lines[line * 4 + 1] = startY;
+                lines[line * 4 + 2] = endX;
+                lines[line * 4 + 3] = endY;
+                // Draw the label in the middle of each wall.
+                String label = line < numberOfWalls ? room.getWallLabel(line)
+                        : room.getClosingWallLabel();
+                canvas.drawText(label, (startX + endX) / 2, (startY + endY) / 2, roomPaint);
+            }
+            canvas.drawLines(lines, roomPaint);
+            if (room == selectedRoom) {
+                // Draw the area in the middle of the room.
+                canvas.drawText(room.getAreaLabel(),
+                        offsetX + (room.getMinX() + room.getMaxX()) / 2 * scale,
+                        offsetY + (room.getMinZ() + room.getMaxZ()) / 2 * scale, roomPaint);
             }
-            // Get the length of the original unscaled plan.
-            double length = Math.sqrt(
-                    (lastPoint[0] - mPlanPoints.get(0)[0]) * (lastPoint[0] - mPlanPoints.get(0)[0])
-                            + (lastPoint[2] - mPlanPoints.get(0)[2]) *
-                            (lastPoint[2] - mPlanPoints.get(0)[2]));
-            // Draw the label in the middle of each wall.
-            double posX = centerX + (lastScaledPoint[0] + scaledFloorplan.mPlanPoints.get(0)[0])
-                    / 2;
-            double posY = centerY + (lastScaledPoint[2] + scaledFloorplan.mPlanPoints.get(0)[2])
-                    / 2;
-            canvas.drawText(String.format("%.2f", length) + "m", (float) posX, (float) posY, paint);
         }
     }
 
     /**
-     * Translate the whole plan to be centered at the origin and scale it to fill the canvas.
+     * Find the smallest room of the lowest floor under a point of a canvas it was drawn on with
+     * {@link #drawOnCanvas}.
+     *
+     * @return The room, or null if there is none under the point.
      */
-    private Floorplan translateAndScalePlan(Canvas canvas) {
-        // Get center of the plan.
-        float[] planCenter = getPlanCenter();
-        // Get scale factor of the plan.
-        float scale = getPlanScale(canvas.getHeight(), canvas.getWidth());
-        List<float[]> scaledPoints = new ArrayList<float[]>();
-        for (float[] nextPoint : mPlanPoints) {
-            float[] newPoint = new float[3];
-            for (int i = 0; i < 3; i++) {
-                newPoint[i] = (nextPoint[i] - planCenter[i]) * scale;
-            }
-            scaledPoints.add(newPoint);
+    public Room pickRoom(int canvasWidth, int canvasHeight, float canvasX, float canvasY) {
+        if (mFloors.isEmpty()) {
+            return null;
         }
+        Floor floor = mFloors.get(0);
+        float[] transform = getCanvasTransform(floor, canvasWidth, canvasHeight);
+        return floor.pickRoom((canvasX - transform[1]) / transform[0],
+                (canvasY - transform[2]) / transform[0]);
+    }
 
-        return new Floorplan(scaledPoints);
+    /**
+     * Scale and translation of a floor around the center of a canvas, using its cached bounds.
+     *
+     * @return The scale, and the X and Y offsets.
+     */
+    private static float[] getCanvasTransform(Floor floor, int canvasWidth, int canvasHeight) {
+        float xScale = RENDER_PADDING_SCALE_FACTOR * canvasWidth
+                / (floor.getMaxX() - floor.getMinX());
+        float zScale = RENDER_PADDING_SCALE_FACTOR * canvasHeight
+                / (floor.getMaxZ() - floor.getMinZ());
+        float scale = xScale < zScale ? xScale : zScale;
+        if (Float.isInfinite(scale) || Float.isNaN(scale)) {
+            scale = 1;
+        }
+        float offsetX = canvasWidth / 2 - (floor.getMinX() + floor.getMaxX()) / 2 * scale;
+        float offsetY = canvasHeight / 2 - (floor.getMinZ() + floor.getMaxZ()) / 2 * scale;
+        return new float[]{scale, offsetX, offsetY};
     }
 
     /**
-     * Get the center point of the plan.
+     * All the rooms of the plan, in the order they were given.
      */
-    private float[] getPlanCenter() {
-        float[] bounds = getPlanBounds();
-        return new float[]{(bounds[0] + bounds[1]) / 2, (bounds[2] + bounds[3]) / 2,
-                (bounds[4] + bounds[5]) / 2};
+    public List<Room> getRooms() {
+        return mRooms;
     }
 
     /**
-     * Get the scale of the plan.
-     * The scale is the factor the plan should be multiplied by to fill the whole canvas.
+     * The floors of the plan, from the lowest one.
      */
-    private float getPlanScale(int height, int width) {
-        float[] bounds = getPlanBounds();
-        float xScale = RENDER_PADDING_SCALE_FACTOR * width / (bounds[1] - bounds[0]);
-        float zScale = RENDER_PADDING_SCALE_FACTOR * height / (bounds[5] - bounds[4]);
-        return xScale < zScale ? xScale : zScale;
+    public List<Floor> getFloors() {
+        return mFloors;
     }
 
     /**
-     * Get the bounds of the plan.
+     * Find the floor closest to a height.
+     *
+     * @return The floor, or null if the plan is empty.
      */
-    private float[] getPlanBounds() {
-        float xStart = Float.MAX_VALUE;
-        float yStart = Float.MAX_VALUE;
-        float zStart = Float.MAX_VALUE;
-        float xEnd = Float.MIN_VALUE;
-        float yEnd = Float.MIN_VALUE;
-        float zEnd = Float.MIN_VALUE;
-        for (float[] point : mPlanPoints) {
-            if (point[0] < xStart) {
-                xStart = point[0];
-            }
-            if (point[0] > xEnd) {
-                xEnd = point[0];
-            }
-            if (point[1] < yStart) {
-                yStart = point[1];
-            }
-            if (point[1] > yEnd) {
-                yEnd = point[1];
-            }
-            if (point[2] < zStart) {
-                zStart = point[2];
-            }
-            if (point[2] > zEnd) {
-                zEnd = point[2];
+    public Floor findFloor(float height) {
+        Floor closestFloor = null;
+        for (Floor floor : mFloors) {
+            if (closestFloor == null || Math.abs(floor.getHeight() - height)
+                    < Math.abs(closestFloor.getHeight() - height)) {
+                closestFloor = floor;
             }
         }
-        return new float[]{xStart, xEnd, yStart, yEnd, zStart, zEnd};
+        return closestFloor;
+    }
+
+    public float getMinX() {
+        return mMinX;
+    }
+
+    public float getMaxX() {
+        return mMaxX;
+    }
+
+    public float getMinZ() {
+        return mMinZ;
     }
 
-    public List<float[]> getPlanPoints() {
-        return new ArrayList<float[]>(mPlanPoints);
+    public float getMaxZ() {
+        return mMaxZ;
     }
 }
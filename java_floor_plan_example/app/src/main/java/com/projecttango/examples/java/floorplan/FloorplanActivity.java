@@ -28,11 +28,7 @@ import com.google.atap.tangoservice.TangoPoseData;
 import com.google.atap.tangoservice.TangoXyzIjData;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.opengl.Matrix;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
@@ -42,24 +38,41 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
+import android.widget.ToggleButton;
 
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.projecttango.tangosupport.TangoPointCloudManager;
 import com.projecttango.tangosupport.TangoSupport;
 import com.projecttango.tangosupport.TangoSupport.IntersectionPointPlaneModelPair;
+import com.projecttango.tangoutils.PlaneFitter;
+import com.projecttango.tangoutils.PointCloudHistory;
+import com.projecttango.tangoutils.PointCloudTripleBuffer;
+import com.projecttango.tangoutils.RigidTransforms;
 
 /**
  * An example showing how to build a very simple application that allows the user to create a floor
- * plan in Java. It uses TangoSupportLibrary to do plane fitting using the point cloud data.
+ * plan in Java. It uses {@link PlaneFitter} to do plane fitting using the point cloud data.
  * When the user clicks on the display, plane detection is done on the surface at the location of
  * the click and a 3D object will be placed in the scene anchored at that location. A
- * {@code WallMeasurement} will be recorded for that plane.
+ * {@code WallMeasurement} will be recorded for that plane. With the {@link #EXTRA_USE_NATIVE_FIT}
+ * intent extra set, these planes are fitted with the TangoSupport library instead, which doesn't
+ * give the confidence of the fit.
+ * <p/>
+ * With the multi-sample mode on, the plane is instead fitted to the points of the latest point
+ * clouds around the click, which gives steadier walls on glossy or distant surfaces. Each fit has
+ * a confidence value, and the ones too low are ignored. Measurements are done in the background
+ * so that clicks never block the UI thread.
+ * <p/>
+ * With the automatic mode on, a {@link WallDetector} finds the walls in the point clouds as they
+ * come and adds them to the plan without any click.
  * <p/>
  * You need to take exactly one measurement per wall in clockwise order. As you take measurements,
  * the perimeter of the floor plan will be displayed as lines in AR. After you have taken all the
@@ -78,21 +91,60 @@ import com.projecttango.tangosupport.TangoSupport.IntersectionPointPlaneModelPai
  * see java_augmented_reality_example or java_hello_video_example.
  */
 public class FloorplanActivity extends Activity implements View.OnTouchListener {
+    // Intent extra to fit the walls of single-sample measurements with
+    // TangoSupport.fitPlaneModelNearClick instead of PlaneFitter.
+    public static final String EXTRA_USE_NATIVE_FIT = "use_native_fit";
+
     private static final String TAG = FloorplanActivity.class.getSimpleName();
     private static final int INVALID_TEXTURE_ID = 0;
+    // Maximum number of points expected in a single point cloud.
+    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    private static final String EXPORT_FILE_NAME = "floorplan";
+    // Number of latest point clouds used by multi-sample wall fitting.
+    private static final int FIT_NUMBER_OF_CLOUDS = 5;
+    // Half size of the region around the click used by multi-sample wall fitting, in pixels of the
+    // color camera.
+    private static final float FIT_PIXEL_RADIUS = 40;
+    private static final int MAX_NUMBER_OF_FIT_POINTS = 4096;
+    private static final int MIN_NUMBER_OF_FIT_POINTS = 50;
+    private static final float FIT_INLIER_THRESHOLD = 0.02f;
+    private static final int FIT_MAX_ITERATIONS = 200;
+    private static final int FIT_METHOD = PlaneFitter.METHOD_MSAC;
+    // Minimum ratio of the points around the click on the fitted plane to accept a measurement.
+    private static final float MIN_FIT_CONFIDENCE = 0.5f;
 
     private RajawaliSurfaceView mSurfaceView;
     private FloorplanRenderer mRenderer;
     private TangoCameraIntrinsics mIntrinsics;
-    private TangoPointCloudManager mPointCloudManager;
+    private PointCloudTripleBuffer mPointCloudBuffer;
+    private PointCloudHistory mPointCloudHistory;
     private Tango mTango;
     private boolean mIsConnected = false;
     private double mCameraPoseTimestamp = 0;
-    private List<WallMeasurement> mWallMeasurementList;
+    private WallMeasurementStore mWallMeasurementStore;
+    private PlanBuilder mPlanBuilder;
     private Floorplan mFloorplan;
     private FinishPlanTask mFinishPlanTask;
+    private volatile boolean mIsMultiSampleFitting = false;
+    private volatile boolean mIsDetectingWalls = false;
+    private volatile WallDetector mWallDetector;
+    private int mNumberOfPendingWallFits = 0;
+    // Incremented every time the activity is paused or the measurements are reset, so that
+    // measurements started and walls detected before are dropped. Read by the wall detector thread.
+    private volatile int mMeasurementSession = 0;
     private Button mDoneButton;
     private ViewGroup mProgressGroup;
+    // Plane fitting state, only used by the background thread of the measurement tasks.
+    private final PlaneFitter mPlaneFitter = new PlaneFitter(FIT_INLIER_THRESHOLD,
+            FIT_MAX_ITERATIONS, 0);
+    private final float[] mFitPoints = new float[MAX_NUMBER_OF_FIT_POINTS * 3];
+    private final double[] mIntersectionPoint = new double[3];
+    private final double[] mPlaneModel = new double[4];
+    private boolean mIsNativeFit;
+    private final float[] mDepthTplane = new float[16];
+    // Plane of a measurement, compared with the detected walls on the UI thread.
+    private final float[] mMeasuredOpenGlTPlane = new float[16];
+    private final float[] mColorTopenGl = new float[16];
 
     // Texture rendering related fields
     // NOTE: Naming indicates which thread is in charge of updating this variable
@@ -112,8 +164,10 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
         // Set ZOrderOnTop to false so the other views don't get hidden by the SurfaceView.
         mSurfaceView.setZOrderOnTop(false);
         mProgressGroup = (ViewGroup) findViewById(R.id.progress_group);
-        mPointCloudManager = new TangoPointCloudManager();
+        mPointCloudBuffer = new PointCloudTripleBuffer(MAX_NUMBER_OF_POINTS);
+        mPointCloudHistory = new PointCloudHistory(FIT_NUMBER_OF_CLOUDS, MAX_NUMBER_OF_POINTS);
         mDoneButton = (Button) findViewById(R.id.done_button);
+        mIsNativeFit = getIntent().getBooleanExtra(EXTRA_USE_NATIVE_FIT, false);
     }
 
     @Override
@@ -122,6 +176,12 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
         // Synchronize against disconnecting while the service is being used in the OpenGL thread or
         // in the UI thread.
         synchronized (this) {
+            if (mWallDetector != null) {
+                mWallDetector.stop();
+                mWallDetector = null;
+            }
+            // Drop the walls the detector posted before stopping, and the measurements in flight.
+            mMeasurementSession++;
             if (mIsConnected) {
                 mRenderer.getCurrentScene().clearFrameCallbacks();
                 mTango.disconnectCamera(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
@@ -142,9 +202,12 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
         if (Tango.hasPermission(this, Tango.PERMISSIONTYPE_ADF_LOAD_SAVE)) {
             // Reset the status every time we connect to the service. The old measurements don't
             // make sense.
-            mWallMeasurementList = new ArrayList<WallMeasurement>();
+            mWallMeasurementStore = new WallMeasurementStore();
+            mMeasurementSession++;
+            mPlanBuilder = new PlanBuilder(mWallMeasurementStore);
+            mPointCloudHistory.clear();
             mRenderer.removeMeasurements();
-            mRenderer.updatePlan(new Floorplan(new ArrayList<float[]>()));
+            mRenderer.updatePlan(new Floorplan(new ArrayList<Room>()));
             connectAndStart();
         } else {
             startActivityForResult(
@@ -239,7 +302,29 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
             @Override
             public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
                 // Save the cloud and point data for later use.
-                mPointCloudManager.updateXyzIj(xyzIj);
+                mPointCloudBuffer.updateXyzIj(xyzIj);
+                // The pose of the cloud is only needed by multi-sample fitting and by the wall
+                // detector.
+                boolean isMultiSampleFitting = mIsMultiSampleFitting;
+                WallDetector wallDetector = mWallDetector;
+                if (!isMultiSampleFitting && (wallDetector == null || !mIsDetectingWalls)) {
+                    return;
+                }
+                TangoSupport.TangoMatrixTransformData transform =
+                        TangoSupport.getMatrixTransformAtTime(xyzIj.timestamp,
+                                TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
+                                TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                                TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                                TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+                if (transform.statusCode == TangoPoseData.POSE_VALID) {
+                    if (isMultiSampleFitting) {
+                        // Keep the latest clouds with the depth camera pose.
+                        mPointCloudHistory.add(xyzIj, transform.matrix);
+                    }
+                    if (wallDetector != null) {
+                        wallDetector.onXyzIjAvailable(xyzIj, transform.matrix);
+                    }
+                }
             }
 
             @Override
@@ -249,6 +334,27 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
         });
 
         mIntrinsics = mTango.getCameraIntrinsics(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+
+        mWallDetector = new WallDetector(
+                mTango.getCameraIntrinsics(TangoCameraIntrinsics.TANGO_CAMERA_DEPTH),
+                MAX_NUMBER_OF_POINTS, new WallDetector.WallDetectorListener() {
+                    @Override
+                    public void onWallDetected(final float[] openGlTPlane,
+                                               final float[] openGlTDepth,
+                                               final double timestamp, final float confidence) {
+                        final int session = mMeasurementSession;
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                addDetectedWall(session, openGlTPlane, openGlTDepth, timestamp,
+                                        confidence);
+                            }
+                        });
+                    }
+                });
+        if (mIsDetectingWalls) {
+            mWallDetector.start();
+        }
     }
 
     /**
@@ -334,58 +440,91 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
 
     /**
      * This method handles when the user clicks the screen. It will try to fit a plane to the
-     * clicked point using depth data. The floor plan will be rebuilt and the result will be shown
-     * in AR.
+     * clicked point using depth data in the background. The floor plan will then be rebuilt and the
+     * result will be shown in AR.
      */
     @Override
     public boolean onTouch(View view, MotionEvent motionEvent) {
-        if (motionEvent.getAction() == MotionEvent.ACTION_UP) {
+        if (motionEvent.getAction() == MotionEvent.ACTION_UP && mFinishPlanTask == null) {
             // Calculate click location in u,v (0;1) coordinates.
             float u = motionEvent.getX() / view.getWidth();
             float v = motionEvent.getY() / view.getHeight();
 
-            try {
-                // Take a wall measurement by fitting a plane on the clicked point using the latest
-                // point cloud data.
-                // Synchronize against concurrent access to the RGB timestamp in the OpenGL thread
-                // and a possible service disconnection due to an onPause event.
-                WallMeasurement wallMeasurement;
-                synchronized (this) {
-                    wallMeasurement = doWallMeasurement(u, v, mRgbTimestampGlThread);
-                }
+            // Synchronize against concurrent access to the RGB timestamp in the OpenGL thread.
+            double rgbTimestamp;
+            synchronized (this) {
+                rgbTimestamp = mRgbTimestampGlThread;
+            }
+            mNumberOfPendingWallFits++;
+            new WallFitTask(u, v, rgbTimestamp, mIsMultiSampleFitting).execute();
+        }
+        return true;
+    }
+
+    /**
+     * Switch between fitting walls on the latest point cloud and fitting them on the latest
+     * {@code FIT_NUMBER_OF_CLOUDS} point clouds.
+     */
+    public void toggleFitMode(View view) {
+        mIsMultiSampleFitting = ((ToggleButton) view).isChecked();
+        // The clouds are only kept while fitting on several of them, so the kept ones may be
+        // from long ago.
+        mPointCloudHistory.clear();
+    }
 
-                // If the measurement was successful add it and run the floor plan building
-                // algorithm.
-                if (wallMeasurement != null) {
-                    mWallMeasurementList.add(wallMeasurement);
-                    mRenderer.addWallMeasurement(wallMeasurement);
-                    buildPlan(false);
+    /**
+     * Switch the automatic detection of walls on or off.
+     */
+    public void toggleWallDetection(View view) {
+        mIsDetectingWalls = ((ToggleButton) view).isChecked();
+        // Synchronize against the creation of the detector when connecting to the service.
+        synchronized (this) {
+            if (mWallDetector != null) {
+                if (mIsDetectingWalls) {
+                    mWallDetector.start();
+                } else {
+                    mWallDetector.stop();
                 }
-            } catch (TangoException t) {
-                Toast.makeText(getApplicationContext(),
-                        R.string.failed_measurement,
-                        Toast.LENGTH_SHORT).show();
-                Log.e(TAG, getString(R.string.failed_measurement), t);
-            } catch (SecurityException t) {
-                Toast.makeText(getApplicationContext(),
-                        R.string.failed_permissions,
-                        Toast.LENGTH_SHORT).show();
-                Log.e(TAG, getString(R.string.failed_permissions), t);
             }
         }
-        return true;
     }
 
     /**
-     * Use the TangoSupport library and point cloud data to calculate the plane at the specified
-     * location in the color camera frame.
-     * It returns the pose of the fitted plane in a TangoPoseData structure.
+     * Add a wall found by the {@link WallDetector} to the plan, unless the plan is being finished,
+     * the detection was switched off or the activity was paused in the meantime, or the user
+     * measured the same wall while it was being detected.
+     *
+     * @param session The measurement session when the wall was detected.
+     */
+    private void addDetectedWall(int session, float[] openGlTPlane, float[] openGlTDepth,
+                                 double timestamp, float confidence) {
+        if (session != mMeasurementSession || !mIsDetectingWalls || mFinishPlanTask != null) {
+            return;
+        }
+        for (int i = 0; i < mWallMeasurementStore.size(); i++) {
+            mWallMeasurementStore.getPlaneTransform(i, mMeasuredOpenGlTPlane);
+            if (WallDetector.isSameWall(mMeasuredOpenGlTPlane, openGlTPlane)) {
+                return;
+            }
+        }
+        WallMeasurement wallMeasurement = mWallMeasurementStore.add(openGlTPlane, openGlTDepth,
+                timestamp, confidence);
+        mRenderer.addWallMeasurement(wallMeasurement);
+        buildPlan(false);
+    }
+
+    /**
+     * Use the latest point cloud data to calculate the plane at the specified location in the
+     * color camera frame. The confidence of the fit is unknown with the TangoSupport library, so
+     * it is left NaN, which is accepted.
+     *
+     * @return True if the plane was fitted, with the result in {@code fit}.
      */
-    private WallMeasurement doWallMeasurement(float u, float v, double rgbTimestamp) {
-        TangoXyzIjData xyzIj = mPointCloudManager.getLatestXyzIj();
+    private boolean doWallMeasurement(float u, float v, double rgbTimestamp, WallFit fit) {
+        TangoXyzIjData xyzIj = mPointCloudBuffer.getLatestXyzIj();
 
         if (xyzIj == null) {
-            return null;
+            return false;
         }
 
         // We need to calculate the transform between the color camera at the
@@ -396,53 +535,134 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
                 xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
 
         // Perform plane fitting with the latest available point cloud data.
-        try {
+        if (mIsNativeFit) {
             IntersectionPointPlaneModelPair intersectionPointPlaneModelPair =
                     TangoSupport.fitPlaneModelNearClick(xyzIj, mIntrinsics,
                             colorTdepthPose, u, v);
+            System.arraycopy(intersectionPointPlaneModelPair.intersectionPoint, 0,
+                    mIntersectionPoint, 0, 3);
+            System.arraycopy(intersectionPointPlaneModelPair.planeModel, 0, mPlaneModel, 0, 4);
+        } else if (mPlaneFitter.fitNearClick(xyzIj, mIntrinsics, colorTdepthPose, u, v,
+                FIT_PIXEL_RADIUS, FIT_METHOD)) {
+            mPlaneFitter.getIntersectionPoint(mIntersectionPoint);
+            mPlaneFitter.getPlaneModel(mPlaneModel);
+        } else {
+            Log.d(TAG, "Failed to fit plane");
+            return false;
+        }
 
-            // Get the depth camera transform at the time the plane data was acquired.
-            TangoSupport.TangoMatrixTransformData transform =
-                    TangoSupport.getMatrixTransformAtTime(xyzIj.timestamp,
-                            TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
-                            TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-                            TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
-                            TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
-            if (transform.statusCode == TangoPoseData.POSE_VALID) {
-                // Update the AR object location.
-                float[] planeFitTransform = calculatePlaneTransform(
-                        intersectionPointPlaneModelPair.intersectionPoint,
-                        intersectionPointPlaneModelPair.planeModel, transform.matrix);
+        // Get the depth camera transform at the time the plane data was acquired.
+        TangoSupport.TangoMatrixTransformData transform =
+                TangoSupport.getMatrixTransformAtTime(xyzIj.timestamp,
+                        TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
+                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                        TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                        TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+        if (transform.statusCode == TangoPoseData.POSE_VALID) {
+            // Update the AR object location.
+            calculatePlaneTransform(mIntersectionPoint, mPlaneModel, transform.matrix,
+                    fit.openGlTplane);
+            System.arraycopy(transform.matrix, 0, fit.openGlTdepth, 0, 16);
+            fit.timestamp = xyzIj.timestamp;
+            fit.confidence = mIsNativeFit ? Float.NaN : mPlaneFitter.getConfidence();
+            return true;
+        } else {
+            Log.d(TAG, "Could not get a valid transform from depth to area description at time "
+                    + xyzIj.timestamp);
+        }
+        return false;
+    }
 
-                return new WallMeasurement(planeFitTransform, transform.matrix, xyzIj.timestamp);
-            } else {
-                Log.d(TAG, "Could not get a valid transform from depth to area description at time "
-                        + xyzIj.timestamp);
+    /**
+     * Fit the plane at the specified location in the color camera frame on the points
+     * of the latest point clouds around that location, in OpenGl world frame.
+     * The confidence of the fit is the ratio of these points which lie on the plane. The
+     * measurement follows the pose of the depth camera of the newest cloud when poses are updated.
+     *
+     * @return True if the plane was fitted, with the result in {@code fit}.
+     */
+    private boolean doMultiSampleWallMeasurement(float u, float v, double rgbTimestamp,
+                                                 WallFit fit) {
+        // Get the color camera transform at the time the user clicked.
+        TangoSupport.TangoMatrixTransformData transform;
+        synchronized (this) {
+            if (!mIsConnected) {
+                return false;
             }
-        } catch (TangoException e) {
-            Log.d(TAG, "Failed to fit plane");
+            transform = TangoSupport.getMatrixTransformAtTime(rgbTimestamp,
+                    TangoPoseData.COORDINATE_FRAME_AREA_DESCRIPTION,
+                    TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                    TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                    TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+        }
+        if (transform.statusCode != TangoPoseData.POSE_VALID) {
+            Log.d(TAG, "Could not get a valid transform from color to area description at time "
+                    + rgbTimestamp);
+            return false;
+        }
+        float[] openGlTcolor = transform.matrix;
+        RigidTransforms.invertRigid(mColorTopenGl, 0, openGlTcolor, 0);
+
+        // The clouds are scanned without blocking the ones added meanwhile.
+        int numberOfPoints = mPointCloudHistory.copyPointsNearPixel(mColorTopenGl, mIntrinsics,
+                u, v, FIT_PIXEL_RADIUS, mFitPoints, MAX_NUMBER_OF_FIT_POINTS);
+        if (numberOfPoints == 0) {
+            return false;
+        }
+        mPointCloudHistory.getCopiedOpenGlTDepth(fit.openGlTdepth);
+        fit.timestamp = mPointCloudHistory.getCopiedTimestamp();
+        if (numberOfPoints < MIN_NUMBER_OF_FIT_POINTS
+                || !mPlaneFitter.fit(FIT_METHOD, mFitPoints, numberOfPoints)) {
+            Log.d(TAG, "Failed to fit plane to " + numberOfPoints + " points");
+            return false;
         }
-        return null;
+
+        // Intersect the ray from the color camera through the click with the plane.
+        float originX = openGlTcolor[12];
+        float originY = openGlTcolor[13];
+        float originZ = openGlTcolor[14];
+        mPlaneFitter.orientTowards(originX, originY, originZ);
+        float rayX = (float) ((u * mIntrinsics.width - mIntrinsics.cx) / mIntrinsics.fx);
+        float rayY = (float) ((v * mIntrinsics.height - mIntrinsics.cy) / mIntrinsics.fy);
+        float directionX = openGlTcolor[0] * rayX + openGlTcolor[4] * rayY + openGlTcolor[8];
+        float directionY = openGlTcolor[1] * rayX + openGlTcolor[5] * rayY + openGlTcolor[9];
+        float directionZ = openGlTcolor[2] * rayX + openGlTcolor[6] * rayY + openGlTcolor[10];
+        float normalX = mPlaneFitter.getNormalX();
+        float normalY = mPlaneFitter.getNormalY();
+        float normalZ = mPlaneFitter.getNormalZ();
+        float cosine = normalX * directionX + normalY * directionY + normalZ * directionZ;
+        if (cosine >= 0) {
+            Log.d(TAG, "Fitted plane not facing the camera");
+            return false;
+        }
+        float distance = -mPlaneFitter.getSignedDistance(originX, originY, originZ) / cosine;
+        // The plane is already in OpenGl world frame, where Y is up.
+        RigidTransforms.setFromPointNormalUp(fit.openGlTplane, 0, originX + distance * directionX,
+                originY + distance * directionY, originZ + distance * directionZ, normalX,
+                normalY, normalZ, 0, 1, 0);
+        fit.confidence = mPlaneFitter.getConfidence();
+        Log.d(TAG, "Fitted plane to " + mPlaneFitter.getNumberOfInliers() + " of "
+                + numberOfPoints + " points, RMS error " + mPlaneFitter.getRmsError());
+        return true;
     }
 
     /**
      * Calculate the pose of the plane based on the position and normal orientation of the plane
      * and align it with gravity.
      */
-    private float[] calculatePlaneTransform(double[] point, double normal[],
-                                            float[] openGlTdepth) {
-        // Vector aligned to gravity.
-        float[] openGlUp = new float[]{0, 1, 0, 0};
-        float[] depthTOpenGl = new float[16];
-        Matrix.invertM(depthTOpenGl, 0, openGlTdepth, 0);
-        float[] depthUp = new float[4];
-        Matrix.multiplyMV(depthUp, 0, depthTOpenGl, 0, openGlUp, 0);
+    private void calculatePlaneTransform(double[] point, double normal[],
+                                         float[] openGlTdepth, float[] openGlTplane) {
+        // Vector aligned to gravity, rotated to the depth frame. The inverse rotation is the
+        // transposed one, so this is the second row of the rotation.
+        float depthUpX = openGlTdepth[1];
+        float depthUpY = openGlTdepth[5];
+        float depthUpZ = openGlTdepth[9];
         // Create the plane matrix transform in depth frame from a point, the plane normal and the
         // up vector.
-        float[] depthTplane = matrixFromPointNormalUp(point, normal, depthUp);
-        float[] openGlTplane = new float[16];
-        Matrix.multiplyMM(openGlTplane, 0, openGlTdepth, 0, depthTplane, 0);
-        return openGlTplane;
+        RigidTransforms.setFromPointNormalUp(mDepthTplane, 0, (float) point[0],
+                (float) point[1], (float) point[2], (float) normal[0], (float) normal[1],
+                (float) normal[2], depthUpX, depthUpY, depthUpZ);
+        RigidTransforms.multiply(openGlTplane, 0, openGlTdepth, 0, mDepthTplane, 0);
     }
 
     /**
@@ -451,7 +671,7 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
      * @param closed If true, close the floor plan; if false, continue the floor plan.
      */
     public void buildPlan(boolean closed) {
-        mFloorplan = PlanBuilder.buildPlan(mWallMeasurementList, closed);
+        mFloorplan = mPlanBuilder.buildPlan(closed);
         mRenderer.updatePlan(mFloorplan);
     }
 
@@ -460,7 +680,8 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
      * was taken.
      */
     public void updateMeasurements() {
-        for (WallMeasurement wallMeasurement : mWallMeasurementList) {
+        for (int i = 0; i < mWallMeasurementStore.size(); i++) {
+            WallMeasurement wallMeasurement = mWallMeasurementStore.get(i);
             // We need to re query the depth transform when the measurements were taken.
             TangoSupport.TangoMatrixTransformData transform =
                     TangoSupport.getMatrixTransformAtTime(wallMeasurement
@@ -492,7 +713,7 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
         }
 
         // Only finish the plan if we have enough measurements.
-        if (mWallMeasurementList.size() < 3) {
+        if (mWallMeasurementStore.size() < 3) {
             Toast.makeText(this, "At least 3 measurements are needed to close the room",
                     Toast.LENGTH_LONG).show();
             return;
@@ -503,10 +724,46 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
             return;
         }
 
+        if (mNumberOfPendingWallFits > 0) {
+            Log.w(TAG, "Wall measurements still executing");
+            return;
+        }
+
         mFinishPlanTask = new FinishPlanTask();
         mFinishPlanTask.execute();
     }
 
+    /**
+     * Export the plan as SVG, DXF and GeoJSON files to the external files directory of the app.
+     *
+     * @return The directory of the files, or null if the plan couldn't be exported.
+     */
+    private File exportPlan() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            Log.e(TAG, "External storage not available to export the plan");
+            return null;
+        }
+        FloorplanExporter[] exporters = new FloorplanExporter[]{new SvgFloorplanExporter(),
+                new DxfFloorplanExporter(), new GeoJsonFloorplanExporter()};
+        try {
+            for (FloorplanExporter exporter : exporters) {
+                File file = new File(directory,
+                        EXPORT_FILE_NAME + "." + exporter.getFileExtension());
+                OutputStream outputStream = new FileOutputStream(file);
+                try {
+                    exporter.export(mFloorplan, outputStream);
+                } finally {
+                    outputStream.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export the plan", e);
+            return null;
+        }
+        return directory;
+    }
+
     /**
      * Verifies whether the Tango service is in a state where the ADF can be saved or not.
      */
@@ -530,60 +787,100 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
     }
 
     /**
-     * Calculates a transformation matrix based on a point, a normal and the up gravity vector.
-     * The coordinate frame of the target transformation will be Z forward, X left, Y up.
+     * Result of a wall plane fit, before it is added to the measurement store.
      */
-    private float[] matrixFromPointNormalUp(double[] point, double[] normal, float[] up) {
-        float[] zAxis = new float[]{(float) normal[0], (float) normal[1], (float) normal[2]};
-        normalize(zAxis);
-        float[] xAxis = crossProduct(zAxis, up);
-        normalize(xAxis);
-        float[] yAxis = crossProduct(zAxis, xAxis);
-        normalize(yAxis);
-        float[] m = new float[16];
-        Matrix.setIdentityM(m, 0);
-        m[0] = xAxis[0];
-        m[1] = xAxis[1];
-        m[2] = xAxis[2];
-        m[4] = yAxis[0];
-        m[5] = yAxis[1];
-        m[6] = yAxis[2];
-        m[8] = zAxis[0];
-        m[9] = zAxis[1];
-        m[10] = zAxis[2];
-        m[12] = (float) point[0];
-        m[13] = (float) point[1];
-        m[14] = (float) point[2];
-        return m;
+    private static class WallFit {
+        final float[] openGlTplane = new float[16];
+        final float[] openGlTdepth = new float[16];
+        double timestamp;
+        float confidence;
     }
 
     /**
-     * Normalize a vector.
+     * Wall measurement AsyncTask.
+     * Fits the plane in the background and then adds the measurement and rebuilds the plan in the
+     * UI thread. Like all AsyncTasks, measurements and the finish plan task run one at a time in
+     * the order they were started, so they can share the plane fitting state.
      */
-    private void normalize(float[] v) {
-        double norm = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
-        v[0] /= norm;
-        v[1] /= norm;
-        v[2] /= norm;
-    }
+    private class WallFitTask extends AsyncTask<Void, Void, Boolean> {
+        private final float mU;
+        private final float mV;
+        private final double mRgbTimestamp;
+        private final boolean mIsMultiSample;
+        private final int mSession = mMeasurementSession;
+        private final WallFit mFit = new WallFit();
+        private int mErrorMessageId = 0;
+
+        WallFitTask(float u, float v, double rgbTimestamp, boolean isMultiSample) {
+            mU = u;
+            mV = v;
+            mRgbTimestamp = rgbTimestamp;
+            mIsMultiSample = isMultiSample;
+        }
 
-    /**
-     * Cross product between two vectors following the right hand rule.
-     */
-    private float[] crossProduct(float[] v1, float[] v2) {
-        float[] result = new float[3];
-        result[0] = v1[1] * v2[2] - v2[1] * v1[2];
-        result[1] = v1[2] * v2[0] - v2[2] * v1[0];
-        result[2] = v1[0] * v2[1] - v2[0] * v1[1];
-        return result;
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                if (mIsMultiSample) {
+                    return doMultiSampleWallMeasurement(mU, mV, mRgbTimestamp, mFit);
+                }
+                // Synchronize against a possible service disconnection due to an onPause event.
+                synchronized (FloorplanActivity.this) {
+                    return mIsConnected && doWallMeasurement(mU, mV, mRgbTimestamp, mFit);
+                }
+            } catch (TangoException t) {
+                mErrorMessageId = R.string.failed_measurement;
+                Log.e(TAG, getString(R.string.failed_measurement), t);
+            } catch (SecurityException t) {
+                mErrorMessageId = R.string.failed_permissions;
+                Log.e(TAG, getString(R.string.failed_permissions), t);
+            }
+            return false;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean isFitted) {
+            mNumberOfPendingWallFits--;
+            if (mSession != mMeasurementSession) {
+                // The measurements were reset while fitting.
+                return;
+            }
+            if (mErrorMessageId != 0) {
+                Toast.makeText(getApplicationContext(), mErrorMessageId, Toast.LENGTH_SHORT)
+                        .show();
+            }
+            if (!isFitted) {
+                return;
+            }
+            if (mFit.confidence < MIN_FIT_CONFIDENCE) {
+                Toast.makeText(getApplicationContext(),
+                        getString(R.string.low_confidence_measurement,
+                                Math.round(mFit.confidence * 100)),
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // If the measurement was successful show it and run the floor plan building
+            // algorithm.
+            WallMeasurement wallMeasurement = mWallMeasurementStore.add(mFit.openGlTplane,
+                    mFit.openGlTdepth, mFit.timestamp, mFit.confidence);
+            mRenderer.addWallMeasurement(wallMeasurement);
+            // Keep the detector from proposing the measured wall again.
+            WallDetector wallDetector = mWallDetector;
+            if (wallDetector != null) {
+                wallDetector.addMeasuredWall(mFit.openGlTplane);
+            }
+            buildPlan(false);
+        }
     }
 
     /**
      * Finish plan AsyncTask.
-     * Shows a spinner while it's saving the adf and updating the measurements.
+     * Shows a spinner while it's saving the adf, updating the measurements and exporting the plan.
      * Draws the final result on a canvas and shows it.
      */
     private class FinishPlanTask extends AsyncTask<Void, Integer, Void> {
+        private File mExportDirectory;
 
         @Override
         protected void onPreExecute() {
@@ -598,6 +895,7 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
             mRenderer.removeMeasurements();
             updateMeasurements();
             buildPlan(true);
+            mExportDirectory = exportPlan();
 
             return null;
         }
@@ -605,9 +903,18 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
         @Override
         protected void onPostExecute(Void v) {
             mProgressGroup.setVisibility(View.GONE);
+            if (mExportDirectory != null) {
+                Toast.makeText(FloorplanActivity.this,
+                        getString(R.string.plan_exported, mExportDirectory),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(FloorplanActivity.this, R.string.failed_export,
+                        Toast.LENGTH_LONG).show();
+            }
             RelativeLayout frameLayout = new RelativeLayout(FloorplanActivity.this);
-            // Draw final result on Canvas.
+            // Draw final result in the plan view.
             PlanView planView = new PlanView(FloorplanActivity.this);
+            planView.setFloorplan(mFloorplan);
             planView.setLayoutParams(new RelativeLayout.LayoutParams(
                     RelativeLayout.LayoutParams.MATCH_PARENT,
                     RelativeLayout.LayoutParams.MATCH_PARENT));
@@ -635,24 +942,4 @@ public class FloorplanActivity extends Activity implements View.OnTouchListener
             mFinishPlanTask = null;
         }
     }
-
-    /**
-     * Custom View that draws the plan in 2D.
-     */
-    private class PlanView extends View {
-
-        private Paint mPaint;
-
-        public PlanView(Context context) {
-            super(context);
-            mPaint = new Paint();
-            mPaint.setStrokeWidth(10);
-            mPaint.setTextSize(50);
-        }
-
-        @Override
-        public void onDraw(Canvas canvas) {
-            mFloorplan.drawOnCanvas(canvas, mPaint);
-        }
-    }
 }
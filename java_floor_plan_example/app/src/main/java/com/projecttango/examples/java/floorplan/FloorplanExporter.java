@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Base class of the vector exporters of a {@link Floorplan}.
+ * <p/>
+ * Exporters write the rooms one by one straight to the output, floor by floor from the lowest
+ * one, so the memory used doesn't depend on the size of the plan. Numbers are written with a
+ * fixed number of decimals and without depending on the default locale, so exporting the same
+ * plan always gives the same output.
+ * Exporters are not thread safe.
+ */
+public abstract class FloorplanExporter {
+    /**
+     * Number of decimals of the coordinates, in meters.
+     */
+    public static final int COORDINATE_DECIMALS = 4;
+    /**
+     * Number of decimals of the wall lengths, in meters, as shown in the plan view.
+     */
+    public static final int LENGTH_DECIMALS = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+    // Scratch storage to format numbers.
+    private final char[] mDigits = new char[20];
+
+    /**
+     * Write a plan.
+     *
+     * @param writer The writer is not flushed nor closed.
+     */
+    public abstract void export(Floorplan floorplan, Writer writer) throws IOException;
+
+    /**
+     * Write a plan encoded in UTF-8.
+     *
+     * @param outputStream The stream is flushed but not closed.
+     */
+    public void export(Floorplan floorplan, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8));
+        export(floorplan, writer);
+        writer.flush();
+    }
+
+    /**
+     * Extension of the files in this format, without the dot.
+     */
+    public abstract String getFileExtension();
+
+    /**
+     * Write a number in decimal notation with a fixed number of decimals.
+     */
+    protected void writeNumber(Writer writer, double value, int decimals) throws IOException {
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(value * scale);
+        if (scaled < 0) {
+            writer.write('-');
+            scaled = -scaled;
+        }
+        // Write the digits backwards into the scratch storage.
+        int position = mDigits.length;
+        for (int i = 0; i < decimals; i++) {
+            mDigits[--position] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        }
+        if (decimals > 0) {
+            mDigits[--position] = '.';
+        }
+        do {
+            mDigits[--position] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        } while (scaled > 0);
+        writer.write(mDigits, position, mDigits.length - position);
+    }
+
+    protected void writeCoordinate(Writer writer, double value) throws IOException {
+        writeNumber(writer, value, COORDINATE_DECIMALS);
+    }
+
+    protected void writeInteger(Writer writer, long value) throws IOException {
+        writeNumber(writer, value, 0);
+    }
+}
@@ -65,8 +65,8 @@ public class FloorplanRenderer extends RajawaliRenderer {
     private boolean mObjectPoseUpdated = false;
     private boolean mPlanUpdated = false;
     private Material mPlaneMaterial;
-    private Object3D mPlanLine = null;
-    private Stack<Vector3> mPlanPoints;
+    private List<Object3D> mPlanLines = new ArrayList<Object3D>();
+    private List<Stack<Vector3>> mPlanPoints;
     private List<Object3D> mMeasurementObjectList = new ArrayList<Object3D>();
 
     // Augmented reality related fields
@@ -147,17 +147,21 @@ public class FloorplanRenderer extends RajawaliRenderer {
             }
 
             if (mPlanUpdated) {
-                if (mPlanLine != null) {
-                    // Remove the old line.
-                    getCurrentScene().removeChild(mPlanLine);
+                // Remove the old lines.
+                for (Object3D planLine : mPlanLines) {
+                    getCurrentScene().removeChild(planLine);
                 }
-                if (mPlanPoints.size() > 1) {
-                    // Create a line with the points of the plan perimeter.
-                    mPlanLine = new Line3D(mPlanPoints, 20, Color.RED);
-                    Material m = new Material();
-                    m.setColor(Color.RED);
-                    mPlanLine.setMaterial(m);
-                    getCurrentScene().addChild(mPlanLine);
+                mPlanLines.clear();
+                for (Stack<Vector3> roomPoints : mPlanPoints) {
+                    if (roomPoints.size() > 1) {
+                        // Create a line with the points of the room perimeter.
+                        Object3D planLine = new Line3D(roomPoints, 20, Color.RED);
+                        Material m = new Material();
+                        m.setColor(Color.RED);
+                        planLine.setMaterial(m);
+                        getCurrentScene().addChild(planLine);
+                        mPlanLines.add(planLine);
+                    }
                 }
                 mPlanUpdated = false;
             }
@@ -241,14 +245,18 @@ public class FloorplanRenderer extends RajawaliRenderer {
     }
 
     /**
-     * Update the perimeter line with the new floor plan.
+     * Update the perimeter lines with the new floor plan, one line per room.
      */
     public synchronized void updatePlan(Floorplan plan) {
-        Stack<Vector3> points = new Stack<Vector3>();
-        for (float[] point : plan.getPlanPoints()) {
-            points.add(new Vector3(point[0], 0, point[2]));
+        List<Stack<Vector3>> planPoints = new ArrayList<Stack<Vector3>>();
+        for (Room room : plan.getRooms()) {
+            Stack<Vector3> points = new Stack<Vector3>();
+            for (int i = 0; i < room.getNumberOfPoints(); i++) {
+                points.add(new Vector3(room.getX(i), 0, room.getZ(i)));
+            }
+            planPoints.add(points);
         }
-        mPlanPoints = points;
+        mPlanPoints = planPoints;
         mPlanUpdated = true;
     }
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Exports a {@link Floorplan} as a GeoJSON feature collection, one feature per room.
+ * <p/>
+ * The plan is not georeferenced, so the positions are local coordinates in meters rather than
+ * longitudes and latitudes: a point (x, y, z) of the OpenGl world frame is at [x, -z]. Closed
+ * rooms are polygons, with their ring counterclockwise, and the others line strings. The
+ * properties of each room are the index and the height of its floor, its area and the length of
+ * its walls.
+ */
+public class GeoJsonFloorplanExporter extends FloorplanExporter {
+
+    @Override
+    public void export(Floorplan floorplan, Writer writer) throws IOException {
+        writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        boolean isFirstFeature = true;
+        List<Floor> floors = floorplan.getFloors();
+        for (int floorIndex = 0; floorIndex < floors.size(); floorIndex++) {
+            Floor floor = floors.get(floorIndex);
+            for (Room room : floor.getRooms()) {
+                writer.write(isFirstFeature ? "\n" : ",\n");
+                writeRoom(writer, room, floorIndex, floor.getHeight());
+                isFirstFeature = false;
+            }
+        }
+        writer.write("\n]}\n");
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "geojson";
+    }
+
+    private void writeRoom(Writer writer, Room room, int floorIndex, float floorHeight)
+            throws IOException {
+        int numberOfPoints = room.getNumberOfPoints();
+        writer.write("{\"type\":\"Feature\",\"geometry\":");
+        if (room.isClosed() && numberOfPoints >= 3) {
+            writer.write("{\"type\":\"Polygon\",\"coordinates\":[[");
+            // The signed area in the exported frame, where Z is negated, tells the orientation.
+            double signedArea = 0;
+            for (int i = 0, j = numberOfPoints - 1; i < numberOfPoints; j = i++) {
+                signedArea += (double) room.getX(j) * -room.getZ(i)
+                        - (double) room.getX(i) * -room.getZ(j);
+            }
+            boolean isReversed = signedArea < 0;
+            for (int i = 0; i <= numberOfPoints; i++) {
+                int point = i % numberOfPoints;
+                if (isReversed) {
+                    point = (numberOfPoints - point) % numberOfPoints;
+                }
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writePosition(writer, room, point);
+            }
+            writer.write("]]}");
+        } else if (numberOfPoints >= 2) {
+            writer.write("{\"type\":\"LineString\",\"coordinates\":[");
+            for (int i = 0; i < numberOfPoints; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writePosition(writer, room, i);
+            }
+            writer.write("]}");
+        } else {
+            writer.write("null");
+        }
+
+        writer.write(",\"properties\":{\"floor\":");
+        writeInteger(writer, floorIndex);
+        writer.write(",\"floorHeight\":");
+        writeCoordinate(writer, floorHeight);
+        writer.write(",\"closed\":");
+        writer.write(room.isClosed() ? "true" : "false");
+        writer.write(",\"area\":");
+        writeCoordinate(writer, room.getArea());
+        writer.write(",\"wallLengths\":[");
+        for (int wall = 0; wall < room.getNumberOfWalls(); wall++) {
+            if (wall > 0) {
+                writer.write(',');
+            }
+            writeNumber(writer, room.getWallLength(wall), LENGTH_DECIMALS);
+        }
+        writer.write("]}}");
+    }
+
+    private void writePosition(Writer writer, Room room, int point) throws IOException {
+        writer.write('[');
+        writeCoordinate(writer, room.getX(point));
+        writer.write(',');
+        writeCoordinate(writer, -room.getZ(point));
+        writer.write(']');
+    }
+}
@@ -15,55 +15,119 @@
  */
 package com.projecttango.examples.java.floorplan;
 
-import org.rajawali3d.math.vector.Vector3;
-
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
- * Builder that knows how to build a Floorplan given a list of WallMeasurements.
+ * Builder that knows how to build a Floorplan given the WallMeasurements of a store.
+ * <p/>
+ * The plan is built incrementally. The corner between every measurement and the previous one is
+ * kept, indexed by the later measurement, and only the corners next to measurements which were
+ * added or moved since the last build are intersected again. Each build publishes a new
+ * immutable Floorplan, or the previous one if nothing changed.
+ * This class is not thread safe.
  */
 public class PlanBuilder {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final WallMeasurementStore mWallMeasurementStore;
+
+    // Corner i, at offset i * 3, is the intersection of measurement i with measurement i - 1. The
+    // first slot holds the corner between the last and the first measurements.
+    private float[] mCorners;
+    private boolean[] mIsCornerValid;
+    // Revisions of the measurements the corners were calculated with.
+    private int[] mWallRevisions;
+    private int mNumberOfWalls;
+    // Scratch storage for the points of the plan.
+    private float[] mPlanPoints;
+
+    private boolean mIsClosed;
+    private Floorplan mFloorplan;
+
+    public PlanBuilder(WallMeasurementStore wallMeasurementStore) {
+        mWallMeasurementStore = wallMeasurementStore;
+        allocate(INITIAL_CAPACITY);
+    }
 
     /**
-     * Creates a new Floorplan object beased on the measurements that we have so far.
+     * Creates a Floorplan object based on the measurements that we have so far.
      *
-     * @param wallMeasurementList List of WallMeasurements to use as input to build the plan.
-     *                            It must have only one measurement per wall.
-     * @param closed              If true, close the floor plan and intersect the first and last
-     *                            measurements. If false, continue the floor plan.
+     * @param closed If true, close the floor plan and intersect the first and last measurements.
+     *               If false, continue the floor plan.
      */
-    public static Floorplan buildPlan(List<WallMeasurement> wallMeasurementList, boolean closed) {
-        List<float[]> planPoints = new ArrayList<float[]>();
-        WallMeasurement lastWallMeasurement = null;
-        // Intersect every measurement with the previous one and add the result to the plan.
-        if (!wallMeasurementList.isEmpty()) {
-            boolean first = true;
-            float[] lastAddedPoint = null;
-            for (WallMeasurement wallMeasurement : wallMeasurementList) {
-                if (lastWallMeasurement != null) {
-                    if (!first) {
-                        planPoints.remove(lastAddedPoint);
-                    }
-                    planPoints.add(wallMeasurement.intersect(lastWallMeasurement));
-                    first = false;
+    public Floorplan buildPlan(boolean closed) {
+        int numberOfWalls = mWallMeasurementStore.size();
+        if (numberOfWalls + 1 > mWallRevisions.length) {
+            allocate(Math.max(numberOfWalls + 1, mWallRevisions.length * 2));
+        }
+
+        // Invalidate the corners on both sides of new and moved measurements.
+        boolean isChanged = mFloorplan == null || closed != mIsClosed
+                || numberOfWalls != mNumberOfWalls;
+        for (int i = 0; i < numberOfWalls; i++) {
+            int revision = mWallMeasurementStore.getRevision(i);
+            if (i >= mNumberOfWalls || revision != mWallRevisions[i]) {
+                mWallRevisions[i] = revision;
+                mIsCornerValid[i] = false;
+                mIsCornerValid[i + 1] = false;
+                // The corner closing the plan depends on the first and last measurements.
+                if (i == 0 || i == numberOfWalls - 1) {
+                    mIsCornerValid[0] = false;
                 }
-                float[] openGlWall = wallMeasurement.getPlaneTransform();
-                float[] measurementPoint = new float[]{openGlWall[12], openGlWall[13],
-                        openGlWall[14]};
-                planPoints.add(measurementPoint);
-                lastWallMeasurement = wallMeasurement;
-                lastAddedPoint = measurementPoint;
+                isChanged = true;
             }
+        }
+        mNumberOfWalls = numberOfWalls;
+        mIsClosed = closed;
+        if (!isChanged) {
+            return mFloorplan;
+        }
 
-            // If closing the floor plan, intersect the first and last measurements.
+        int numberOfPoints = 0;
+        if (numberOfWalls > 0 && !(closed && numberOfWalls == 1)) {
+            // The position of the first measurement starts an open plan.
+            if (!closed) {
+                mWallMeasurementStore.getPlanePosition(0, mPlanPoints, 0);
+                numberOfPoints++;
+            }
+            for (int i = 1; i < numberOfWalls; i++) {
+                if (!mIsCornerValid[i]) {
+                    mWallMeasurementStore.intersect(i, i - 1, mCorners, i * 3);
+                    mIsCornerValid[i] = true;
+                }
+                System.arraycopy(mCorners, i * 3, mPlanPoints, numberOfPoints * 3, 3);
+                numberOfPoints++;
+            }
+            // Then, either intersect the last measurement with the first one or end the plan at
+            // the position of the last measurement.
             if (closed) {
-                planPoints.remove(lastAddedPoint);
-                planPoints.add(lastWallMeasurement.intersect(wallMeasurementList.get(0)));
-                planPoints.remove(planPoints.get(0));
+                if (!mIsCornerValid[0]) {
+                    mWallMeasurementStore.intersect(numberOfWalls - 1, 0, mCorners, 0);
+                    mIsCornerValid[0] = true;
+                }
+                System.arraycopy(mCorners, 0, mPlanPoints, numberOfPoints * 3, 3);
+                numberOfPoints++;
+            } else if (numberOfWalls > 1) {
+                mWallMeasurementStore.getPlanePosition(numberOfWalls - 1, mPlanPoints,
+                        numberOfPoints * 3);
+                numberOfPoints++;
             }
         }
-        return new Floorplan(planPoints);
+        mFloorplan = new Floorplan(new Room(mPlanPoints, numberOfPoints, closed));
+        return mFloorplan;
     }
 
+    private void allocate(int capacity) {
+        if (mCorners == null) {
+            mCorners = new float[capacity * 3];
+            mIsCornerValid = new boolean[capacity];
+            mWallRevisions = new int[capacity];
+            mPlanPoints = new float[capacity * 3];
+        } else {
+            mCorners = Arrays.copyOf(mCorners, capacity * 3);
+            mIsCornerValid = Arrays.copyOf(mIsCornerValid, capacity);
+            mWallRevisions = Arrays.copyOf(mWallRevisions, capacity);
+            mPlanPoints = Arrays.copyOf(mPlanPoints, capacity * 3);
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.examples.java.floorplan;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * Custom View that draws the plan in 2D.
+ * <p/>
+ * The plan is drawn into an off-screen Bitmap once per Floorplan, since a Floorplan never changes,
+ * and every redraw only copies that Bitmap through the pan and zoom matrix. The user can pan with
+ * one finger, zoom with two and reset the view with a double tap. A single tap selects the room
+ * under it, which is highlighted with its area.
+ */
+public class PlanView extends View {
+    private static final float MIN_ZOOM = 1;
+    private static final float MAX_ZOOM = 8;
+    private static final int SELECTED_ROOM_COLOR = Color.BLUE;
+
+    private final Paint mPaint;
+    private final Paint mSelectedPaint;
+    private final Paint mBitmapPaint;
+    private final Matrix mViewMatrix = new Matrix();
+    private final Matrix mInverseViewMatrix = new Matrix();
+    private final float[] mTouchPoint = new float[2];
+    private final float[] mViewMatrixValues = new float[9];
+    private final ScaleGestureDetector mScaleGestureDetector;
+    private final GestureDetector mGestureDetector;
+
+    private Floorplan mFloorplan;
+    private Room mSelectedRoom;
+    private Bitmap mPlanBitmap;
+    // The plan drawn in the Bitmap, or null if the Bitmap needs to be redrawn.
+    private Floorplan mPlanBitmapFloorplan;
+
+    public PlanView(Context context) {
+        super(context);
+        mPaint = new Paint();
+        mPaint.setStrokeWidth(10);
+        mPaint.setTextSize(50);
+        mSelectedPaint = new Paint(mPaint);
+        mSelectedPaint.setColor(SELECTED_ROOM_COLOR);
+        mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        mScaleGestureDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoom(detector.getScaleFactor(), detector.getFocusX(),
+                                detector.getFocusY());
+                        return true;
+                    }
+                });
+        mGestureDetector = new GestureDetector(context,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public boolean onDown(MotionEvent e) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                                            float distanceY) {
+                        mViewMatrix.postTranslate(-distanceX, -distanceY);
+                        invalidate();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onSingleTapConfirmed(MotionEvent e) {
+                        selectRoom(e.getX(), e.getY());
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onDoubleTap(MotionEvent e) {
+                        mViewMatrix.reset();
+                        invalidate();
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Set the plan to show. It is drawn again on the next redraw only if it is a new plan.
+     */
+    public void setFloorplan(Floorplan floorplan) {
+        mFloorplan = floorplan;
+        mSelectedRoom = null;
+        invalidate();
+    }
+
+    /**
+     * Select the room under a point of the view, or clear the selection if it is already selected
+     * or there is none.
+     */
+    private void selectRoom(float x, float y) {
+        if (mFloorplan == null || mPlanBitmap == null) {
+            return;
+        }
+        // The point in the Bitmap the plan is drawn on.
+        mViewMatrix.invert(mInverseViewMatrix);
+        mTouchPoint[0] = x;
+        mTouchPoint[1] = y;
+        mInverseViewMatrix.mapPoints(mTouchPoint);
+        Room room = mFloorplan.pickRoom(mPlanBitmap.getWidth(), mPlanBitmap.getHeight(),
+                mTouchPoint[0], mTouchPoint[1]);
+        mSelectedRoom = room == mSelectedRoom ? null : room;
+        // Draw the Bitmap again with the new selection.
+        mPlanBitmapFloorplan = null;
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if (mPlanBitmap != null) {
+            mPlanBitmap.recycle();
+            mPlanBitmap = null;
+        }
+        mPlanBitmapFloorplan = null;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mPlanBitmap != null) {
+            mPlanBitmap.recycle();
+            mPlanBitmap = null;
+        }
+        mPlanBitmapFloorplan = null;
+    }
+
+    @Override
+    public void onDraw(Canvas canvas) {
+        if (mFloorplan == null || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        if (mPlanBitmapFloorplan != mFloorplan) {
+            drawPlanBitmap();
+        }
+        canvas.drawBitmap(mPlanBitmap, mViewMatrix, mBitmapPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean isHandled = mScaleGestureDetector.onTouchEvent(event);
+        isHandled |= mGestureDetector.onTouchEvent(event);
+        return isHandled || super.onTouchEvent(event);
+    }
+
+    /**
+     * Draw the plan scaled to fill the view into the off-screen Bitmap.
+     */
+    private void drawPlanBitmap() {
+        if (mPlanBitmap == null) {
+            mPlanBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+        } else {
+            mPlanBitmap.eraseColor(0);
+        }
+        mFloorplan.drawOnCanvas(new Canvas(mPlanBitmap), mPaint, mSelectedRoom, mSelectedPaint);
+        mPlanBitmapFloorplan = mFloorplan;
+    }
+
+    /**
+     * Zoom around a point of the view, keeping the zoom between {@code MIN_ZOOM} and
+     * {@code MAX_ZOOM}.
+     */
+    private void zoom(float scaleFactor, float focusX, float focusY) {
+        mViewMatrix.getValues(mViewMatrixValues);
+        float zoom = mViewMatrixValues[Matrix.MSCALE_X];
+        float newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * scaleFactor));
+        mViewMatrix.postScale(newZoom / zoom, newZoom / zoom, focusX, focusY);
+        invalidate();
+    }
+}
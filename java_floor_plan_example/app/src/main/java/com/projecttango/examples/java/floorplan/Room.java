@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.util.Arrays;
+
+/**
+ * A room of a floor plan: a polygon of points joined consecutively by straight walls.
+ * The polygon is horizontal, in the X and Z axes of the OpenGl world frame, and the Y coordinate
+ * of the points is the height at which the walls were measured.
+ * <p/>
+ * Rooms are immutable. The bounds, the height, the length of the walls and the area are
+ * calculated once when the room is created, and the labels the first time they are needed.
+ * Labels are formatted without {@code String.format}, which parses its pattern on every call and
+ * depends on the locale.
+ */
+public class Room {
+    private final float[] mPoints;
+    private final int mNumberOfPoints;
+    private final boolean mIsClosed;
+    private final float[] mWallLengths;
+    private volatile String[] mWallLabels;
+    private volatile String mClosingWallLabel;
+    private volatile String mAreaLabel;
+
+    private final float mHeight;
+    private final float mMinX;
+    private final float mMaxX;
+    private final float mMinZ;
+    private final float mMaxZ;
+    private final float mArea;
+
+    /**
+     * @param points         The x, y and z coordinates of the points, packed. They are copied.
+     * @param numberOfPoints The number of points of the room.
+     * @param closed         If true the last point is joined to the first one.
+     */
+    public Room(float[] points, int numberOfPoints, boolean closed) {
+        mPoints = Arrays.copyOf(points, numberOfPoints * 3);
+        mNumberOfPoints = numberOfPoints;
+        mIsClosed = closed;
+
+        float minX = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        float height = 0;
+        for (int i = 0; i < numberOfPoints; i++) {
+            float x = mPoints[i * 3];
+            float z = mPoints[i * 3 + 2];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+            height += mPoints[i * 3 + 1];
+        }
+        if (numberOfPoints == 0) {
+            minX = maxX = minZ = maxZ = 0;
+        } else {
+            height /= numberOfPoints;
+        }
+        mMinX = minX;
+        mMaxX = maxX;
+        mMinZ = minZ;
+        mMaxZ = maxZ;
+        mHeight = height;
+
+        mWallLengths = new float[getNumberOfWalls()];
+        for (int i = 0; i < mWallLengths.length; i++) {
+            int next = (i + 1) % numberOfPoints;
+            float dx = mPoints[next * 3] - mPoints[i * 3];
+            float dz = mPoints[next * 3 + 2] - mPoints[i * 3 + 2];
+            mWallLengths[i] = (float) Math.sqrt(dx * dx + dz * dz);
+        }
+
+        // Shoelace formula.
+        double area = 0;
+        if (closed) {
+            for (int i = 0, j = numberOfPoints - 1; i < numberOfPoints; j = i++) {
+                area += (double) mPoints[j * 3] * mPoints[i * 3 + 2]
+                        - (double) mPoints[i * 3] * mPoints[j * 3 + 2];
+            }
+        }
+        mArea = (float) Math.abs(area / 2);
+    }
+
+    public int getNumberOfPoints() {
+        return mNumberOfPoints;
+    }
+
+    public float getX(int point) {
+        return mPoints[point * 3];
+    }
+
+    public float getY(int point) {
+        return mPoints[point * 3 + 1];
+    }
+
+    public float getZ(int point) {
+        return mPoints[point * 3 + 2];
+    }
+
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * The number of walls, including the one joining the last point to the first one if the room
+     * is closed.
+     */
+    public int getNumberOfWalls() {
+        if (mNumberOfPoints < 2) {
+            return 0;
+        }
+        return mIsClosed ? mNumberOfPoints : mNumberOfPoints - 1;
+    }
+
+    /**
+     * The length of the wall from a point to the next one, in the horizontal plane.
+     */
+    public float getWallLength(int wall) {
+        return mWallLengths[wall];
+    }
+
+    /**
+     * The length of a wall formatted for display, like "3.25m".
+     */
+    public String getWallLabel(int wall) {
+        String[] wallLabels = mWallLabels;
+        if (wallLabels == null) {
+            wallLabels = new String[mWallLengths.length];
+            for (int i = 0; i < wallLabels.length; i++) {
+                wallLabels[i] = formatWithTwoDecimals(mWallLengths[i], "m");
+            }
+            mWallLabels = wallLabels;
+        }
+        return wallLabels[wall];
+    }
+
+    /**
+     * The length of the segment from the last point to the first one of a room which is not
+     * closed, formatted like the labels of the walls.
+     */
+    public String getClosingWallLabel() {
+        String closingWallLabel = mClosingWallLabel;
+        if (closingWallLabel == null) {
+            int last = mNumberOfPoints - 1;
+            float dx = mPoints[0] - mPoints[last * 3];
+            float dz = mPoints[2] - mPoints[last * 3 + 2];
+            closingWallLabel = formatWithTwoDecimals(Math.sqrt(dx * dx + dz * dz), "m");
+            mClosingWallLabel = closingWallLabel;
+        }
+        return closingWallLabel;
+    }
+
+    /**
+     * The area of the room formatted for display, like "12.50m\u00b2".
+     */
+    public String getAreaLabel() {
+        String areaLabel = mAreaLabel;
+        if (areaLabel == null) {
+            areaLabel = formatWithTwoDecimals(getArea(), "m\u00b2");
+            mAreaLabel = areaLabel;
+        }
+        return areaLabel;
+    }
+
+    /**
+     * The average height of the points.
+     */
+    public float getHeight() {
+        return mHeight;
+    }
+
+    public float getMinX() {
+        return mMinX;
+    }
+
+    public float getMaxX() {
+        return mMaxX;
+    }
+
+    public float getMinZ() {
+        return mMinZ;
+    }
+
+    public float getMaxZ() {
+        return mMaxZ;
+    }
+
+    /**
+     * The area of the room in the horizontal plane, or 0 if it is not closed.
+     */
+    public float getArea() {
+        return mArea;
+    }
+
+    /**
+     * Whether a point of the horizontal plane is inside the room. Rooms which are not closed
+     * contain no point.
+     */
+    public boolean contains(float x, float z) {
+        if (!mIsClosed || x < mMinX || x > mMaxX || z < mMinZ || z > mMaxZ) {
+            return false;
+        }
+        // Count the walls crossed by a ray from the point along the X axis.
+        boolean isInside = false;
+        for (int i = 0, j = mNumberOfPoints - 1; i < mNumberOfPoints; j = i++) {
+            float xi = mPoints[i * 3];
+            float zi = mPoints[i * 3 + 2];
+            float xj = mPoints[j * 3];
+            float zj = mPoints[j * 3 + 2];
+            if ((zi > z) != (zj > z) && x < (xj - xi) * (z - zi) / (zj - zi) + xi) {
+                isInside = !isInside;
+            }
+        }
+        return isInside;
+    }
+
+    /**
+     * Format a positive number rounded to two decimals with a dot, followed by a unit, as
+     * {@code String.format("%.2f")} does in an English locale.
+     */
+    static String formatWithTwoDecimals(double value, String unit) {
+        long hundredths = Math.round(value * 100);
+        long fraction = hundredths % 100;
+        StringBuilder builder = new StringBuilder(8 + unit.length());
+        builder.append(hundredths / 100).append('.');
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        return builder.append(fraction).append(unit).toString();
+    }
+}
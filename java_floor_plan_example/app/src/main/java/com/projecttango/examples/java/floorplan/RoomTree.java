@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable R-tree of rooms, indexed by their bounds in the horizontal plane.
+ * <p/>
+ * The tree is bulk loaded with the Sort-Tile-Recursive algorithm: the entries of each level are
+ * sorted in vertical slices along X and then along Z inside each slice, and consecutive runs of
+ * {@link #NODE_CAPACITY} entries become the nodes of the level above. This gives nodes with
+ * little overlap, so picking a room only visits the part of the plan around the point.
+ * <p/>
+ * The nodes are stored level by level in flat arrays, leaves first, and the children of a node
+ * are contiguous. Queries don't allocate and, since the tree is immutable, can be made from any
+ * thread.
+ */
+public class RoomTree {
+    public static final int NODE_CAPACITY = 16;
+
+    // Rooms in the order of the leaves.
+    private final Room[] mRooms;
+
+    // Bounds of the nodes: min X, min Z, max X and max Z.
+    private final float[] mNodeBounds;
+    // First child of the nodes, a node for inner nodes and a room for leaves, and number of
+    // children.
+    private final int[] mFirstChild;
+    private final int[] mNumberOfChildren;
+    private final int mNumberOfLeaves;
+    private final int mRoot;
+
+    public RoomTree(List<Room> rooms) {
+        int numberOfRooms = rooms.size();
+        int numberOfNodes = 0;
+        int numberOfLeaves = divideRoundingUp(numberOfRooms, NODE_CAPACITY);
+        for (int m = numberOfLeaves; m > 0; m = m > 1 ? divideRoundingUp(m, NODE_CAPACITY) : 0) {
+            numberOfNodes += m;
+        }
+        mNodeBounds = new float[numberOfNodes * 4];
+        mFirstChild = new int[numberOfNodes];
+        mNumberOfChildren = new int[numberOfNodes];
+        mNumberOfLeaves = numberOfLeaves;
+
+        // Sort the rooms and group them into leaves.
+        float[] bounds = new float[numberOfRooms * 4];
+        for (int i = 0; i < numberOfRooms; i++) {
+            Room room = rooms.get(i);
+            bounds[i * 4] = room.getMinX();
+            bounds[i * 4 + 1] = room.getMinZ();
+            bounds[i * 4 + 2] = room.getMaxX();
+            bounds[i * 4 + 3] = room.getMaxZ();
+        }
+        int[] order = sortTileRecursive(bounds, numberOfRooms);
+        mRooms = new Room[numberOfRooms];
+        float[] sortedBounds = new float[numberOfRooms * 4];
+        for (int i = 0; i < numberOfRooms; i++) {
+            mRooms[i] = rooms.get(order[i]);
+            System.arraycopy(bounds, order[i] * 4, sortedBounds, i * 4, 4);
+        }
+        int[] firstChild = new int[numberOfLeaves];
+        int[] numberOfChildren = new int[numberOfLeaves];
+        float[] levelBounds = group(sortedBounds, numberOfRooms, 0, firstChild, numberOfChildren);
+
+        // Sort the nodes of each level and group them into the nodes of the level above, until
+        // there is a single node left.
+        int levelSize = numberOfLeaves;
+        int levelOffset = 0;
+        while (levelSize > 1) {
+            order = sortTileRecursive(levelBounds, levelSize);
+            for (int i = 0; i < levelSize; i++) {
+                int node = levelOffset + i;
+                System.arraycopy(levelBounds, order[i] * 4, mNodeBounds, node * 4, 4);
+                mFirstChild[node] = firstChild[order[i]];
+                mNumberOfChildren[node] = numberOfChildren[order[i]];
+            }
+            int parentLevelSize = divideRoundingUp(levelSize, NODE_CAPACITY);
+            firstChild = new int[parentLevelSize];
+            numberOfChildren = new int[parentLevelSize];
+            levelBounds = group(mNodeBounds, levelSize, levelOffset, firstChild, numberOfChildren);
+            levelOffset += levelSize;
+            levelSize = parentLevelSize;
+        }
+        if (levelSize == 1) {
+            System.arraycopy(levelBounds, 0, mNodeBounds, levelOffset * 4, 4);
+            mFirstChild[levelOffset] = firstChild[0];
+            mNumberOfChildren[levelOffset] = numberOfChildren[0];
+            mRoot = levelOffset;
+        } else {
+            mRoot = -1;
+        }
+    }
+
+    public int getNumberOfRooms() {
+        return mRooms.length;
+    }
+
+    /**
+     * Find the smallest room containing a point of the horizontal plane.
+     *
+     * @return The room, or null if no room contains the point.
+     */
+    public Room pick(float x, float z) {
+        if (mRoot < 0) {
+            return null;
+        }
+        return pick(mRoot, x, z, null);
+    }
+
+    private Room pick(int node, float x, float z, Room best) {
+        int first = mFirstChild[node];
+        int end = first + mNumberOfChildren[node];
+        if (node < mNumberOfLeaves) {
+            for (int i = first; i < end; i++) {
+                Room room = mRooms[i];
+                if (room.contains(x, z) && (best == null || room.getArea() < best.getArea())) {
+                    best = room;
+                }
+            }
+        } else {
+            for (int child = first; child < end; child++) {
+                if (mNodeBounds[child * 4] <= x && mNodeBounds[child * 4 + 2] >= x
+                        && mNodeBounds[child * 4 + 1] <= z && mNodeBounds[child * 4 + 3] >= z) {
+                    best = pick(child, x, z, best);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Group consecutive runs of entries into nodes.
+     *
+     * @param offset Index of the first entry, added to the first child of the nodes.
+     * @return The bounds of the nodes.
+     */
+    private static float[] group(float[] bounds, int count, int offset, int[] firstChild,
+                                 int[] numberOfChildren) {
+        float[] groupBounds = new float[firstChild.length * 4];
+        for (int node = 0; node < firstChild.length; node++) {
+            int first = node * NODE_CAPACITY;
+            int end = Math.min(first + NODE_CAPACITY, count);
+            firstChild[node] = offset + first;
+            numberOfChildren[node] = end - first;
+            float minX = Float.MAX_VALUE;
+            float minZ = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxZ = -Float.MAX_VALUE;
+            for (int i = offset + first; i < offset + end; i++) {
+                minX = Math.min(minX, bounds[i * 4]);
+                minZ = Math.min(minZ, bounds[i * 4 + 1]);
+                maxX = Math.max(maxX, bounds[i * 4 + 2]);
+                maxZ = Math.max(maxZ, bounds[i * 4 + 3]);
+            }
+            groupBounds[node * 4] = minX;
+            groupBounds[node * 4 + 1] = minZ;
+            groupBounds[node * 4 + 2] = maxX;
+            groupBounds[node * 4 + 3] = maxZ;
+        }
+        return groupBounds;
+    }
+
+    /**
+     * Sort entries in slices along X, each slice sorted along Z, by the center of their bounds.
+     *
+     * @return The indices of the entries in sorted order.
+     */
+    private static int[] sortTileRecursive(final float[] bounds, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(bounds[a * 4] + bounds[a * 4 + 2],
+                        bounds[b * 4] + bounds[b * 4 + 2]);
+            }
+        });
+        int numberOfNodes = divideRoundingUp(count, NODE_CAPACITY);
+        int sliceSize = (int) Math.ceil(Math.sqrt(numberOfNodes)) * NODE_CAPACITY;
+        Comparator<Integer> zComparator = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(bounds[a * 4 + 1] + bounds[a * 4 + 3],
+                        bounds[b * 4 + 1] + bounds[b * 4 + 3]);
+            }
+        };
+        for (int slice = 0; slice < count; slice += sliceSize) {
+            Arrays.sort(order, slice, Math.min(slice + sliceSize, count), zComparator);
+        }
+
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    private static int divideRoundingUp(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Exports a {@link Floorplan} as an SVG drawing, seen from above like in the plan view.
+ * <p/>
+ * User units are meters, with the X axis of the drawing along the X axis of the OpenGl world
+ * frame and the Y axis of the drawing along its Z axis. Each floor is a group with the id
+ * "floor-N", N starting from 0 for the lowest floor, and each room a polygon, or a polyline if it
+ * is not closed, followed by the labels of its walls.
+ */
+public class SvgFloorplanExporter extends FloorplanExporter {
+    /**
+     * Margin around the plan, in meters.
+     */
+    private static final float MARGIN = 1;
+    private static final float STROKE_WIDTH = 0.05f;
+    private static final float FONT_SIZE = 0.25f;
+
+    @Override
+    public void export(Floorplan floorplan, Writer writer) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"");
+        writeCoordinate(writer, floorplan.getMinX() - MARGIN);
+        writer.write(' ');
+        writeCoordinate(writer, floorplan.getMinZ() - MARGIN);
+        writer.write(' ');
+        writeCoordinate(writer, floorplan.getMaxX() - floorplan.getMinX() + 2 * MARGIN);
+        writer.write(' ');
+        writeCoordinate(writer, floorplan.getMaxZ() - floorplan.getMinZ() + 2 * MARGIN);
+        writer.write("\">\n");
+
+        List<Floor> floors = floorplan.getFloors();
+        for (int floorIndex = 0; floorIndex < floors.size(); floorIndex++) {
+            Floor floor = floors.get(floorIndex);
+            writer.write("<g id=\"floor-");
+            writeInteger(writer, floorIndex);
+            writer.write("\" data-height=\"");
+            writeCoordinate(writer, floor.getHeight());
+            writer.write("\">\n");
+            for (Room room : floor.getRooms()) {
+                writeRoom(writer, room);
+            }
+            writer.write("</g>\n");
+        }
+        writer.write("</svg>\n");
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "svg";
+    }
+
+    private void writeRoom(Writer writer, Room room) throws IOException {
+        writer.write(room.isClosed() ? "<polygon" : "<polyline");
+        writer.write(" fill=\"none\" stroke=\"black\" stroke-width=\"");
+        writeCoordinate(writer, STROKE_WIDTH);
+        writer.write("\" points=\"");
+        for (int i = 0; i < room.getNumberOfPoints(); i++) {
+            if (i > 0) {
+                writer.write(' ');
+            }
+            writeCoordinate(writer, room.getX(i));
+            writer.write(',');
+            writeCoordinate(writer, room.getZ(i));
+        }
+        writer.write("\"/>\n");
+
+        // Label each wall with its length at its middle.
+        for (int wall = 0; wall < room.getNumberOfWalls(); wall++) {
+            int next = (wall + 1) % room.getNumberOfPoints();
+            writer.write("<text text-anchor=\"middle\" font-size=\"");
+            writeCoordinate(writer, FONT_SIZE);
+            writer.write("\" x=\"");
+            writeCoordinate(writer, (room.getX(wall) + room.getX(next)) / 2);
+            writer.write("\" y=\"");
+            writeCoordinate(writer, (room.getZ(wall) + room.getZ(next)) / 2);
+            writer.write("\">");
+            writeNumber(writer, room.getWallLength(wall), LENGTH_DECIMALS);
+            writer.write("m</text>\n");
+        }
+    }
+}
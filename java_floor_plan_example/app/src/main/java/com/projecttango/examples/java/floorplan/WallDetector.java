@@ -0,0 +1,686 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+
+import com.projecttango.tangoutils.PlaneFitter;
+import com.projecttango.tangoutils.RigidTransforms;
+
+/**
+ * Detects walls continuously in the point clouds of the depth camera, so that a floor plan can be
+ * built without clicking on every wall.
+ * <p/>
+ * Each cloud is processed in a dedicated thread. Its points are averaged into a coarse grid over
+ * the depth image, a normal is estimated for each cell from its neighbors, and neighbor cells with
+ * horizontal normals and lying on the same plane are grown into regions. A vertical plane is
+ * fitted to each region large enough, and proposed to the listener as a wall once it has been
+ * found in {@code MIN_DETECTIONS} clouds in a row, unless it is a wall already proposed or one
+ * measured by the user and passed to {@link #addMeasuredWall}.
+ * <p/>
+ * Only one cloud waits to be processed: a new cloud replaces the waiting one rather than being
+ * queued, so when the detector falls behind the depth camera it skips clouds instead of lagging.
+ * Walls are proposed in the order they are found, so turning clockwise around the room gives
+ * walls in the order needed by {@link PlanBuilder}.
+ */
+public class WallDetector {
+    private static final String TAG = WallDetector.class.getSimpleName();
+    private static final int MATRIX_SIZE = RigidTransforms.MATRIX_SIZE;
+
+    // Size of the grid cells in pixels of the depth image.
+    private static final int CELL_SIZE = 8;
+    private static final int MIN_POINTS_PER_CELL = 3;
+    private static final float MIN_DEPTH = 0.3f;
+    private static final float MAX_DEPTH = 4.5f;
+    // Maximum distance between the points of neighbor cells relative to their depth, above which
+    // they are on different surfaces.
+    private static final float MAX_NEIGHBOR_DISTANCE_RATIO = 0.15f;
+    // Maximum vertical component of the normal of a wall.
+    private static final float MAX_NORMAL_Y = 0.25f;
+    private static final float MIN_REGION_NORMAL_COSINE = 0.95f;
+    private static final float MAX_REGION_PLANE_DISTANCE = 0.1f;
+    private static final int MIN_REGION_CELLS = 30;
+    private static final float FIT_INLIER_THRESHOLD = 0.03f;
+    private static final int FIT_MAX_ITERATIONS = 50;
+    private static final float MIN_FIT_CONFIDENCE = 0.7f;
+    // Minimum horizontal component of the normal of a fitted or measured plane, below which it is
+    // too slanted to be made vertical.
+    private static final float MIN_FIT_NORMAL_HORIZONTAL_LENGTH = 0.9f;
+    // Thresholds to consider two planes as the same wall.
+    private static final float SAME_WALL_NORMAL_COSINE = 0.97f;
+    private static final float SAME_WALL_DISTANCE = 0.2f;
+    private static final int MIN_DETECTIONS = 3;
+    private static final int MAX_CANDIDATES = 16;
+    private static final int MAX_WALLS = 256;
+
+    /**
+     * Receives the detected walls.
+     */
+    public interface WallDetectorListener {
+        /**
+         * Called in the detector thread when a new wall is detected. The arrays are not reused by
+         * the detector.
+         *
+         * @param openGlTPlane The pose of the wall plane in OpenGl frame, with its normal facing
+         *                     the depth camera.
+         * @param openGlTDepth The pose of the depth camera in OpenGl frame for the last cloud the
+         *                     wall was found in.
+         * @param timestamp    The timestamp of that cloud.
+         * @param confidence   The ratio of the points of the wall region on the fitted plane.
+         */
+        void onWallDetected(float[] openGlTPlane, float[] openGlTDepth, double timestamp,
+                            float confidence);
+    }
+
+    private final WallDetectorListener mListener;
+    private final int mMaxNumberOfPoints;
+    private final float mFx;
+    private final float mFy;
+    private final float mCx;
+    private final float mCy;
+    private final int mGridWidth;
+    private final int mGridHeight;
+
+    // The cloud waiting to be processed, written by the producer thread under mLock.
+    private final Object mLock = new Object();
+    private float[] mPendingPoints;
+    private int mPendingNumberOfPoints;
+    private double mPendingTimestamp;
+    private float[] mPendingOpenGlTDepth = new float[MATRIX_SIZE];
+    private boolean mHasPendingCloud = false;
+    private boolean mIsRunning = false;
+    private int mNumberOfSkippedClouds = 0;
+    private Thread mThread;
+    // Walls measured by the user since the last cloud was taken, as vertical planes.
+    private final float[] mPendingMeasuredWalls = new float[MAX_WALLS * 3];
+    private int mNumberOfPendingMeasuredWalls = 0;
+
+    // The cloud being processed, swapped with the pending one. Only used by the detector thread,
+    // like all the following fields.
+    private float[] mPoints;
+    private int mNumberOfPoints;
+    private double mTimestamp;
+    private float[] mOpenGlTDepth = new float[MATRIX_SIZE];
+    private int mNumberOfProcessedClouds = 0;
+
+    // The grid, in depth frame then in OpenGl frame, one entry per cell.
+    private final float[] mCellSums;
+    private final int[] mCellCounts;
+    private final float[] mCellPoints;
+    private final float[] mCellNormals;
+    private final boolean[] mIsWallCell;
+    private final int[] mCellRegions;
+    // Region growing state.
+    private final int[] mRegionStack;
+    private final float[] mRegionPoints;
+    private final PlaneFitter mPlaneFitter = new PlaneFitter(FIT_INLIER_THRESHOLD,
+            FIT_MAX_ITERATIONS, 0);
+
+    // Planes found in the latest clouds and not yet proposed: normal X, normal Z and distance of
+    // the vertical plane, and the center of the region.
+    private final float[] mCandidatePlanes = new float[MAX_CANDIDATES * 3];
+    private final float[] mCandidateCenters = new float[MAX_CANDIDATES * 3];
+    private final int[] mCandidateDetections = new int[MAX_CANDIDATES];
+    private final int[] mCandidateLastClouds = new int[MAX_CANDIDATES];
+    private int mNumberOfCandidates = 0;
+    // Walls already proposed or measured, as vertical planes.
+    private final float[] mWallPlanes = new float[MAX_WALLS * 3];
+    private int mNumberOfWalls = 0;
+
+    /**
+     * @param depthIntrinsics   Intrinsics of the depth camera, used to lay the points on the grid.
+     * @param maxNumberOfPoints Maximum number of points of a cloud; larger clouds are truncated.
+     */
+    public WallDetector(TangoCameraIntrinsics depthIntrinsics, int maxNumberOfPoints,
+                        WallDetectorListener listener) {
+        mListener = listener;
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        mFx = (float) depthIntrinsics.fx;
+        mFy = (float) depthIntrinsics.fy;
+        mCx = (float) depthIntrinsics.cx;
+        mCy = (float) depthIntrinsics.cy;
+        mGridWidth = (depthIntrinsics.width + CELL_SIZE - 1) / CELL_SIZE;
+        mGridHeight = (depthIntrinsics.height + CELL_SIZE - 1) / CELL_SIZE;
+        int numberOfCells = mGridWidth * mGridHeight;
+
+        mPendingPoints = new float[maxNumberOfPoints * 3];
+        mPoints = new float[maxNumberOfPoints * 3];
+        mCellSums = new float[numberOfCells * 3];
+        mCellCounts = new int[numberOfCells];
+        mCellPoints = new float[numberOfCells * 3];
+        mCellNormals = new float[numberOfCells * 3];
+        mIsWallCell = new boolean[numberOfCells];
+        mCellRegions = new int[numberOfCells];
+        mRegionStack = new int[numberOfCells];
+        mRegionPoints = new float[numberOfCells * 3];
+    }
+
+    /**
+     * Start the detector thread.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mIsRunning) {
+                return;
+            }
+            mIsRunning = true;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDetection();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop the detector thread, waiting for the cloud being processed to be done. No wall is
+     * proposed after this returns.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        Log.d(TAG, "Processed " + mNumberOfProcessedClouds + " clouds, skipped "
+                + mNumberOfSkippedClouds);
+    }
+
+    /**
+     * Add a wall measured by the user, so that it is not proposed again. It is taken into account
+     * from the next cloud processed. Can be called from any thread.
+     *
+     * @param openGlTPlane The pose of the wall plane in OpenGl frame, with its normal along Z.
+     */
+    public void addMeasuredWall(float[] openGlTPlane) {
+        synchronized (mLock) {
+            if (mNumberOfPendingMeasuredWalls < MAX_WALLS && setVerticalPlane(openGlTPlane,
+                    mPendingMeasuredWalls, mNumberOfPendingMeasuredWalls)) {
+                mNumberOfPendingMeasuredWalls++;
+            }
+        }
+    }
+
+    /**
+     * Copy a new point cloud to be processed, replacing the one waiting if the detector is busy.
+     *
+     * @param openGlTDepth Pose of the depth camera in OpenGl frame at the time of the cloud.
+     */
+    public void onXyzIjAvailable(TangoXyzIjData xyzIj, float[] openGlTDepth) {
+        int pointCount = Math.min(xyzIj.xyzCount, mMaxNumberOfPoints);
+        synchronized (mLock) {
+            if (!mIsRunning) {
+                return;
+            }
+            if (mHasPendingCloud) {
+                mNumberOfSkippedClouds++;
+            }
+            copyPoints(xyzIj, mPendingPoints, pointCount);
+            mPendingNumberOfPoints = pointCount;
+            mPendingTimestamp = xyzIj.timestamp;
+            System.arraycopy(openGlTDepth, 0, mPendingOpenGlTDepth, 0, MATRIX_SIZE);
+            mHasPendingCloud = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void runDetection() {
+        while (true) {
+            synchronized (mLock) {
+                while (mIsRunning && !mHasPendingCloud) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mIsRunning) {
+                    return;
+                }
+                // Take the pending cloud, handing the processed one back to the producer.
+                float[] points = mPoints;
+                mPoints = mPendingPoints;
+                mPendingPoints = points;
+                float[] openGlTDepth = mOpenGlTDepth;
+                mOpenGlTDepth = mPendingOpenGlTDepth;
+                mPendingOpenGlTDepth = openGlTDepth;
+                mNumberOfPoints = mPendingNumberOfPoints;
+                mTimestamp = mPendingTimestamp;
+                mHasPendingCloud = false;
+                takeMeasuredWalls();
+            }
+            detectWalls();
+            mNumberOfProcessedClouds++;
+        }
+    }
+
+    /**
+     * Find the walls in a cloud in the calling thread, as the detector thread does, to measure the
+     * detection. The detector must not be running.
+     */
+    void detectWalls(TangoXyzIjData xyzIj, float[] openGlTDepth) {
+        mNumberOfPoints = Math.min(xyzIj.xyzCount, mMaxNumberOfPoints);
+        copyPoints(xyzIj, mPoints, mNumberOfPoints);
+        mTimestamp = xyzIj.timestamp;
+        System.arraycopy(openGlTDepth, 0, mOpenGlTDepth, 0, MATRIX_SIZE);
+        synchronized (mLock) {
+            takeMeasuredWalls();
+        }
+        detectWalls();
+        mNumberOfProcessedClouds++;
+    }
+
+    /**
+     * Bulk copy the points of a cloud, restoring the source so other users are not affected.
+     */
+    private static void copyPoints(TangoXyzIjData xyzIj, float[] points, int pointCount) {
+        FloatBuffer source = xyzIj.xyz;
+        int sourcePosition = source.position();
+        source.position(0);
+        source.get(points, 0, pointCount * 3);
+        source.position(sourcePosition);
+    }
+
+    /**
+     * Add the walls measured since the last cloud to the known walls. Must be called under mLock.
+     */
+    private void takeMeasuredWalls() {
+        int count = Math.min(mNumberOfPendingMeasuredWalls, MAX_WALLS - mNumberOfWalls);
+        System.arraycopy(mPendingMeasuredWalls, 0, mWallPlanes, mNumberOfWalls * 3, count * 3);
+        mNumberOfWalls += count;
+        mNumberOfPendingMeasuredWalls = 0;
+    }
+
+    /**
+     * Find the walls in the current cloud.
+     */
+    private void detectWalls() {
+        fillGrid();
+        estimateNormals();
+        int numberOfCells = mGridWidth * mGridHeight;
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            mCellRegions[cell] = -1;
+        }
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            if (mIsWallCell[cell] && mCellRegions[cell] < 0) {
+                int regionSize = growRegion(cell);
+                if (regionSize >= MIN_REGION_CELLS) {
+                    fitWall(regionSize);
+                }
+            }
+        }
+        // Forget the candidates which were not found in this cloud.
+        for (int i = mNumberOfCandidates - 1; i >= 0; i--) {
+            if (mCandidateLastClouds[i] != mNumberOfProcessedClouds) {
+                removeCandidate(i);
+            }
+        }
+    }
+
+    /**
+     * Average the points falling in each cell of the depth image and transform them to OpenGl
+     * frame.
+     */
+    private void fillGrid() {
+        int numberOfCells = mGridWidth * mGridHeight;
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            mCellCounts[cell] = 0;
+        }
+        float[] sums = mCellSums;
+        float[] points = mPoints;
+        float inverseCellSize = 1f / CELL_SIZE;
+        for (int i = 0, end = mNumberOfPoints * 3; i < end; i += 3) {
+            float x = points[i];
+            float y = points[i + 1];
+            float z = points[i + 2];
+            if (z < MIN_DEPTH || z > MAX_DEPTH) {
+                continue;
+            }
+            int column = (int) ((mFx * x / z + mCx) * inverseCellSize);
+            int row = (int) ((mFy * y / z + mCy) * inverseCellSize);
+            if (column < 0 || column >= mGridWidth || row < 0 || row >= mGridHeight) {
+                continue;
+            }
+            int cell = row * mGridWidth + column;
+            int offset = cell * 3;
+            if (mCellCounts[cell] == 0) {
+                sums[offset] = x;
+                sums[offset + 1] = y;
+                sums[offset + 2] = z;
+            } else {
+                sums[offset] += x;
+                sums[offset + 1] += y;
+                sums[offset + 2] += z;
+            }
+            mCellCounts[cell]++;
+        }
+
+        float[] m = mOpenGlTDepth;
+        for (int cell = 0; cell < numberOfCells; cell++) {
+            int count = mCellCounts[cell];
+            if (count < MIN_POINTS_PER_CELL) {
+                mCellCounts[cell] = 0;
+                continue;
+            }
+            int offset = cell * 3;
+            float x = sums[offset] / count;
+            float y = sums[offset + 1] / count;
+            float z = sums[offset + 2] / count;
+            mCellPoints[offset] = m[0] * x + m[4] * y + m[8] * z + m[12];
+            mCellPoints[offset + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+            mCellPoints[offset + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+        }
+    }
+
+    /**
+     * Estimate the normal of each cell from its right and bottom neighbors, and mark the cells
+     * with a horizontal normal as wall cells. Normals face the depth camera.
+     */
+    private void estimateNormals() {
+        float[] p = mCellPoints;
+        float cameraX = mOpenGlTDepth[12];
+        float cameraY = mOpenGlTDepth[13];
+        float cameraZ = mOpenGlTDepth[14];
+        for (int row = 0; row < mGridHeight; row++) {
+            for (int column = 0; column < mGridWidth; column++) {
+                int cell = row * mGridWidth + column;
+                mIsWallCell[cell] = false;
+                if (column + 1 >= mGridWidth || row + 1 >= mGridHeight
+                        || mCellCounts[cell] == 0 || mCellCounts[cell + 1] == 0
+                        || mCellCounts[cell + mGridWidth] == 0) {
+                    continue;
+                }
+                int offset = cell * 3;
+                int right = offset + 3;
+                int bottom = offset + mGridWidth * 3;
+                float toCameraX = cameraX - p[offset];
+                float toCameraY = cameraY - p[offset + 1];
+                float toCameraZ = cameraZ - p[offset + 2];
+                float maxDistance = MAX_NEIGHBOR_DISTANCE_RATIO * (float) Math.sqrt(
+                        toCameraX * toCameraX + toCameraY * toCameraY + toCameraZ * toCameraZ);
+                float maxSquaredDistance = maxDistance * maxDistance;
+                float uX = p[right] - p[offset];
+                float uY = p[right + 1] - p[offset + 1];
+                float uZ = p[right + 2] - p[offset + 2];
+                float vX = p[bottom] - p[offset];
+                float vY = p[bottom + 1] - p[offset + 1];
+                float vZ = p[bottom + 2] - p[offset + 2];
+                if (uX * uX + uY * uY + uZ * uZ > maxSquaredDistance
+                        || vX * vX + vY * vY + vZ * vZ > maxSquaredDistance) {
+                    continue;
+                }
+                float nX = uY * vZ - uZ * vY;
+                float nY = uZ * vX - uX * vZ;
+                float nZ = uX * vY - uY * vX;
+                float length = (float) Math.sqrt(nX * nX + nY * nY + nZ * nZ);
+                if (length == 0) {
+                    continue;
+                }
+                if (nX * toCameraX + nY * toCameraY + nZ * toCameraZ < 0) {
+                    length = -length;
+                }
+                nX /= length;
+                nY /= length;
+                nZ /= length;
+                mCellNormals[offset] = nX;
+                mCellNormals[offset + 1] = nY;
+                mCellNormals[offset + 2] = nZ;
+                mIsWallCell[cell] = nY <= MAX_NORMAL_Y && nY >= -MAX_NORMAL_Y;
+            }
+        }
+    }
+
+    /**
+     * Grow a region of wall cells from a seed cell, adding the 4-connected neighbors whose normal
+     * and position agree with the average plane of the region so far. The points of the region
+     * are copied to {@code mRegionPoints}.
+     *
+     * @return The number of cells in the region.
+     */
+    private int growRegion(int seed) {
+        float[] p = mCellPoints;
+        float[] n = mCellNormals;
+        int region = seed;
+        float sumNormalX = 0;
+        float sumNormalY = 0;
+        float sumNormalZ = 0;
+        float sumX = 0;
+        float sumY = 0;
+        float sumZ = 0;
+        int size = 0;
+        int stackSize = 0;
+        mRegionStack[stackSize++] = seed;
+        mCellRegions[seed] = region;
+        while (stackSize > 0) {
+            int cell = mRegionStack[--stackSize];
+            int offset = cell * 3;
+            sumNormalX += n[offset];
+            sumNormalY += n[offset + 1];
+            sumNormalZ += n[offset + 2];
+            sumX += p[offset];
+            sumY += p[offset + 1];
+            sumZ += p[offset + 2];
+            mRegionPoints[size * 3] = p[offset];
+            mRegionPoints[size * 3 + 1] = p[offset + 1];
+            mRegionPoints[size * 3 + 2] = p[offset + 2];
+            size++;
+
+            float length = (float) Math.sqrt(sumNormalX * sumNormalX + sumNormalY * sumNormalY
+                    + sumNormalZ * sumNormalZ);
+            float normalX = sumNormalX / length;
+            float normalY = sumNormalY / length;
+            float normalZ = sumNormalZ / length;
+            float centerX = sumX / size;
+            float centerY = sumY / size;
+            float centerZ = sumZ / size;
+            int row = cell / mGridWidth;
+            int column = cell - row * mGridWidth;
+            for (int direction = 0; direction < 4; direction++) {
+                int neighbor;
+                if (direction == 0) {
+                    neighbor = column > 0 ? cell - 1 : -1;
+                } else if (direction == 1) {
+                    neighbor = column + 1 < mGridWidth ? cell + 1 : -1;
+                } else if (direction == 2) {
+                    neighbor = row > 0 ? cell - mGridWidth : -1;
+                } else {
+                    neighbor = row + 1 < mGridHeight ? cell + mGridWidth : -1;
+                }
+                if (neighbor < 0 || !mIsWallCell[neighbor] || mCellRegions[neighbor] >= 0) {
+                    continue;
+                }
+                int neighborOffset = neighbor * 3;
+                float cosine = normalX * n[neighborOffset] + normalY * n[neighborOffset + 1]
+                        + normalZ * n[neighborOffset + 2];
+                float distance = normalX * (p[neighborOffset] - centerX)
+                        + normalY * (p[neighborOffset + 1] - centerY)
+                        + normalZ * (p[neighborOffset + 2] - centerZ);
+                if (cosine < MIN_REGION_NORMAL_COSINE || distance > MAX_REGION_PLANE_DISTANCE
+                        || distance < -MAX_REGION_PLANE_DISTANCE) {
+                    continue;
+                }
+                mCellRegions[neighbor] = region;
+                mRegionStack[stackSize++] = neighbor;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Fit a vertical plane to the points of the current region and track it as a candidate wall.
+     * The normal of the plane faces the depth camera.
+     */
+    private void fitWall(int regionSize) {
+        if (!mPlaneFitter.fitRansac(mRegionPoints, regionSize)
+                || mPlaneFitter.getConfidence() < MIN_FIT_CONFIDENCE) {
+            return;
+        }
+        // Make the plane vertical through the center of its inliers.
+        float normalX = mPlaneFitter.getNormalX();
+        float normalZ = mPlaneFitter.getNormalZ();
+        float length = (float) Math.sqrt(normalX * normalX + normalZ * normalZ);
+        if (length < MIN_FIT_NORMAL_HORIZONTAL_LENGTH) {
+            return;
+        }
+        normalX /= length;
+        normalZ /= length;
+        float sumX = 0;
+        float sumY = 0;
+        float sumZ = 0;
+        int inliers = 0;
+        for (int i = 0; i < regionSize * 3; i += 3) {
+            float distance = mPlaneFitter.getSignedDistance(mRegionPoints[i],
+                    mRegionPoints[i + 1], mRegionPoints[i + 2]);
+            if (distance <= FIT_INLIER_THRESHOLD && distance >= -FIT_INLIER_THRESHOLD) {
+                sumX += mRegionPoints[i];
+                sumY += mRegionPoints[i + 1];
+                sumZ += mRegionPoints[i + 2];
+                inliers++;
+            }
+        }
+        if (inliers == 0) {
+            return;
+        }
+        float centerX = sumX / inliers;
+        float centerY = sumY / inliers;
+        float centerZ = sumZ / inliers;
+        if (normalX * (mOpenGlTDepth[12] - centerX) + normalZ * (mOpenGlTDepth[14] - centerZ) < 0) {
+            normalX = -normalX;
+            normalZ = -normalZ;
+        }
+        float distance = -(normalX * centerX + normalZ * centerZ);
+
+        for (int i = 0; i < mNumberOfWalls; i++) {
+            if (isSameWall(mWallPlanes, i, normalX, normalZ, centerX, centerZ)) {
+                return;
+            }
+        }
+
+        int candidate = -1;
+        for (int i = 0; i < mNumberOfCandidates; i++) {
+            if (isSameWall(mCandidatePlanes, i, normalX, normalZ, centerX, centerZ)) {
+                candidate = i;
+                break;
+            }
+        }
+        if (candidate < 0) {
+            if (mNumberOfCandidates == MAX_CANDIDATES) {
+                return;
+            }
+            candidate = mNumberOfCandidates++;
+            mCandidateDetections[candidate] = 0;
+        } else if (mCandidateLastClouds[candidate] == mNumberOfProcessedClouds) {
+            // Already found in this cloud, in another region.
+            return;
+        }
+        mCandidatePlanes[candidate * 3] = normalX;
+        mCandidatePlanes[candidate * 3 + 1] = normalZ;
+        mCandidatePlanes[candidate * 3 + 2] = distance;
+        mCandidateCenters[candidate * 3] = centerX;
+        mCandidateCenters[candidate * 3 + 1] = centerY;
+        mCandidateCenters[candidate * 3 + 2] = centerZ;
+        mCandidateDetections[candidate]++;
+        mCandidateLastClouds[candidate] = mNumberOfProcessedClouds;
+
+        if (mCandidateDetections[candidate] >= MIN_DETECTIONS && mNumberOfWalls < MAX_WALLS) {
+            System.arraycopy(mCandidatePlanes, candidate * 3, mWallPlanes, mNumberOfWalls * 3, 3);
+            mNumberOfWalls++;
+            removeCandidate(candidate);
+
+            float[] openGlTPlane = new float[MATRIX_SIZE];
+            RigidTransforms.setFromPointNormalUp(openGlTPlane, 0, centerX, centerY, centerZ,
+                    normalX, 0, normalZ, 0, 1, 0);
+            float[] openGlTDepth = new float[MATRIX_SIZE];
+            System.arraycopy(mOpenGlTDepth, 0, openGlTDepth, 0, MATRIX_SIZE);
+            mListener.onWallDetected(openGlTPlane, openGlTDepth, mTimestamp,
+                    mPlaneFitter.getConfidence());
+        }
+    }
+
+    /**
+     * Whether two wall planes are the same wall, with the test used for the detected walls.
+     *
+     * @param openGlTPlane      The pose of a wall plane in OpenGl frame, with its normal along Z.
+     * @param otherOpenGlTPlane The pose of the other wall plane.
+     */
+    static boolean isSameWall(float[] openGlTPlane, float[] otherOpenGlTPlane) {
+        float[] planes = new float[6];
+        return setVerticalPlane(openGlTPlane, planes, 0)
+                && setVerticalPlane(otherOpenGlTPlane, planes, 1)
+                && isSameWall(planes, 0, planes[3], planes[4], otherOpenGlTPlane[12],
+                otherOpenGlTPlane[14]);
+    }
+
+    /**
+     * Make the vertical plane closest to a plane, packed in an array of vertical planes.
+     *
+     * @param openGlTPlane The pose of the plane in OpenGl frame, with its normal along Z.
+     * @return False if the plane is too slanted to be made vertical.
+     */
+    private static boolean setVerticalPlane(float[] openGlTPlane, float[] planes, int index) {
+        float normalX = openGlTPlane[8];
+        float normalZ = openGlTPlane[10];
+        float length = (float) Math.sqrt(normalX * normalX + normalZ * normalZ);
+        if (length < MIN_FIT_NORMAL_HORIZONTAL_LENGTH) {
+            return false;
+        }
+        normalX /= length;
+        normalZ /= length;
+        planes[index * 3] = normalX;
+        planes[index * 3 + 1] = normalZ;
+        planes[index * 3 + 2] = -(normalX * openGlTPlane[12] + normalZ * openGlTPlane[14]);
+        return true;
+    }
+
+    /**
+     * Whether a vertical plane is the same wall as one in a packed array of vertical planes, with
+     * parallel normals, facing either way, and a center close to the plane.
+     */
+    private static boolean isSameWall(float[] planes, int index, float normalX, float normalZ,
+                                      float centerX, float centerZ) {
+        float otherX = planes[index * 3];
+        float otherZ = planes[index * 3 + 1];
+        float cosine = otherX * normalX + otherZ * normalZ;
+        if (cosine < SAME_WALL_NORMAL_COSINE && cosine > -SAME_WALL_NORMAL_COSINE) {
+            return false;
+        }
+        float distance = otherX * centerX + otherZ * centerZ + planes[index * 3 + 2];
+        return distance <= SAME_WALL_DISTANCE && distance >= -SAME_WALL_DISTANCE;
+    }
+
+    private void removeCandidate(int index) {
+        int last = --mNumberOfCandidates;
+        System.arraycopy(mCandidatePlanes, last * 3, mCandidatePlanes, index * 3, 3);
+        System.arraycopy(mCandidateCenters, last * 3, mCandidateCenters, index * 3, 3);
+        mCandidateDetections[index] = mCandidateDetections[last];
+        mCandidateLastClouds[index] = mCandidateLastClouds[last];
+    }
+}
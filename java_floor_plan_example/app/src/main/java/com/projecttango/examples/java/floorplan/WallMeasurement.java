@@ -15,35 +15,17 @@
  */
 package com.projecttango.examples.java.floorplan;
 
-import android.opengl.Matrix;
-
-import org.rajawali3d.math.Matrix4;
-import org.rajawali3d.math.vector.Vector3;
-
-import com.projecttango.rajawali.ScenePoseCalculator;
-
 /**
  * Representation of wall as a measured plane.
+ * The transforms are kept in the {@link WallMeasurementStore} the measurement was added to.
  */
 public class WallMeasurement {
-    /**
-     * The pose of the plane in OpenGl frame.
-     */
-    private float[] mOpenGlTPlaneTransform;
-    /**
-     * The pose of the depth camera when the measurement was taken in OpenGl frame.
-     */
-    private float[] mOpenGlTDepthTransform;
-    /**
-     * The mTimestamp of the measurement.
-     */
-    private double mTimestamp;
+    private final WallMeasurementStore mStore;
+    private final int mIndex;
 
-    public WallMeasurement(float[] openGlTPlaneTransform, float[] openGlTDepthTransform, double
-            timestamp) {
-        mOpenGlTPlaneTransform = openGlTPlaneTransform;
-        mOpenGlTDepthTransform = openGlTDepthTransform;
-        mTimestamp = timestamp;
+    WallMeasurement(WallMeasurementStore store, int index) {
+        mStore = store;
+        mIndex = index;
     }
 
     /**
@@ -51,14 +33,7 @@ public class WallMeasurement {
      * the measurement.
      */
     public void update(float[] newOpenGlTDepthTransform) {
-        float[] depthTOpenGl = new float[16];
-        Matrix.invertM(depthTOpenGl, 0, mOpenGlTDepthTransform, 0);
-        float[] newOpenGlTOldOpenGl = new float[16];
-        Matrix.multiplyMM(newOpenGlTOldOpenGl, 0, newOpenGlTDepthTransform, 0, depthTOpenGl, 0);
-        float[] newOpenGlTPlane = new float[16];
-        Matrix.multiplyMM(newOpenGlTPlane, 0, newOpenGlTOldOpenGl, 0, mOpenGlTPlaneTransform, 0);
-        mOpenGlTPlaneTransform = newOpenGlTPlane;
-        mOpenGlTDepthTransform = newOpenGlTDepthTransform;
+        mStore.update(mIndex, newOpenGlTDepthTransform);
     }
 
     /**
@@ -68,38 +43,45 @@ public class WallMeasurement {
      * @return The point of intersection in world frame.
      */
     public float[] intersect(WallMeasurement otherWallMeasurement) {
-        float[] openGlTPlane = getPlaneTransform();
-        float[] openGlTOtherPlane = otherWallMeasurement.getPlaneTransform();
-        // We will calculate the intersection in the frame of the first transformation.
-        // Transform the second wall measurement to the first measurement frame
-        float[] planeTOpenGl = new float[16];
-        Matrix.invertM(planeTOpenGl, 0, openGlTPlane, 0);
-        float[] firstPlaneTsecondPlane = new float[16];
-        Matrix.multiplyMM(firstPlaneTsecondPlane, 0, planeTOpenGl, 0, openGlTOtherPlane, 0);
-
-        // The translation of the second transform origin, in the first one's frame
-        float[] wallPsecond = new float[]{firstPlaneTsecondPlane[12], firstPlaneTsecondPlane[13],
-                firstPlaneTsecondPlane[14]};
-        // The vector representing the X axis of the second transform, in the first's frame
-        float[] wallTXsecond = new float[]{firstPlaneTsecondPlane[0], firstPlaneTsecondPlane[1],
-                firstPlaneTsecondPlane[2]};
-
-        float[] wallPintersection =
-                new float[]{wallPsecond[0] - wallTXsecond[0] / wallTXsecond[2] * wallPsecond[2],
-                        0, 0, 1};
-
-        float[] worldPIntersection = new float[4];
-        Matrix.multiplyMV(worldPIntersection, 0, openGlTPlane, 0, wallPintersection, 0);
-
+        float[] worldPIntersection = new float[]{0, 0, 0, 1};
+        intersect(otherWallMeasurement, worldPIntersection, 0);
         return worldPIntersection;
     }
 
+    /**
+     * Intersect this measurement with another WallMeasurement of the same store, without
+     * allocating.
+     *
+     * @param result Output x, y and z coordinates of the intersection in world frame.
+     */
+    public void intersect(WallMeasurement otherWallMeasurement, float[] result, int resultOffset) {
+        if (otherWallMeasurement.mStore != mStore) {
+            throw new IllegalArgumentException("Measurements belong to different stores");
+        }
+        mStore.intersect(mIndex, otherWallMeasurement.mIndex, result, resultOffset);
+    }
+
+    /**
+     * Get a copy of the pose of the plane in OpenGl frame.
+     */
     public float[] getPlaneTransform() {
-        return mOpenGlTPlaneTransform;
+        float[] openGlTPlaneTransform = new float[16];
+        mStore.getPlaneTransform(mIndex, openGlTPlaneTransform);
+        return openGlTPlaneTransform;
     }
 
     public double getDepthTransformTimeStamp() {
-        return mTimestamp;
+        return mStore.getDepthTransformTimeStamp(mIndex);
+    }
+
+    /**
+     * The confidence of the plane fit between 0 and 1, or NaN if unknown.
+     */
+    public float getConfidence() {
+        return mStore.getConfidence(mIndex);
     }
 
+    public int getIndex() {
+        return mIndex;
+    }
 }
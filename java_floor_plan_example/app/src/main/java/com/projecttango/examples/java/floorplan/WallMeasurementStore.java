@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.projecttango.tangoutils.RigidTransforms;
+
+/**
+ * Storage of all the wall measurements of a floor plan, in the order they were taken.
+ * <p/>
+ * The transforms of all the measurements are packed in two float arrays, 16 floats per
+ * measurement, and updated and intersected in place with {@link RigidTransforms}, so that
+ * updating the measurements and rebuilding the plan don't allocate. Each measurement has a
+ * revision number, increased whenever its plane moves, so that {@link PlanBuilder} can tell which
+ * parts of the plan need to be recalculated.
+ * This class is not thread safe.
+ */
+public class WallMeasurementStore {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MATRIX_SIZE = RigidTransforms.MATRIX_SIZE;
+
+    /**
+     * The poses of the planes in OpenGl frame.
+     */
+    private float[] mOpenGlTPlaneTransforms;
+    /**
+     * The poses of the depth camera when the measurements were taken in OpenGl frame.
+     */
+    private float[] mOpenGlTDepthTransforms;
+    /**
+     * The timestamps of the measurements.
+     */
+    private double[] mTimestamps;
+    /**
+     * The number of times each plane was moved by an update.
+     */
+    private int[] mRevisions;
+    /**
+     * The confidence of the plane fits, between 0 and 1, or NaN if unknown.
+     */
+    private float[] mConfidences;
+    private final List<WallMeasurement> mWallMeasurements = new ArrayList<WallMeasurement>();
+
+    // Scratch matrix for updates.
+    private final float[] mNewOpenGlTOldOpenGl = new float[MATRIX_SIZE];
+
+    public WallMeasurementStore() {
+        mOpenGlTPlaneTransforms = new float[INITIAL_CAPACITY * MATRIX_SIZE];
+        mOpenGlTDepthTransforms = new float[INITIAL_CAPACITY * MATRIX_SIZE];
+        mTimestamps = new double[INITIAL_CAPACITY];
+        mRevisions = new int[INITIAL_CAPACITY];
+        mConfidences = new float[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add a new measurement. The transforms are copied.
+     *
+     * @param confidence Confidence of the plane fit between 0 and 1, or NaN if unknown.
+     * @return The new measurement.
+     */
+    public WallMeasurement add(float[] openGlTPlaneTransform, float[] openGlTDepthTransform,
+                               double timestamp, float confidence) {
+        int index = mWallMeasurements.size();
+        if (index == mTimestamps.length) {
+            int capacity = index * 2;
+            mOpenGlTPlaneTransforms = Arrays.copyOf(mOpenGlTPlaneTransforms,
+                    capacity * MATRIX_SIZE);
+            mOpenGlTDepthTransforms = Arrays.copyOf(mOpenGlTDepthTransforms,
+                    capacity * MATRIX_SIZE);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mRevisions = Arrays.copyOf(mRevisions, capacity);
+            mConfidences = Arrays.copyOf(mConfidences, capacity);
+        }
+        System.arraycopy(openGlTPlaneTransform, 0, mOpenGlTPlaneTransforms, index * MATRIX_SIZE,
+                MATRIX_SIZE);
+        System.arraycopy(openGlTDepthTransform, 0, mOpenGlTDepthTransforms, index * MATRIX_SIZE,
+                MATRIX_SIZE);
+        mTimestamps[index] = timestamp;
+        mRevisions[index] = 0;
+        mConfidences[index] = confidence;
+        WallMeasurement wallMeasurement = new WallMeasurement(this, index);
+        mWallMeasurements.add(wallMeasurement);
+        return wallMeasurement;
+    }
+
+    public WallMeasurement get(int index) {
+        return mWallMeasurements.get(index);
+    }
+
+    public int size() {
+        return mWallMeasurements.size();
+    }
+
+    /**
+     * Update the plane pose of a measurement given an updated depth camera pose at the timestamp
+     * of the measurement. The revision of the measurement is increased only if the depth camera
+     * pose changed.
+     */
+    public void update(int index, float[] newOpenGlTDepthTransform) {
+        int offset = index * MATRIX_SIZE;
+        if (isDepthTransformEqual(offset, newOpenGlTDepthTransform)) {
+            return;
+        }
+        RigidTransforms.invertRigid(mNewOpenGlTOldOpenGl, 0, mOpenGlTDepthTransforms, offset);
+        RigidTransforms.multiply(mNewOpenGlTOldOpenGl, 0, newOpenGlTDepthTransform, 0,
+                mNewOpenGlTOldOpenGl, 0);
+        RigidTransforms.multiply(mOpenGlTPlaneTransforms, offset, mNewOpenGlTOldOpenGl, 0,
+                mOpenGlTPlaneTransforms, offset);
+        System.arraycopy(newOpenGlTDepthTransform, 0, mOpenGlTDepthTransforms, offset,
+                MATRIX_SIZE);
+        mRevisions[index]++;
+    }
+
+    /**
+     * Intersect a measurement with another one.
+     *
+     * @param result Output x, y and z coordinates of the intersection in world frame.
+     */
+    public void intersect(int index, int otherIndex, float[] result, int resultOffset) {
+        RigidTransforms.intersectPlanes(result, resultOffset,
+                mOpenGlTPlaneTransforms, index * MATRIX_SIZE,
+                mOpenGlTPlaneTransforms, otherIndex * MATRIX_SIZE);
+    }
+
+    /**
+     * Copy the plane pose of a measurement in OpenGl frame.
+     */
+    public void getPlaneTransform(int index, float[] openGlTPlaneTransform) {
+        System.arraycopy(mOpenGlTPlaneTransforms, index * MATRIX_SIZE, openGlTPlaneTransform, 0,
+                MATRIX_SIZE);
+    }
+
+    /**
+     * Copy the position of the plane of a measurement in OpenGl frame.
+     */
+    public void getPlanePosition(int index, float[] result, int resultOffset) {
+        System.arraycopy(mOpenGlTPlaneTransforms, index * MATRIX_SIZE + 12, result, resultOffset,
+                3);
+    }
+
+    public double getDepthTransformTimeStamp(int index) {
+        return mTimestamps[index];
+    }
+
+    /**
+     * The number of times the plane of a measurement was moved since it was added.
+     */
+    public int getRevision(int index) {
+        return mRevisions[index];
+    }
+
+    /**
+     * The confidence of the plane fit of a measurement between 0 and 1, or NaN if unknown.
+     */
+    public float getConfidence(int index) {
+        return mConfidences[index];
+    }
+
+    private boolean isDepthTransformEqual(int offset, float[] openGlTDepthTransform) {
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            if (mOpenGlTDepthTransforms[offset + i] != openGlTDepthTransform[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the output of the exporters with golden files in the test resources, for a plan with
+ * closed and open rooms on two floors.
+ */
+public class FloorplanExporterTest {
+    private static final String GOLDEN_FILE_NAME = "golden_floorplan.";
+
+    @Test
+    public void exportSvg() throws IOException {
+        assertExportMatchesGoldenFile(new SvgFloorplanExporter());
+    }
+
+    @Test
+    public void exportDxf() throws IOException {
+        assertExportMatchesGoldenFile(new DxfFloorplanExporter());
+    }
+
+    @Test
+    public void exportGeoJson() throws IOException {
+        assertExportMatchesGoldenFile(new GeoJsonFloorplanExporter());
+    }
+
+    @Test
+    public void exportToStreamIsUtf8OfExportToWriter() throws IOException {
+        FloorplanExporter exporter = new SvgFloorplanExporter();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        exporter.export(createFloorplan(), outputStream);
+        assertEquals(export(exporter, createFloorplan()), outputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void exportSamePlanTwiceGivesSameOutput() throws IOException {
+        FloorplanExporter exporter = new GeoJsonFloorplanExporter();
+        Floorplan floorplan = createFloorplan();
+        assertEquals(export(exporter, floorplan), export(exporter, floorplan));
+    }
+
+    private void assertExportMatchesGoldenFile(FloorplanExporter exporter) throws IOException {
+        String fileName = GOLDEN_FILE_NAME + exporter.getFileExtension();
+        assertEquals(fileName, readResource(fileName), export(exporter, createFloorplan()));
+    }
+
+    private static String export(FloorplanExporter exporter, Floorplan floorplan)
+            throws IOException {
+        StringWriter writer = new StringWriter();
+        exporter.export(floorplan, writer);
+        return writer.toString();
+    }
+
+    private String readResource(String fileName) throws IOException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(fileName);
+        assertNotNull("Missing golden file " + fileName, inputStream);
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                contents.write(buffer, 0, length);
+            }
+            return contents.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * A plan with a closed rectangular room and an open room on the ground floor, and a closed
+     * triangular room upstairs.
+     */
+    private static Floorplan createFloorplan() {
+        List<Room> rooms = new ArrayList<Room>();
+        rooms.add(new Room(new float[] {
+                -2, 0, -1.5f,
+                2, 0, -1.5f,
+                2, 0, 1.5f,
+                -2, 0, 1.5f}, 4, true));
+        rooms.add(new Room(new float[] {
+                2, 0.1f, 1.5f,
+                4.25f, 0.1f, 1.5f,
+                4.25f, 0.1f, -0.333333f}, 3, false));
+        rooms.add(new Room(new float[] {
+                -1, 2.7f, -1,
+                1.5f, 2.7f, -1,
+                0.25f, 2.7f, 1.123456f}, 3, true));
+        return new Floorplan(rooms);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import com.projecttango.tangoutils.RigidTransforms;
+
+/**
+ * Time to rebuild the plan of a synthetic room of 200 walls after all the measurements moved, like
+ * after the area description is optimized, and time of the plane intersections alone. Run with
+ * {@code -prof gc} to see the allocation per rebuild.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanBuilderBenchmark {
+    private static final int NUMBER_OF_WALLS = 200;
+    private static final float ROOM_RADIUS = 5;
+
+    private WallMeasurementStore mWallMeasurementStore;
+    private PlanBuilder mPlanBuilder;
+    // Two depth camera poses the measurements alternate between, so that every update moves them.
+    private final float[][] mOpenGlTDepth = new float[2][16];
+    private int mNextPose;
+    private final float[] mCorners = new float[NUMBER_OF_WALLS * 3];
+
+    @Setup
+    public void setUp() {
+        RigidTransforms.setIdentity(mOpenGlTDepth[0], 0);
+        RigidTransforms.setIdentity(mOpenGlTDepth[1], 0);
+        mOpenGlTDepth[1][12] = 0.01f;
+        mOpenGlTDepth[1][14] = -0.02f;
+
+        // Walls tangent to a circle, facing its center, as a regular polygon.
+        mWallMeasurementStore = new WallMeasurementStore();
+        float[] openGlTPlane = new float[16];
+        for (int i = 0; i < NUMBER_OF_WALLS; i++) {
+            double angle = 2 * Math.PI * i / NUMBER_OF_WALLS;
+            float x = (float) (ROOM_RADIUS * Math.cos(angle));
+            float z = (float) (ROOM_RADIUS * Math.sin(angle));
+            RigidTransforms.setFromPointNormalUp(openGlTPlane, 0, x, 1, z, -x, 0, -z, 0, 1, 0);
+            mWallMeasurementStore.add(openGlTPlane, mOpenGlTDepth[0], i, 1);
+        }
+        mPlanBuilder = new PlanBuilder(mWallMeasurementStore);
+        mPlanBuilder.buildPlan(true);
+    }
+
+    @Benchmark
+    public Floorplan updateAndRebuildPlan() {
+        mNextPose = 1 - mNextPose;
+        for (int i = 0; i < NUMBER_OF_WALLS; i++) {
+            mWallMeasurementStore.update(i, mOpenGlTDepth[mNextPose]);
+        }
+        return mPlanBuilder.buildPlan(true);
+    }
+
+    @Benchmark
+    public float[] intersectAllWalls() {
+        for (int i = 0; i < NUMBER_OF_WALLS; i++) {
+            mWallMeasurementStore.intersect(i, (i + NUMBER_OF_WALLS - 1) % NUMBER_OF_WALLS,
+                    mCorners, i * 3);
+        }
+        return mCorners;
+    }
+}
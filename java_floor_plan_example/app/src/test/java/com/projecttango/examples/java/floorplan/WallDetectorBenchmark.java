@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.floorplan;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of clouds per second the {@link WallDetector} processes, for a depth camera looking at
+ * the corner of a room, with two walls and the floor in view. The walls are proposed in the first
+ * clouds, so the measured clouds go through the whole detection and find known walls, like while
+ * walking around a room.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WallDetectorBenchmark {
+    // Depth camera of the Tango development kit.
+    private static final int DEPTH_WIDTH = 320;
+    private static final int DEPTH_HEIGHT = 180;
+    private static final float DEPTH_FOCAL_LENGTH = 250;
+    // A point every other pixel, about the number of points of a cloud of the device.
+    private static final int PIXEL_STEP = 2;
+    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Walls to the right and in front of the camera, and the floor below it, in depth frame.
+    private static final float RIGHT_WALL_X = 1.5f;
+    private static final float FRONT_WALL_Z = 3;
+    private static final float FLOOR_Y = 1.2f;
+    private static final float NOISE = 0.005f;
+    // The depth camera looks along -Z in OpenGl frame, with Y up.
+    private static final float[] OPENGL_T_DEPTH = new float[] {
+            1, 0, 0, 0, 0, -1, 0, 0, 0, 0, -1, 0, 0, 1.2f, 0, 1};
+
+    private WallDetector mWallDetector;
+    private TangoXyzIjData mXyzIj;
+    private int mNumberOfWalls;
+
+    @Setup
+    public void setUp() {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = DEPTH_WIDTH;
+        intrinsics.height = DEPTH_HEIGHT;
+        intrinsics.fx = DEPTH_FOCAL_LENGTH;
+        intrinsics.fy = DEPTH_FOCAL_LENGTH;
+        intrinsics.cx = DEPTH_WIDTH / 2;
+        intrinsics.cy = DEPTH_HEIGHT / 2;
+        mWallDetector = new WallDetector(intrinsics, MAX_NUMBER_OF_POINTS,
+                new WallDetector.WallDetectorListener() {
+                    @Override
+                    public void onWallDetected(float[] openGlTPlane, float[] openGlTDepth,
+                                               double timestamp, float confidence) {
+                        mNumberOfWalls++;
+                    }
+                });
+
+        mXyzIj = new TangoXyzIjData();
+        mXyzIj.xyz = ByteBuffer.allocateDirect(MAX_NUMBER_OF_POINTS * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        Random random = new Random(0);
+        int pointCount = 0;
+        for (int v = 0; v < DEPTH_HEIGHT; v += PIXEL_STEP) {
+            for (int u = 0; u < DEPTH_WIDTH; u += PIXEL_STEP) {
+                float rayX = (u - DEPTH_WIDTH / 2f) / DEPTH_FOCAL_LENGTH;
+                float rayY = (v - DEPTH_HEIGHT / 2f) / DEPTH_FOCAL_LENGTH;
+                // Nearest of the surfaces along the ray.
+                float depth = FRONT_WALL_Z;
+                if (rayX > 0) {
+                    depth = Math.min(depth, RIGHT_WALL_X / rayX);
+                }
+                if (rayY > 0) {
+                    depth = Math.min(depth, FLOOR_Y / rayY);
+                }
+                depth += (float) random.nextGaussian() * NOISE;
+                mXyzIj.xyz.put(pointCount * 3, rayX * depth);
+                mXyzIj.xyz.put(pointCount * 3 + 1, rayY * depth);
+                mXyzIj.xyz.put(pointCount * 3 + 2, depth);
+                pointCount++;
+            }
+        }
+        mXyzIj.xyzCount = pointCount;
+        for (int cloud = 0; cloud < 10; cloud++) {
+            detectWalls();
+        }
+        if (mNumberOfWalls != 2) {
+            throw new IllegalStateException("Detected " + mNumberOfWalls + " walls instead of 2");
+        }
+    }
+
+    @Benchmark
+    public int detectWalls() {
+        mXyzIj.timestamp += 0.2;
+        mWallDetector.detectWalls(mXyzIj, OPENGL_T_DEPTH);
+        return mNumberOfWalls;
+    }
+}
@@ -13,7 +13,6 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package com.projecttango.examples.java.modelcorrespondence;
 
 import android.opengl.Matrix;
@@ -23,16 +22,42 @@ import org.rajawali3d.math.vector.Vector3;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+
+import com.projecttango.tangoutils.RigidTransforms;
+import com.projecttango.tangoutils.TriangleBvh;
+import com.projecttango.tangoutils.TriangleMesh;
 
 /**
  * Given data model.
- * The user is supposed to already have this.
+ * The user is supposed to already have this, either the built in house with its known corners or
+ * a mesh loaded from a file, whose correspondence points are picked on its vertices.
  */
 public class HouseModel {
+    // Scale of the built in house when it is shown fixed to the camera before the correspondence.
+    private static final float DEFAULT_PREVIEW_SCALE = 0.03f;
+    // Radius in meters of the other models when they are shown fixed to the camera, about the one
+    // of the built in house.
+    private static final float PREVIEW_RADIUS = 1.1f;
 
     // Some points in model frame that the user is supposed to know to make the correspondence.
     private List<float[]> mModelPoints;
+    // The mesh of the model, null for the built in house until its mesh is loaded.
+    private TriangleMesh mMesh;
+    // True if the correspondence points are picked on the mesh rather than known in advance.
+    private boolean mArePointsPicked;
+    // Hierarchy of the triangles of the mesh to pick the points, when they are picked.
+    private TriangleBvh mTriangleBvh;
+    private float mPreviewScale = DEFAULT_PREVIEW_SCALE;
+    // Points sampled uniformly on the surface of the model and their unit normals, packed x, y, z
+    // in model frame.
+    private float[] mSurfacePoints = new float[0];
+    private float[] mSurfaceNormals = new float[0];
+    private int mNumberOfSurfacePoints;
 
+    /**
+     * The built in house, without its mesh.
+     */
     public HouseModel() {
         mModelPoints = new ArrayList<float[]>();
         // Populate the points in model frame to make the correspondence. In this case they are
@@ -43,6 +68,33 @@ public class HouseModel {
         mModelPoints.add(new float[]{9.57f, 19.46f, 0.0837f, 1});
     }
 
+    /**
+     * A model loaded from a mesh. It has no correspondence points until they are picked with
+     * {@link #pickModelPoint}.
+     * NOTE: This builds the hierarchy used to pick the points, which takes a while on large
+     * meshes, so it should be called in the thread loading the mesh.
+     */
+    public HouseModel(TriangleMesh mesh) {
+        mModelPoints = new ArrayList<float[]>();
+        mMesh = mesh;
+        mArePointsPicked = true;
+        mTriangleBvh = new TriangleBvh(mesh);
+        float radius = mesh.getRadius();
+        if (radius > 0) {
+            mPreviewScale = PREVIEW_RADIUS / radius;
+        }
+    }
+
+    /**
+     * The built in house with its mesh, which has the same correspondence points as the one
+     * without it.
+     */
+    public static HouseModel createBuiltInHouse(TriangleMesh mesh) {
+        HouseModel houseModel = new HouseModel();
+        houseModel.mMesh = mesh;
+        return houseModel;
+    }
+
     /**
      * Get the model points in OpenGl frame.
      */
@@ -56,8 +108,180 @@ public class HouseModel {
         return openGlPpoints;
     }
 
+    /**
+     * Get one of the model points in OpenGl frame, without allocating.
+     *
+     * @param openGlPoint Homogeneous coordinates of the point, four values.
+     */
+    public void getOpenGlModelPoint(float[] openGlTHouse, int index, float[] openGlPoint) {
+        Matrix.multiplyMV(openGlPoint, 0, openGlTHouse, 0, mModelPoints.get(index), 0);
+    }
+
     public int getNumberOfPoints() {
         return mModelPoints.size();
     }
 
+    /**
+     * The mesh of the model, or null for the built in house until its mesh is loaded.
+     */
+    public TriangleMesh getMesh() {
+        return mMesh;
+    }
+
+    /**
+     * Scale of the model when it is shown fixed to the camera, so that it fits in the view
+     * whatever its units.
+     */
+    public float getPreviewScale() {
+        return mPreviewScale;
+    }
+
+    /**
+     * Whether the correspondence points are picked on the mesh, or known in advance as the
+     * corners of the built in house.
+     */
+    public boolean arePointsPicked() {
+        return mArePointsPicked;
+    }
+
+    /**
+     * Add the mesh vertex under a ray as the next correspondence point.
+     *
+     * @param openGlTHouse       Similarity transform of the model in OpenGl frame.
+     * @param openGlRayOrigin    Origin of the ray in OpenGl frame.
+     * @param openGlRayDirection Direction of the ray in OpenGl frame.
+     * @return True if a vertex was picked, false if the ray misses the mesh or the points are not
+     * picked.
+     */
+    public boolean pickModelPoint(float[] openGlTHouse, float[] openGlRayOrigin,
+                                  float[] openGlRayDirection) {
+        if (!mArePointsPicked) {
+            return false;
+        }
+        // The inverse of the similarity is the inverse of the rigid transform divided by the
+        // square of the scale.
+        float[] houseTOpenGl = new float[RigidTransforms.MATRIX_SIZE];
+        RigidTransforms.invertRigid(houseTOpenGl, 0, openGlTHouse, 0);
+        float squaredScale = openGlTHouse[0] * openGlTHouse[0] + openGlTHouse[1] * openGlTHouse[1]
+                + openGlTHouse[2] * openGlTHouse[2];
+        float[] origin = new float[3];
+        float[] direction = new float[3];
+        for (int i = 0; i < 3; i++) {
+            origin[i] = houseTOpenGl[12 + i];
+            for (int j = 0; j < 3; j++) {
+                origin[i] += houseTOpenGl[j * 4 + i] * openGlRayOrigin[j];
+                direction[i] += houseTOpenGl[j * 4 + i] * openGlRayDirection[j];
+            }
+            origin[i] /= squaredScale;
+        }
+        int vertex = mTriangleBvh.pickVertex(origin, direction);
+        if (vertex < 0) {
+            return false;
+        }
+        float[] modelPoint = new float[4];
+        mMesh.getVertex(vertex, modelPoint);
+        modelPoint[3] = 1;
+        mModelPoints.add(modelPoint);
+        return true;
+    }
+
+    /**
+     * Remove the last picked correspondence point. The points of the built in house can't be
+     * removed.
+     *
+     * @return True if a point was removed.
+     */
+    public boolean removeLastModelPoint() {
+        if (!mArePointsPicked || mModelPoints.isEmpty()) {
+            return false;
+        }
+        mModelPoints.remove(mModelPoints.size() - 1);
+        return true;
+    }
+
+    /**
+     * Sample the surface of the model from its mesh, with one point per square of the given
+     * spacing on average. The sampling is seeded, so it is always the same.
+     *
+     * @param spacing Average distance between the samples, in model units.
+     */
+    public void loadSurface(TriangleMesh mesh, float spacing) {
+        int numberOfTriangles = mesh.getNumberOfTriangles();
+
+        // Number of samples of each triangle, proportional to its area.
+        Random random = new Random(0);
+        float[] vertices = new float[9];
+        float[] normal = new float[3];
+        int[] samples = new int[numberOfTriangles];
+        int total = 0;
+        for (int t = 0; t < numberOfTriangles; t++) {
+            float area = mesh.getTriangle(t, vertices);
+            float expected = area / (spacing * spacing);
+            samples[t] = (int) expected + (random.nextFloat() < expected % 1 ? 1 : 0);
+            total += samples[t];
+        }
+
+        mSurfacePoints = new float[total * 3];
+        mSurfaceNormals = new float[total * 3];
+        int count = 0;
+        for (int t = 0; t < numberOfTriangles; t++) {
+            if (samples[t] == 0) {
+                continue;
+            }
+            mesh.getTriangle(t, vertices);
+            // Use the normal of the triangle rather than the smoothed ones of its vertices.
+            computeNormal(vertices, normal);
+            for (int i = 0; i < samples[t]; i++) {
+                // Uniform barycentric coordinates.
+                float r1 = (float) Math.sqrt(random.nextFloat());
+                float r2 = random.nextFloat();
+                float a = 1 - r1;
+                float b = r1 * (1 - r2);
+                float c = r1 * r2;
+                for (int j = 0; j < 3; j++) {
+                    mSurfacePoints[count * 3 + j] = a * vertices[j] + b * vertices[3 + j]
+                            + c * vertices[6 + j];
+                    mSurfaceNormals[count * 3 + j] = normal[j];
+                }
+                count++;
+            }
+        }
+        mNumberOfSurfacePoints = count;
+    }
+
+    /**
+     * The points sampled on the surface, packed x, y, z in model frame.
+     */
+    public float[] getSurfacePoints() {
+        return mSurfacePoints;
+    }
+
+    /**
+     * The unit normals of the surface at the sampled points, packed x, y, z in model frame.
+     */
+    public float[] getSurfaceNormals() {
+        return mSurfaceNormals;
+    }
+
+    public int getNumberOfSurfacePoints() {
+        return mNumberOfSurfacePoints;
+    }
+
+    private static void computeNormal(float[] vertices, float[] normal) {
+        float abX = vertices[3] - vertices[0];
+        float abY = vertices[4] - vertices[1];
+        float abZ = vertices[5] - vertices[2];
+        float acX = vertices[6] - vertices[0];
+        float acY = vertices[7] - vertices[1];
+        float acZ = vertices[8] - vertices[2];
+        float crossX = abY * acZ - abZ * acY;
+        float crossY = abZ * acX - abX * acZ;
+        float crossZ = abX * acY - abY * acX;
+        float length = (float) Math.sqrt(crossX * crossX + crossY * crossY + crossZ * crossZ);
+        if (length > 0) {
+            normal[0] = crossX / length;
+            normal[1] = crossY / length;
+            normal[2] = crossZ / length;
+        }
+    }
 }
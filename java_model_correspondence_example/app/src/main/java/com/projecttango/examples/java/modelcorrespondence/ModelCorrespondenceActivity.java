@@ -33,6 +33,7 @@ import android.app.Activity;
 import android.opengl.Matrix;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
@@ -43,23 +44,32 @@ import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.projecttango.tangosupport.TangoPointCloudManager;
 import com.projecttango.tangosupport.TangoSupport;
+import com.projecttango.tangoutils.PlaneFitter;
+import com.projecttango.tangoutils.PointCloudTripleBuffer;
+import com.projecttango.tangoutils.SimilarityTransformSolver;
+import com.projecttango.tangoutils.TriangleMesh;
 
 /**
  * An example showing how to build a very simple application that allows the user to make a
  * correspondence between a model and world coordinates. It will allow to place a given model in
  * world coordinates and render it in augmented reality.
- * It uses the TangoSupportLibrary to find the correspondence similarity transform and to
- * measure depth points.
+ * It uses the TangoSupportLibrary to measure depth points, and
+ * {@link SimilarityTransformSolver} to find the correspondence similarity transform.
  * The model will be fixed at the upper left corner of the screen and will show which point must be
  * added next to make the correspondence. The correspondence points can be added with the '+'
  * button. Once all the correspondence points were added, the similiraty transform will be
  * calculated, and the model object will be placed in the desired location.
+ * Instead of the built in house, a model in OBJ or PLY format can be given with the
+ * {@link #EXTRA_MODEL_PATH} intent extra. Its correspondence points are picked by touching the
+ * model before adding the matching points.
  * Note that it is important to include the KEY_BOOLEAN_LOWLATENCYIMUINTEGRATION
  * configuration parameter in order to achieve best results synchronizing the
  * Rajawali virtual world with the RGB camera.
@@ -67,7 +77,10 @@ import com.projecttango.tangosupport.TangoSupport;
  * For more details on the augmented reality effects, including color camera texture rendering,
  * see java_augmented_reality_example or java_hello_video_example.
  */
-public class ModelCorrespondenceActivity extends Activity {
+public class ModelCorrespondenceActivity extends Activity implements View.OnTouchListener {
+    // Intent extra with the path of a model file to use instead of the built in house.
+    public static final String EXTRA_MODEL_PATH = "model_path";
+
     private static final String TAG = ModelCorrespondenceActivity.class.getSimpleName();
     // Record Device to Start of Service as the main frame pair to be used for device pose
     // queries.
@@ -75,6 +88,22 @@ public class ModelCorrespondenceActivity extends Activity {
             TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
             TangoPoseData.COORDINATE_FRAME_DEVICE);
     private static final int INVALID_TEXTURE_ID = 0;
+    // Maximum number of points expected in a single point cloud.
+    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Half size of the region around the crosshair used for plane fitting, in pixels of the color
+    // camera.
+    private static final float FIT_PIXEL_RADIUS = 20;
+    private static final float FIT_INLIER_THRESHOLD = 0.01f;
+    private static final int FIT_MAX_ITERATIONS = 100;
+    // Minimum ratio of the points around the crosshair on the fitted plane to use it.
+    private static final float MIN_FIT_CONFIDENCE = 0.8f;
+    // Maximum distance between a transformed model point and its measured point to be used in the
+    // correspondence, in meters. Farther points are considered wrong measurements.
+    private static final float CORRESPONDENCE_INLIER_THRESHOLD = 0.1f;
+    private static final int CORRESPONDENCE_MAX_ITERATIONS = 100;
+    // Number of samples of the model surface used to track it, about.
+    private static final int TRACKING_SURFACE_SAMPLES = 6000;
+    private static final int MIN_CORRESPONDENCE_POINTS = 3;
 
     private ImageButton mAddButton;
     private Button mUndoButton;
@@ -82,7 +111,14 @@ public class ModelCorrespondenceActivity extends Activity {
     private RajawaliSurfaceView mSurfaceView;
     private ModelCorrespondenceRenderer mRenderer;
     private TangoCameraIntrinsics mIntrinsics;
-    private TangoPointCloudManager mPointCloudManager;
+    private PointCloudTripleBuffer mPointCloudBuffer;
+    // Plane fitting state, only used by the UI thread.
+    private final PlaneFitter mPlaneFitter = new PlaneFitter(FIT_INLIER_THRESHOLD,
+            FIT_MAX_ITERATIONS, 0);
+    private final double[] mIntersectionPoint = new double[3];
+    // Correspondence state, only used by the UI thread.
+    private final SimilarityTransformSolver mSimilaritySolver = new SimilarityTransformSolver(
+            CORRESPONDENCE_INLIER_THRESHOLD, CORRESPONDENCE_MAX_ITERATIONS, 0);
     private Tango mTango;
     private boolean mIsConnected = false;
     private double mCameraPoseTimestamp = 0;
@@ -91,6 +127,9 @@ public class ModelCorrespondenceActivity extends Activity {
     private List<float[]> mDestPointList;
     // The given data model.
     private HouseModel mHouseModel;
+    // Keeps the model aligned with the depth once the correspondence is done. Null if the model
+    // surface couldn't be loaded. Replaced when a model file is loaded.
+    private volatile ModelTracker mModelTracker;
     // Transform of the house in OpenGl frame.
     private float[] mOpenGlTHouse;
     // A flag indicating whether the model was updated and must be re rendered in the next loop.
@@ -123,9 +162,127 @@ public class ModelCorrespondenceActivity extends Activity {
         // Set ZOrderOnTop to false so the other views don't get hidden by the SurfaceView.
         mSurfaceView.setZOrderOnTop(false);
         mTango = new Tango(this);
-        mPointCloudManager = new TangoPointCloudManager();
+        mPointCloudBuffer = new PointCloudTripleBuffer(MAX_NUMBER_OF_POINTS);
         mCrosshair = (ImageView) findViewById(R.id.crosshair);
         mCrosshair.setColorFilter(getResources().getColor(R.color.crosshair_ready));
+        mSurfaceView.setOnTouchListener(this);
+        // The built in house is used until its mesh is loaded, or until a model file given in the
+        // intent replaces it.
+        mHouseModel = new HouseModel();
+        String modelPath = getIntent().getStringExtra(EXTRA_MODEL_PATH);
+        if (modelPath != null) {
+            loadModel(new File(modelPath));
+        } else {
+            loadBuiltInHouse();
+        }
+    }
+
+    /**
+     * Load the mesh of the built in house in the background, to show and track it. Its
+     * correspondence points don't change, so the ones already measured are kept.
+     */
+    private void loadBuiltInHouse() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InputStream stl = getResources().openRawResource(R.raw.farmhouse);
+                try {
+                    TriangleMesh mesh = TriangleMesh.readStl(stl);
+                    final HouseModel houseModel = HouseModel.createBuiltInHouse(mesh);
+                    final ModelTracker modelTracker = createModelTracker(houseModel, mesh);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            setHouseModel(houseModel, modelTracker, false);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Model load failed, the model won't be shown nor tracked", e);
+                } finally {
+                    try {
+                        stl.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close the model resource", e);
+                    }
+                }
+            }
+        }, "ModelLoader").start();
+    }
+
+    /**
+     * Load a model from an OBJ or PLY file in the background, and use it instead of the current
+     * one when done. The parsed mesh is cached, so the next loads only memory map it.
+     */
+    private void loadModel(final File file) {
+        Toast.makeText(this, R.string.wait_message, Toast.LENGTH_SHORT).show();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long startTime = System.nanoTime();
+                    TriangleMesh mesh = TriangleMesh.load(file, getCacheDir());
+                    final HouseModel houseModel = new HouseModel(mesh);
+                    final ModelTracker modelTracker = createModelTracker(houseModel, mesh);
+                    Log.i(TAG, "Loaded " + mesh.getNumberOfTriangles() + " triangles from " + file
+                            + " in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            setHouseModel(houseModel, modelTracker, true);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Model load failed: " + file, e);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(ModelCorrespondenceActivity.this,
+                                    R.string.failed_model_load, Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+            }
+        }, "ModelLoader").start();
+    }
+
+    /**
+     * Sample the surface of a model and create the tracker that keeps it aligned with the depth.
+     *
+     * @return The tracker, or null if the mesh has no surface.
+     */
+    private static ModelTracker createModelTracker(HouseModel houseModel, TriangleMesh mesh) {
+        float area = mesh.getSurfaceArea();
+        if (!(area > 0)) {
+            return null;
+        }
+        houseModel.loadSurface(mesh, (float) Math.sqrt(area / TRACKING_SURFACE_SAMPLES));
+        return new ModelTracker(houseModel, MAX_NUMBER_OF_POINTS);
+    }
+
+    /**
+     * Replace the model.
+     *
+     * @param isRestarted Whether to restart the correspondence, or to keep it because the
+     *                    correspondence points of the new model are the same.
+     */
+    private synchronized void setHouseModel(HouseModel houseModel, ModelTracker modelTracker,
+                                            boolean isRestarted) {
+        if (mModelTracker != null) {
+            mModelTracker.stop();
+        }
+        mHouseModel = houseModel;
+        mModelTracker = modelTracker;
+        if (mModelTracker != null && mIsConnected) {
+            mModelTracker.start();
+        }
+        if (isRestarted) {
+            reset(null);
+        } else {
+            if (mCorrespondenceDone && mModelTracker != null) {
+                mModelTracker.startTracking(mOpenGlTHouse);
+            }
+            mModelUpdated = true;
+        }
     }
 
     @Override
@@ -144,6 +301,9 @@ public class ModelCorrespondenceActivity extends Activity {
                 mIsConnected = false;
             }
         }
+        if (mModelTracker != null) {
+            mModelTracker.stop();
+        }
     }
 
     @Override
@@ -152,9 +312,12 @@ public class ModelCorrespondenceActivity extends Activity {
         connectAndStart();
         // Reset status and correspondence every time we connect again to the service.
         // If we didn't do it, then the old points wouldn't make sense.
-        mHouseModel = new HouseModel();
         mModelUpdated = true;
         mCorrespondenceDone = false;
+        if (mModelTracker != null) {
+            mModelTracker.stopTracking();
+            mModelTracker.start();
+        }
         mOpenGlTHouse = new float[16];
         mDestPointList = new ArrayList<float[]>();
     }
@@ -227,7 +390,20 @@ public class ModelCorrespondenceActivity extends Activity {
             @Override
             public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
                 // Save the cloud and point data for later use.
-                mPointCloudManager.updateXyzIj(xyzIj);
+                mPointCloudBuffer.updateXyzIj(xyzIj);
+                // Align the model with the cloud once it is placed.
+                ModelTracker modelTracker = mModelTracker;
+                if (modelTracker != null && modelTracker.isTracking()) {
+                    TangoSupport.TangoMatrixTransformData transform =
+                            TangoSupport.getMatrixTransformAtTime(xyzIj.timestamp,
+                                    TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                                    TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                                    TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                                    TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+                    if (transform.statusCode == TangoPoseData.POSE_VALID) {
+                        modelTracker.onXyzIjAvailable(xyzIj, transform.matrix);
+                    }
+                }
             }
 
             @Override
@@ -323,6 +499,15 @@ public class ModelCorrespondenceActivity extends Activity {
                         }
                     }
 
+                    // Take the transform of the model tracked with the latest depth, if any.
+                    if (mCorrespondenceDone && mModelTracker != null) {
+                        float[] trackedOpenGlTHouse = mModelTracker.pollModelTransform();
+                        if (trackedOpenGlTHouse != null) {
+                            mOpenGlTHouse = trackedOpenGlTHouse;
+                            mModelUpdated = true;
+                        }
+                    }
+
                     // If the model was updated then it must be re rendered.
                     if (mModelUpdated) {
                         mRenderer.updateModelRendering(mHouseModel, mOpenGlTHouse, mDestPointList);
@@ -354,6 +539,10 @@ public class ModelCorrespondenceActivity extends Activity {
      * The resulting point will be shown in AR as a red sphere.
      */
     public void addPoint(View view) {
+        if (mHouseModel.getNumberOfPoints() < MIN_CORRESPONDENCE_POINTS) {
+            Toast.makeText(this, R.string.pick_model_points, Toast.LENGTH_LONG).show();
+            return;
+        }
         // Set the point position at the center of the screen.
         float u = .5f;
         float v = .5f;
@@ -374,10 +563,14 @@ public class ModelCorrespondenceActivity extends Activity {
                 }
                 // If it's the last point, then find the correspondence.
                 if (mDestPointList.size() == mHouseModel.getNumberOfPoints()) {
-                    findCorrespondence();
-                    mAddButton.setVisibility(View.GONE);
-                    mUndoButton.setVisibility(View.GONE);
-                    mResetButton.setVisibility(View.VISIBLE);
+                    if (findCorrespondence()) {
+                        mAddButton.setVisibility(View.GONE);
+                        mUndoButton.setVisibility(View.GONE);
+                        mResetButton.setVisibility(View.VISIBLE);
+                    } else {
+                        Toast.makeText(this, R.string.failed_correspondence,
+                                Toast.LENGTH_LONG).show();
+                    }
                 }
             }
         } catch (TangoException t) {
@@ -402,9 +595,59 @@ public class ModelCorrespondenceActivity extends Activity {
             mModelUpdated = true;
             // Rotate the model in reverse to show the next correspondence point to be added.
             startRotationAnimation(mModelZRotation, mDestPointList.size() * 90);
+        } else if (mHouseModel.removeLastModelPoint()) {
+            // Without destination points, undo the last picked model point.
+            mModelUpdated = true;
         }
     }
 
+    /**
+     * Pick the touched vertex of a model loaded from a file as its next correspondence point,
+     * while the model is fixed to the camera. The vertex is found with the triangle hierarchy
+     * built when the model was loaded, so even on large models the OpenGL thread is not held up.
+     */
+    @Override
+    public boolean onTouch(View view, MotionEvent motionEvent) {
+        if (motionEvent.getActionMasked() != MotionEvent.ACTION_UP) {
+            return true;
+        }
+        float u = motionEvent.getX() / view.getWidth();
+        float v = motionEvent.getY() / view.getHeight();
+        // Synchronize against the update of the model transform in the OpenGL thread and a
+        // possible service disconnection due to an onPause event.
+        synchronized (this) {
+            if (!mIsConnected || mCorrespondenceDone || !mHouseModel.arePointsPicked()) {
+                return true;
+            }
+            // The model is rendered with the camera pose at this time.
+            TangoSupport.TangoMatrixTransformData transform =
+                    TangoSupport.getMatrixTransformAtTime(mCameraPoseTimestamp,
+                            TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                            TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                            TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                            TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+            if (transform.statusCode != TangoPoseData.POSE_VALID) {
+                Log.w(TAG, "Can't get camera transform at time: " + mCameraPoseTimestamp);
+                return true;
+            }
+            // Ray through the touched pixel, from the color camera to OpenGl frame.
+            float x = (float) ((u * mIntrinsics.width - mIntrinsics.cx) / mIntrinsics.fx);
+            float y = (float) ((v * mIntrinsics.height - mIntrinsics.cy) / mIntrinsics.fy);
+            float[] openGlTColor = transform.matrix;
+            float[] origin = new float[]{openGlTColor[12], openGlTColor[13], openGlTColor[14]};
+            float[] direction = new float[3];
+            for (int i = 0; i < 3; i++) {
+                direction[i] = openGlTColor[i] * x + openGlTColor[4 + i] * y + openGlTColor[8 + i];
+            }
+            if (mHouseModel.pickModelPoint(mOpenGlTHouse, origin, direction)) {
+                mModelUpdated = true;
+            } else {
+                Toast.makeText(this, R.string.no_model_vertex, Toast.LENGTH_SHORT).show();
+            }
+        }
+        return true;
+    }
+
     /**
      * Reset the example to the beginning.
      */
@@ -413,6 +656,9 @@ public class ModelCorrespondenceActivity extends Activity {
             mZRotationAnimator.cancel();
         }
         mCorrespondenceDone = false;
+        if (mModelTracker != null) {
+            mModelTracker.stopTracking();
+        }
         mDestPointList.clear();
         mModelUpdated = true;
         mModelZRotation = 0;
@@ -422,11 +668,11 @@ public class ModelCorrespondenceActivity extends Activity {
     }
 
     /**
-     * Use the TangoSupport library with point cloud data to calculate the point in OpenGL frame
-     * pointed at the location the crosshair is aiming.
+     * Use {@link PlaneFitter} or the TangoSupport library with point cloud data to calculate the
+     * point in OpenGL frame pointed at the location the crosshair is aiming.
      */
     private float[] doPointMeasurement(float u, float v, double rgbTimestamp) {
-        TangoXyzIjData xyzIj = mPointCloudManager.getLatestXyzIj();
+        TangoXyzIjData xyzIj = mPointCloudBuffer.getLatestXyzIj();
 
         if (xyzIj == null) {
             return null;
@@ -439,9 +685,20 @@ public class ModelCorrespondenceActivity extends Activity {
                 rgbTimestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
                 xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
 
-        // Get depth point with the latest available point cloud data.
-        float[] point = TangoSupport.getDepthAtPointNearestNeighbor(xyzIj, mIntrinsics,
-                colorTdepthPose, u, v);
+        // Get depth point with the latest available point cloud data. The point on the plane
+        // fitted around the crosshair is less noisy than the nearest point of the cloud, which is
+        // used when there is no clear plane, like on an edge.
+        float[] point;
+        if (mPlaneFitter.fitNearClick(xyzIj, mIntrinsics, colorTdepthPose, u, v,
+                FIT_PIXEL_RADIUS, PlaneFitter.METHOD_MSAC)
+                && mPlaneFitter.getConfidence() >= MIN_FIT_CONFIDENCE) {
+            mPlaneFitter.getIntersectionPoint(mIntersectionPoint);
+            point = new float[]{(float) mIntersectionPoint[0], (float) mIntersectionPoint[1],
+                    (float) mIntersectionPoint[2]};
+        } else {
+            point = TangoSupport.getDepthAtPointNearestNeighbor(xyzIj, mIntrinsics,
+                    colorTdepthPose, u, v);
+        }
 
         // Get the transform from depth camera to OpenGL world at the timestamp of the cloud.
         TangoSupport.TangoMatrixTransformData transform =
@@ -470,31 +727,41 @@ public class ModelCorrespondenceActivity extends Activity {
     /**
      * Calculate the correspondence transform between the given points in the data model and the
      * chosen points in world frame. Update the pose of the data model and render it in AR.
-     * Uses the TangoSupport library to find the correspondence similarity transform.
+     * Uses {@link SimilarityTransformSolver} to find the correspondence similarity transform,
+     * ignoring the points which don't fit it. The {@link ModelTracker} then refines it by aligning
+     * the model surface with the next point cloud, in its own thread.
+     *
+     * @return False if the points don't define a transform.
      */
-    public void findCorrespondence() {
-        // Get the correspondence source 3D points.
+    public boolean findCorrespondence() {
+        // Get the correspondence source and destination 3D points.
         List<float[]> srcVectors = mHouseModel.getOpenGlModelPpoints(mOpenGlTHouse);
-        double[][] src = new double[4][3];
-        for (int i = 0; i < mHouseModel.getNumberOfPoints(); i++) {
-            float[] v = srcVectors.get(i);
-            src[i][0] = v[0];
-            src[i][1] = v[1];
-            src[i][2] = v[2];
-        }
-        // Get the correspondence destination 3D points.
-        double[][] dest = new double[4][3];
-        for (int i = 0; i < mHouseModel.getNumberOfPoints(); i++) {
-            float[] v = mDestPointList.get(i);
-            dest[i][0] = v[0];
-            dest[i][1] = v[1];
-            dest[i][2] = v[2];
+        int numberOfPoints = mDestPointList.size();
+        float[] src = new float[numberOfPoints * 3];
+        float[] dest = new float[numberOfPoints * 3];
+        for (int i = 0; i < numberOfPoints; i++) {
+            float[] srcVector = srcVectors.get(i);
+            float[] destVector = mDestPointList.get(i);
+            for (int j = 0; j < 3; j++) {
+                src[i * 3 + j] = srcVector[j];
+                dest[i * 3 + j] = destVector[j];
+            }
         }
 
         // Find the correspondence similarity transform.
-        double[] output = TangoSupport.findCorrespondenceSimilarityTransform(src, dest);
+        if (!mSimilaritySolver.solveRansac(src, dest, numberOfPoints)) {
+            Log.w(TAG, "Could not find a correspondence transform");
+            return false;
+        }
+        if (mSimilaritySolver.getNumberOfInliers() < numberOfPoints) {
+            Log.w(TAG, "Ignored " + (numberOfPoints - mSimilaritySolver.getNumberOfInliers())
+                    + " correspondence points too far from the others");
+        }
+        float[] transform = new float[16];
+        mSimilaritySolver.getTransform(transform);
         // Place the model in the desired location.
-        transformModel(toFloatArray(output));
+        transformModel(transform);
+        return true;
     }
 
     /**
@@ -506,6 +773,9 @@ public class ModelCorrespondenceActivity extends Activity {
         mOpenGlTHouse = newOpenGlTModel;
         mModelUpdated = true;
         mCorrespondenceDone = true;
+        if (mModelTracker != null) {
+            mModelTracker.startTracking(mOpenGlTHouse);
+        }
     }
 
     /**
@@ -525,7 +795,8 @@ public class ModelCorrespondenceActivity extends Activity {
         // Rotate it around the Z axis to show the next correspondence point to be added.
         Matrix.rotateM(rgbTHouse, 0, -mModelZRotation, 0, 0, 1);
         // Scale it to a proper size.
-        Matrix.scaleM(rgbTHouse, 0, 0.03f, 0.03f, 0.03f);
+        float scale = mHouseModel.getPreviewScale();
+        Matrix.scaleM(rgbTHouse, 0, scale, scale, scale);
         Matrix4 m = new Matrix4(rgbTHouse);
         return rgbTHouse;
     }
@@ -547,12 +818,4 @@ public class ModelCorrespondenceActivity extends Activity {
         });
         mZRotationAnimator.start();
     }
-
-    float[] toFloatArray(double[] source) {
-        float[] dest = new float[source.length];
-        for (int i = 0; i < source.length; i++) {
-            dest[i] = (float) source[i];
-        }
-        return dest;
-    }
 }
@@ -26,8 +26,6 @@ import android.view.MotionEvent;
 import org.rajawali3d.Object3D;
 import org.rajawali3d.lights.DirectionalLight;
 import org.rajawali3d.loader.ALoader;
-import org.rajawali3d.loader.LoaderSTL;
-import org.rajawali3d.loader.ParsingException;
 import org.rajawali3d.loader.async.IAsyncLoaderCallback;
 import org.rajawali3d.materials.Material;
 import org.rajawali3d.materials.methods.DiffuseMethod;
@@ -36,18 +34,18 @@ import org.rajawali3d.materials.textures.ATexture;
 import org.rajawali3d.materials.textures.StreamingTexture;
 import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
-import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.primitives.ScreenQuad;
-import org.rajawali3d.primitives.Sphere;
 import org.rajawali3d.renderer.RajawaliRenderer;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.microedition.khronos.opengles.GL10;
 
 import com.projecttango.rajawali.ScenePoseCalculator;
+import com.projecttango.rajawali.renderables.MarkerBatch;
+import com.projecttango.rajawali.renderables.TriangleMeshObject;
 import com.projecttango.tangosupport.TangoSupport;
+import com.projecttango.tangoutils.TriangleMesh;
 
 /**
  * Simple example augmented reality renderer which displays spheres fixed in place for every
@@ -57,6 +55,9 @@ import com.projecttango.tangosupport.TangoSupport;
  */
 public class ModelCorrespondenceRenderer extends RajawaliRenderer {
     private static final float SPHERE_RADIUS = 0.02f;
+    private static final int SPHERE_SEGMENTS = 10;
+    // The destination points and the next source point, the ones beyond are not shown.
+    private static final int MAX_NUMBER_OF_MARKERS = 1024;
     private static final String TAG = ModelCorrespondenceRenderer.class.getSimpleName();
 
     // Augmented reality related fields
@@ -64,10 +65,17 @@ public class ModelCorrespondenceRenderer extends RajawaliRenderer {
     private boolean mSceneCameraConfigured;
 
     private Object3D mHouseObject3D;
-    private Object3D mNextPointObject3D;
-    private List<Object3D> mDestPointsObjectList = new ArrayList<Object3D>();
+    // The mesh shown instead of the built in house, if any.
+    private TriangleMesh mHouseMesh;
+    // All the points are drawn as markers of a single object.
+    private MarkerBatch mPointMarkers;
     private Material mSphereMaterial;
     private Material mHouseMaterial;
+    // Scratch objects of the model rendering update, only used by the OpenGL thread.
+    private final float[] mNextPoint = new float[4];
+    private final double[] mHouseRotation = new double[16];
+    private final Matrix4 mHouseRotationMatrix = new Matrix4();
+    private final Quaternion mHouseOrientation = new Quaternion();
 
     public ModelCorrespondenceRenderer(Context context) {
         super(context);
@@ -110,6 +118,10 @@ public class ModelCorrespondenceRenderer extends RajawaliRenderer {
         mSphereMaterial.enableLighting(true);
         mSphereMaterial.setDiffuseMethod(new DiffuseMethod.Lambert());
         mSphereMaterial.setSpecularMethod(new SpecularMethod.Phong());
+        mSphereMaterial.useVertexColors(true);
+        mPointMarkers = new MarkerBatch(MAX_NUMBER_OF_MARKERS, SPHERE_RADIUS, SPHERE_SEGMENTS);
+        mPointMarkers.setMaterial(mSphereMaterial);
+        getCurrentScene().addChild(mPointMarkers);
 
         mHouseMaterial = new Material();
         mHouseMaterial.enableLighting(true);
@@ -118,17 +130,9 @@ public class ModelCorrespondenceRenderer extends RajawaliRenderer {
         mHouseMaterial.setColor(0xffcc6644);
         mHouseMaterial.setColorInfluence(0.5f);
 
-        // Load STL model.
-        LoaderSTL parser = new LoaderSTL(getContext().getResources(), mTextureManager,
-                R.raw.farmhouse);
-        try {
-            parser.parse();
-            mHouseObject3D = parser.getParsedObject();
-            mHouseObject3D.setMaterial(mHouseMaterial);
-            getCurrentScene().addChild(mHouseObject3D);
-        } catch (ParsingException e) {
-            Log.d(TAG, "Model load failed");
-        }
+        // The mesh of the model is shown on the next update, also when the scene is recreated.
+        mHouseObject3D = null;
+        mHouseMesh = null;
     }
 
     /**
@@ -173,57 +177,56 @@ public class ModelCorrespondenceRenderer extends RajawaliRenderer {
      */
     public void updateModelRendering(HouseModel houseModel, float[] openGlTHouse,
                                      List<float[]> destPoints) {
-        if (destPoints.size() > mDestPointsObjectList.size()) {
-            // If new destination points were measured, then add them as points as red spheres.
-            for (int i = mDestPointsObjectList.size(); i < destPoints.size(); i++) {
-                Object3D destPointObject3D = makePoint(destPoints.get(i), Color.RED);
-                getCurrentScene().addChild(destPointObject3D);
-                mDestPointsObjectList.add(destPointObject3D);
-            }
-        } else if (destPoints.size() < mDestPointsObjectList.size()) {
-            // If destination points were deleted, then add them as points as red spheres.
-            for (int i = destPoints.size(); i < mDestPointsObjectList.size(); i++) {
-                Object3D destPointObject3D = mDestPointsObjectList.get(i);
-                getCurrentScene().removeChild(destPointObject3D);
-                mDestPointsObjectList.remove(i);
-            }
+        // Show the destination points, then the next source point to be added. The markers of
+        // the points that didn't change are not updated.
+        int numberOfMarkers = Math.min(destPoints.size(), MAX_NUMBER_OF_MARKERS);
+        for (int i = 0; i < numberOfMarkers; i++) {
+            float[] destPoint = destPoints.get(i);
+            mPointMarkers.setMarker(i, destPoint[0], destPoint[1], destPoint[2], Color.RED);
         }
-
-        // Move the position of the next source point to be added.
         int nextPointNumber = destPoints.size();
-        List<float[]> houseModelPoints = houseModel.getOpenGlModelPpoints(openGlTHouse);
-        if (nextPointNumber < houseModelPoints.size()) {
-            if (mNextPointObject3D == null) {
-                mNextPointObject3D = makePoint(new float[]{0, 0, 0}, Color.GREEN);
-                getCurrentScene().addChild(mNextPointObject3D);
+        if (nextPointNumber < houseModel.getNumberOfPoints()
+                && numberOfMarkers < MAX_NUMBER_OF_MARKERS) {
+            houseModel.getOpenGlModelPoint(openGlTHouse, nextPointNumber, mNextPoint);
+            mPointMarkers.setMarker(numberOfMarkers++, mNextPoint[0], mNextPoint[1], mNextPoint[2],
+                    Color.GREEN);
+        }
+        mPointMarkers.setNumberOfMarkers(numberOfMarkers);
+
+        // Show the mesh of the model once it is loaded, or when it is replaced.
+        TriangleMesh houseMesh = houseModel.getMesh();
+        if (houseMesh != null && houseMesh != mHouseMesh) {
+            if (mHouseObject3D != null) {
+                getCurrentScene().removeChild(mHouseObject3D);
             }
-            float[] position = houseModelPoints.get(nextPointNumber);
-            mNextPointObject3D.setPosition(position[0], position[1], position[2]);
-        } else {
-            getCurrentScene().removeChild(mNextPointObject3D);
-            mNextPointObject3D = null;
+            mHouseObject3D = new TriangleMeshObject(houseMesh);
+            mHouseObject3D.setMaterial(mHouseMaterial);
+            getCurrentScene().addChild(mHouseObject3D);
+            mHouseMesh = houseMesh;
         }
 
         // Place the house object in the position and orientation given by the correspondence
         // transform.
         if (mHouseObject3D != null) {
-            Matrix4 transform = new Matrix4(openGlTHouse);
-            double scale = transform.getScaling().x;
+            double scale = Math.sqrt(openGlTHouse[0] * openGlTHouse[0]
+                    + openGlTHouse[1] * openGlTHouse[1] + openGlTHouse[2] * openGlTHouse[2]);
             mHouseObject3D.setScale(scale);
-            // Multiply by the inverse of the scale so the transform is only rotation and
-            // translation.
-            Vector3 translation = transform.getTranslation();
-            Matrix4 invScale = Matrix4.createScaleMatrix(1 / scale, 1 / scale, 1 / scale);
-            transform.multiply(invScale);
+            // Divide the rotation by the scale so the transform is only rotation and translation.
+            for (int column = 0; column < 3; column++) {
+                for (int row = 0; row < 3; row++) {
+                    mHouseRotation[column * 4 + row] = openGlTHouse[column * 4 + row] / scale;
+                }
+            }
+            mHouseRotation[15] = 1;
+            mHouseRotationMatrix.setAll(mHouseRotation);
             // Conjugation is needed because Rajawali uses a left handed convention for quaternions.
-            Quaternion orientation = new Quaternion().fromMatrix(transform).conjugate();
-            orientation.normalize();
-            mHouseObject3D.setPosition(translation);
-            mHouseObject3D.setOrientation(orientation);
+            mHouseOrientation.fromMatrix(mHouseRotationMatrix).conjugate();
+            mHouseOrientation.normalize();
+            mHouseObject3D.setPosition(openGlTHouse[12], openGlTHouse[13], openGlTHouse[14]);
+            mHouseObject3D.setOrientation(mHouseOrientation);
         }
     }
 
-
     /**
      * Update the scene camera based on the provided pose in Tango start of service frame.
      * The camera pose should match the pose of the camera color at the time the last rendered RGB
@@ -251,16 +254,4 @@ public class ModelCorrespondenceRenderer extends RajawaliRenderer {
     public void onTouchEvent(MotionEvent event) {
 
     }
-
-    /**
-     * Render the new correspondence destination point measurements as red spheres.
-     */
-    private Object3D makePoint(float[] openGLPpoint, int color) {
-        Object3D object3D = new Sphere(SPHERE_RADIUS, 10, 10);
-        object3D.setMaterial(mSphereMaterial);
-        object3D.setColor(color);
-        object3D.setPosition(openGLPpoint[0], openGLPpoint[1], openGLPpoint[2]);
-        return object3D;
-    }
-
 }
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.modelcorrespondence;
+
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.projecttango.tangoutils.KdTree;
+import com.projecttango.tangoutils.RigidTransforms;
+
+/**
+ * Keeps the model registered with the world once the correspondence is done, by aligning its
+ * surface with every point cloud of the depth camera, so that drift of the device pose doesn't
+ * show up as the model sliding away from the real object.
+ * <p/>
+ * Each cloud is processed in a dedicated thread with point-to-plane ICP: a subset of the cloud
+ * points close to the model are paired with the nearest sample of the model surface, found in a
+ * k-d tree built once, and the rigid motion minimizing their distances to the tangent planes of
+ * the samples is solved from the linearized 6x6 normal equations. The scale found by the
+ * correspondence is kept. Each cloud starts from the transform tracked in the previous one, and
+ * the iterations stop when the motion converges or when the time budget of a frame is spent.
+ * <p/>
+ * Only one cloud waits to be processed, like in the floor plan wall detector, and the tracked
+ * transforms are published in a single slot that the render thread polls without locking. The
+ * first cloud after {@link #startTracking} refines the start transform, usually the one found by
+ * the correspondence, so its alignment also runs in the tracker thread rather than in the caller.
+ */
+public class ModelTracker {
+    private static final String TAG = ModelTracker.class.getSimpleName();
+    private static final int MATRIX_SIZE = RigidTransforms.MATRIX_SIZE;
+
+    // Number of cloud points used per frame, at most.
+    private static final int MAX_ICP_POINTS = 2000;
+    private static final int MAX_ITERATIONS = 10;
+    private static final long FRAME_TIME_BUDGET_NS = 25000000;
+    // Distances in meters.
+    private static final float MAX_PAIR_DISTANCE = 0.05f;
+    private static final float BOUNDS_MARGIN = 0.1f;
+    private static final float CONVERGENCE_TRANSLATION = 1e-4f;
+    private static final float CONVERGENCE_ROTATION = 1e-4f;
+    // A larger motion in a single frame is considered a divergence and dropped.
+    private static final float MAX_FRAME_TRANSLATION = 0.1f;
+    private static final float MAX_FRAME_ROTATION = 0.1f;
+    private static final int MIN_PAIRS = 100;
+    // Damping of the normal equations relative to their trace, so that the motions along the
+    // directions not constrained by the visible surfaces stay small.
+    private static final double DAMPING = 1e-3;
+
+    private final KdTree mSurfaceTree;
+    private final float[] mSurfacePoints;
+    private final float[] mSurfaceNormals;
+    private final int mMaxNumberOfPoints;
+    // Bounding box of the model surface, in model frame.
+    private final float[] mBoundsMin = new float[3];
+    private final float[] mBoundsMax = new float[3];
+
+    // The cloud waiting to be processed and the transform to start from when tracking starts,
+    // written by the other threads under mLock.
+    private final Object mLock = new Object();
+    private float[] mPendingPoints;
+    private int mPendingNumberOfPoints;
+    private float[] mPendingOpenGlTDepth = new float[MATRIX_SIZE];
+    private boolean mHasPendingCloud = false;
+    private final float[] mStartOpenGlTHouse = new float[MATRIX_SIZE];
+    private boolean mHasStartTransform = false;
+    // Incremented each time tracking starts or stops, so that the results of a cloud processed
+    // meanwhile are not published.
+    private int mTrackingGeneration = 0;
+    private boolean mIsTracking = false;
+    private boolean mIsRunning = false;
+    private int mNumberOfSkippedClouds = 0;
+    private Thread mThread;
+
+    // The latest tracked transform of the model, not yet taken by the render thread.
+    private final AtomicReference<float[]> mTrackedOpenGlTHouse = new AtomicReference<float[]>();
+
+    // The cloud being processed, swapped with the pending one. Only used by the tracker thread.
+    private float[] mPoints;
+    private int mNumberOfPoints;
+    private float[] mOpenGlTDepth = new float[MATRIX_SIZE];
+    private final float[] mOpenGlTHouse = new float[MATRIX_SIZE];
+    private int mNumberOfProcessedClouds = 0;
+
+    // ICP state, only used by the tracker thread: the selected cloud points in model frame, the
+    // motion of the model found so far and the normal equations.
+    private int mNumberOfBudgetOverruns = 0;
+    private final float[] mModelPoints = new float[MAX_ICP_POINTS * 3];
+    private final float[] mHouseTOpenGl = new float[MATRIX_SIZE];
+    private final float[] mHouseTDepth = new float[MATRIX_SIZE];
+    private final float[] mMotion = new float[MATRIX_SIZE];
+    private final float[] mStep = new float[MATRIX_SIZE];
+    private final float[] mScratch = new float[MATRIX_SIZE];
+    private final double[] mNormalMatrix = new double[36];
+    private final double[] mNormalVector = new double[6];
+    private final double[] mJacobian = new double[6];
+
+    /**
+     * @param houseModel        The model, with its surface loaded.
+     * @param maxNumberOfPoints Maximum number of points of a cloud; larger clouds are truncated.
+     */
+    public ModelTracker(HouseModel houseModel, int maxNumberOfPoints) {
+        int numberOfSamples = houseModel.getNumberOfSurfacePoints();
+        mSurfacePoints = houseModel.getSurfacePoints();
+        mSurfaceNormals = houseModel.getSurfaceNormals();
+        mSurfaceTree = new KdTree(mSurfacePoints, numberOfSamples);
+        for (int j = 0; j < 3; j++) {
+            mBoundsMin[j] = Float.MAX_VALUE;
+            mBoundsMax[j] = -Float.MAX_VALUE;
+        }
+        for (int i = 0; i < numberOfSamples; i++) {
+            for (int j = 0; j < 3; j++) {
+                mBoundsMin[j] = Math.min(mBoundsMin[j], mSurfacePoints[i * 3 + j]);
+                mBoundsMax[j] = Math.max(mBoundsMax[j], mSurfacePoints[i * 3 + j]);
+            }
+        }
+        mMaxNumberOfPoints = maxNumberOfPoints;
+        mPendingPoints = new float[maxNumberOfPoints * 3];
+        mPoints = new float[maxNumberOfPoints * 3];
+    }
+
+    /**
+     * Start the tracker thread. Nothing is tracked until {@link #startTracking} is called.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mIsRunning) {
+                return;
+            }
+            mIsRunning = true;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTracking();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop the tracker thread, waiting for the cloud being processed to be done.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mIsRunning) {
+                return;
+            }
+            mIsRunning = false;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        Log.d(TAG, "Processed " + mNumberOfProcessedClouds + " clouds, skipped "
+                + mNumberOfSkippedClouds + ", out of time for " + mNumberOfBudgetOverruns);
+    }
+
+    /**
+     * Start tracking the model from a transform, usually the one found by the correspondence. The
+     * next cloud refines it, and the refined transform is the first one published.
+     *
+     * @param openGlTHouse Similarity transform of the model in OpenGl frame.
+     */
+    public void startTracking(float[] openGlTHouse) {
+        synchronized (mLock) {
+            System.arraycopy(openGlTHouse, 0, mStartOpenGlTHouse, 0, MATRIX_SIZE);
+            mHasStartTransform = true;
+            mIsTracking = true;
+            mTrackingGeneration++;
+            mTrackedOpenGlTHouse.set(null);
+        }
+    }
+
+    /**
+     * Stop tracking the model. No transform is published after this returns.
+     */
+    public void stopTracking() {
+        synchronized (mLock) {
+            mIsTracking = false;
+            mHasPendingCloud = false;
+            mTrackingGeneration++;
+            mTrackedOpenGlTHouse.set(null);
+        }
+    }
+
+    public boolean isTracking() {
+        synchronized (mLock) {
+            return mIsRunning && mIsTracking;
+        }
+    }
+
+    /**
+     * Take the latest tracked transform of the model, if there is a new one. It doesn't lock and
+     * can be called from the render thread.
+     *
+     * @return The similarity transform of the model in OpenGl frame, or null if no new transform
+     * was tracked since the last call. The array is not reused by the tracker.
+     */
+    public float[] pollModelTransform() {
+        return mTrackedOpenGlTHouse.getAndSet(null);
+    }
+
+    /**
+     * Copy a new point cloud to be processed, replacing the one waiting if the tracker is busy.
+     *
+     * @param openGlTDepth Pose of the depth camera in OpenGl frame at the time of the cloud.
+     */
+    public void onXyzIjAvailable(TangoXyzIjData xyzIj, float[] openGlTDepth) {
+        int pointCount = Math.min(xyzIj.xyzCount, mMaxNumberOfPoints);
+        synchronized (mLock) {
+            if (!mIsRunning || !mIsTracking) {
+                return;
+            }
+            if (mHasPendingCloud) {
+                mNumberOfSkippedClouds++;
+            }
+            copyPoints(xyzIj, mPendingPoints, pointCount);
+            mPendingNumberOfPoints = pointCount;
+            System.arraycopy(openGlTDepth, 0, mPendingOpenGlTDepth, 0, MATRIX_SIZE);
+            mHasPendingCloud = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Bulk copy the points of a cloud, restoring the source so other users are not affected.
+     */
+    private static void copyPoints(TangoXyzIjData xyzIj, float[] points, int pointCount) {
+        FloatBuffer source = xyzIj.xyz;
+        int sourcePosition = source.position();
+        source.position(0);
+        source.get(points, 0, pointCount * 3);
+        source.position(sourcePosition);
+    }
+
+    private void runTracking() {
+        while (true) {
+            int generation;
+            synchronized (mLock) {
+                while (mIsRunning && !mHasPendingCloud) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mIsRunning) {
+                    return;
+                }
+                // Take the pending cloud, handing the processed one back to the producer.
+                float[] points = mPoints;
+                mPoints = mPendingPoints;
+                mPendingPoints = points;
+                float[] openGlTDepth = mOpenGlTDepth;
+                mOpenGlTDepth = mPendingOpenGlTDepth;
+                mPendingOpenGlTDepth = openGlTDepth;
+                mNumberOfPoints = mPendingNumberOfPoints;
+                mHasPendingCloud = false;
+                if (mHasStartTransform) {
+                    System.arraycopy(mStartOpenGlTHouse, 0, mOpenGlTHouse, 0, MATRIX_SIZE);
+                    mHasStartTransform = false;
+                }
+                generation = mTrackingGeneration;
+            }
+            boolean isTracked = trackCloud();
+            mNumberOfProcessedClouds++;
+            if (isTracked) {
+                float[] tracked = new float[MATRIX_SIZE];
+                System.arraycopy(mOpenGlTHouse, 0, tracked, 0, MATRIX_SIZE);
+                synchronized (mLock) {
+                    if (generation == mTrackingGeneration) {
+                        mTrackedOpenGlTHouse.set(tracked);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Align the model with the current cloud, starting from its current transform.
+     *
+     * @return True if the transform was updated.
+     */
+    private boolean trackCloud() {
+        long startTime = System.nanoTime();
+        float[] h = mOpenGlTHouse;
+        float scale = (float) Math.sqrt(h[0] * h[0] + h[1] * h[1] + h[2] * h[2]);
+        if (!(scale > 0)) {
+            return false;
+        }
+        // The inverse of the similarity is the inverse of the rigid transform divided by the
+        // square of the scale.
+        RigidTransforms.invertRigid(mHouseTOpenGl, 0, h, 0);
+        float inverseSquaredScale = 1 / (scale * scale);
+        for (int i = 0; i < 15; i++) {
+            if (i % 4 != 3) {
+                mHouseTOpenGl[i] *= inverseSquaredScale;
+            }
+        }
+        RigidTransforms.multiply(mHouseTDepth, 0, mHouseTOpenGl, 0, mOpenGlTDepth, 0);
+
+        // Select points of the cloud near the model, in model frame.
+        float[] m = mHouseTDepth;
+        float[] points = mPoints;
+        int numberOfPoints = mNumberOfPoints;
+        float margin = BOUNDS_MARGIN / scale;
+        int stride = Math.max(1, numberOfPoints / MAX_ICP_POINTS);
+        int count = 0;
+        for (int i = 0; i < numberOfPoints && count < MAX_ICP_POINTS; i += stride) {
+            float x = points[i * 3];
+            float y = points[i * 3 + 1];
+            float z = points[i * 3 + 2];
+            float modelX = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float modelY = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float modelZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+            if (modelX < mBoundsMin[0] - margin || modelX > mBoundsMax[0] + margin
+                    || modelY < mBoundsMin[1] - margin || modelY > mBoundsMax[1] + margin
+                    || modelZ < mBoundsMin[2] - margin || modelZ > mBoundsMax[2] + margin) {
+                continue;
+            }
+            mModelPoints[count * 3] = modelX;
+            mModelPoints[count * 3 + 1] = modelY;
+            mModelPoints[count * 3 + 2] = modelZ;
+            count++;
+        }
+        if (count < MIN_PAIRS) {
+            return false;
+        }
+
+        RigidTransforms.setIdentity(mMotion, 0);
+        float maxPairDistance = MAX_PAIR_DISTANCE / scale;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            if (iteration > 0 && System.nanoTime() - startTime > FRAME_TIME_BUDGET_NS) {
+                mNumberOfBudgetOverruns++;
+                break;
+            }
+            if (!solveStep(count, maxPairDistance)) {
+                return false;
+            }
+            // Apply the step after the motion found so far.
+            RigidTransforms.multiply(mMotion, 0, mStep, 0, mMotion, 0);
+            float stepRotation = (float) Math.sqrt(mNormalVector[0] * mNormalVector[0]
+                    + mNormalVector[1] * mNormalVector[1] + mNormalVector[2] * mNormalVector[2]);
+            float stepTranslation = (float) Math.sqrt(mNormalVector[3] * mNormalVector[3]
+                    + mNormalVector[4] * mNormalVector[4] + mNormalVector[5] * mNormalVector[5]);
+            if (stepRotation < CONVERGENCE_ROTATION
+                    && stepTranslation * scale < CONVERGENCE_TRANSLATION) {
+                break;
+            }
+        }
+
+        // Drop motions too large to be drift.
+        float[] motion = mMotion;
+        float translation = (float) Math.sqrt(motion[12] * motion[12] + motion[13] * motion[13]
+                + motion[14] * motion[14]) * scale;
+        float cosine = (motion[0] + motion[5] + motion[10] - 1) / 2;
+        if (translation > MAX_FRAME_TRANSLATION || cosine < Math.cos(MAX_FRAME_ROTATION)) {
+            return false;
+        }
+        // The points moved by the motion are on the model, so the model moves by its inverse.
+        RigidTransforms.invertRigid(mScratch, 0, motion, 0);
+        RigidTransforms.multiply(mStep, 0, h, 0, mScratch, 0);
+        System.arraycopy(mStep, 0, h, 0, MATRIX_SIZE);
+        return true;
+    }
+
+    /**
+     * Pair the selected points moved by the current motion with the model surface and solve the
+     * linearized point-to-plane step, leaving it in mStep and its rotation vector and translation
+     * in mNormalVector.
+     *
+     * @return False if there are too few pairs or the equations are degenerate.
+     */
+    private boolean solveStep(int numberOfPoints, float maxPairDistance) {
+        double[] a = mNormalMatrix;
+        double[] b = mNormalVector;
+        double[] jacobian = mJacobian;
+        for (int i = 0; i < 36; i++) {
+            a[i] = 0;
+        }
+        for (int i = 0; i < 6; i++) {
+            b[i] = 0;
+        }
+        float[] m = mMotion;
+        int pairs = 0;
+        for (int i = 0; i < numberOfPoints; i++) {
+            float x0 = mModelPoints[i * 3];
+            float y0 = mModelPoints[i * 3 + 1];
+            float z0 = mModelPoints[i * 3 + 2];
+            float x = m[0] * x0 + m[4] * y0 + m[8] * z0 + m[12];
+            float y = m[1] * x0 + m[5] * y0 + m[9] * z0 + m[13];
+            float z = m[2] * x0 + m[6] * y0 + m[10] * z0 + m[14];
+            int nearest = mSurfaceTree.findNearest(x, y, z, maxPairDistance);
+            if (nearest < 0) {
+                continue;
+            }
+            float normalX = mSurfaceNormals[nearest * 3];
+            float normalY = mSurfaceNormals[nearest * 3 + 1];
+            float normalZ = mSurfaceNormals[nearest * 3 + 2];
+            double residual = (x - mSurfacePoints[nearest * 3]) * normalX
+                    + (y - mSurfacePoints[nearest * 3 + 1]) * normalY
+                    + (z - mSurfacePoints[nearest * 3 + 2]) * normalZ;
+            // Derivatives of the residual along the rotation vector and the translation.
+            jacobian[0] = y * normalZ - z * normalY;
+            jacobian[1] = z * normalX - x * normalZ;
+            jacobian[2] = x * normalY - y * normalX;
+            jacobian[3] = normalX;
+            jacobian[4] = normalY;
+            jacobian[5] = normalZ;
+            for (int row = 0; row < 6; row++) {
+                for (int column = row; column < 6; column++) {
+                    a[row * 6 + column] += jacobian[row] * jacobian[column];
+                }
+                b[row] -= jacobian[row] * residual;
+            }
+            pairs++;
+        }
+        if (pairs < MIN_PAIRS) {
+            return false;
+        }
+        double damping = DAMPING * (a[0] + a[7] + a[14] + a[21] + a[28] + a[35]) / 6;
+        for (int row = 0; row < 6; row++) {
+            a[row * 6 + row] += damping;
+            for (int column = 0; column < row; column++) {
+                a[row * 6 + column] = a[column * 6 + row];
+            }
+        }
+        if (!solveLinearSystem(a, b)) {
+            return false;
+        }
+
+        // Rotation of the step from its rotation vector, with Rodrigues' formula.
+        double angle = Math.sqrt(b[0] * b[0] + b[1] * b[1] + b[2] * b[2]);
+        RigidTransforms.setIdentity(mStep, 0);
+        if (angle > 0) {
+            double kx = b[0] / angle;
+            double ky = b[1] / angle;
+            double kz = b[2] / angle;
+            double c = Math.cos(angle);
+            double s = Math.sin(angle);
+            double t = 1 - c;
+            mStep[0] = (float) (t * kx * kx + c);
+            mStep[1] = (float) (t * kx * ky + s * kz);
+            mStep[2] = (float) (t * kx * kz - s * ky);
+            mStep[4] = (float) (t * kx * ky - s * kz);
+            mStep[5] = (float) (t * ky * ky + c);
+            mStep[6] = (float) (t * ky * kz + s * kx);
+            mStep[8] = (float) (t * kx * kz + s * ky);
+            mStep[9] = (float) (t * ky * kz - s * kx);
+            mStep[10] = (float) (t * kz * kz + c);
+        }
+        mStep[12] = (float) b[3];
+        mStep[13] = (float) b[4];
+        mStep[14] = (float) b[5];
+        return true;
+    }
+
+    /**
+     * Solve a 6x6 linear system in place with Gaussian elimination and partial pivoting, leaving
+     * the solution in the right hand side.
+     *
+     * @return False if the system is singular.
+     */
+    private static boolean solveLinearSystem(double[] a, double[] b) {
+        for (int pivot = 0; pivot < 6; pivot++) {
+            int best = pivot;
+            for (int row = pivot + 1; row < 6; row++) {
+                if (Math.abs(a[row * 6 + pivot]) > Math.abs(a[best * 6 + pivot])) {
+                    best = row;
+                }
+            }
+            if (!(Math.abs(a[best * 6 + pivot]) > 1e-12)) {
+                return false;
+            }
+            if (best != pivot) {
+                for (int column = 0; column < 6; column++) {
+                    double swap = a[pivot * 6 + column];
+                    a[pivot * 6 + column] = a[best * 6 + column];
+                    a[best * 6 + column] = swap;
+                }
+                double swap = b[pivot];
+                b[pivot] = b[best];
+                b[best] = swap;
+            }
+            for (int row = pivot + 1; row < 6; row++) {
+                double factor = a[row * 6 + pivot] / a[pivot * 6 + pivot];
+                for (int column = pivot; column < 6; column++) {
+                    a[row * 6 + column] -= factor * a[pivot * 6 + column];
+                }
+                b[row] -= factor * b[pivot];
+            }
+        }
+        for (int row = 5; row >= 0; row--) {
+            double sum = b[row];
+            for (int column = row + 1; column < 6; column++) {
+                sum -= a[row * 6 + column] * b[column];
+            }
+            b[row] = sum / a[row * 6 + row];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.modelcorrespondence;
+
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.projecttango.tangoutils.RigidTransforms;
+import com.projecttango.tangoutils.SimilarityTransformSolver;
+import com.projecttango.tangoutils.TriangleMesh;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Places a model the way the correspondence does, with {@link SimilarityTransformSolver} on
+ * points measured while the device pose drifted, and checks that the first cloud given to the
+ * {@link ModelTracker} once tracking starts aligns the model with the depth.
+ * <p/>
+ * The model is a corner of three square faces, which constrains the six degrees of freedom of
+ * the alignment, shown twice its size. The drift moves the measured points by 3.9 cm and turns
+ * them by 2 degrees.
+ */
+public class ModelTrackerTest {
+    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    private static final int NUMBER_OF_CLOUD_POINTS = 20000;
+    // Same as the activity.
+    private static final int TRACKING_SURFACE_SAMPLES = 6000;
+    private static final float CORRESPONDENCE_INLIER_THRESHOLD = 0.1f;
+    private static final int CORRESPONDENCE_MAX_ITERATIONS = 100;
+    // Standard deviation of the noise of the depth points, in meters.
+    private static final float DEPTH_NOISE = 0.001f;
+    private static final long TRACKING_TIMEOUT_MS = 10000;
+    private static final float MAX_TRANSLATION_ERROR = 0.001f;
+    private static final float MAX_ROTATION_ERROR = (float) Math.toRadians(0.1);
+
+    // Faces of the corner in the x = 0, y = 0 and z = 0 planes, two triangles each.
+    private static final float[][] CORNER_TRIANGLES = new float[][] {
+            {0, 0, 0, 0, 1, 0, 0, 1, 1}, {0, 0, 0, 0, 1, 1, 0, 0, 1},
+            {0, 0, 0, 0, 0, 1, 1, 0, 1}, {0, 0, 0, 1, 0, 1, 1, 0, 0},
+            {0, 0, 0, 1, 0, 0, 1, 1, 0}, {0, 0, 0, 1, 1, 0, 0, 1, 0}};
+    // Correspondence points picked on the model.
+    private static final float[] MODEL_POINTS = new float[] {
+            0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 1, 1, 0};
+
+    private HouseModel mHouseModel;
+    private ModelTracker mModelTracker;
+    private final float[] mOpenGlTHouse = new float[16];
+    private final float[] mOpenGlTDepth = new float[16];
+
+    @Before
+    public void setUp() throws IOException {
+        TriangleMesh mesh = TriangleMesh.readStl(new ByteArrayInputStream(createCornerStl()));
+        mHouseModel = new HouseModel(mesh);
+        mHouseModel.loadSurface(mesh,
+                (float) Math.sqrt(mesh.getSurfaceArea() / TRACKING_SURFACE_SAMPLES));
+        mModelTracker = new ModelTracker(mHouseModel, MAX_NUMBER_OF_POINTS);
+        mModelTracker.start();
+
+        // The model, twice its size, turned and moved in front of the depth camera.
+        setSimilarity(mOpenGlTHouse, 2, new double[] {0.2, -0.8, -2.5},
+                new double[] {0.1, 0.3, -0.2, 0.93});
+        setSimilarity(mOpenGlTDepth, 1, new double[] {0.1, 0.2, 0.3},
+                new double[] {0.05, 0.1, 0, 0.99});
+    }
+
+    @After
+    public void tearDown() {
+        mModelTracker.stop();
+    }
+
+    @Test
+    public void firstTrackedCloudRefinesCorrespondence() throws InterruptedException {
+        // The points measured for the correspondence, moved by the drift of the device pose.
+        float[] drift = new float[16];
+        double angle = Math.toRadians(2);
+        setSimilarity(drift, 1, new double[] {0.03, -0.02, 0.015}, new double[] {
+                Math.sin(angle / 2) * 0.6, Math.sin(angle / 2) * 0.8, 0, Math.cos(angle / 2)});
+        float[] driftedOpenGlTHouse = new float[16];
+        RigidTransforms.multiply(driftedOpenGlTHouse, 0, drift, 0, mOpenGlTHouse, 0);
+        int numberOfPoints = MODEL_POINTS.length / 3;
+        float[] measuredPoints = new float[MODEL_POINTS.length];
+        for (int i = 0; i < numberOfPoints; i++) {
+            transformPoint(driftedOpenGlTHouse, MODEL_POINTS, i * 3, measuredPoints, i * 3);
+        }
+        SimilarityTransformSolver solver = new SimilarityTransformSolver(
+                CORRESPONDENCE_INLIER_THRESHOLD, CORRESPONDENCE_MAX_ITERATIONS, 0);
+        assertTrue(solver.solveRansac(MODEL_POINTS, measuredPoints, numberOfPoints));
+        float[] correspondence = new float[16];
+        solver.getTransform(correspondence);
+        assertTrue("Correspondence translation error " + getTranslationError(correspondence),
+                getTranslationError(correspondence) > 0.035f);
+        assertTrue("Correspondence rotation error " + getRotationError(correspondence),
+                getRotationError(correspondence) > Math.toRadians(1.9));
+
+        mModelTracker.startTracking(correspondence);
+        mModelTracker.onXyzIjAvailable(createCloud(), mOpenGlTDepth);
+        float[] tracked = waitForModelTransform();
+        assertNotNull("No transform tracked", tracked);
+        assertTrue("Tracked translation error " + getTranslationError(tracked),
+                getTranslationError(tracked) < MAX_TRANSLATION_ERROR);
+        assertTrue("Tracked rotation error " + getRotationError(tracked),
+                getRotationError(tracked) < MAX_ROTATION_ERROR);
+    }
+
+    /**
+     * Binary STL of the corner.
+     */
+    private static byte[] createCornerStl() {
+        ByteBuffer stl = ByteBuffer.allocate(84 + CORNER_TRIANGLES.length * 50)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        stl.position(80);
+        stl.putInt(CORNER_TRIANGLES.length);
+        for (float[] triangle : CORNER_TRIANGLES) {
+            // Normal, left to the reader.
+            stl.putFloat(0).putFloat(0).putFloat(0);
+            for (float coordinate : triangle) {
+                stl.putFloat(coordinate);
+            }
+            stl.putShort((short) 0);
+        }
+        return stl.array();
+    }
+
+    /**
+     * Points on the model surface in depth camera frame, with noise.
+     */
+    private TangoXyzIjData createCloud() {
+        Random random = new Random(0);
+        float[] depthTOpenGl = new float[16];
+        RigidTransforms.invertRigid(depthTOpenGl, 0, mOpenGlTDepth, 0);
+        float[] depthTHouse = new float[16];
+        RigidTransforms.multiply(depthTHouse, 0, depthTOpenGl, 0, mOpenGlTHouse, 0);
+        TangoXyzIjData xyzIj = new TangoXyzIjData();
+        xyzIj.xyz = ByteBuffer.allocateDirect(NUMBER_OF_CLOUD_POINTS * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        float[] modelPoint = new float[3];
+        float[] depthPoint = new float[3];
+        for (int i = 0; i < NUMBER_OF_CLOUD_POINTS; i++) {
+            int face = random.nextInt(3);
+            modelPoint[face] = 0;
+            modelPoint[(face + 1) % 3] = random.nextFloat();
+            modelPoint[(face + 2) % 3] = random.nextFloat();
+            transformPoint(depthTHouse, modelPoint, 0, depthPoint, 0);
+            for (int j = 0; j < 3; j++) {
+                xyzIj.xyz.put(depthPoint[j] + DEPTH_NOISE * (float) random.nextGaussian());
+            }
+        }
+        xyzIj.xyz.rewind();
+        xyzIj.xyzCount = NUMBER_OF_CLOUD_POINTS;
+        return xyzIj;
+    }
+
+    private float[] waitForModelTransform() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TRACKING_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            float[] transform = mModelTracker.pollModelTransform();
+            if (transform != null) {
+                return transform;
+            }
+            Thread.sleep(1);
+        }
+        return null;
+    }
+
+    private float getTranslationError(float[] openGlTHouse) {
+        float x = openGlTHouse[12] - mOpenGlTHouse[12];
+        float y = openGlTHouse[13] - mOpenGlTHouse[13];
+        float z = openGlTHouse[14] - mOpenGlTHouse[14];
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Angle of the rotation between the rotations of two similarities.
+     */
+    private float getRotationError(float[] openGlTHouse) {
+        float[] a = openGlTHouse;
+        float[] b = mOpenGlTHouse;
+        double scaleA = Math.sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+        double scaleB = Math.sqrt(b[0] * b[0] + b[1] * b[1] + b[2] * b[2]);
+        // Trace of the product of the transpose of one rotation with the other, in double since
+        // the arc cosine of small angles is sensitive to rounding.
+        double trace = 0;
+        for (int column = 0; column < 3; column++) {
+            for (int row = 0; row < 3; row++) {
+                trace += (double) a[column * 4 + row] * b[column * 4 + row];
+            }
+        }
+        trace /= scaleA * scaleB;
+        return (float) Math.acos(Math.max(-1, Math.min(1, (trace - 1) / 2)));
+    }
+
+    private static void setSimilarity(float[] m, float scale, double[] translation,
+                                      double[] rotation) {
+        double norm = Math.sqrt(rotation[0] * rotation[0] + rotation[1] * rotation[1]
+                + rotation[2] * rotation[2] + rotation[3] * rotation[3]);
+        double[] unitRotation = new double[4];
+        for (int i = 0; i < 4; i++) {
+            unitRotation[i] = rotation[i] / norm;
+        }
+        RigidTransforms.setFromTranslationRotation(m, 0, translation, unitRotation);
+        for (int i = 0; i < 11; i++) {
+            if (i % 4 != 3) {
+                m[i] *= scale;
+            }
+        }
+    }
+
+    private static void transformPoint(float[] m, float[] points, int offset, float[] result,
+                                       int resultOffset) {
+        float x = points[offset];
+        float y = points[offset + 1];
+        float z = points[offset + 2];
+        result[resultOffset] = m[0] * x + m[4] * y + m[8] * z + m[12];
+        result[resultOffset + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+        result[resultOffset + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.openglar;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * The OpenGL calls made to draw the meshes, each counted as it is made so the number of calls per
+ * frame can be compared between drawing paths.
+ * NOTE: This needs to be called from the OpenGL rendering thread.
+ */
+public class CountedGles {
+    private static int sCallCount;
+
+    private CountedGles() {
+    }
+
+    /**
+     * Get the number of OpenGL calls made since the last reset and reset it.
+     */
+    public static int resetCallCount() {
+        int count = sCallCount;
+        sCallCount = 0;
+        return count;
+    }
+
+    public static void glUseProgram(int program) {
+        sCallCount++;
+        GLES20.glUseProgram(program);
+    }
+
+    public static void glActiveTexture(int texture) {
+        sCallCount++;
+        GLES20.glActiveTexture(texture);
+    }
+
+    public static void glBindTexture(int target, int texture) {
+        sCallCount++;
+        GLES20.glBindTexture(target, texture);
+    }
+
+    public static void glUniformMatrix4fv(int location, int count, boolean transpose,
+                                          float[] value, int offset) {
+        sCallCount++;
+        GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    public static void glBindBuffer(int target, int buffer) {
+        sCallCount++;
+        GLES20.glBindBuffer(target, buffer);
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+        sCallCount++;
+        GLES20.glEnableVertexAttribArray(index);
+    }
+
+    public static void glDisableVertexAttribArray(int index) {
+        sCallCount++;
+        GLES20.glDisableVertexAttribArray(index);
+    }
+
+    public static void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+                                             int stride, int offset) {
+        sCallCount++;
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    public static void glDrawElements(int mode, int count, int type, int offset) {
+        sCallCount++;
+        GLES20.glDrawElements(mode, count, type, offset);
+    }
+
+    public static void glGenVertexArrays(int n, int[] arrays, int offset) {
+        sCallCount++;
+        GLES30.glGenVertexArrays(n, arrays, offset);
+    }
+
+    public static void glBindVertexArray(int array) {
+        sCallCount++;
+        GLES30.glBindVertexArray(array);
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.util.Log;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -50,6 +51,8 @@ public class OpenGlAugmentedRealityRenderer implements GLSurfaceView.Renderer {
     private OpenGlSphere mEarthSphere;
     private OpenGlSphere mMoonSphere;
     private Context mContext;
+    // OpenGL calls made to draw the last frame, logged when it changes.
+    private int mGlCallCount;
 
     public OpenGlAugmentedRealityRenderer(Context context, RenderCallback callback) {
         mContext = context;
@@ -97,6 +100,12 @@ public class OpenGlAugmentedRealityRenderer implements GLSurfaceView.Renderer {
         GLES20.glCullFace(GLES20.GL_BACK);
         mEarthSphere.drawSphere();
         mMoonSphere.drawSphere();
+
+        int glCallCount = CountedGles.resetCallCount();
+        if (glCallCount != mGlCallCount) {
+            mGlCallCount = glCallCount;
+            Log.d(TAG, "OpenGL calls to draw the camera preview and the spheres: " + glCallCount);
+        }
     }
 
     public int getTextureId() {
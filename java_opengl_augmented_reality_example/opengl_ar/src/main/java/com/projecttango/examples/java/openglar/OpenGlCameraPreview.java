@@ -45,6 +45,8 @@ public class OpenGlCameraPreview {
     private OpenGlMesh mMesh;
     private int[] mTextures = new int[1];
     private int mProgram;
+    private int mPositionHandle;
+    private int mTexCoordHandle;
 
     public OpenGlCameraPreview() {
         mTextures[0] = 0;
@@ -61,6 +63,11 @@ public class OpenGlCameraPreview {
         createTextures();
         mMesh.createVbos();
         mProgram = OpenGlHelper.createProgram(mVss, mFss);
+        // Look up the handles once rather than on every draw. The texture unit is always 0.
+        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "a_Position");
+        mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "a_TexCoord");
+        GLES20.glUseProgram(mProgram);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgram, "u_Texture"), 0);
     }
 
     private void createTextures() {
@@ -78,17 +85,12 @@ public class OpenGlCameraPreview {
     }
 
     public void drawAsBackground() {
-        GLES20.glUseProgram(mProgram);
+        CountedGles.glUseProgram(mProgram);
 
-        int ph = GLES20.glGetAttribLocation(mProgram, "a_Position");
-        int tch = GLES20.glGetAttribLocation(mProgram, "a_TexCoord");
-        int th = GLES20.glGetUniformLocation(mProgram, "u_Texture");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextures[0]);
-        GLES20.glUniform1i(th, 0);
+        CountedGles.glActiveTexture(GLES20.GL_TEXTURE0);
+        CountedGles.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextures[0]);
 
-        mMesh.drawMesh(ph, tch);
+        mMesh.drawMesh(mPositionHandle, mTexCoordHandle);
     }
 
     public int getTextureId() {
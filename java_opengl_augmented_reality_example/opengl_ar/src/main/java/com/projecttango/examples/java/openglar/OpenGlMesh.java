@@ -16,28 +16,43 @@
 package com.projecttango.examples.java.openglar;
 
 import android.opengl.GLES20;
-import android.util.Log;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 /**
  * Mesh class that knows how to generate its VBOs and indices to be drawn in OpenGL.
+ * <p/>
+ * The positions and texture coordinates are interleaved in a single vertex buffer. When the
+ * context supports vertex array objects the attribute layout is recorded once, so drawing only
+ * binds it around the draw call. Meshes with more than 65536 vertices use 32 bit indices, which need
+ * OpenGL ES 3.0 or the OES_element_index_uint extension.
  */
 public class OpenGlMesh {
+    private static final int MAX_SHORT_INDEX_VERTICES = 0x10000;
 
-    private FloatBuffer mVertex;
-    private FloatBuffer mTexCoord;
-    private ShortBuffer mIndices;
+    private FloatBuffer mVertexData;
+    private Buffer mIndices;
 
     private int mNumVertices;
     private int mNumIndices;
     private int mVertexCoordNumber;
     private int mTexCoordNumber;
+    private int mIndexType;
+    private int mIndexSize;
     private int[] mVbos;
 
+    // Vertex array recording the attribute layout for the handles below, 0 if none was recorded
+    // or they aren't supported.
+    private int[] mVertexArray = new int[1];
+    private boolean mUseVertexArray;
+    private int mPositionHandle = -1;
+    private int mTexCoordHandle = -1;
+
     /**
      * Create an OpenGL mesh.
      *
@@ -49,70 +64,163 @@ public class OpenGlMesh {
      */
     public OpenGlMesh(float[] vertices, int vertexCoordNumber, float[]
             texCoords, int texCoordNumber, short[] indices) {
+        this(vertices, vertexCoordNumber, texCoords, texCoordNumber, indices.length);
+
+        ShortBuffer shortIndices = ByteBuffer.allocateDirect(Short.SIZE / 8 * indices.length)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        shortIndices.put(indices);
+        shortIndices.position(0);
+        setShortIndices(shortIndices);
+    }
+
+    /**
+     * Create an OpenGL mesh that may have more than 65536 vertices. The indices are stored in 16
+     * bits anyway if there are fewer vertices.
+     *
+     * @param vertices          Array of vertex positions.
+     * @param vertexCoordNumber Number of coordinates per vertex position.
+     * @param texCoords         Array of texture coordinates.
+     * @param texCoordNumber    Number of coordinates per texcoord.
+     * @param indices           Array of indices.
+     */
+    public OpenGlMesh(float[] vertices, int vertexCoordNumber, float[]
+            texCoords, int texCoordNumber, int[] indices) {
+        this(vertices, vertexCoordNumber, texCoords, texCoordNumber, indices.length);
+
+        if (mNumVertices <= MAX_SHORT_INDEX_VERTICES) {
+            ShortBuffer shortIndices = ByteBuffer.allocateDirect(Short.SIZE / 8 * indices.length)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+            for (int index : indices) {
+                shortIndices.put((short) index);
+            }
+            shortIndices.position(0);
+            setShortIndices(shortIndices);
+        } else {
+            IntBuffer intIndices = ByteBuffer.allocateDirect(Integer.SIZE / 8 * indices.length)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            intIndices.put(indices);
+            intIndices.position(0);
+            mIndices = intIndices;
+            mIndexType = GLES20.GL_UNSIGNED_INT;
+            mIndexSize = Integer.SIZE / 8;
+        }
+    }
+
+    private OpenGlMesh(float[] vertices, int vertexCoordNumber, float[] texCoords,
+                       int texCoordNumber, int numIndices) {
         mNumVertices = vertices.length / vertexCoordNumber;
         mVertexCoordNumber = vertexCoordNumber;
         mTexCoordNumber = texCoordNumber;
+        mNumIndices = numIndices;
 
-        mVertex = ByteBuffer.allocateDirect(Float.SIZE / 8 * vertices.length).order(
+        // Interleave the position and the texture coordinates of each vertex.
+        int vertexSize = vertexCoordNumber + texCoordNumber;
+        mVertexData = ByteBuffer.allocateDirect(Float.SIZE / 8 * mNumVertices * vertexSize).order(
                 ByteOrder.nativeOrder()).asFloatBuffer();
-        mVertex.put(vertices);
-        mVertex.position(0);
-
-        mTexCoord = ByteBuffer.allocateDirect(Float.SIZE / 8 * texCoords.length).order(
-                ByteOrder.nativeOrder()).asFloatBuffer();
-        mTexCoord.put(texCoords);
-        mTexCoord.position(0);
-
+        for (int i = 0; i < mNumVertices; i++) {
+            mVertexData.put(vertices, i * vertexCoordNumber, vertexCoordNumber);
+            mVertexData.put(texCoords, i * texCoordNumber, texCoordNumber);
+        }
+        mVertexData.position(0);
+    }
 
-        mIndices = ByteBuffer.allocateDirect(Short.SIZE / 8 * indices.length).order(
-                ByteOrder.nativeOrder()).asShortBuffer();
-        mNumIndices = indices.length;
-        mIndices.put(indices);
-        mIndices.position(0);
+    private void setShortIndices(ShortBuffer indices) {
+        mIndices = indices;
+        mIndexType = GLES20.GL_UNSIGNED_SHORT;
+        mIndexSize = Short.SIZE / 8;
     }
 
+    /**
+     * NOTE: This needs to be called from the OpenGL rendering thread, every time the context is
+     * created.
+     */
     public void createVbos() {
-        mVbos = new int[3];
-        // Generate 3 buffers. Vertex buffer, texture buffer and index buffer.
-        GLES20.glGenBuffers(3, mVbos, 0);
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        boolean isGles3 = version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+        if (mIndexType == GLES20.GL_UNSIGNED_INT && !isGles3) {
+            String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            if (extensions == null || !extensions.contains("GL_OES_element_index_uint")) {
+                throw new RuntimeException(String.format(
+                        "%d vertices need 32 bit indices, which are not supported by %s",
+                        mNumVertices, version));
+            }
+        }
+        // The Java bindings only expose vertex arrays through OpenGL ES 3.0, not through the
+        // OES_vertex_array_object extension.
+        mUseVertexArray = isGles3;
+        mVertexArray[0] = 0;
+        mPositionHandle = -1;
+        mTexCoordHandle = -1;
+
+        mVbos = new int[2];
+        // Generate 2 buffers. Interleaved vertex buffer and index buffer.
+        GLES20.glGenBuffers(2, mVbos, 0);
         // Bind to vertex buffer
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[0]);
         // Populate it.
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mNumVertices * mVertexCoordNumber * Float
-                        .SIZE / 8, mVertex, GLES20.GL_STATIC_DRAW); // vertices of floats.
-
-        // Bind to texcoord buffer
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[1]);
-        // Populate it.
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mNumVertices * mTexCoordNumber * Float.SIZE / 8,
-                mTexCoord, GLES20.GL_STATIC_DRAW); // texcoord of floats.
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexData.capacity() * Float.SIZE / 8,
+                mVertexData, GLES20.GL_STATIC_DRAW); // vertices and texcoords of floats.
 
         // Bind to indices buffer
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mVbos[2]);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mVbos[1]);
         // Populate it.
-        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mNumIndices * Short.SIZE / 8,
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mNumIndices * mIndexSize,
                 mIndices, GLES20.GL_STATIC_DRAW); // Indices
 
-        // Unbind buffer.
+        // Unbind buffers.
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
+    /**
+     * Draw the mesh with the given attribute handles. With vertex arrays, the layout is only
+     * specified again when the handles change.
+     */
     public void drawMesh(int positionh, int textureh) {
-        GLES20.glEnableVertexAttribArray(positionh);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[0]);
-        GLES20.glVertexAttribPointer(positionh, mVertexCoordNumber, GLES20.GL_FLOAT, false, Float
-                .SIZE / 8 * mVertexCoordNumber, 0);
-
-        GLES20.glEnableVertexAttribArray(textureh);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[1]);
-        GLES20.glVertexAttribPointer(textureh, mTexCoordNumber, GLES20.GL_FLOAT, false, Float
-                .SIZE / 8 * mTexCoordNumber, 0);
+        if (!mUseVertexArray) {
+            CountedGles.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[0]);
+            CountedGles.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mVbos[1]);
+            specifyAttributes(positionh, textureh);
+            CountedGles.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mNumIndices, mIndexType, 0);
+
+            // Unbind.
+            CountedGles.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            CountedGles.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+            return;
+        }
+
+        if (mVertexArray[0] == 0) {
+            CountedGles.glGenVertexArrays(1, mVertexArray, 0);
+        }
+        CountedGles.glBindVertexArray(mVertexArray[0]);
+        if (positionh != mPositionHandle || textureh != mTexCoordHandle) {
+            if (mPositionHandle >= 0) {
+                CountedGles.glDisableVertexAttribArray(mPositionHandle);
+                CountedGles.glDisableVertexAttribArray(mTexCoordHandle);
+            }
+            // The element buffer binding is recorded in the vertex array, the array buffer only
+            // through the attribute pointers.
+            CountedGles.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbos[0]);
+            CountedGles.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mVbos[1]);
+            specifyAttributes(positionh, textureh);
+            CountedGles.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            mPositionHandle = positionh;
+            mTexCoordHandle = textureh;
+        }
+        CountedGles.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mNumIndices, mIndexType, 0);
+        // Unbind so that later buffer bindings can't change the recorded state.
+        CountedGles.glBindVertexArray(0);
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mVbos[2]);
-        GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mNumIndices, GLES20.GL_UNSIGNED_SHORT, 0);
+    private void specifyAttributes(int positionh, int textureh) {
+        int stride = Float.SIZE / 8 * (mVertexCoordNumber + mTexCoordNumber);
+        CountedGles.glEnableVertexAttribArray(positionh);
+        CountedGles.glVertexAttribPointer(positionh, mVertexCoordNumber, GLES20.GL_FLOAT, false,
+                stride, 0);
 
-        // Unbind.
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        CountedGles.glEnableVertexAttribArray(textureh);
+        CountedGles.glVertexAttribPointer(textureh, mTexCoordNumber, GLES20.GL_FLOAT, false,
+                stride, Float.SIZE / 8 * mVertexCoordNumber);
     }
 }
@@ -48,10 +48,15 @@ public class OpenGlSphere {
     private OpenGlMesh mMesh;
     private int[] mTextures;
     private int mProgram;
+    private int mPositionHandle;
+    private int mTexCoordHandle;
+    private int mMvpMatrixHandle;
 
     private float[] mModelMatrix = new float[16];
     private float[] mViewMatrix = new float[16];
     private float[] mProjectionMatrix = new float[16];
+    private float[] mMvMatrix = new float[16];
+    private float[] mMvpMatrix = new float[16];
 
     public OpenGlSphere(float radius, int rows, int columns) {
         float[] vtmp = new float[rows * columns * 3];
@@ -105,6 +110,12 @@ public class OpenGlSphere {
         mMesh.createVbos();
         createTexture(texture);
         mProgram = OpenGlHelper.createProgram(mVss, mFss);
+        // Look up the handles once rather than on every draw. The texture unit is always 0.
+        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "a_Position");
+        mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "a_TexCoord");
+        mMvpMatrixHandle = GLES20.glGetUniformLocation(mProgram, "u_MvpMatrix");
+        GLES20.glUseProgram(mProgram);
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgram, "u_Texture"), 0);
     }
 
     public void createTexture(Bitmap texture) {
@@ -124,24 +135,15 @@ public class OpenGlSphere {
     }
 
     public void drawSphere() {
-        GLES20.glUseProgram(mProgram);
-        // Enable depth write for AR.
-        int sph = GLES20.glGetAttribLocation(mProgram, "a_Position");
-        int sth = GLES20.glGetAttribLocation(mProgram, "a_TexCoord");
-
-        int um = GLES20.glGetUniformLocation(mProgram, "u_MvpMatrix");
-        int ut = GLES20.glGetUniformLocation(mProgram, "u_Texture");
-        float[] mvMatrix = new float[16];
-        Matrix.multiplyMM(mvMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
-        float[] mvpMatrix = new float[16];
-        Matrix.multiplyMM(mvpMatrix, 0, mProjectionMatrix, 0, mvMatrix, 0);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
-        GLES20.glUniform1i(ut, 0);
-        GLES20.glUniformMatrix4fv(um, 1, false, mvpMatrix, 0);
+        CountedGles.glUseProgram(mProgram);
+        Matrix.multiplyMM(mMvMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
+        Matrix.multiplyMM(mMvpMatrix, 0, mProjectionMatrix, 0, mMvMatrix, 0);
+
+        CountedGles.glActiveTexture(GLES20.GL_TEXTURE0);
+        CountedGles.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
+        CountedGles.glUniformMatrix4fv(mMvpMatrixHandle, 1, false, mMvpMatrix, 0);
 
-        mMesh.drawMesh(sph, sth);
+        mMesh.drawMesh(mPositionHandle, mTexCoordHandle);
     }
 
     public void setModelMatrix(float[] modelMatrix) {
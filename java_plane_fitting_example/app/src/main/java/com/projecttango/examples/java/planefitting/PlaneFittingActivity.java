@@ -45,9 +45,10 @@ import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.projecttango.rajawali.ScenePoseCalculator;
-import com.projecttango.tangosupport.TangoPointCloudManager;
 import com.projecttango.tangosupport.TangoSupport;
 import com.projecttango.tangosupport.TangoSupport.IntersectionPointPlaneModelPair;
+import com.projecttango.tangoutils.PlaneFitter;
+import com.projecttango.tangoutils.PointCloudTripleBuffer;
 
 /**
  * An example showing how to use the Tango APIs to create an augmented reality application
@@ -61,7 +62,9 @@ import com.projecttango.tangosupport.TangoSupport.IntersectionPointPlaneModelPai
  * application.
  * <p/>
  * This example focuses on using the depth sensor data to detect a plane and position it on the
- * corresponding position in the 3D OpenGL space.
+ * corresponding position in the 3D OpenGL space. Planes are fitted with MSAC by
+ * {@link PlaneFitter}, or with the TangoSupport library when the {@link #EXTRA_USE_NATIVE_FIT}
+ * intent extra is set.
  * <p/>
  * For more details on the augmented reality effects, including color camera texture rendering,
  * see java_augmented_reality_example or java_hello_video_example.
@@ -71,13 +74,30 @@ import com.projecttango.tangosupport.TangoSupport.IntersectionPointPlaneModelPai
  * Rajawali virtual world with the RGB camera.
  */
 public class PlaneFittingActivity extends Activity implements View.OnTouchListener {
+    // Intent extra to fit the planes with TangoSupport.fitPlaneModelNearClick instead of
+    // PlaneFitter.
+    public static final String EXTRA_USE_NATIVE_FIT = "use_native_fit";
+
     private static final String TAG = PlaneFittingActivity.class.getSimpleName();
     private static final int INVALID_TEXTURE_ID = 0;
+    // Maximum number of points expected in a single point cloud.
+    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Half size of the region around the click used for plane fitting, in pixels of the color
+    // camera.
+    private static final float FIT_PIXEL_RADIUS = 40;
+    private static final float FIT_INLIER_THRESHOLD = 0.02f;
+    private static final int FIT_MAX_ITERATIONS = 200;
 
     private RajawaliSurfaceView mSurfaceView;
     private PlaneFittingRenderer mRenderer;
     private TangoCameraIntrinsics mIntrinsics;
-    private TangoPointCloudManager mPointCloudManager;
+    private PointCloudTripleBuffer mPointCloudBuffer;
+    // Plane fitting state, only used by the UI thread.
+    private final PlaneFitter mPlaneFitter = new PlaneFitter(FIT_INLIER_THRESHOLD,
+            FIT_MAX_ITERATIONS, 0);
+    private final double[] mIntersectionPoint = new double[3];
+    private final double[] mPlaneModel = new double[4];
+    private boolean mIsNativeFit;
     private Tango mTango;
     private boolean mIsConnected = false;
     private double mCameraPoseTimestamp = 0;
@@ -95,7 +115,8 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
         mRenderer = new PlaneFittingRenderer(this);
         mSurfaceView.setSurfaceRenderer(mRenderer);
         mSurfaceView.setOnTouchListener(this);
-        mPointCloudManager = new TangoPointCloudManager();
+        mPointCloudBuffer = new PointCloudTripleBuffer(MAX_NUMBER_OF_POINTS);
+        mIsNativeFit = getIntent().getBooleanExtra(EXTRA_USE_NATIVE_FIT, false);
         setContentView(mSurfaceView);
     }
 
@@ -183,7 +204,7 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
             @Override
             public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
                 // Save the cloud and point data for later use.
-                mPointCloudManager.updateXyzIj(xyzIj);
+                mPointCloudBuffer.updateXyzIj(xyzIj);
             }
 
             @Override
@@ -311,12 +332,12 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
     }
 
     /**
-     * Use the TangoSupport library with point cloud data to calculate the plane
-     * of the world feature pointed at the location the camera is looking.
+     * Use {@link PlaneFitter} or the TangoSupport library with point cloud data to calculate the
+     * plane of the world feature pointed at the location the camera is looking.
      * It returns the transform of the fitted plane in a double array.
      */
     private float[] doFitPlane(float u, float v, double rgbTimestamp) {
-        TangoXyzIjData xyzIj = mPointCloudManager.getLatestXyzIj();
+        TangoXyzIjData xyzIj = mPointCloudBuffer.getLatestXyzIj();
 
         if (xyzIj == null) {
             return null;
@@ -329,10 +350,23 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
                 rgbTimestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
                 xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
 
-        // Perform plane fitting with the latest available point cloud data.
-        IntersectionPointPlaneModelPair intersectionPointPlaneModelPair =
-                TangoSupport.fitPlaneModelNearClick(xyzIj, mIntrinsics,
-                        colorTdepthPose, u, v);
+        // Perform plane fitting with the latest available point cloud data. MSAC ignores the
+        // points around the click which are not on the plane.
+        if (mIsNativeFit) {
+            IntersectionPointPlaneModelPair intersectionPointPlaneModelPair =
+                    TangoSupport.fitPlaneModelNearClick(xyzIj, mIntrinsics,
+                            colorTdepthPose, u, v);
+            System.arraycopy(intersectionPointPlaneModelPair.intersectionPoint, 0,
+                    mIntersectionPoint, 0, 3);
+            System.arraycopy(intersectionPointPlaneModelPair.planeModel, 0, mPlaneModel, 0, 4);
+        } else if (mPlaneFitter.fitNearClick(xyzIj, mIntrinsics, colorTdepthPose, u, v,
+                FIT_PIXEL_RADIUS, PlaneFitter.METHOD_MSAC)) {
+            mPlaneFitter.getIntersectionPoint(mIntersectionPoint);
+            mPlaneFitter.getPlaneModel(mPlaneModel);
+        } else {
+            Log.w(TAG, "Can't fit a plane near the click");
+            return null;
+        }
 
         // Get the transform from depth camera to OpenGL world at the timestamp of the cloud.
         TangoSupport.TangoMatrixTransformData transform =
@@ -342,9 +376,8 @@ public class PlaneFittingActivity extends Activity implements View.OnTouchListen
                         TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
                         TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
         if (transform.statusCode == TangoPoseData.POSE_VALID) {
-            float[] openGlTPlane = calculatePlaneTransform(
-                    intersectionPointPlaneModelPair.intersectionPoint,
-                    intersectionPointPlaneModelPair.planeModel, transform.matrix);
+            float[] openGlTPlane = calculatePlaneTransform(mIntersectionPoint, mPlaneModel,
+                    transform.matrix);
 
             return openGlTPlane;
         } else {
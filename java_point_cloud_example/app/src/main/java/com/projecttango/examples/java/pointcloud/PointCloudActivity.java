@@ -43,13 +43,19 @@ import android.widget.TextView;
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.projecttango.tangosupport.TangoPointCloudManager;
+import com.projecttango.rajawali.DeviceExtrinsics;
+import com.projecttango.rajawali.ScenePoseCalculator;
 import com.projecttango.tangosupport.TangoSupport;
+import com.projecttango.tangoutils.PointCloudRecorder;
+import com.projecttango.tangoutils.PointCloudTripleBuffer;
+import com.projecttango.tangoutils.PoseHistory;
 
 /**
  * Main Activity class for the Point Cloud Sample. Handles the connection to the {@link Tango}
@@ -60,6 +66,11 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
     private static final String TAG = PointCloudActivity.class.getSimpleName();
     private static final int SECS_TO_MILLISECS = 1000;
+    // Size of the memory mapped files point clouds are recorded to.
+    private static final long RECORDING_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Device poses kept to look up the pose of point clouds without querying the service.
+    private static final int POSE_HISTORY_CAPACITY = 256;
+    private static final double POSE_HISTORY_MAX_GAP = 0.1;
 
     // Configure the Tango coordinate frame pair
     private static final ArrayList<TangoCoordinateFramePair> FRAME_PAIRS =
@@ -73,7 +84,14 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
     private Tango mTango;
     private TangoUx mTangoUx;
-    private TangoPointCloudManager mPointCloudManager;
+    private PointCloudTripleBuffer mPointCloudBuffer;
+    // Only accessed while synchronized on the activity.
+    private PointCloudRecorder mRecorder;
+    private PoseHistory mPoseHistory = new PoseHistory(POSE_HISTORY_CAPACITY, POSE_HISTORY_MAX_GAP);
+    // Fixed transforms to get the depth camera pose in the OpenGL world from the device pose.
+    private float[] mOpenGlTTangoWorld = new float[16];
+    private float[] mDeviceTDepthCamera = new float[16];
+    private float[] mOpenGlTDepthGlThread = new float[16];
 
     private PointCloudRajawaliRenderer mRenderer;
 
@@ -83,6 +101,8 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     private Button mFirstPersonButton;
     private Button mThirdPersonButton;
     private Button mTopDownButton;
+    private Button mAccumulateButton;
+    private Button mRecordButton;
 
     private double mXyIjPreviousTimeStamp;
     private AtomicBoolean mIsConnected = new AtomicBoolean(false);
@@ -98,7 +118,8 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         setContentView(R.layout.activity_jpoint_cloud);
 
         mRenderer = setupGLViewAndRenderer();
-        mPointCloudManager = new TangoPointCloudManager();
+        mPointCloudBuffer =
+                new PointCloudTripleBuffer(PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS);
         mTangoUx = setupTangoUxAndLayout();
         setupTextViewsAndButtons();
     }
@@ -106,6 +127,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     @Override
     protected void onPause() {
         super.onPause();
+        stopRecording();
         if (mIsConnected.compareAndSet(true, false)) {
             mTangoUx.stop();
             mRenderer.getCurrentScene().clearFrameCallbacks();
@@ -131,6 +153,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                     try {
                         TangoSupport.initialize();
                         connectTango();
+                        setupExtrinsics();
                         connectRenderer();
                     } catch (TangoOutOfDateException outDateEx) {
                         if (mTangoUx != null) {
@@ -163,6 +186,18 @@ public class PointCloudActivity extends Activity implements OnClickListener {
             case R.id.top_down_button:
                 mRenderer.setTopDownView();
                 break;
+            case R.id.accumulate_button:
+                boolean isAccumulating = !mRenderer.isAccumulating();
+                mRenderer.setAccumulating(isAccumulating);
+                mAccumulateButton.setText(isAccumulating ? R.string.live : R.string.accumulate);
+                break;
+            case R.id.record_button:
+                if (isRecording()) {
+                    stopRecording();
+                } else {
+                    startRecording();
+                }
+                break;
             default:
                 Log.w(TAG, "Unrecognized button click.");
         }
@@ -188,6 +223,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 if (mTangoUx != null) {
                     mTangoUx.updatePoseStatus(pose.statusCode);
                 }
+                mPoseHistory.addPose(pose);
             }
 
             @Override
@@ -195,7 +231,8 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 if (mTangoUx != null) {
                     mTangoUx.updateXyzCount(xyzIj.xyzCount);
                 }
-                mPointCloudManager.updateXyzIj(xyzIj);
+                mPointCloudBuffer.updateXyzIj(xyzIj);
+                recordPointCloud(xyzIj);
 
                 final double currentTimeStamp = xyzIj.timestamp;
                 final double pointCloudFrameDelta = (currentTimeStamp - mXyIjPreviousTimeStamp)
@@ -234,6 +271,26 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
     }
 
+    /**
+     * Calculates the fixed transforms needed to get the depth camera pose in the OpenGL world from
+     * the device pose.
+     */
+    private void setupExtrinsics() {
+        TangoCoordinateFramePair framePair = new TangoCoordinateFramePair();
+        framePair.baseFrame = TangoPoseData.COORDINATE_FRAME_IMU;
+        framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_DEVICE;
+        TangoPoseData imuTDevicePose = mTango.getPoseAtTime(0.0, framePair);
+        framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR;
+        TangoPoseData imuTColorCameraPose = mTango.getPoseAtTime(0.0, framePair);
+        framePair.targetFrame = TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH;
+        TangoPoseData imuTDepthCameraPose = mTango.getPoseAtTime(0.0, framePair);
+
+        DeviceExtrinsics extrinsics = new DeviceExtrinsics(imuTDevicePose, imuTColorCameraPose,
+                imuTDepthCameraPose);
+        extrinsics.getDeviceTDepthCamera().toFloatArray(mDeviceTDepthCamera);
+        ScenePoseCalculator.OPENGL_T_TANGO_WORLD.toFloatArray(mOpenGlTTangoWorld);
+    }
+
     public void connectRenderer() {
         mRenderer.getCurrentScene().registerFrameCallback(new ASceneFrameCallback() {
             @Override
@@ -249,18 +306,23 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 }
 
                 // Update point cloud data
-                TangoXyzIjData pointCloud = mPointCloudManager.getLatestXyzIj();
+                TangoXyzIjData pointCloud = mPointCloudBuffer.getLatestXyzIj();
                 if (pointCloud != null) {
-                    // Calculate the camera color pose at the camera frame update time in
-                    // OpenGL engine.
-                    TangoSupport.TangoMatrixTransformData transform =
-                            TangoSupport.getMatrixTransformAtTime(pointCloud.timestamp,
-                                    TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                                    TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-                                    TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
-                                    TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
-                    if (transform.statusCode == TangoPoseData.POSE_VALID) {
-                        mRenderer.updatePointCloud(pointCloud, transform.matrix);
+                    // Calculate the depth camera pose at the point cloud time in OpenGL engine,
+                    // from the buffered device poses if possible, or from the Tango service.
+                    if (mPoseHistory.getMatrixTransformAtTime(pointCloud.timestamp,
+                            mOpenGlTTangoWorld, mDeviceTDepthCamera, mOpenGlTDepthGlThread)) {
+                        mRenderer.updatePointCloud(pointCloud, mOpenGlTDepthGlThread);
+                    } else {
+                        TangoSupport.TangoMatrixTransformData transform =
+                                TangoSupport.getMatrixTransformAtTime(pointCloud.timestamp,
+                                        TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                                        TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                                        TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+                        if (transform.statusCode == TangoPoseData.POSE_VALID) {
+                            mRenderer.updatePointCloud(pointCloud, transform.matrix);
+                        }
                     }
                 }
 
@@ -352,6 +414,105 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         mThirdPersonButton.setOnClickListener(this);
         mTopDownButton = (Button) findViewById(R.id.top_down_button);
         mTopDownButton.setOnClickListener(this);
+        mAccumulateButton = (Button) findViewById(R.id.accumulate_button);
+        mAccumulateButton.setOnClickListener(this);
+        mRecordButton = (Button) findViewById(R.id.record_button);
+        mRecordButton.setOnClickListener(this);
+    }
+
+    /**
+     * Starts recording the point clouds to a new directory in the external files directory of the
+     * application.
+     */
+    private void startRecording() {
+        File directory = new File(getExternalFilesDir(null),
+                "pointclouds_" + System.currentTimeMillis());
+        synchronized (this) {
+            try {
+                mRecorder = new PointCloudRecorder(directory, RECORDING_SEGMENT_SIZE,
+                        mDeviceTDepthCamera);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start recording to " + directory, e);
+                return;
+            }
+        }
+        mRecordButton.setText(R.string.stop_recording);
+    }
+
+    /**
+     * Stops recording the point clouds, if recording.
+     */
+    private void stopRecording() {
+        synchronized (this) {
+            if (mRecorder == null) {
+                return;
+            }
+            closeRecorder(mRecorder);
+            mRecorder = null;
+        }
+        mRecordButton.setText(R.string.record);
+    }
+
+    /**
+     * Finishes a recording in a background thread, since writing back its last segment takes a
+     * while and neither the UI thread nor the Tango callback thread should wait for it.
+     */
+    private static void closeRecorder(final PointCloudRecorder recorder) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.close();
+                    Log.i(TAG, "Recorded " + recorder.getNumberOfRecords() + " point clouds to "
+                            + recorder.getDirectory());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not finish recording", e);
+                }
+            }
+        }, "RecordingCloser").start();
+    }
+
+    private synchronized boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /**
+     * Records a point cloud with its transform into the OpenGL world frame, if recording.
+     * NOTE: This is called from the Tango callback thread, so no point cloud is missed.
+     */
+    private void recordPointCloud(TangoXyzIjData xyzIj) {
+        if (!isRecording()) {
+            return;
+        }
+        // Query the transform before taking the lock, so the UI thread isn't blocked by the call
+        // to the service.
+        TangoSupport.TangoMatrixTransformData transform =
+                TangoSupport.getMatrixTransformAtTime(xyzIj.timestamp,
+                        TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                        TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
+                        TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
+        float[] openGlTdepth = transform.statusCode == TangoPoseData.POSE_VALID
+                ? transform.matrix : null;
+        synchronized (this) {
+            // Recording may have been stopped meanwhile.
+            if (mRecorder == null) {
+                return;
+            }
+            try {
+                mRecorder.record(xyzIj, openGlTdepth);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not record point cloud, recording stopped", e);
+                closeRecorder(mRecorder);
+                mRecorder = null;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRecordButton.setText(R.string.record);
+                    }
+                });
+            }
+        }
     }
 
     /**
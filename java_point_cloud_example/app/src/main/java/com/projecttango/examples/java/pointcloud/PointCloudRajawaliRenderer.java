@@ -27,13 +27,17 @@ import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.renderer.RajawaliRenderer;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.projecttango.rajawali.DeviceExtrinsics;
 import com.projecttango.rajawali.Pose;
 import com.projecttango.rajawali.ScenePoseCalculator;
 import com.projecttango.rajawali.TouchViewHandler;
 import com.projecttango.rajawali.renderables.FrustumAxes;
 import com.projecttango.rajawali.renderables.Grid;
+import com.projecttango.rajawali.renderables.OctreePointCloud;
 import com.projecttango.rajawali.renderables.PointCloud;
+import com.projecttango.tangoutils.VoxelGrid;
 
 /**
  * Renderer for Point Cloud data.
@@ -42,7 +46,13 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
 
     private static final float CAMERA_NEAR = 0.01f;
     private static final float CAMERA_FAR = 200f;
-    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Side of the voxels used to downsample the accumulated point clouds, in meters.
+    private static final float VOXEL_LEAF_SIZE = 0.05f;
+    private static final int MAX_NUMBER_OF_VOXELS = 1000000;
+    // Maximum number of accumulated points drawn on each frame.
+    private static final int ACCUMULATED_VERTEX_BUDGET = 250000;
+    private static final float ACCUMULATED_WORLD_HALF_SIZE = 128f;
 
     private TouchViewHandler mTouchViewHandler;
 
@@ -50,6 +60,10 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
     private PointCloud mPointCloud;
     private FrustumAxes mFrustumAxes;
     private Grid mGrid;
+    private OctreePointCloud mAccumulatedPointCloud;
+
+    private volatile boolean mIsAccumulating = false;
+    private AtomicBoolean mIsAccumulationClearPending = new AtomicBoolean(false);
 
     public PointCloudRajawaliRenderer(Context context) {
         super(context);
@@ -65,8 +79,13 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
         mFrustumAxes = new FrustumAxes(3);
         getCurrentScene().addChild(mFrustumAxes);
 
-        mPointCloud = new PointCloud(MAX_NUMBER_OF_POINTS);
+        mPointCloud = new PointCloud(MAX_NUMBER_OF_POINTS, PointCloud.ColorMode.SHADER);
         getCurrentScene().addChild(mPointCloud);
+        mAccumulatedPointCloud = new OctreePointCloud(
+                new VoxelGrid(VOXEL_LEAF_SIZE, MAX_NUMBER_OF_VOXELS), Color.DKGRAY,
+                ACCUMULATED_VERTEX_BUDGET, ACCUMULATED_WORLD_HALF_SIZE);
+        mAccumulatedPointCloud.setVisible(false);
+        getCurrentScene().addChild(mAccumulatedPointCloud);
         getCurrentScene().setBackgroundColor(Color.WHITE);
         getCurrentCamera().setNearPlane(CAMERA_NEAR);
         getCurrentCamera().setFarPlane(CAMERA_FAR);
@@ -84,6 +103,33 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
         mPointCloud.setPosition(openGlTdepthMatrix.getTranslation());
         // Conjugating the Quaternion is need because Rajawali uses left handed convention.
         mPointCloud.setOrientation(new Quaternion().fromMatrix(openGlTdepthMatrix).conjugate());
+
+        if (mIsAccumulationClearPending.getAndSet(false)) {
+            mAccumulatedPointCloud.clear();
+        }
+        boolean isAccumulating = mIsAccumulating;
+        if (isAccumulating) {
+            // The OpenGL world frame is the start of service frame, so the accumulated points
+            // stay where they were seen.
+            mAccumulatedPointCloud.addCloud(xyzIjData.xyz, xyzIjData.xyzCount, openGlTdepth);
+            mAccumulatedPointCloud.updateCloud();
+        }
+        mAccumulatedPointCloud.setVisible(isAccumulating);
+    }
+
+    /**
+     * Start or stop accumulating the point clouds into a downsampled map. Starting again discards
+     * the previously accumulated points.
+     */
+    public void setAccumulating(boolean isAccumulating) {
+        if (isAccumulating && !mIsAccumulating) {
+            mIsAccumulationClearPending.set(true);
+        }
+        mIsAccumulating = isAccumulating;
+    }
+
+    public boolean isAccumulating() {
+        return mIsAccumulating;
     }
 
     /**
@@ -48,8 +48,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.projecttango.rajawali.DeviceExtrinsics;
 import com.projecttango.rajawali.ScenePoseCalculator;
-import com.projecttango.tangosupport.TangoPointCloudManager;
 import com.projecttango.tangosupport.TangoSupport;
+import com.projecttango.tangoutils.DenseDepthMap;
+import com.projecttango.tangoutils.DenseDepthMapFiller;
+import com.projecttango.tangoutils.PointCloudTripleBuffer;
+import com.projecttango.tangoutils.ProjectedPointIndex;
+import com.projecttango.tangoutils.RigidTransforms;
 
 /**
  * An example showing how to build a very simple point to point measurement app
@@ -76,11 +80,31 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
             TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
             TangoPoseData.COORDINATE_FRAME_DEVICE);
     private static final int INVALID_TEXTURE_ID = 0;
+    // Maximum number of points expected in a single point cloud.
+    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Size in pixels of the cells of the index of the points in the color camera image.
+    private static final int INDEX_CELL_SIZE = 8;
+    // Ratio between the color camera resolution and the dense depth map resolution.
+    private static final int DEPTH_MAP_DOWNSAMPLING = 4;
+    // Maximum distance in pixels of the depth map between a touch and the nearest point of the
+    // cloud. Touches further away, in holes of the cloud, are not measured.
+    private static final int MAX_DEPTH_MAP_FILL_DISTANCE = 8;
 
     private RajawaliSurfaceView mSurfaceView;
     private PointToPointRenderer mRenderer;
     private TangoCameraIntrinsics mIntrinsics;
-    private TangoPointCloudManager mPointCloudManager;
+    private PointCloudTripleBuffer mPointCloudBuffer;
+    // Index of the latest point cloud in the color camera image, built on the first touch after
+    // each new cloud and only used on the UI thread.
+    private ProjectedPointIndex mPointIndex;
+    private final float[] mColorTDepth = new float[RigidTransforms.MATRIX_SIZE];
+    private final float[] mCloudColorTTouchColor = new float[RigidTransforms.MATRIX_SIZE];
+    // Fills dense depth maps of the clouds in the color camera image in the background, so that
+    // touches between the points don't snap to a far neighbor. Its maps are only read on the UI
+    // thread, without locking the activity.
+    private volatile DenseDepthMapFiller mDepthMapFiller;
+    // Only used in the Tango callback thread.
+    private final float[] mCallbackColorTDepth = new float[RigidTransforms.MATRIX_SIZE];
     private Tango mTango;
     private boolean mIsConnected = false;
     private double mCameraPoseTimestamp = 0;
@@ -90,7 +114,8 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
     // NOTE: Naming indicates which thread is in charge of updating this variable
     private int mConnectedTextureIdGlThread = INVALID_TEXTURE_ID;
     private AtomicBoolean mIsFrameAvailableTangoThread = new AtomicBoolean(false);
-    private double mRgbTimestampGlThread;
+    // Also read by touches in the UI thread.
+    private volatile double mRgbTimestampGlThread;
 
     private float[][] mLinePoints = new float[2][3];
     private boolean mPointSwitch = true;
@@ -106,7 +131,8 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
         mRenderer = new PointToPointRenderer(this);
         mSurfaceView.setSurfaceRenderer(mRenderer);
         mSurfaceView.setOnTouchListener(this);
-        mPointCloudManager = new TangoPointCloudManager();
+        mPointCloudBuffer = new PointCloudTripleBuffer(MAX_NUMBER_OF_POINTS);
+        mPointIndex = new ProjectedPointIndex(MAX_NUMBER_OF_POINTS, INDEX_CELL_SIZE);
         mDistanceMeasure = (TextView) findViewById(R.id.distance_textview);
         mLinePoints[0] = null;
         mLinePoints[1] = null;
@@ -130,6 +156,8 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
                 mConnectedTextureIdGlThread = INVALID_TEXTURE_ID;
                 mTango.disconnect();
                 mIsConnected = false;
+                mDepthMapFiller.stop();
+                mDepthMapFiller = null;
             }
         }
     }
@@ -207,7 +235,21 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
             @Override
             public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
                 // Save the cloud and point data for later use.
-                mPointCloudManager.updateXyzIj(xyzIj);
+                mPointCloudBuffer.updateXyzIj(xyzIj);
+                // Fill its depth map in the color camera image at the time the cloud was
+                // acquired.
+                DenseDepthMapFiller depthMapFiller = mDepthMapFiller;
+                if (depthMapFiller == null) {
+                    return;
+                }
+                TangoPoseData colorTdepthPose = TangoSupport.calculateRelativePose(
+                        xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                        xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
+                if (colorTdepthPose.statusCode == TangoPoseData.POSE_VALID) {
+                    RigidTransforms.setFromTranslationRotation(mCallbackColorTDepth, 0,
+                            colorTdepthPose.translation, colorTdepthPose.rotation);
+                    depthMapFiller.onXyzIjAvailable(xyzIj, mCallbackColorTDepth);
+                }
             }
 
             @Override
@@ -217,6 +259,11 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
         });
 
         mIntrinsics = mTango.getCameraIntrinsics(TangoCameraIntrinsics.TANGO_CAMERA_COLOR);
+        DenseDepthMapFiller depthMapFiller = new DenseDepthMapFiller(mIntrinsics,
+                DEPTH_MAP_DOWNSAMPLING, MAX_DEPTH_MAP_FILL_DISTANCE,
+                Runtime.getRuntime().availableProcessors(), MAX_NUMBER_OF_POINTS);
+        depthMapFiller.start();
+        mDepthMapFiller = depthMapFiller;
     }
 
     /**
@@ -302,19 +349,19 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
 
     @Override
     public boolean onTouch(View view, MotionEvent motionEvent) {
-        if (motionEvent.getAction() == MotionEvent.ACTION_UP) {
-            // Calculate click location in u,v (0;1) coordinates.
-            float u = motionEvent.getX() / view.getWidth();
-            float v = motionEvent.getY() / view.getHeight();
+        int action = motionEvent.getActionMasked();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP) {
+            // Calculate click location in u,v (0;1) coordinates, each lifted finger of a
+            // multi-touch gesture placing an endpoint.
+            int pointerIndex = motionEvent.getActionIndex();
+            float u = motionEvent.getX(pointerIndex) / view.getWidth();
+            float v = motionEvent.getY(pointerIndex) / view.getHeight();
 
             try {
-                // Place point near the clicked point using the latest point cloud data
-                // Synchronize against concurrent access to the RGB timestamp in the OpenGL thread
-                // and a possible service disconnection due to an onPause event.
-                float[] rgbPoint;
-                synchronized (this) {
-                    rgbPoint = getDepthAtTouchPosition(u, v, mRgbTimestampGlThread);
-                }
+                // Place point near the clicked point using the latest point cloud data.
+                // NOTE: The service can't be disconnected meanwhile, since onPause also runs in
+                // the UI thread, so there is no need to lock against the OpenGL thread here.
+                float[] rgbPoint = getDepthAtTouchPosition(u, v, mRgbTimestampGlThread);
                 if (rgbPoint != null) {
                     // Update a line endpoint to the touch location.
                     // This update is made thread safe by the renderer
@@ -340,43 +387,98 @@ public class PointToPointActivity extends Activity implements View.OnTouchListen
     }
 
     /**
-     * Use the TangoSupport library with point cloud data to calculate the depth
-     * of the point closest to where the user touches the screen. It returns a
-     * Vector3 in openGL world space.
+     * Use the latest dense depth map of the point cloud data to find the point where the user
+     * touches the screen, or a projected index of the latest cloud to find the closest point if
+     * the map has no depth there. It returns a Vector3 in openGL world space, or null if the touch
+     * is too far from the points of the cloud.
      */
     private float[] getDepthAtTouchPosition(float u, float v, double rgbTimestamp) {
-        TangoXyzIjData xyzIj = mPointCloudManager.getLatestXyzIj();
-        if (xyzIj == null) {
+        // The depth map filler only exists while connected to the service.
+        DenseDepthMapFiller depthMapFiller = mDepthMapFiller;
+        if (depthMapFiller == null) {
             return null;
         }
+        float pixelX = u * mIntrinsics.width;
+        float pixelY = v * mIntrinsics.height;
+        float[] point = new float[3];
+
+        DenseDepthMap depthMap = depthMapFiller.getLatestMap();
+        if (depthMap != null) {
+            double mapTimestamp = depthMap.getTimestamp();
+            if (updateCloudColorTTouchColor(mapTimestamp, rgbTimestamp)
+                    && depthMap.getPoint(pixelX, pixelY, mCloudColorTTouchColor, point)) {
+                return toOpenGlWorld(point, mapTimestamp,
+                        TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR);
+            }
+        }
 
-        // We need to calculate the transform between the color camera at the
-        // time the user clicked and the depth camera at the time the depth
-        // cloud was acquired.
-        TangoPoseData colorTdepthPose = TangoSupport.calculateRelativePose(
-                rgbTimestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
-                xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
-
-        float[] point = TangoSupport.getDepthAtPointNearestNeighbor(xyzIj, mIntrinsics,
-                colorTdepthPose, u, v);
-        if (point == null) {
+        TangoXyzIjData xyzIj = mPointCloudBuffer.getLatestXyzIj();
+        if (xyzIj == null) {
+            return null;
+        }
+        // Index the cloud once, in the color camera image at the time the depth cloud was
+        // acquired, so that the following touches on the same cloud don't scan all its points.
+        if (mPointIndex.getTimestamp() != xyzIj.timestamp) {
+            TangoPoseData colorTdepthPose = TangoSupport.calculateRelativePose(
+                    xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                    xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
+            if (colorTdepthPose.statusCode != TangoPoseData.POSE_VALID) {
+                Log.w(TAG, "Could not get color camera to depth camera transform");
+                return null;
+            }
+            RigidTransforms.setFromTranslationRotation(mColorTDepth, 0,
+                    colorTdepthPose.translation, colorTdepthPose.rotation);
+            mPointIndex.build(xyzIj, mIntrinsics, mColorTDepth);
+        }
+        if (!updateCloudColorTTouchColor(xyzIj.timestamp, rgbTimestamp)) {
             return null;
         }
+        int nearest = mPointIndex.findNearest(pixelX, pixelY, mCloudColorTTouchColor,
+                MAX_DEPTH_MAP_FILL_DISTANCE * DEPTH_MAP_DOWNSAMPLING);
+        if (nearest < 0) {
+            return null;
+        }
+        point[0] = mPointIndex.getX(nearest);
+        point[1] = mPointIndex.getY(nearest);
+        point[2] = mPointIndex.getZ(nearest);
+        return toOpenGlWorld(point, xyzIj.timestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH);
+    }
 
-        // Get the transform from depth camera to OpenGL world at the timestamp of the cloud.
+    /**
+     * Calculate the transform between the color camera at the time the user clicked and the
+     * color camera at the time the depth cloud was acquired.
+     */
+    private boolean updateCloudColorTTouchColor(double cloudTimestamp, double rgbTimestamp) {
+        TangoPoseData touchPose = TangoSupport.calculateRelativePose(
+                cloudTimestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR,
+                rgbTimestamp, TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR);
+        if (touchPose.statusCode != TangoPoseData.POSE_VALID) {
+            Log.w(TAG, "Could not get color camera transform at time " + rgbTimestamp);
+            return false;
+        }
+        RigidTransforms.setFromTranslationRotation(mCloudColorTTouchColor, 0,
+                touchPose.translation, touchPose.rotation);
+        return true;
+    }
+
+    /**
+     * Transform a point of a camera frame at the timestamp of a cloud to OpenGL world, or return
+     * null if the camera pose is not available.
+     */
+    private float[] toOpenGlWorld(float[] point, double cloudTimestamp, int cameraFrame) {
         TangoSupport.TangoMatrixTransformData transform =
-                TangoSupport.getMatrixTransformAtTime(xyzIj.timestamp,
+                TangoSupport.getMatrixTransformAtTime(cloudTimestamp,
                         TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
+                        cameraFrame,
                         TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
                         TangoSupport.TANGO_SUPPORT_ENGINE_TANGO);
         if (transform.statusCode == TangoPoseData.POSE_VALID) {
-            float[] dephtPoint = new float[]{point[0], point[1], point[2], 1};
+            float[] cameraPoint = new float[]{point[0], point[1], point[2], 1};
             float[] openGlPoint = new float[4];
-            Matrix.multiplyMV(openGlPoint, 0, transform.matrix, 0, dephtPoint, 0);
+            Matrix.multiplyMV(openGlPoint, 0, transform.matrix, 0, cameraPoint, 0);
             return openGlPoint;
         } else {
-            Log.w(TAG, "Could not get depth camera transform at time " + xyzIj.timestamp);
+            Log.w(TAG, "Could not get camera transform at time " + cloudTimestamp);
         }
         return null;
     }